@@ -45,6 +45,84 @@ public interface ChatListener {
      */
     void onUserList(String[] usernames);
 
+    /**
+     * This method is called when the server answered the presence
+     * subscription
+     *
+     * @param supported when true, the server will send the users who join
+     * and leave, when false, the server does not support it and the user list
+     * must be polled
+     */
+    void onPresenceResult(boolean supported);
+
+    /**
+     * This method is called when a user joined the chat (connected, or logged
+     * in with a new username), after subscribing to presence
+     *
+     * @param username The user who joined
+     */
+    void onUserJoined(String username);
+
+    /**
+     * This method is called when a user left the chat (disconnected, or
+     * logged in with another username), after subscribing to presence
+     *
+     * @param username The user who left
+     */
+    void onUserLeft(String username);
+
+    /**
+     * This method is called when the server confirmed that the client joined
+     * a room
+     *
+     * @param room The room
+     */
+    void onRoomJoined(String room);
+
+    /**
+     * This method is called when the server confirmed that the client left
+     * a room
+     *
+     * @param room The room
+     */
+    void onRoomLeft(String room);
+
+    /**
+     * This method is called when a room command (join, leave, room user list)
+     * failed
+     *
+     * @param errMsg Error message
+     */
+    void onRoomError(String errMsg);
+
+    /**
+     * This method is called when the list of the members of a room is
+     * received
+     *
+     * @param room      The room
+     * @param usernames List of the members
+     */
+    void onRoomUserList(String room, String[] usernames);
+
+    /**
+     * This method is called when the server answered the inbox command. The
+     * messages from the inbox follow, each reported with onMessageReceived()
+     *
+     * @param count The number of messages which follow
+     */
+    void onInboxResult(int count);
+
+    /**
+     * This method is called when the server answered a history request. The
+     * messages of the page follow, oldest first, each reported with
+     * onMessageReceived()
+     *
+     * @param count The number of messages which follow
+     * @param next  The value to pass as before to get the older messages, 0
+     *              when there are no older messages
+     */
+    void onHistoryResult(int count, long next);
+
     /**
      * This method is called when a list of currently supported commands is
      * received
@@ -16,6 +16,8 @@ import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 
 import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 /**
  * The graphical interface containing all the user interface controls: buttons, inputs, etc.
@@ -67,10 +69,18 @@ public class GUIController implements ChatListener {
     // The TCP client that can connect, send commands, etc.
     private TCPClient tcpClient;
 
-    // Active user list will be refreshed periodically. This will be done on a separate CPU Thread to avoid blocking
-    // the GUI.
+    // The server pushes the changes of the user list. Servers which can't do that are polled for the user list
+    // periodically instead. This will be done on a separate CPU Thread to avoid blocking the GUI.
     private Thread userPollThread;
 
+    // The users shown in the user list, used only on the GUI thread
+    private final Set<String> usernames = new LinkedHashSet<>();
+
+    // The last history request, continued with /more. Used only on the GUI thread
+    private String historyRoom;
+    private String historyPeer;
+    private long historyNext = 0;
+
     /**
      * Called by the FXML loader after the labels declared above are injected:
      */
@@ -148,12 +158,31 @@ public class GUIController implements ChatListener {
             TextMessage msg;
             if (this.tcpClient.isConnectionActive()) {
                 // Split the message in max 3 parts. If the first one is "/privmsg", then recipient is the second
-                // part and the text to send is the third. Otherwise, the whole message is sent as a public message.
+                // part and the text to send is the third. "/room" works the same way, with a room instead of the
+                // recipient. "/join" and "/leave" take the room as the second part. "/sync" and "/async" switch
+                // the delivery mode, "/inbox" fetches the messages kept in sync mode. "/history" fetches the
+                // past public messages, "/history room <room>" and "/history peer <user>" those of a room or of
+                // the private conversation with a user, "/more" the page before. Otherwise, the whole message
+                // is sent as a public message.
                 String[] msgParts = msgToSend.split(" ", 3);
                 if (msgParts.length == 3 && msgParts[0].equals("/privmsg")) {
                     String recipient = msgParts[1];
                     String message = msgParts[2];
                     this.tcpClient.sendPrivateMessage(recipient, message);
+                } else if (msgParts.length == 3 && msgParts[0].equals("/room")) {
+                    this.tcpClient.sendRoomMessage(msgParts[1], msgParts[2]);
+                } else if (msgParts.length == 2 && msgParts[0].equals("/join")) {
+                    this.tcpClient.joinRoom(msgParts[1]);
+                } else if (msgParts.length == 2 && msgParts[0].equals("/leave")) {
+                    this.tcpClient.leaveRoom(msgParts[1]);
+                } else if (msgParts.length == 1 && (msgParts[0].equals("/sync") || msgParts[0].equals("/async"))) {
+                    this.tcpClient.setSyncMode(msgParts[0].equals("/sync"));
+                } else if (msgParts.length == 1 && msgParts[0].equals("/inbox")) {
+                    this.tcpClient.readInbox();
+                } else if (msgParts[0].equals("/history")) {
+                    this.requestHistory(msgParts);
+                } else if (msgParts.length == 1 && msgParts[0].equals("/more") && this.historyNext > 0) {
+                    this.tcpClient.requestHistory(this.historyRoom, this.historyPeer, this.historyNext);
                 } else {
                     this.tcpClient.sendPublicMessage(msgToSend);
                 }
@@ -166,6 +195,31 @@ public class GUIController implements ChatListener {
         }
     }
 
+    /**
+     * Fetch the newest page of the history asked for with "/history", "/history room <room>" or
+     * "/history peer <user>". Anything else shows the usage, it is not sent as a public message
+     *
+     * @param msgParts The "/history" command split in max 3 parts
+     */
+    private void requestHistory(String[] msgParts) {
+        if (msgParts.length == 1) {
+            this.historyRoom = null;
+            this.historyPeer = null;
+        } else if (msgParts.length == 3 && msgParts[1].equals("room")) {
+            this.historyRoom = msgParts[2];
+            this.historyPeer = null;
+        } else if (msgParts.length == 3 && msgParts[1].equals("peer")) {
+            this.historyRoom = null;
+            this.historyPeer = msgParts[2];
+        } else {
+            // Shown after the command itself, which is added to the chat window when this returns
+            Platform.runLater(() -> this.addMsgToGui(true, new TextMessage("err", false,
+                    "Usage: /history, /history room <room> or /history peer <user>"), true));
+            return;
+        }
+        this.tcpClient.requestHistory(this.historyRoom, this.historyPeer, 0);
+    }
+
     /**
      * Add a message to the GUI chat window
      *
@@ -186,6 +240,8 @@ public class GUIController implements ChatListener {
         if (msg.isPrivate()) {
             senderText = "Private from " + msg.getSender() + ":";
             messageSender.getStyleClass().add("private");
+        } else if (msg.getRoom() != null) {
+            senderText = msg.getSender() + " in " + msg.getRoom() + ":";
         } else {
             senderText = msg.getSender() + ":";
         }
@@ -243,12 +299,16 @@ public class GUIController implements ChatListener {
 
         // Run the connection in a new background thread to avoid GUI freeze
         Thread connThread = new Thread(() -> {
+            // Falls back to the text protocol when the server does not support it
+            this.tcpClient.setBinaryFraming(true);
+            this.tcpClient.setCompression(true);
             boolean connected = this.tcpClient.connect(host, Integer.parseInt(port));
             if (connected) {
                 // Connection established, start listening processes
                 this.tcpClient.addListener(this);
                 this.tcpClient.startListenThread();
-                this.startUserPolling();
+                // Polling starts only if the server answers that it does not support presence
+                this.tcpClient.subscribePresence();
             }
             this.updateButtons(connected);
         });
@@ -296,7 +356,8 @@ public class GUIController implements ChatListener {
     ///////////////////////////////////////////////////////////////////////
 
     /**
-     * Start a new thread that will poll the server for currently active users
+     * Start a new thread that will poll the server for currently active users. Used only with servers which
+     * don't support presence
      */
     private void startUserPolling() {
         // Make sure we have just one polling thread, not duplicates
@@ -387,21 +448,142 @@ public class GUIController implements ChatListener {
     public void onUserList(String[] usernames) {
         // Update the user list. Do it on the GUI thread.
         Platform.runLater(() -> {
-            this.userList.getChildren().clear();
-            for (String user : usernames) {
-                Label text = new Label(user);
-                text.getStyleClass().add("user");
-                // Set an "on-click" listener for the item in the user list - allow to send a private message
-                text.setOnMouseClicked(event -> {
-                    this.textInput.setText("/privmsg " + user + " ");
-                    this.textInput.requestFocus();
-                    this.textInput.end();
-                });
-                this.userList.getChildren().add(text);
+            this.usernames.clear();
+            this.usernames.addAll(Arrays.asList(usernames));
+            this.showUserList();
+        });
+    }
+
+    /**
+     * This method is called when the server answered the presence subscription
+     *
+     * @param supported When true, the server will send the users who join and leave. When false, the
+     *                  user list must be polled
+     */
+    @Override
+    public void onPresenceResult(boolean supported) {
+        if (!supported) {
+            this.startUserPolling();
+        }
+    }
+
+    /**
+     * This method is called when a user joined the chat
+     *
+     * @param username The user who joined
+     */
+    @Override
+    public void onUserJoined(String username) {
+        Platform.runLater(() -> {
+            if (this.usernames.add(username)) {
+                this.showUserList();
+            }
+        });
+    }
+
+    /**
+     * This method is called when a user left the chat
+     *
+     * @param username The user who left
+     */
+    @Override
+    public void onUserLeft(String username) {
+        Platform.runLater(() -> {
+            if (this.usernames.remove(username)) {
+                this.showUserList();
             }
         });
     }
 
+    /**
+     * Show the current users in the user list. Must be called on the GUI thread
+     */
+    private void showUserList() {
+        this.userList.getChildren().clear();
+        for (String user : this.usernames) {
+            Label text = new Label(user);
+            text.getStyleClass().add("user");
+            // Set an "on-click" listener for the item in the user list - allow to send a private message
+            text.setOnMouseClicked(event -> {
+                this.textInput.setText("/privmsg " + user + " ");
+                this.textInput.requestFocus();
+                this.textInput.end();
+            });
+            this.userList.getChildren().add(text);
+        }
+    }
+
+    /**
+     * This method is called when the server confirmed that we joined a room
+     *
+     * @param room The room
+     */
+    @Override
+    public void onRoomJoined(String room) {
+        Platform.runLater(() -> this.addMsgToGui(true, new TextMessage("info", false,
+                "Info: joined room " + room + ", send to it with /room " + room + " <message>"), true));
+    }
+
+    /**
+     * This method is called when the server confirmed that we left a room
+     *
+     * @param room The room
+     */
+    @Override
+    public void onRoomLeft(String room) {
+        Platform.runLater(() -> this.addMsgToGui(true, new TextMessage("info", false,
+                "Info: left room " + room), true));
+    }
+
+    /**
+     * This method is called when a room command failed
+     *
+     * @param errMsg Error message
+     */
+    @Override
+    public void onRoomError(String errMsg) {
+        Platform.runLater(() -> this.addMsgToGui(true, new TextMessage("err", false,
+                "Error: " + errMsg), true));
+    }
+
+    /**
+     * This method is called when the members of a room are received
+     *
+     * @param room      The room
+     * @param usernames Array with usernames of the members
+     */
+    @Override
+    public void onRoomUserList(String room, String[] usernames) {
+        Platform.runLater(() -> this.addMsgToGui(true, new TextMessage("info", false,
+                "Info: in room " + room + ": " + String.join(" ", usernames)), true));
+    }
+
+    /**
+     * This method is called when the server answered the inbox command
+     *
+     * @param count The number of messages which follow
+     */
+    @Override
+    public void onInboxResult(int count) {
+        Platform.runLater(() -> this.addMsgToGui(true, new TextMessage("info", false,
+                "Info: " + count + " message(s) in the inbox"), true));
+    }
+
+    /**
+     * This method is called when the server answered a history request
+     *
+     * @param count The number of messages which follow
+     * @param next  The value to continue with the older messages, 0 when there are none
+     */
+    @Override
+    public void onHistoryResult(int count, long next) {
+        Platform.runLater(() -> {
+            this.historyNext = next;
+            this.addMsgToGui(true, new TextMessage("info", false, "Info: " + count
+                    + " message(s) from the history" + (next > 0 ? ", type /more for older ones" : "")), true);
+        });
+    }
+
     /**
      * This method is called when a list of currently supported commands is
      * received
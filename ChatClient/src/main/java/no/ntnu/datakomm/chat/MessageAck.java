@@ -0,0 +1,38 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server's acknowledgement (msgok) of a message sent with one of the async send methods of TCPClient
+ */
+public class MessageAck {
+
+    private final int recipientCount;
+    private final long roundTripNanos;
+
+    /**
+     * @param recipientCount The number of clients the server delivered the message to
+     * @param roundTripNanos Time from sending the message until the acknowledgement arrived, in nanoseconds
+     */
+    public MessageAck(int recipientCount, long roundTripNanos) {
+        this.recipientCount = recipientCount;
+        this.roundTripNanos = roundTripNanos;
+    }
+
+    public int getRecipientCount() {
+        return this.recipientCount;
+    }
+
+    public long getRoundTripNanos() {
+        return this.roundTripNanos;
+    }
+
+    public long getRoundTripMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.roundTripNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "MessageAck{recipients=" + this.recipientCount + ", roundTripNanos=" + this.roundTripNanos + "}";
+    }
+}
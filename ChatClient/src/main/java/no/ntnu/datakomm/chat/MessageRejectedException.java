@@ -0,0 +1,17 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * The server refused a message sent with one of the async send methods of TCPClient (msgerr), for example
+ * because the recipient does not exist, or did not know its command (cmderr), for example roommsg on a server
+ * without rooms
+ */
+public class MessageRejectedException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param reason The error description returned by the server
+     */
+    public MessageRejectedException(String reason) {
+        super(reason);
+    }
+}
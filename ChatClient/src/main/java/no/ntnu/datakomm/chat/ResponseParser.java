@@ -0,0 +1,72 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * Takes a line received from the server apart in one pass: finds where the command word and the first few
+ * arguments end, and nothing else. The rest of the line (the text of a message) is never scanned, and is kept
+ * exactly as the server sent it. Strings are created only for the parts asked for. One parser is reused for all
+ * the lines of the listening thread.
+ */
+class ResponseParser {
+    // The most words told apart: command, room, sender. Everything after them is the text
+    private static final int MAX_WORDS = 3;
+
+    private String line = "";
+    // The index of the space after each word, the line length when the word is the last one. Only the first
+    // wordCount entries are valid
+    private final int[] wordEnds = new int[MAX_WORDS];
+    private int wordCount;
+
+    /**
+     * Parse a line: the words are separated by single spaces, the command word comes first
+     *
+     * @param line The line, without the line terminator
+     */
+    void parse(String line) {
+        this.line = line;
+        this.wordCount = 0;
+        int start = 0;
+        while (this.wordCount < MAX_WORDS) {
+            int space = line.indexOf(' ', start);
+            if (space < 0) {
+                this.wordEnds[this.wordCount++] = line.length();
+                return;
+            }
+            this.wordEnds[this.wordCount++] = space;
+            start = space + 1;
+        }
+    }
+
+    /**
+     * @return The command word of the parsed line
+     */
+    String getCommand() {
+        return this.getWord(0);
+    }
+
+    /**
+     * Get one word of the parsed line
+     *
+     * @param index 0 for the command word, 1 for the first argument, at most MAX_WORDS - 1
+     * @return The word, empty when the line has fewer words
+     */
+    String getWord(int index) {
+        if (index >= this.wordCount) {
+            return "";
+        }
+        int start = index == 0 ? 0 : this.wordEnds[index - 1] + 1;
+        return this.line.substring(start, this.wordEnds[index]);
+    }
+
+    /**
+     * Get the rest of the parsed line after some words, as sent: the spaces in it are kept
+     *
+     * @param words The number of words to skip, including the command word, at most MAX_WORDS
+     * @return Everything after the space which follows the last skipped word, empty when there is nothing
+     */
+    String getRest(int words) {
+        if (words > this.wordCount || this.wordEnds[words - 1] >= this.line.length()) {
+            return "";
+        }
+        return this.line.substring(this.wordEnds[words - 1] + 1);
+    }
+}
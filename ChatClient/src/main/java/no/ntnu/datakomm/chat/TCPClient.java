@@ -1,23 +1,131 @@
 package no.ntnu.datakomm.chat;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class TCPClient {
+    // With command batching, commands are sent at most this long after they were issued
+    private static final long BATCH_FLUSH_DELAY_MS = 5;
+    // The server is pinged after this much silence, and given up on after the timeout
+    private static final long HEARTBEAT_INTERVAL_MS = 10_000;
+    private static final long HEARTBEAT_TIMEOUT_MS = 30_000;
+    // The futures of the async send methods fail with a TimeoutException when not answered within this time
+    private static final long DEFAULT_ACK_TIMEOUT_MS = 30_000;
+    // The cmderr of a server which does not know a command, or can not split its arguments
+    private static final String ERR_NOT_SUPPORTED = "command not supported";
+    // Binary framing: a 4-byte length, a 1-byte opcode and the UTF-8 payload. Clients send one line per
+    // OP_LINE frame, the server sends one or more newline-terminated lines per OP_LINES frame
+    private static final byte OP_LINE = 1;
+    private static final byte OP_LINES = 2;
+    // With compression, the same payloads compressed on their own as raw deflate streams, see setCompression()
+    private static final byte OP_DEFLATED_LINE = 3;
+    private static final byte OP_DEFLATED_LINES = 4;
+    private static final int MAX_FRAME_LENGTH = 1024 * 1024;
+    // Shorter commands are sent as they are
+    private static final int MIN_COMPRESSED_LENGTH = 128;
+    // The preset dictionary of the compression. Must be exactly the server's (Compression.DICTIONARY)
+    private static final byte[] DICTIONARY = ("function return public private static final class void null true "
+            + "false import package String int long if else for while try catch throw new this Exception error "
+            + "Error at java. org. com. https:// http:// .com .html .json \"} {\" \": [] </div> <div "
+            + "DEBUG INFO WARN ERROR TRACE 2024- 2025- 2026- 00:00:00 request response user server client "
+            + "the and that with have this from they will would there their what about which when make can like "
+            + "time just know take people into year your good some could them see other than then now look only "
+            + "come its over think also back after use two how our work first well way even want because any "
+            + "these give day most us is are was were be been has had do does did not no yes ok thanks please "
+            + "roommsg privmsg msgok msg users joined left inbox history ").getBytes(StandardCharsets.UTF_8);
+    // Line breaks inside a line are sent as this character with the text protocol
+    private static final char LINE_BREAK = '\u2028';
+    // Longest answer to the binary handshake which is read
+    private static final int MAX_HANDSHAKE_LENGTH = 1024;
+    // Sends the batched commands after the delay and checks the heartbeats, shared by all the clients
+    private static final ScheduledExecutorService FLUSH_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "command-flusher");
+        t.setDaemon(true);
+        return t;
+    });
+
     private PrintWriter toServer;
     private BufferedReader fromServer;
+    // Used instead of toServer and fromServer with binary framing
+    private DataOutputStream framesToServer;
+    private DataInputStream framesFromServer;
+    // Lines received but not handled yet: the rest of a frame, or the answer to the handshake when it was not
+    // binaryok. Used by connect(), then only by the listening thread
+    private final ArrayDeque<String> receivedLines = new ArrayDeque<>();
+    // True to ask for binary framing on connect, and true while the connection uses it
+    private volatile boolean binaryFramingRequested = false;
+    private volatile boolean binaryFraming = false;
+    // True to ask for compression on connect, and true while the commands are sent compressed
+    private volatile boolean compressionRequested = false;
+    private volatile boolean compressing = false;
+    // Created on the first connection which uses compression and reused after that. The deflater is used by
+    // whichever thread sends a command, the inflater only by the thread which reads
+    private Deflater deflater;
+    private Inflater inflater;
     private Socket connection;
 
     // Hint: if you want to store a message for the last error, store it here
     private String lastError = null;
 
     private final List<ChatListener> listeners = new LinkedList<>();
+    // Takes apart the lines received from the server, used only by the listening thread
+    private final ResponseParser parser = new ResponseParser();
+
+    // When true, commands are collected and sent together instead of one TCP write per command
+    private volatile boolean commandBatching = false;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    // True from subscribePresence() until the server has answered it, used only by the listening thread
+    // and the thread which subscribes
+    private volatile boolean presenceRequested = false;
+
+    // True from the first ping until the server has answered it. A cmderr answer means no heartbeat support
+    private volatile boolean heartbeatRequested = false;
+    // When the last line was received from the server, from System.nanoTime()
+    private volatile long lastReceivedNanos;
+    private volatile ScheduledFuture<?> heartbeatCheck;
+
+    /**
+     * A message waiting for the server's msgok or msgerr
+     *
+     * @param command   The command word of the message: msg, privmsg or roommsg
+     * @param future    Completed with the answer, null for the messages sent without an async send method
+     * @param sentNanos When the message was sent, from System.nanoTime()
+     */
+    private record PendingAck(String command, CompletableFuture<MessageAck> future, long sentNanos) {
+    }
+
+    // The messages sent and not answered yet, oldest first. The server answers every message, in the order they
+    // were sent, so each answer belongs to the oldest pending message
+    private final ArrayDeque<PendingAck> pendingAcks = new ArrayDeque<>();
+    private volatile long ackTimeoutMs = DEFAULT_ACK_TIMEOUT_MS;
 
     /**
      * Connect to a chat server.
@@ -30,9 +138,22 @@ public class TCPClient {
         boolean result = false;
         try {
             this.connection = new Socket(host, port);
-            this.toServer = new PrintWriter(this.connection.getOutputStream(), true);
-            this.fromServer = new BufferedReader(new InputStreamReader(this.connection.getInputStream()));
+            InputStream in = this.connection.getInputStream();
+            OutputStream out = this.connection.getOutputStream();
+            this.receivedLines.clear();
+            this.binaryFraming = this.binaryFramingRequested && this.negotiateBinaryFraming(in, out);
+            // Flushed by sendCommand(), right away or after a short delay when commands are batched
+            if (this.binaryFraming) {
+                this.framesToServer = new DataOutputStream(new BufferedOutputStream(out));
+                this.framesFromServer = new DataInputStream(new BufferedInputStream(in));
+                this.compressing = this.compressionRequested && this.negotiateCompression();
+            } else {
+                // The server speaks UTF-8, whatever the default charset of this machine
+                this.toServer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), false);
+                this.fromServer = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            }
             result = true;
+            this.startHeartbeats();
         } catch (IOException e) {
             this.log("Failed to connect: " + e.getMessage());
         }
@@ -40,6 +161,98 @@ public class TCPClient {
         return result;
     }
 
+    /**
+     * Ask for binary framing on the next connect(): commands and replies are sent as length-prefixed frames
+     * instead of lines, and messages may contain line breaks. A server which does not support it is used with
+     * the text protocol, see isBinaryFraming().
+     *
+     * @param enabled True to ask for binary framing
+     */
+    public void setBinaryFraming(boolean enabled) {
+        this.binaryFramingRequested = enabled;
+    }
+
+    /**
+     * @return True when the current connection uses binary framing
+     */
+    public boolean isBinaryFraming() {
+        return this.binaryFraming;
+    }
+
+    /**
+     * Ask for compression on the next connect(): commands and replies longer than a few words are compressed.
+     * Needs binary framing, see setBinaryFraming(). A server which does not support it is used without
+     * compression, see isCompressing().
+     *
+     * @param enabled True to ask for compression
+     */
+    public void setCompression(boolean enabled) {
+        this.compressionRequested = enabled;
+    }
+
+    /**
+     * @return True when the current connection uses compression
+     */
+    public boolean isCompressing() {
+        return this.compressing;
+    }
+
+    /**
+     * Ask the server for compression, right after the binary handshake. The server may send compressed frames
+     * as soon as it has answered, readFrame() inflates them whether compression was asked for or not
+     *
+     * @return True when the server compresses and accepts compressed commands
+     * @throws IOException When the socket fails
+     */
+    private boolean negotiateCompression() throws IOException {
+        this.sendFrame("compress");
+        this.framesToServer.flush();
+        String answer = this.readFrame();
+        if ("compressok".equals(answer)) {
+            if (this.deflater == null) {
+                this.deflater = new Deflater(Deflater.BEST_SPEED, true);
+            }
+            return true;
+        }
+        if (answer != null && !answer.startsWith("cmderr")) {
+            // Not the answer to the handshake, handle it like any other line
+            this.receivedLines.addFirst(answer);
+        }
+        this.log("The server does not support compression");
+        return false;
+    }
+
+    /**
+     * Ask the server for binary framing, before anything else is sent. The answer is read byte by byte, so
+     * nothing after it is buffered: frames may follow right after binaryok
+     *
+     * @param in  The input stream of the socket
+     * @param out The output stream of the socket
+     * @return True when the server switched to binary framing
+     * @throws IOException When the socket fails
+     */
+    private boolean negotiateBinaryFraming(InputStream in, OutputStream out) throws IOException {
+        out.write("binary\n".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        StringBuilder answer = new StringBuilder();
+        int b = in.read();
+        while (b >= 0 && b != '\n' && answer.length() < MAX_HANDSHAKE_LENGTH) {
+            if (b != '\r') {
+                answer.append((char) b);
+            }
+            b = in.read();
+        }
+        if (answer.toString().equals("binaryok")) {
+            return true;
+        }
+        if (!answer.toString().startsWith("cmderr")) {
+            // Not the answer to the handshake (for example connerr), handle it like any other line
+            this.receivedLines.add(answer.toString());
+        }
+        this.log("The server does not support binary framing");
+        return false;
+    }
+
     /**
      * Close the socket. This method must be synchronized, because several
      * threads may try to call it. For example: When "Disconnect" button is
@@ -75,10 +288,206 @@ public class TCPClient {
             return false;
         }
 
-        this.toServer.println(cmd);
+        if (this.binaryFraming) {
+            if (!this.sendFrame(cmd)) {
+                return false;
+            }
+        } else {
+            PrintWriter writer = this.toServer;
+            writer.println(encodeLineBreaks(cmd));
+            if (!this.commandBatching) {
+                writer.flush();
+            }
+        }
+        if (this.commandBatching && this.flushScheduled.compareAndSet(false, true)) {
+            FLUSH_TIMER.schedule(this::flushCommands, BATCH_FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
         return true;
     }
 
+    /**
+     * Send a command as one binary frame
+     *
+     * @param cmd The command, may contain line breaks
+     * @return True on success, false when the socket fails
+     */
+    private boolean sendFrame(String cmd) {
+        byte[] payload = cmd.getBytes(StandardCharsets.UTF_8);
+        byte opcode = OP_LINE;
+        if (this.compressing && payload.length >= MIN_COMPRESSED_LENGTH) {
+            byte[] compressed = this.deflate(payload);
+            if (compressed != null) {
+                payload = compressed;
+                opcode = OP_DEFLATED_LINE;
+            }
+        }
+        DataOutputStream out = this.framesToServer;
+        try {
+            // Several threads send commands, a frame must not be interleaved with another
+            synchronized (out) {
+                out.writeInt(payload.length);
+                out.writeByte(opcode);
+                out.write(payload);
+                if (!this.commandBatching) {
+                    out.flush();
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            this.log("Could not send a frame: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Compress a command on its own, starting from the preset dictionary
+     *
+     * @param payload The command
+     * @return The compressed command, null when it does not get shorter
+     */
+    private byte[] deflate(byte[] payload) {
+        Deflater d = this.deflater;
+        // Several threads send commands
+        synchronized (d) {
+            d.reset();
+            d.setDictionary(DICTIONARY);
+            d.setInput(payload);
+            d.finish();
+            byte[] compressed = new byte[payload.length - 1];
+            int length = 0;
+            while (!d.finished() && length < compressed.length) {
+                length += d.deflate(compressed, length, compressed.length - length);
+            }
+            return d.finished() ? Arrays.copyOf(compressed, length) : null;
+        }
+    }
+
+    /**
+     * Inflate the payload of an OP_DEFLATED_LINES frame
+     *
+     * @param payload The compressed payload
+     * @return The lines
+     * @throws IOException When the payload is broken or too long
+     */
+    private byte[] inflate(byte[] payload) throws IOException {
+        if (this.inflater == null) {
+            this.inflater = new Inflater(true);
+        }
+        Inflater i = this.inflater;
+        i.reset();
+        i.setDictionary(DICTIONARY);
+        i.setInput(payload);
+        ByteArrayOutputStream lines = new ByteArrayOutputStream(payload.length * 4);
+        byte[] chunk = new byte[8192];
+        try {
+            while (!i.finished()) {
+                int length = i.inflate(chunk);
+                if (length == 0 && (i.needsInput() || i.needsDictionary())) {
+                    throw new IOException("Truncated compressed frame");
+                }
+                lines.write(chunk, 0, length);
+                if (lines.size() > MAX_FRAME_LENGTH) {
+                    throw new IOException("Compressed frame too long");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Broken compressed frame: " + e.getMessage());
+        }
+        return lines.toByteArray();
+    }
+
+    /**
+     * Encode the line breaks inside a command for the text protocol, where a line break ends the command.
+     * The server sends them on the same way, the receiving client turns them back into line breaks
+     *
+     * @param cmd The command
+     * @return The command without line breaks
+     */
+    private static String encodeLineBreaks(String cmd) {
+        if (cmd.indexOf('\n') < 0 && cmd.indexOf('\r') < 0) {
+            return cmd;
+        }
+        return cmd.replace("\r\n", "\n").replace('\r', '\n').replace('\n', LINE_BREAK);
+    }
+
+    /**
+     * Ping the server, which opts this client in to heartbeats, and start checking that the server is alive:
+     * it is pinged when it has been silent for a while, and the connection is closed when it stays silent
+     * (reported as onDisconnect()). Called on connect, before any other command, so the answer can be told
+     * apart from the answers to the other commands. A server without heartbeats answers with an error, and
+     * the checks stop.
+     */
+    private void startHeartbeats() {
+        this.lastReceivedNanos = System.nanoTime();
+        this.heartbeatRequested = true;
+        if (this.sendCommand("ping")) {
+            this.heartbeatCheck = FLUSH_TIMER.scheduleAtFixedRate(this::checkHeartbeat, HEARTBEAT_INTERVAL_MS,
+                    HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        } else {
+            this.heartbeatRequested = false;
+        }
+    }
+
+    /**
+     * Ping the server when it has been silent for an interval, disconnect when it has been silent too long
+     */
+    private void checkHeartbeat() {
+        long silenceMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.lastReceivedNanos);
+        if (silenceMs >= HEARTBEAT_TIMEOUT_MS) {
+            this.log("Nothing received from the server for " + silenceMs + " ms, disconnecting");
+            this.disconnect();
+        } else if (silenceMs >= HEARTBEAT_INTERVAL_MS) {
+            this.sendCommand("ping");
+        }
+    }
+
+    /**
+     * Stop checking that the server is alive
+     */
+    private void stopHeartbeats() {
+        this.heartbeatRequested = false;
+        ScheduledFuture<?> check = this.heartbeatCheck;
+        if (check != null) {
+            check.cancel(false);
+            this.heartbeatCheck = null;
+        }
+    }
+
+    /**
+     * Turn command batching on or off. With batching, commands issued in quick succession are sent to the
+     * server together, with one TCP write: at the latest a few milliseconds after the first of them, or when
+     * flushCommands() is called. Without batching (the default), every command is sent right away.
+     *
+     * @param enabled True to batch the commands
+     */
+    public void setCommandBatching(boolean enabled) {
+        this.commandBatching = enabled;
+        if (!enabled) {
+            this.flushCommands();
+        }
+    }
+
+    /**
+     * Send all the batched commands to the server now
+     */
+    public void flushCommands() {
+        this.flushScheduled.set(false);
+        PrintWriter writer = this.toServer;
+        if (writer != null) {
+            writer.flush();
+        }
+        DataOutputStream out = this.framesToServer;
+        if (out != null) {
+            try {
+                synchronized (out) {
+                    out.flush();
+                }
+            } catch (IOException e) {
+                this.log("Could not send the batched frames: " + e.getMessage());
+            }
+        }
+    }
+
     /**
      * Send a public message to all the recipients.
      *
@@ -91,7 +500,100 @@ public class TCPClient {
             this.lastError = "Could not send the message";
             return false;
         }
-        return this.sendCommand("msg " + message);
+        return this.sendMessageCommand("msg " + message, null);
+    }
+
+    /**
+     * Send a public message to all the recipients without waiting for the answer. Messages can be sent one
+     * after the other, the futures are completed in order as the answers arrive.
+     *
+     * @param message Message to send, not null
+     * @return Completed with the acknowledgement of the server, or completed exceptionally: with a
+     * MessageRejectedException when the server refused the message, with a TimeoutException when it did not
+     * answer in time (see setAckTimeout()), with an IOException when the message could not be sent or the
+     * connection was closed before the answer
+     */
+    public CompletableFuture<MessageAck> sendPublicMessageAsync(String message) {
+        if (message == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Message can't be null"));
+        }
+        return this.sendMessageCommandAsync("msg " + message);
+    }
+
+    /**
+     * Send a private message to a single recipient without waiting for the answer, see sendPublicMessageAsync()
+     *
+     * @param recipient username of the chat user who should receive the message
+     * @param message   Message to send
+     * @return Completed with the acknowledgement of the server, or completed exceptionally
+     */
+    public CompletableFuture<MessageAck> sendPrivateMessageAsync(String recipient, String message) {
+        if (recipient == null || message == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Message can't be null"));
+        }
+        return this.sendMessageCommandAsync("privmsg " + recipient + " " + message);
+    }
+
+    /**
+     * Send a message to the other members of a room without waiting for the answer, see
+     * sendPublicMessageAsync()
+     *
+     * @param room    Name of the room
+     * @param message Message to send
+     * @return Completed with the acknowledgement of the server, or completed exceptionally
+     */
+    public CompletableFuture<MessageAck> sendRoomMessageAsync(String room, String message) {
+        if (room == null || message == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Room and message can't be null"));
+        }
+        return this.sendMessageCommandAsync("roommsg " + room + " " + message);
+    }
+
+    /**
+     * Set how long the futures of the async send methods wait for the answer of the server. A message which is
+     * answered later is still counted as answered, the order of the answers is kept
+     *
+     * @param timeoutMs The timeout in milliseconds, 0 to wait until the connection is closed
+     */
+    public void setAckTimeout(long timeoutMs) {
+        this.ackTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Send a message command for the async send methods
+     *
+     * @param cmd The message command
+     * @return Completed with the answer of the server
+     */
+    private CompletableFuture<MessageAck> sendMessageCommandAsync(String cmd) {
+        CompletableFuture<MessageAck> future = new CompletableFuture<>();
+        if (!this.sendMessageCommand(cmd, future)) {
+            future.completeExceptionally(new IOException("Could not send the message"));
+        } else if (this.ackTimeoutMs > 0) {
+            future.orTimeout(this.ackTimeoutMs, TimeUnit.MILLISECONDS);
+        }
+        return future;
+    }
+
+    /**
+     * Send a command which the server answers with msgok or msgerr, and wait for the answer in pendingAcks.
+     * Every message is tracked, also those of the methods which do not wait for the answer, so the answers are
+     * matched to the right messages
+     *
+     * @param cmd    The message command
+     * @param future Completed with the answer, null when nobody waits for it
+     * @return true if message sent, false on error
+     */
+    private boolean sendMessageCommand(String cmd, CompletableFuture<MessageAck> future) {
+        // Held while sending, so the messages are queued in the order they are sent
+        synchronized (this.pendingAcks) {
+            long sentNanos = System.nanoTime();
+            if (!this.sendCommand(cmd)) {
+                return false;
+            }
+            this.pendingAcks.add(new PendingAck(cmd.substring(0, cmd.indexOf(' ')), future, sentNanos));
+            return true;
+        }
     }
 
     /**
@@ -116,6 +618,20 @@ public class TCPClient {
         this.sendCommand("users");
     }
 
+    /**
+     * Subscribe to the changes of the user list. A server which supports it answers with presenceok and the
+     * full user list (onPresenceResult(true), then onUserList()), after that it sends only the users who
+     * joined or left (onUserJoined(), onUserLeft()). A server which does not support it answers with an error,
+     * reported as onPresenceResult(false) - poll with refreshUserList() instead then.
+     * Call it before any other command, so the answer can be told apart from the answers to the other commands.
+     */
+    public void subscribePresence() {
+        this.presenceRequested = true;
+        if (!this.sendCommand("presence")) {
+            this.presenceRequested = false;
+        }
+    }
+
     /**
      * Send a private message to a single recipient.
      *
@@ -128,9 +644,93 @@ public class TCPClient {
             this.log("Message can't be null");
             return false;
         }
-        return this.sendCommand("privmsg " + recipient + " " + message);
+        return this.sendMessageCommand("privmsg " + recipient + " " + message, null);
+    }
+
+
+    /**
+     * Join a chat room, the room is created when it does not exist yet. The server answers with
+     * onRoomJoined() or onRoomError()
+     *
+     * @param room Name of the room, letters and digits only
+     */
+    public void joinRoom(String room) {
+        this.sendCommand("join " + room);
+    }
+
+    /**
+     * Leave a chat room. The server answers with onRoomLeft() or onRoomError()
+     *
+     * @param room Name of the room
+     */
+    public void leaveRoom(String room) {
+        this.sendCommand("leave " + room);
+    }
+
+    /**
+     * Send a message to the other members of a room. Only members of the room may send to it
+     *
+     * @param room    Name of the room
+     * @param message Message to send
+     * @return true if message sent, false on error
+     */
+    public boolean sendRoomMessage(String room, String message) {
+        if (room == null || message == null) {
+            this.log("Room and message can't be null");
+            return false;
+        }
+        return this.sendMessageCommand("roommsg " + room + " " + message, null);
+    }
+
+    /**
+     * Send a request for the members of a room. The answer is reported with onRoomUserList()
+     *
+     * @param room Name of the room
+     */
+    public void refreshRoomUserList(String room) {
+        this.sendCommand("roomusers " + room);
+    }
+
+    /**
+     * Choose how the server delivers the messages for us. In async mode (the default) they are sent at once.
+     * In sync mode the server keeps them, including the private messages stored while we were offline, until
+     * we ask for them with readInbox()
+     *
+     * @param sync True for sync mode, false for async mode
+     */
+    public void setSyncMode(boolean sync) {
+        this.sendCommand(sync ? "sync" : "async");
+    }
+
+    /**
+     * Ask for the messages the server has kept for us in sync mode. The answer is reported with onInboxResult(),
+     * followed by the messages, each with onMessageReceived()
+     */
+    public void readInbox() {
+        this.sendCommand("inbox");
     }
 
+    /**
+     * Ask for a page of past messages: the public messages, the messages of a room we are in, or the private
+     * messages between us and a peer. The answer is reported with onHistoryResult(), followed by the messages,
+     * oldest first, each with onMessageReceived()
+     *
+     * @param room   The room, null for public or private messages
+     * @param peer   The peer, null for public or room messages
+     * @param before 0 for the newest messages, or the next value of the previous page to get older messages
+     */
+    public void requestHistory(String room, String peer, long before) {
+        StringBuilder command = new StringBuilder("history");
+        if (room != null) {
+            command.append(" room ").append(room);
+        } else if (peer != null) {
+            command.append(" peer ").append(peer);
+        }
+        if (before > 0) {
+            command.append(" before ").append(before);
+        }
+        this.sendCommand(command.toString());
+    }
 
     /**
      * Send a request for the list of commands that server supports.
@@ -143,7 +743,7 @@ public class TCPClient {
     /**
      * Wait for chat server's response
      *
-     * @return one line of text (one command) received from the server
+     * @return one line of text (one command) received from the server, null when the connection is closed
      */
     private String waitServerResponse() {
         // Guard condition
@@ -152,16 +752,66 @@ public class TCPClient {
             return null;
         }
 
-        String serverResponse = null;
+        String serverResponse = this.receivedLines.poll();
 
         try {
-            serverResponse = this.fromServer.readLine();
+            if (serverResponse == null && this.binaryFraming) {
+                serverResponse = this.readFrame();
+            } else if (serverResponse == null) {
+                serverResponse = this.fromServer.readLine();
+            }
         } catch (IOException e) {
             this.log("Could not receive message from server" + e.getMessage());
-            this.onDisconnect();
         }
 
-        return serverResponse;
+        // Line breaks inside the line are encoded by the server
+        return serverResponse != null ? serverResponse.replace(LINE_BREAK, '\n') : null;
+    }
+
+    /**
+     * Read frames until one holds a line. The first line of the frame is returned, the rest are kept in
+     * receivedLines
+     *
+     * @return The first line of the frame, null when the server has closed the connection
+     * @throws IOException When the socket fails or a frame is invalid
+     */
+    private String readFrame() throws IOException {
+        DataInputStream in = this.framesFromServer;
+        while (true) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            byte opcode = in.readByte();
+            if (length < 0 || length > MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            if (opcode == OP_DEFLATED_LINES) {
+                payload = this.inflate(payload);
+                opcode = OP_LINES;
+            }
+            if (opcode == OP_LINES) {
+                String lines = new String(payload, StandardCharsets.UTF_8);
+                int start = 0;
+                int end = lines.indexOf('\n');
+                while (end >= 0) {
+                    this.receivedLines.add(lines.substring(start, end));
+                    start = end + 1;
+                    end = lines.indexOf('\n', start);
+                }
+                if (start < lines.length()) {
+                    this.receivedLines.add(lines.substring(start));
+                }
+                String line = this.receivedLines.poll();
+                if (line != null) {
+                    return line;
+                }
+            }
+        }
     }
 
     /**
@@ -173,6 +823,13 @@ public class TCPClient {
             this.connection = null;
             this.toServer = null;
             this.fromServer = null;
+            this.framesToServer = null;
+            this.framesFromServer = null;
+            this.binaryFraming = false;
+            this.compressing = false;
+            this.presenceRequested = false;
+            this.stopHeartbeats();
+            this.failPendingAcks();
         } catch (IOException e) {
             this.log("Couldn't close the connection: " + e.getMessage());
         }
@@ -211,37 +868,87 @@ public class TCPClient {
 
             String response = this.waitServerResponse();
             if (response != null) {
+                this.lastReceivedNanos = System.nanoTime();
 
-                final String serverCommand = this.extractFirstWord(response);
-                final String serverMessage = this.excludeFirstWord(response);
+                // The parts of the line are taken out only where they are needed, the text as it was sent
+                final ResponseParser parser = this.parser;
+                parser.parse(response);
 
-                switch (serverCommand) {
+                switch (parser.getCommand()) {
                     case "loginok" -> this.onLoginResult(true, "");
-                    case "loginerr" -> this.onLoginResult(false, serverMessage);
-                    case "msg" -> this.onMsgReceived(false,
-                            this.extractFirstWord(serverMessage),
-                            this.excludeFirstWord(serverMessage));
-                    case "privmsg" -> this.onMsgReceived(true,
-                            this.extractFirstWord(serverMessage),
-                            this.excludeFirstWord(serverMessage));
-                    case "msgerr" -> this.onMsgError(serverMessage);
-                    case "cmderr" -> this.onCmdError(serverMessage);
-                    case "users" -> this.onUsersList(this.extractUsers(serverMessage));
-                    case "supported" -> this.onSupported(serverMessage.split(" "));
-                    case "modeok", "msgok", "inbox" -> this.ignore();
-                    default -> this.log("Unsupported command: " + serverMessage);
+                    case "loginerr" -> this.onLoginResult(false, parser.getRest(1));
+                    case "msg" -> this.onMsgReceived(false, parser.getWord(1), parser.getRest(2));
+                    case "privmsg" -> this.onMsgReceived(true, parser.getWord(1), parser.getRest(2));
+                    case "roommsg" -> this.onRoomMsgReceived(parser.getWord(1), parser.getWord(2), parser.getRest(3));
+                    case "msgok" -> this.onMsgAck(parser.getWord(1));
+                    case "msgerr" -> this.onMsgError(parser.getRest(1));
+                    case "cmderr" -> this.onCmdErrorOrUnsupported(parser.getRest(1));
+                    case "users" -> this.onUsersList(this.extractUsers(parser.getRest(1)));
+                    case "presenceok" -> this.onPresenceAnswer(true);
+                    case "joinok" -> this.onRoomJoined(parser.getWord(1));
+                    case "leaveok" -> this.onRoomLeft(parser.getWord(1));
+                    case "roomerr" -> this.onRoomError(parser.getRest(1));
+                    case "roomusers" -> this.onRoomUsersList(parser.getWord(1), this.extractUsers(parser.getRest(2)));
+                    case "joined" -> this.onUserJoined(parser.getWord(1));
+                    case "left" -> this.onUserLeft(parser.getWord(1));
+                    case "supported" -> this.onSupported(this.extractUsers(parser.getRest(1)));
+                    case "inbox" -> this.onInboxResult(parser.getWord(1));
+                    case "history" -> this.onHistoryResult(this.extractUsers(parser.getRest(1)));
+                    case "ping" -> this.sendCommand("pong");
+                    case "pong" -> this.heartbeatRequested = false;
+                    case "connerr" -> this.onConnectionRejected(parser.getRest(1));
+                    case "modeok" -> this.ignore();
+                    default -> this.log("Unsupported command: " + parser.getRest(1));
                 }
+            } else {
+                // Closed by the server or a network error, unless disconnect() has closed it already
+                this.disconnect();
             }
         }
     }
 
     /**
-     * Extracts the first word of a String
-     * @param text The String to extract the first words from
-     * @return The first word
+     * Handle a cmderr from the server: when the first ping or the presence subscription is unanswered, the
+     * error is the answer to it and means the server does not support it. Otherwise, it is an error of some
+     * other command, maybe of the oldest pending message
+     *
+     * @param errMsg Error message
+     */
+    private void onCmdErrorOrUnsupported(String errMsg) {
+        if (this.heartbeatRequested) {
+            this.log("The server does not support heartbeats");
+            this.stopHeartbeats();
+        } else if (this.presenceRequested) {
+            this.onPresenceAnswer(false);
+        } else {
+            this.failPendingAckOnCmdError(errMsg);
+            this.onCmdError(errMsg);
+        }
+    }
+
+    /**
+     * Fail the oldest pending message when the cmderr answers it: a server without rooms does not know
+     * roommsg, and privmsg or roommsg without a message text can not be split. The pending message is taken
+     * out, or the msgok and msgerr of the later messages would be matched to the wrong ones. Every server
+     * answers msg with msgok, so a cmderr while a msg is the oldest pending message belongs to another command
+     *
+     * @param errMsg Error message
      */
-    private String extractFirstWord(String text) {
-        return text.split(" ")[0];
+    private void failPendingAckOnCmdError(String errMsg) {
+        if (!ERR_NOT_SUPPORTED.equals(errMsg)) {
+            return;
+        }
+        PendingAck pending;
+        synchronized (this.pendingAcks) {
+            pending = this.pendingAcks.peek();
+            if (pending == null || "msg".equals(pending.command())) {
+                return;
+            }
+            this.pendingAcks.poll();
+        }
+        if (pending.future() != null) {
+            pending.future().completeExceptionally(new MessageRejectedException(pending.command() + ": " + errMsg));
+        }
     }
 
     /**
@@ -253,22 +960,6 @@ public class TCPClient {
         return serverMessage.split(" ");
     }
 
-    /**
-     * Extracts the server message from the response
-     *
-     * @param response response to extract from
-     * @return the message in the response
-     */
-    private String excludeFirstWord(String response) {
-        String[] splitString = response.split(" ");
-        int length = splitString.length;
-        StringBuilder builder = new StringBuilder();
-        for (int i = 1; i < length; i++){
-            builder.append(splitString[i]).append(" ");
-        }
-        return builder.toString();
-    }
-
     /**
      * Register a new listener for events (login result, incoming message, etc)
      *
@@ -323,6 +1014,34 @@ public class TCPClient {
         this.listeners.forEach(l -> l.onUserList(users));
     }
 
+    /**
+     * Notify listeners that the server answered the presence subscription
+     *
+     * @param supported True when the server will send the changes of the user list
+     */
+    private void onPresenceAnswer(boolean supported) {
+        this.presenceRequested = false;
+        this.listeners.forEach(l -> l.onPresenceResult(supported));
+    }
+
+    /**
+     * Notify listeners that a user joined the chat
+     *
+     * @param username Username of the user
+     */
+    private void onUserJoined(String username) {
+        this.listeners.forEach(l -> l.onUserJoined(username));
+    }
+
+    /**
+     * Notify listeners that a user left the chat
+     *
+     * @param username Username of the user
+     */
+    private void onUserLeft(String username) {
+        this.listeners.forEach(l -> l.onUserLeft(username));
+    }
+
     /**
      * Notify listeners that a message is received from the server
      *
@@ -336,14 +1055,147 @@ public class TCPClient {
     }
 
     /**
-     * Notify listeners that our message was not delivered
+     * Notify listeners that a room message is received from the server
+     *
+     * @param room   The room the message was sent to
+     * @param sender Username of the sender
+     * @param text   Message text
+     */
+    private void onRoomMsgReceived(String room, String sender, String text) {
+        final TextMessage message = new TextMessage(sender, false, text, room);
+        this.listeners.forEach(listener -> listener.onMessageReceived(message));
+    }
+
+    /**
+     * Notify listeners that the server answered the inbox command
+     *
+     * @param count The number of messages which follow, as sent by the server
+     */
+    private void onInboxResult(String count) {
+        try {
+            final int messageCount = Integer.parseInt(count);
+            this.listeners.forEach(l -> l.onInboxResult(messageCount));
+        } catch (NumberFormatException e) {
+            this.log("Invalid inbox count: " + count);
+        }
+    }
+
+    /**
+     * Notify listeners that the server answered a history request
+     *
+     * @param countAndNext The number of messages which follow and the next value, as sent by the server
+     */
+    private void onHistoryResult(String[] countAndNext) {
+        try {
+            final int count = Integer.parseInt(countAndNext[0]);
+            final long next = countAndNext.length > 1 ? Long.parseLong(countAndNext[1]) : 0;
+            this.listeners.forEach(l -> l.onHistoryResult(count, next));
+        } catch (NumberFormatException e) {
+            this.log("Invalid history answer: " + String.join(" ", countAndNext));
+        }
+    }
+
+    /**
+     * Notify listeners that we joined a room
+     *
+     * @param room The room
+     */
+    private void onRoomJoined(String room) {
+        this.listeners.forEach(l -> l.onRoomJoined(room));
+    }
+
+    /**
+     * Notify listeners that we left a room
+     *
+     * @param room The room
+     */
+    private void onRoomLeft(String room) {
+        this.listeners.forEach(l -> l.onRoomLeft(room));
+    }
+
+    /**
+     * Notify listeners that a room command failed
+     *
+     * @param errMsg Error description returned by the server
+     */
+    private void onRoomError(String errMsg) {
+        this.listeners.forEach(l -> l.onRoomError(errMsg));
+    }
+
+    /**
+     * Notify listeners that server sent us the members of a room
+     *
+     * @param room  The room
+     * @param users List with usernames
+     */
+    private void onRoomUsersList(String room, String[] users) {
+        this.listeners.forEach(l -> l.onRoomUserList(room, users));
+    }
+
+    /**
+     * Complete the future of the oldest pending message with the msgok of the server
+     *
+     * @param count The number of recipients, as sent by the server
+     */
+    private void onMsgAck(String count) {
+        PendingAck pending = this.pollPendingAck();
+        if (pending != null && pending.future() != null) {
+            try {
+                pending.future().complete(new MessageAck(Integer.parseInt(count),
+                        System.nanoTime() - pending.sentNanos()));
+            } catch (NumberFormatException e) {
+                pending.future().completeExceptionally(new IOException("Invalid msgok count: " + count));
+            }
+        }
+    }
+
+    /**
+     * Notify listeners that our message was not delivered, and fail the future of the oldest pending message
      *
      * @param errMsg Error description returned by the server
      */
     private void onMsgError(final String errMsg) {
+        PendingAck pending = this.pollPendingAck();
+        if (pending != null && pending.future() != null) {
+            pending.future().completeExceptionally(new MessageRejectedException(errMsg));
+        }
         this.listeners.forEach(listener -> listener.onMessageError(errMsg));
     }
 
+    /**
+     * @return The oldest message waiting for an answer, null when there is none
+     */
+    private PendingAck pollPendingAck() {
+        synchronized (this.pendingAcks) {
+            return this.pendingAcks.poll();
+        }
+    }
+
+    /**
+     * Fail the futures of the messages which will never be answered, because the connection is closed
+     */
+    private void failPendingAcks() {
+        PendingAck pending = this.pollPendingAck();
+        while (pending != null) {
+            if (pending.future() != null) {
+                pending.future().completeExceptionally(new IOException("Connection closed before the answer"));
+            }
+            pending = this.pollPendingAck();
+        }
+    }
+
+    /**
+     * Notify listeners that the server has turned the connection away, for example because it is full. The
+     * server closes the connection right after
+     *
+     * @param reason The reason given by the server
+     */
+    private void onConnectionRejected(String reason) {
+        this.lastError = "Connection rejected: " + reason;
+        this.log(this.lastError);
+        this.onCmdError(this.lastError);
+    }
+
     /**
      * Notify listeners that command was not understood by the server.
      *
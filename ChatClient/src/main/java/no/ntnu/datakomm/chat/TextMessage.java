@@ -10,6 +10,7 @@ public class TextMessage {
     private final String sender;
     private final boolean priv;
     private final String text;
+    private final String room;
 
     /**
      * @param sender Username of the sender
@@ -17,9 +18,20 @@ public class TextMessage {
      * @param text Text of the message
      */
     public TextMessage(String sender, boolean priv, String text) {
+        this(sender, priv, text, null);
+    }
+
+    /**
+     * @param sender Username of the sender
+     * @param priv When true, message is private
+     * @param text Text of the message
+     * @param room The room the message was sent to, null when it was not sent to a room
+     */
+    public TextMessage(String sender, boolean priv, String text, String room) {
         this.sender = sender;
         this.priv = priv;
         this.text = text;
+        this.room = room;
     }
 
     public String getSender() {
@@ -34,9 +46,17 @@ public class TextMessage {
         return this.text;
     }
 
+    /**
+     * @return The room the message was sent to, null when it was not sent to a room
+     */
+    public String getRoom() {
+        return this.room;
+    }
+
     @Override
     public String toString() {
-        return (this.priv ? "PRIVATE " : "") + " from " + this.sender + ": " + this.text;
+        return (this.priv ? "PRIVATE " : "") + (this.room != null ? "in " + this.room : "")
+                + " from " + this.sender + ": " + this.text;
     }
 
     @Override
@@ -48,6 +68,7 @@ public class TextMessage {
             return false;
         }
         return this.priv == message.priv
+                && Objects.equals(this.room, message.room)
                 && this.getSender().contains(message.getSender())
                 && this.getText().contains(message.getText());
     }
@@ -58,6 +79,7 @@ public class TextMessage {
         hash = 71 * hash + Objects.hashCode(this.sender);
         hash = 71 * hash + (this.priv ? 1 : 0);
         hash = 71 * hash + Objects.hashCode(this.text);
+        hash = 71 * hash + Objects.hashCode(this.room);
         return hash;
     }
 
@@ -41,6 +41,42 @@ public class DummyResponseCounter implements ChatListener {
         userList++;
     }
 
+    @Override
+    public void onPresenceResult(boolean supported) {
+    }
+
+    @Override
+    public void onUserJoined(String username) {
+    }
+
+    @Override
+    public void onUserLeft(String username) {
+    }
+
+    @Override
+    public void onRoomJoined(String room) {
+    }
+
+    @Override
+    public void onRoomLeft(String room) {
+    }
+
+    @Override
+    public void onRoomError(String errMsg) {
+    }
+
+    @Override
+    public void onRoomUserList(String room, String[] usernames) {
+    }
+
+    @Override
+    public void onInboxResult(int count) {
+    }
+
+    @Override
+    public void onHistoryResult(int count, long next) {
+    }
+
     @Override
     public void onSupportedCommands(String[] commands) {
         supported++;
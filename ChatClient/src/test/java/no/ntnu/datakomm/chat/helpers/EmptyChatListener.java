@@ -25,6 +25,42 @@ public class EmptyChatListener implements ChatListener {
     public void onUserList(String[] usernames) {
     }
 
+    @Override
+    public void onPresenceResult(boolean supported) {
+    }
+
+    @Override
+    public void onUserJoined(String username) {
+    }
+
+    @Override
+    public void onUserLeft(String username) {
+    }
+
+    @Override
+    public void onRoomJoined(String room) {
+    }
+
+    @Override
+    public void onRoomLeft(String room) {
+    }
+
+    @Override
+    public void onRoomError(String errMsg) {
+    }
+
+    @Override
+    public void onRoomUserList(String room, String[] usernames) {
+    }
+
+    @Override
+    public void onInboxResult(int count) {
+    }
+
+    @Override
+    public void onHistoryResult(int count, long next) {
+    }
+
     @Override
     public void onSupportedCommands(String[] commands) {
     }
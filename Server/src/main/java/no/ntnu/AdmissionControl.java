@@ -0,0 +1,212 @@
+package no.ntnu;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides which new connections the server takes on, so a burst of connections (for example all the clients
+ * reconnecting after a network blip) is turned away cheaply instead of taking the server down. A new connection
+ * is rejected when the server already has too many clients, too many clients which have not logged in yet,
+ * when connections arrive faster than the accept rate, or when the server is overloaded: an event loop lags or
+ * too many bytes are waiting in the outbound queues. A rejected client gets one connerr line and is closed,
+ * without a thread or a handler ever being created for it. Every rejection is counted.
+ * <p>
+ * admit() is called only by the thread which accepts the connections. A limit of 0 means no limit.
+ */
+public class AdmissionControl {
+    static final byte[] REJECT_FULL = Message.encodeLine("connerr server full, try again later");
+    static final byte[] REJECT_PENDING_LOGINS = Message.encodeLine("connerr too many clients logging in, try again later");
+    static final byte[] REJECT_ACCEPT_RATE = Message.encodeLine("connerr too many new connections, try again later");
+    static final byte[] REJECT_OVERLOADED = Message.encodeLine("connerr server overloaded, try again later");
+    // The load of the server is measured at most this often, not for every connection of a burst
+    private static final long LOAD_SAMPLE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // Rejected connections stay open this long after the connerr line, so the client can read it: closing a
+    // socket with unread input resets the connection, and the client may lose the line
+    private static final long REJECTED_CLOSE_DELAY_MS = 1000;
+    // Closes the rejected connections after the delay, shared by all the servers of the process
+    private static final ScheduledExecutorService CLOSER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "rejected-closer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final int maxConnections;
+    private final int maxPendingLogins;
+    private final int maxAcceptRate;
+    private final long maxLagNanos;
+    private final long maxQueuedBytes;
+    private final LongSupplier lagProbe;
+    private final LongSupplier queuedBytesProbe;
+
+    // Connected clients which have not logged in yet
+    private final AtomicInteger pendingLogins = new AtomicInteger();
+    private final LongAdder rejectedFull = new LongAdder();
+    private final LongAdder rejectedPendingLogins = new LongAdder();
+    private final LongAdder rejectedAcceptRate = new LongAdder();
+    private final LongAdder rejectedOverloaded = new LongAdder();
+
+    // Token bucket of the accept rate, used only by the accepting thread
+    private double acceptTokens;
+    private long lastRefillNanos = System.nanoTime();
+    // The last load sample, used only by the accepting thread
+    private long lastSampleNanos = System.nanoTime() - LOAD_SAMPLE_INTERVAL_NANOS;
+    private boolean overloaded = false;
+
+    /**
+     * AdmissionControl constructor
+     *
+     * @param maxConnections   Connected clients above which new connections are rejected
+     * @param maxPendingLogins Clients which have not logged in yet above which new connections are rejected
+     * @param maxAcceptRate    New connections accepted per second, up to this many at once
+     * @param maxLagNanos      Event-loop lag above which new connections are shed
+     * @param maxQueuedBytes   Bytes in all the outbound queues above which new connections are shed
+     * @param lagProbe         Returns the current event-loop lag, in nanoseconds
+     * @param queuedBytesProbe Returns the bytes currently in all the outbound queues
+     */
+    public AdmissionControl(int maxConnections, int maxPendingLogins, int maxAcceptRate, long maxLagNanos,
+                            long maxQueuedBytes, LongSupplier lagProbe, LongSupplier queuedBytesProbe) {
+        this.maxConnections = maxConnections;
+        this.maxPendingLogins = maxPendingLogins;
+        this.maxAcceptRate = maxAcceptRate;
+        this.maxLagNanos = maxLagNanos;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.lagProbe = lagProbe;
+        this.queuedBytesProbe = queuedBytesProbe;
+        this.acceptTokens = maxAcceptRate;
+    }
+
+    /**
+     * Decide whether to take on a new connection. Must be called only by the accepting thread
+     *
+     * @param connections The number of clients connected now
+     * @return Null when the connection is admitted, otherwise the encoded connerr line to send before closing it
+     */
+    public byte[] admit(int connections) {
+        byte[] rejection = null;
+        if (this.maxConnections > 0 && connections >= this.maxConnections) {
+            this.rejectedFull.increment();
+            rejection = REJECT_FULL;
+        } else if (this.maxPendingLogins > 0 && this.pendingLogins.get() >= this.maxPendingLogins) {
+            this.rejectedPendingLogins.increment();
+            rejection = REJECT_PENDING_LOGINS;
+        } else if (this.isOverloaded()) {
+            this.rejectedOverloaded.increment();
+            rejection = REJECT_OVERLOADED;
+        } else if (!this.takeAcceptToken()) {
+            this.rejectedAcceptRate.increment();
+            rejection = REJECT_ACCEPT_RATE;
+        }
+        return rejection;
+    }
+
+    /**
+     * Check the load of the server, measured at most once per sample interval
+     *
+     * @return True when new connections must be shed
+     */
+    private boolean isOverloaded() {
+        long now = System.nanoTime();
+        if (now - this.lastSampleNanos >= LOAD_SAMPLE_INTERVAL_NANOS) {
+            this.lastSampleNanos = now;
+            long lag = this.maxLagNanos > 0 ? this.lagProbe.getAsLong() : 0;
+            long queuedBytes = this.maxQueuedBytes > 0 ? this.queuedBytesProbe.getAsLong() : 0;
+            boolean wasOverloaded = this.overloaded;
+            this.overloaded = (this.maxLagNanos > 0 && lag > this.maxLagNanos)
+                    || (this.maxQueuedBytes > 0 && queuedBytes > this.maxQueuedBytes);
+            if (this.overloaded && !wasOverloaded) {
+                Server.log(LogLevel.WARN, "Server overloaded, shedding new connections: event-loop lag "
+                        + TimeUnit.NANOSECONDS.toMillis(lag) + " ms, " + queuedBytes + " bytes queued");
+            } else if (!this.overloaded && wasOverloaded) {
+                Server.log("Server load back to normal, accepting new connections");
+            }
+        }
+        return this.overloaded;
+    }
+
+    /**
+     * Take one token of the accept rate, refilling the bucket for the time since the last connection
+     *
+     * @return True when a connection may be accepted now
+     */
+    private boolean takeAcceptToken() {
+        if (this.maxAcceptRate <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        this.acceptTokens = Math.min(this.maxAcceptRate,
+                this.acceptTokens + (now - this.lastRefillNanos) * this.maxAcceptRate / 1e9);
+        this.lastRefillNanos = now;
+        if (this.acceptTokens < 1) {
+            return false;
+        }
+        this.acceptTokens--;
+        return true;
+    }
+
+    /**
+     * Close a rejected connection a little later, once the client has had the time to read the connerr line.
+     * The output of the connection must already be shut down
+     *
+     * @param connection The socket or channel of the rejected client
+     */
+    public void closeLater(Closeable connection) {
+        CLOSER.schedule(() -> {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                Server.log(LogLevel.DEBUG, "Error while closing a rejected connection: " + e.getMessage());
+            }
+        }, REJECTED_CLOSE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Count a new client which has not logged in yet
+     */
+    public void onConnected() {
+        this.pendingLogins.incrementAndGet();
+    }
+
+    /**
+     * Count a client which has logged in for the first time
+     */
+    public void onLoggedIn() {
+        this.pendingLogins.decrementAndGet();
+    }
+
+    /**
+     * Count a client which is gone
+     *
+     * @param loggedIn True when the client had logged in
+     */
+    public void onDisconnected(boolean loggedIn) {
+        if (!loggedIn) {
+            this.pendingLogins.decrementAndGet();
+        }
+    }
+
+    public int getPendingLogins() {
+        return this.pendingLogins.get();
+    }
+
+    public long getRejectedFull() {
+        return this.rejectedFull.sum();
+    }
+
+    public long getRejectedPendingLogins() {
+        return this.rejectedPendingLogins.sum();
+    }
+
+    public long getRejectedAcceptRate() {
+        return this.rejectedAcceptRate.sum();
+    }
+
+    public long getRejectedOverloaded() {
+        return this.rejectedOverloaded.sum();
+    }
+}
@@ -0,0 +1,211 @@
+package no.ntnu;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A logger which never makes the logging thread wait for the output. Log calls put the message into a
+ * lock-free ring buffer, a background flusher thread takes the messages out and writes them in batches,
+ * either to standard output or to a rotating log file. When the buffer is full, new messages are dropped
+ * and counted instead of blocking the caller.
+ * Messages below the logger's level are filtered out before anything is built. The per-message trace log is
+ * sampled: only one message out of traceSampleRate is logged.
+ */
+public class AsyncLogger {
+    /**
+     * One log message waiting in the ring buffer
+     *
+     * @param timeMillis When the message was logged
+     * @param level      Severity of the message
+     * @param message    The message text
+     */
+    private record Entry(long timeMillis, LogLevel level, String message) {
+    }
+
+    private static final int BUFFER_CAPACITY = 1 << 14;
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private final LogLevel level;
+    private final int traceSampleRate;
+    private final RotatingLogFile file;
+    // Slots of the ring buffer, a slot is null until its entry is published
+    private final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<>(BUFFER_CAPACITY);
+    // Next sequence number to be claimed by a producer
+    private final AtomicLong writeSequence = new AtomicLong();
+    // Next sequence number to be read by the flusher, written only by the flusher
+    private volatile long readSequence = 0;
+    private final LongAdder droppedMessages = new LongAdder();
+    private final Thread flusher;
+    private volatile boolean needToRun = true;
+
+    /**
+     * AsyncLogger constructor. Starts the flusher thread
+     *
+     * @param level           Messages below this level are not logged
+     * @param traceSampleRate One out of this many trace messages is logged
+     * @param file            The file to write to, null for standard output
+     */
+    public AsyncLogger(LogLevel level, int traceSampleRate, RotatingLogFile file) {
+        this.level = level;
+        this.traceSampleRate = traceSampleRate;
+        this.file = file;
+        this.flusher = new Thread(this::runFlusher, "log-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Check whether messages of the given level are logged. Use it to skip building a message that would
+     * be thrown away
+     *
+     * @param level The level to check
+     * @return True if messages of this level are logged
+     */
+    public boolean isEnabled(LogLevel level) {
+        return level.compareTo(this.level) >= 0 && level != LogLevel.OFF;
+    }
+
+    /**
+     * Decide whether the next trace message should be logged. False when trace logging is off, otherwise
+     * true for one call out of the trace sample rate. Cheap enough to call for every received message
+     *
+     * @return True if the caller should build and log its trace message
+     */
+    public boolean isTraceSampled() {
+        return this.isEnabled(LogLevel.TRACE)
+                && (this.traceSampleRate <= 1 || ThreadLocalRandom.current().nextInt(this.traceSampleRate) == 0);
+    }
+
+    /**
+     * Log a message. Returns at once, the message is written later by the flusher thread
+     *
+     * @param level   Severity of the message
+     * @param message The message
+     */
+    public void log(LogLevel level, String message) {
+        if (!this.isEnabled(level)) {
+            return;
+        }
+        long sequence;
+        do {
+            sequence = this.writeSequence.get();
+            if (sequence - this.readSequence >= BUFFER_CAPACITY) {
+                // The flusher can't keep up, rather lose the message than stall the server
+                this.droppedMessages.increment();
+                return;
+            }
+        } while (!this.writeSequence.compareAndSet(sequence, sequence + 1));
+        this.slots.set(this.slotIndex(sequence), new Entry(System.currentTimeMillis(), level, message));
+    }
+
+    /**
+     * @return How many messages were dropped because the ring buffer was full
+     */
+    public long getDroppedMessages() {
+        return this.droppedMessages.sum();
+    }
+
+    /**
+     * Stop the flusher thread, after it has written all the messages logged so far
+     */
+    public void close() {
+        this.needToRun = false;
+        LockSupport.unpark(this.flusher);
+        try {
+            this.flusher.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param sequence A sequence number
+     * @return The slot of the ring buffer for the sequence number
+     */
+    private int slotIndex(long sequence) {
+        return (int) (sequence & (BUFFER_CAPACITY - 1));
+    }
+
+    /**
+     * The flusher thread: take all the published messages out of the ring buffer, write them as one batch,
+     * sleep a while when there is nothing to write
+     */
+    private void runFlusher() {
+        StringBuilder batch = new StringBuilder();
+        long lastReportedDrops = 0;
+        while (this.needToRun || this.readSequence != this.writeSequence.get()) {
+            this.takeBatch(batch);
+            long drops = this.getDroppedMessages();
+            if (drops != lastReportedDrops) {
+                this.format(batch, System.currentTimeMillis(), LogLevel.WARN,
+                        (drops - lastReportedDrops) + " log messages dropped, the log can't keep up");
+                lastReportedDrops = drops;
+            }
+            if (batch.length() > 0) {
+                this.write(batch.toString());
+                batch.setLength(0);
+            } else if (this.needToRun) {
+                LockSupport.parkNanos(FLUSH_INTERVAL_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Take the published messages out of the ring buffer and format them into the batch
+     *
+     * @param batch Where to put the formatted messages
+     */
+    private void takeBatch(StringBuilder batch) {
+        long sequence = this.readSequence;
+        Entry entry = this.slots.get(this.slotIndex(sequence));
+        // A claimed slot may not be published yet, then it is picked up in the next round
+        while (entry != null) {
+            this.slots.set(this.slotIndex(sequence), null);
+            sequence++;
+            this.readSequence = sequence;
+            this.format(batch, entry.timeMillis(), entry.level(), entry.message());
+            entry = this.slots.get(this.slotIndex(sequence));
+        }
+    }
+
+    /**
+     * Format one log line
+     *
+     * @param batch      Where to append the line
+     * @param timeMillis When the message was logged
+     * @param level      Severity of the message
+     * @param message    The message
+     */
+    private void format(StringBuilder batch, long timeMillis, LogLevel level, String message) {
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(timeMillis), batch);
+        batch.append(' ').append(level).append(' ').append(message).append('\n');
+    }
+
+    /**
+     * Write one batch of log lines to the output
+     *
+     * @param batch The formatted log lines
+     */
+    private void write(String batch) {
+        if (this.file != null) {
+            try {
+                this.file.write(batch);
+            } catch (IOException e) {
+                System.err.print("Could not write to the log file: " + e.getMessage() + "\n" + batch);
+            }
+        } else {
+            System.out.print(batch);
+            System.out.flush();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package no.ntnu;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits for the outbound queues of all the client connections, and counters of how often the limits were hit.
+ * One instance is shared by all the connections of a server.
+ */
+public class Backpressure {
+    // A queue above this many times the high watermark disconnects the client, whatever the policy
+    static final int HARD_LIMIT_FACTOR = 4;
+
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutMs;
+
+    private final LongAdder blockedSends = new LongAdder();
+    private final LongAdder droppedMessages = new LongAdder();
+    private final LongAdder disconnectedClients = new LongAdder();
+
+    /**
+     * Backpressure constructor
+     *
+     * @param highWatermark  Queued bytes above which the overflow policy kicks in
+     * @param lowWatermark   Queued bytes below which a congested queue is considered drained again
+     * @param policy         What to do when a queue grows above the high watermark
+     * @param blockTimeoutMs For the BLOCK policy: how long a sender waits before the slow client is
+     *                       disconnected instead
+     */
+    public Backpressure(int highWatermark, int lowWatermark, OverflowPolicy policy, long blockTimeoutMs) {
+        if (lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("Low watermark must not be above the high watermark");
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.policy = policy;
+        this.blockTimeoutMs = blockTimeoutMs;
+    }
+
+    public int getHighWatermark() {
+        return this.highWatermark;
+    }
+
+    public int getLowWatermark() {
+        return this.lowWatermark;
+    }
+
+    /**
+     * @return Queued bytes above which the client is disconnected, whatever the policy: the lines which are
+     * never dropped (replies, private messages) would grow the queue without limit otherwise
+     */
+    public long getHardLimit() {
+        return (long) this.highWatermark * HARD_LIMIT_FACTOR;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return this.policy;
+    }
+
+    public long getBlockTimeoutMs() {
+        return this.blockTimeoutMs;
+    }
+
+    /**
+     * Count a sender which had to wait for a slow client
+     */
+    void countBlockedSend() {
+        this.blockedSends.increment();
+    }
+
+    /**
+     * Count messages dropped for a slow client
+     *
+     * @param count The number of dropped messages
+     */
+    void countDroppedMessages(int count) {
+        this.droppedMessages.add(count);
+    }
+
+    /**
+     * Count a slow client which was disconnected
+     */
+    void countDisconnectedClient() {
+        this.disconnectedClients.increment();
+    }
+
+    /**
+     * @return How many times a sender had to wait for a slow client (BLOCK policy)
+     */
+    public long getBlockedSends() {
+        return this.blockedSends.sum();
+    }
+
+    /**
+     * @return How many messages were dropped for slow clients (DROP_OLDEST policy)
+     */
+    public long getDroppedMessages() {
+        return this.droppedMessages.sum();
+    }
+
+    /**
+     * @return How many slow clients were disconnected (DISCONNECT policy, BLOCK timed out, or the hard limit)
+     */
+    public long getDisconnectedClients() {
+        return this.disconnectedClients.sum();
+    }
+}
@@ -0,0 +1,323 @@
+package no.ntnu;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A client connection served by one thread, blocking on the socket while waiting for the next message. The
+ * connection is a task: the server decides whether it runs on a platform thread or on a virtual thread.
+ * Outgoing lines are put in an outbound queue, a writer task drains the queue to the socket. So the thread
+ * which sends a line never blocks on this client's socket. No monitors (synchronized) are held around
+ * socket I/O, so a virtual thread blocked on the socket never pins its carrier thread.
+ * Writes are coalesced: the replies to all the commands which arrived in one read are queued first and
+ * written together when the whole read is handled, and the writer puts as many queued lines as fit into
+ * one socket write. With binary framing, each line is written as a frame header followed by the line, compressed
+ * when the client asked for it.
+ */
+public class BlockingConnection implements Runnable, ClientConnection {
+    // Small on purpose: most clients are idle, longer lines are collected by the LineDecoder
+    private static final int READ_BUFFER_SIZE = 512;
+    // Lines taken out of the outbound queue at once, and the size of the buffer they are gathered in
+    private static final int WRITE_BATCH_LINES = 64;
+    private static final int WRITE_BUFFER_SIZE = 8192;
+    // The replies are written before the read is fully handled when handling takes longer than this
+    private static final long FLUSH_DEADLINE_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+
+    private final Socket socket;
+    private final InputStream inFromClient;
+    // Used only by the writer task
+    private final OutputStream outToClient;
+    private final byte[][] writeBatch = new byte[WRITE_BATCH_LINES][];
+    private final byte[] frameHeader = new byte[Frame.HEADER_LENGTH];
+    // True once the writer has taken the frame start marker out of the queue
+    private boolean framing = false;
+    // Set by the handler once the client asked for compression, read by the writer task
+    private volatile boolean compressing = false;
+    private final OutboundQueue outbound;
+    private final Backpressure backpressure;
+    private final ServerMetrics metrics;
+    // True while a writer task is scheduled or running. There is at most one writer per connection, so the
+    // lines are written in the order they were sent
+    private final AtomicBoolean writerScheduled = new AtomicBoolean(false);
+    private final Executor writerExecutor;
+    private final ClientHandler handler;
+    private final LineDecoder lineDecoder;
+    private boolean needToRun = true;
+    // The thread reading from the socket, and when it started handling the current read (0 when not
+    // handling one). Replies sent by the reading thread during a read are written when the read is done
+    private Thread readerThread;
+    private long readBatchStart = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * BlockingConnection constructor
+     *
+     * @param clientSocket   Socket for this particular client
+     * @param server         The main server class which manages all the connections
+     * @param writerExecutor Runs the writer task which drains the outbound queue
+     */
+    public BlockingConnection(Socket clientSocket, Server server, Executor writerExecutor) {
+        this.socket = clientSocket;
+        this.writerExecutor = writerExecutor;
+        this.backpressure = server.getBackpressure();
+        this.metrics = server.getMetrics();
+        this.outbound = new OutboundQueue(this.backpressure);
+        this.inFromClient = this.createInputStream();
+        this.outToClient = this.createOutputStream();
+        this.handler = new ClientHandler(this, server);
+        this.lineDecoder = new LineDecoder(this::handleLine);
+    }
+
+    /**
+     * Get the input stream of the socket
+     *
+     * @return The input stream or null on error
+     */
+    private InputStream createInputStream() {
+        InputStream stream = null;
+        try {
+            stream = this.socket.getInputStream();
+        } catch (IOException e) {
+            Server.log(LogLevel.WARN, "Could not setup the input stream: " + e.getMessage());
+        }
+        return stream;
+    }
+
+    /**
+     * Get the output stream which can be used to send data to the client (to the socket)
+     *
+     * @return The output stream or null on error
+     */
+    private OutputStream createOutputStream() {
+        OutputStream stream = null;
+        try {
+            stream = new BufferedOutputStream(this.socket.getOutputStream(), WRITE_BUFFER_SIZE);
+        } catch (IOException e) {
+            Server.log(LogLevel.WARN, "Could not setup the output stream: " + e.getMessage());
+        }
+        return stream;
+    }
+
+    /**
+     * Handle the conversation according to the protocol
+     */
+    @Override
+    public void run() {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        this.readerThread = Thread.currentThread();
+        // Sends from this thread may wait for slow recipients, that holds back only this client
+        OutboundQueue.setMayBlock(true);
+        try {
+            while (this.needToRun) {
+                int bytesRead = this.readClientInput(buffer);
+                if (bytesRead >= 0) {
+                    this.metrics.countBytesIn(bytesRead);
+                    this.readBatchStart = System.nanoTime();
+                    this.lineDecoder.decode(buffer, 0, bytesRead);
+                    this.readBatchStart = 0;
+                    // One write for the replies to all the commands in this read
+                    this.scheduleWriter();
+                } else {
+                    Server.log(LogLevel.DEBUG,
+                            "Error while reading client input, probably socket is closed, exiting...");
+                    this.needToRun = false;
+                }
+            }
+        } finally {
+            // The thread may be pooled and run something else next
+            OutboundQueue.setMayBlock(false);
+        }
+        this.close();
+        this.handler.onDisconnected();
+    }
+
+    /**
+     * Block until more input arrives from the client (from the socket)
+     *
+     * @param buffer The buffer to read into
+     * @return The number of bytes read, or -1 on error or when the socket is closed
+     */
+    private int readClientInput(byte[] buffer) {
+        int bytesRead = -1;
+        if (this.inFromClient != null) {
+            try {
+                bytesRead = this.inFromClient.read(buffer);
+            } catch (IOException e) {
+                // Closed from another thread, for example by the IdleReaper, is not an error
+                Server.log(this.closed ? LogLevel.DEBUG : LogLevel.WARN,
+                        "Error while reading the socket input: " + e.getMessage());
+            }
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Handle one line of the current read. When handling the read takes too long, the replies gathered so far
+     * are written out without waiting for the rest of the read
+     *
+     * @param bytes  The buffer holding the line
+     * @param offset Offset of the line in the buffer
+     * @param length Length of the line, without the line terminator
+     */
+    private void handleLine(byte[] bytes, int offset, int length) {
+        this.handler.handleLine(bytes, offset, length);
+        if (System.nanoTime() - this.readBatchStart > FLUSH_DEADLINE_NANOS) {
+            this.scheduleWriter();
+            this.readBatchStart = System.nanoTime();
+        }
+    }
+
+    @Override
+    public void send(byte[] line, boolean droppable) {
+        if (this.closed) {
+            return;
+        }
+        boolean inReadBatch = this.isInReadBatch();
+        if (inReadBatch && this.outbound.isAboveLowWatermark()) {
+            // The offer may wait for the writer to drain the queue, so the writer must not wait for us
+            this.scheduleWriter();
+        }
+        if (!this.outbound.offer(line, droppable, OutboundQueue.mayBlock())) {
+            this.disconnectSlowClient();
+        } else if (!inReadBatch) {
+            // Replies to our own client are written when the read is handled, other lines right away
+            this.scheduleWriter();
+        }
+    }
+
+    /**
+     * Check whether the calling thread is the reading thread of this connection, in the middle of handling
+     * a read
+     *
+     * @return True when the write can wait until the end of the read
+     */
+    private boolean isInReadBatch() {
+        return Thread.currentThread() == this.readerThread && this.readBatchStart != 0;
+    }
+
+    /**
+     * Disconnect the client because it does not read its messages fast enough. Closing the socket also
+     * stops the reading thread of the connection
+     */
+    private void disconnectSlowClient() {
+        Server.log(LogLevel.WARN, "Disconnecting slow client " + this.handler.getUsername() + ": more than "
+                + this.backpressure.getHighWatermark() + " bytes waiting to be sent");
+        this.backpressure.countDisconnectedClient();
+        this.close();
+    }
+
+    /**
+     * Start the writer task, unless it is already scheduled or running
+     */
+    private void scheduleWriter() {
+        if (!this.closed && !this.outbound.isEmpty() && this.writerScheduled.compareAndSet(false, true)) {
+            this.writerExecutor.execute(this::drainOutbound);
+        }
+    }
+
+    /**
+     * The writer task: write all queued lines to the socket. The lines are gathered in the buffered stream
+     * and it is flushed once the queue is empty, so a burst of lines goes out in as few writes as possible
+     */
+    private void drainOutbound() {
+        try {
+            int count = this.outbound.poll(this.writeBatch);
+            while (count > 0 && !this.closed) {
+                for (int i = 0; i < count; i++) {
+                    this.writeLine(this.writeBatch[i]);
+                    this.writeBatch[i] = null;
+                }
+                count = this.outbound.poll(this.writeBatch);
+            }
+            this.outToClient.flush();
+        } catch (IOException e) {
+            Server.log(LogLevel.WARN, "Error while writing to a client socket: " + e.getMessage());
+            this.outbound.close();
+        }
+        this.writerScheduled.set(false);
+        // A line may have been queued after the last poll, but before the flag was cleared
+        this.scheduleWriter();
+    }
+
+    /**
+     * Write one queued line into the buffered stream, as a frame once the client uses binary framing, compressed
+     * when the client asked for it. Used only by the writer task
+     *
+     * @param line The encoded line, or the frame start marker
+     * @throws IOException When the socket can not be written
+     */
+    private void writeLine(byte[] line) throws IOException {
+        if (line == Frame.START_MARKER) {
+            this.framing = true;
+            return;
+        }
+        if (this.framing) {
+            byte[] compressed = this.compressing ? Compression.compressShared(line) : null;
+            byte opcode = Frame.OP_LINES;
+            if (compressed != null) {
+                line = compressed;
+                opcode = Frame.OP_DEFLATED_LINES;
+            }
+            Frame.writeHeader(this.frameHeader, 0, line.length, opcode);
+            this.outToClient.write(this.frameHeader);
+            this.metrics.countBytesOut(Frame.HEADER_LENGTH);
+        }
+        this.outToClient.write(line);
+        this.metrics.countBytesOut(line.length);
+    }
+
+    @Override
+    public void startFraming() {
+        this.lineDecoder.switchToFrames(new FrameDecoder(this::handleLine, this::onProtocolError));
+        this.send(Frame.START_MARKER, false);
+    }
+
+    @Override
+    public void startCompression() {
+        this.compressing = true;
+    }
+
+    /**
+     * Disconnect the client because it sent a broken frame. Closing the socket also stops the reading thread
+     */
+    private void onProtocolError() {
+        Server.log(LogLevel.WARN, "Disconnecting client " + this.handler.getUsername() + ": invalid frame");
+        this.close();
+    }
+
+    /**
+     * Close socket connection for this client
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        this.outbound.close();
+        Server.log(LogLevel.DEBUG, "Closing client socket...");
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            Server.log(LogLevel.WARN, "Error while closing a client socket: " + e.getMessage());
+        }
+        Server.log(LogLevel.DEBUG, "Client socket closed");
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return this.outbound.getQueuedBytes();
+    }
+
+    /**
+     * Return the protocol handler of this connection
+     *
+     * @return The client handler
+     */
+    public ClientHandler getHandler() {
+        return this.handler;
+    }
+}
@@ -0,0 +1,274 @@
+package no.ntnu;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The direct buffers of the nio engine's socket reads and writes. Buffers come in a few size classes, cut out of
+ * slabs of direct memory which are allocated when the pool runs out and never freed, so the pool grows to the
+ * peak use and then stops allocating. A connection leases a buffer only while it has bytes in flight and gives
+ * it back as soon as they are written, so idle connections hold no buffer at all.
+ * <p>
+ * Every buffer is leased to one client at a time. A buffer given back twice is counted and ignored. A buffer
+ * still leased to a client which has disconnected is a leak: the leak check finds it, logs it, counts it and
+ * takes the buffer back. When the pool has reached its size limit, leases get a heap buffer which is not
+ * pooled.
+ */
+public class BufferPool {
+    // The buffer sizes, smallest first. A lease gets the smallest size which holds what it asked for
+    static final int[] SIZE_CLASSES = {2 * 1024, 16 * 1024, 64 * 1024};
+    static final int MAX_BUFFER_SIZE = SIZE_CLASSES[SIZE_CLASSES.length - 1];
+    // Direct memory is allocated in slabs of this size, each cut into buffers of one size class
+    private static final int SLAB_SIZE = 1024 * 1024;
+    private static final long LEAK_CHECK_INTERVAL_SECONDS = 10;
+    // Runs the leak checks of all the pools of the process
+    private static final ScheduledExecutorService LEAK_CHECKER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "buffer-leak-check");
+        t.setDaemon(true);
+        return t;
+    });
+    // The holder of a buffer leased to an event loop
+    private static final Object EVENT_LOOP = new Object();
+
+    /**
+     * One buffer of the pool, leased again and again. Only its owner may use it while it is leased
+     */
+    public static final class PooledBuffer {
+        private final ByteBuffer buffer;
+        // Index into SIZE_CLASSES, -1 for a heap buffer which is not pooled
+        private final int sizeClass;
+        // Who has leased the buffer: the ClientHandler, EVENT_LOOP, or null when the buffer is free. Only
+        // changed from a holder to null with a compare-and-set, so a release and the leak check never both
+        // take the same lease back
+        private final AtomicReference<Object> holder = new AtomicReference<>();
+
+        /**
+         * PooledBuffer constructor
+         *
+         * @param buffer    The memory of the buffer
+         * @param sizeClass Index into SIZE_CLASSES, -1 for a heap buffer which is not pooled
+         */
+        private PooledBuffer(ByteBuffer buffer, int sizeClass) {
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
+        }
+
+        /**
+         * @return The buffer, cleared when it was leased
+         */
+        public ByteBuffer buffer() {
+            return this.buffer;
+        }
+    }
+
+    private final long maxBytes;
+    // Indexed like SIZE_CLASSES
+    private final List<ConcurrentLinkedQueue<PooledBuffer>> free = new ArrayList<>();
+    // Guards the slab allocation and allBuffers
+    private final Object slabLock = new Object();
+    // Every pooled buffer, for the leak check
+    private final List<PooledBuffer> allBuffers = new ArrayList<>();
+    private volatile long allocatedBytes = 0;
+    private final AtomicInteger leasedBuffers = new AtomicInteger();
+    private final LongAdder leases = new LongAdder();
+    private final LongAdder unpooledLeases = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+    private final LongAdder doubleReleases = new LongAdder();
+
+    /**
+     * BufferPool constructor. No memory is allocated until the first lease
+     *
+     * @param maxBytes Direct memory the pool may allocate, 0 for no limit
+     */
+    public BufferPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            this.free.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    /**
+     * Check for leaked buffers every few seconds, until the process exits
+     */
+    public void startLeakDetection() {
+        LEAK_CHECKER.scheduleWithFixedDelay(this::checkLeaks, LEAK_CHECK_INTERVAL_SECONDS,
+                LEAK_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Lease a buffer. Safe to call from any thread
+     *
+     * @param size  The bytes the caller would like to hold. The buffer may be smaller when the size is above
+     *              MAX_BUFFER_SIZE
+     * @param owner The client which uses the buffer, null for a buffer of an event loop
+     * @return The buffer, cleared. Must be given back with release()
+     */
+    public PooledBuffer lease(int size, ClientHandler owner) {
+        int sizeClass = classFor(size);
+        PooledBuffer pooled = this.free.get(sizeClass).poll();
+        if (pooled == null) {
+            pooled = this.allocateSlab(sizeClass);
+        }
+        if (pooled == null) {
+            // The pool is full
+            this.unpooledLeases.increment();
+            pooled = new PooledBuffer(ByteBuffer.allocate(SIZE_CLASSES[sizeClass]), -1);
+        }
+        // Nobody else can see the buffer: it was just taken out of the free list or allocated
+        pooled.holder.set(owner != null ? owner : EVENT_LOOP);
+        pooled.buffer.clear();
+        this.leasedBuffers.incrementAndGet();
+        this.leases.increment();
+        return pooled;
+    }
+
+    /**
+     * Give a leased buffer back. The caller must not use it afterwards
+     *
+     * @param pooled The buffer
+     */
+    public void release(PooledBuffer pooled) {
+        Object holder = pooled.holder.get();
+        if (holder == null || !pooled.holder.compareAndSet(holder, null)) {
+            this.doubleReleases.increment();
+            Server.log(LogLevel.WARN, "A buffer of " + pooled.buffer.capacity() + " bytes was released twice");
+            return;
+        }
+        this.giveBack(pooled);
+    }
+
+    /**
+     * Put a buffer which is no longer leased back into the pool
+     *
+     * @param pooled The buffer, its holder already cleared
+     */
+    private void giveBack(PooledBuffer pooled) {
+        this.leasedBuffers.decrementAndGet();
+        if (pooled.sizeClass >= 0) {
+            this.free.get(pooled.sizeClass).add(pooled);
+        }
+    }
+
+    /**
+     * Find the size class for a lease
+     *
+     * @param size The bytes the caller would like to hold
+     * @return The smallest class which holds them, or the largest class
+     */
+    private static int classFor(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length - 1; i++) {
+            if (size <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return SIZE_CLASSES.length - 1;
+    }
+
+    /**
+     * Allocate a new slab for a size class, unless another thread has just done it or the pool is full
+     *
+     * @param sizeClass Index into SIZE_CLASSES
+     * @return A buffer of the class, null when the pool is full
+     */
+    private PooledBuffer allocateSlab(int sizeClass) {
+        synchronized (this.slabLock) {
+            PooledBuffer pooled = this.free.get(sizeClass).poll();
+            if (pooled != null) {
+                return pooled;
+            }
+            if (this.maxBytes > 0 && this.allocatedBytes + SLAB_SIZE > this.maxBytes) {
+                return null;
+            }
+            ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+            this.allocatedBytes += SLAB_SIZE;
+            int size = SIZE_CLASSES[sizeClass];
+            for (int offset = 0; offset + size <= SLAB_SIZE; offset += size) {
+                PooledBuffer buffer = new PooledBuffer(slab.slice(offset, size), sizeClass);
+                this.allBuffers.add(buffer);
+                if (pooled == null) {
+                    pooled = buffer;
+                } else {
+                    this.free.get(sizeClass).add(buffer);
+                }
+            }
+            return pooled;
+        }
+    }
+
+    /**
+     * Take back the buffers still leased to clients which have disconnected
+     */
+    void checkLeaks() {
+        List<PooledBuffer> leaked = new ArrayList<>();
+        List<ClientHandler> owners = new ArrayList<>();
+        synchronized (this.slabLock) {
+            for (PooledBuffer pooled : this.allBuffers) {
+                if (pooled.holder.get() instanceof ClientHandler owner && owner.isDisconnected()) {
+                    leaked.add(pooled);
+                    owners.add(owner);
+                }
+            }
+        }
+        for (int i = 0; i < leaked.size(); i++) {
+            PooledBuffer pooled = leaked.get(i);
+            ClientHandler owner = owners.get(i);
+            // Fails when the owner has given the buffer back meanwhile, even when a live client leased it again
+            if (pooled.holder.compareAndSet(owner, null)) {
+                this.leaks.increment();
+                Server.log(LogLevel.WARN, "Buffer leak: a buffer of " + pooled.buffer.capacity()
+                        + " bytes was still leased to disconnected client " + owner.getUsername() + ", taken back");
+                this.giveBack(pooled);
+            }
+        }
+    }
+
+    /**
+     * @return The buffers leased now
+     */
+    public int getLeasedBuffers() {
+        return this.leasedBuffers.get();
+    }
+
+    /**
+     * @return The direct memory allocated by the pool, in bytes
+     */
+    public long getAllocatedBytes() {
+        return this.allocatedBytes;
+    }
+
+    /**
+     * @return The leases since the start, pooled or not
+     */
+    public long getLeases() {
+        return this.leases.sum();
+    }
+
+    /**
+     * @return The leases which got a heap buffer because the pool was full
+     */
+    public long getUnpooledLeases() {
+        return this.unpooledLeases.sum();
+    }
+
+    /**
+     * @return The buffers taken back from disconnected clients by the leak check
+     */
+    public long getLeaks() {
+        return this.leaks.sum();
+    }
+
+    /**
+     * @return The buffers given back while they were not leased
+     */
+    public long getDoubleReleases() {
+        return this.doubleReleases.sum();
+    }
+}
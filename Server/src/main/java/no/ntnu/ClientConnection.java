@@ -0,0 +1,39 @@
+package no.ntnu;
+
+/**
+ * The transport for one client. The ClientHandler uses this to talk back to the client, without knowing
+ * which server engine (blocking or event-loop based) is doing the actual socket I/O.
+ */
+public interface ClientConnection {
+    /**
+     * Queue one encoded line for sending to the client and return at once, the line is written by the
+     * connection's own writer. The same array may be shared by many connections, it must not be modified.
+     * When the client does not read fast enough, the server's overflow policy is applied.
+     *
+     * @param line      The encoded line, including the newline, see Message.encodeLine()
+     * @param droppable True for broadcast traffic which may be dropped when the client is too slow
+     */
+    void send(byte[] line, boolean droppable);
+
+    /**
+     * Close the connection to the client
+     */
+    void close();
+
+    /**
+     * Switch the connection to binary framing, see Frame: the input after the line being handled now is
+     * decoded as frames, and the lines sent from now on are written as frames. Must be called by the handler
+     * while it handles a line, after sending the last text line
+     */
+    void startFraming();
+
+    /**
+     * Compress the frames sent to the client from now on, see Compression. Only used with binary framing
+     */
+    void startCompression();
+
+    /**
+     * @return The number of bytes queued for the client and not written yet
+     */
+    long getQueuedBytes();
+}
@@ -1,209 +1,534 @@
 package no.ntnu;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Handles the logic of one particular client connection
+ * Handles the protocol logic of one particular client connection. The actual socket I/O is done by a
+ * ClientConnection - either a blocking one with its own thread, or a non-blocking one driven by an event loop.
  */
-public class ClientHandler extends Thread {
+public class ClientHandler {
+    /**
+     * A message waiting in the inbox in sync mode
+     *
+     * @param line      The encoded line
+     * @param droppable True for a broadcast, false for a private message
+     */
+    private record InboxEntry(byte[] line, boolean droppable) {
+    }
+
     private static final String CMD_PUBLIC_MESSAGE = "msg";
     private static final String CMD_PRIVATE_MESSAGE = "privmsg";
     private static final String CMD_MSG_OK = "msgok";
-    private static final String CMD_HELP = "help";
-    private static final String CMD_LOGIN = "login";
-    private static final String CMD_LOGIN_OK = "loginok";
-    private static final String CMD_USERS = "users";
     private static final String CMD_JOKE = "joke";
+    private static final String CMD_STATS = "stats";
+    private static final String CMD_JOIN_OK = "joinok";
+    private static final String CMD_LEAVE_OK = "leaveok";
+    private static final String CMD_ROOM_MESSAGE = "roommsg";
+    private static final String CMD_ROOM_USERS = "roomusers";
+    private static final String CMD_INBOX = "inbox";
+    private static final String CMD_HISTORY = "history";
+    // A client can be in at most this many rooms at a time
+    private static final int MAX_ROOMS_PER_CLIENT = 100;
+    // In sync mode, at most this many messages wait for the inbox command. The oldest broadcasts are dropped
+    // first, private messages only when there is nothing else
+    private static final int MAX_INBOX_MESSAGES = 1000;
 
-    private static final String ERR_NOT_SUPPORTED = "cmderr command not supported";
-    private static final String ERR_USERNAME_TAKEN = "loginerr username already in use";
-    private static final String ERR_INCORRECT_USERNAME = "loginerr incorrect username format";
-    private static final String ERR_INCORRECT_RECIPIENT = "msgerr incorrect recipient";
-    private static final String ERR_UNAUTHORIZED = "msgerr unauthorized";
+    // The fixed replies are encoded once, not for every response
+    private static final byte[] SUPPORTED = Message.encodeLine("supported msg privmsg login users joke help presence join leave roommsg roomusers sync async inbox history ping binary compress");
+    private static final byte[] LOGIN_OK = Message.encodeLine("loginok");
+    private static final byte[] MODE_OK = Message.encodeLine("modeok");
+    private static final byte[] PING = Message.encodeLine("ping");
+    private static final byte[] PONG = Message.encodeLine("pong");
+    private static final byte[] BINARY_OK = Message.encodeLine("binaryok");
+    private static final byte[] COMPRESS_OK = Message.encodeLine("compressok");
+    private static final byte[] MSG_OK_PRIVATE = Message.encodeLine(CMD_MSG_OK + " 1");
+    private static final byte[] ERR_NOT_SUPPORTED = Message.encodeLine("cmderr command not supported");
+    private static final byte[] ERR_USERNAME_TAKEN = Message.encodeLine("loginerr username already in use");
+    private static final byte[] ERR_INCORRECT_USERNAME = Message.encodeLine("loginerr incorrect username format");
+    private static final byte[] ERR_INCORRECT_RECIPIENT = Message.encodeLine("msgerr incorrect recipient");
+    private static final byte[] ERR_INBOX_FULL = Message.encodeLine("msgerr inbox full");
+    private static final byte[] ERR_UNAUTHORIZED = Message.encodeLine("msgerr unauthorized");
+    private static final byte[] ERR_CMD_UNAUTHORIZED = Message.encodeLine("cmderr unauthorized");
+    private static final byte[] ERR_INCORRECT_ROOM = Message.encodeLine("roomerr incorrect room name");
+    private static final byte[] ERR_TOO_MANY_ROOMS = Message.encodeLine("roomerr too many rooms");
+    private static final byte[] ERR_NOT_ROOM_MEMBER = Message.encodeLine("msgerr not a member of the room");
+    private static final byte[] ERR_INCORRECT_HISTORY = Message.encodeLine("cmderr incorrect history request");
+    private static final byte[] ERR_COMPRESSION_NEEDS_FRAMING =
+            Message.encodeLine("cmderr compression needs binary framing");
+    private static final byte[] ERR_HISTORY_NOT_ROOM_MEMBER = Message.encodeLine("cmderr not a member of the room");
 
-    private final Socket socket;
+    private final ClientConnection connection;
     private final Server server;
-    private boolean needToRun = true;
-    private final BufferedReader inFromClient;
-    private final PrintWriter outToClient;
-    private String username;
+    private final ServerMetrics metrics;
+    private final long id;
+    // Reused for every received line, the handler is only used by one thread at a time
+    private final CommandDecoder decoder = new CommandDecoder();
+    // The names of the rooms this client has joined, to leave them on disconnect
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+    // Read by the other clients' threads, hence volatile
+    private volatile String username;
+    // "msg <username> ", encoded once per username. Used only by the thread which handles the input
+    private byte[] publicMessagePrefix;
     // This flag will be set to true once the user logs in with a valid username
-    private boolean loggedIn = false;
-    // Incremented by 1 for each user
-    private static int userCounter = 1;
+    private volatile boolean loggedIn = false;
+    // In sync mode the messages for this client wait in the inbox until it asks for them, instead of being sent
+    private volatile boolean syncMode = false;
+    // Filled by the other clients' threads, emptied by the inbox command
+    private final ConcurrentLinkedQueue<InboxEntry> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inboxSize = new AtomicInteger();
+    // When the last line was received, from System.nanoTime(). Read by the IdleReaper
+    private volatile long lastReceivedNanos = System.nanoTime();
+    // Set once the client sends ping or pong: then it is pinged when silent, and disconnected sooner
+    private volatile boolean heartbeats = false;
+    private volatile boolean disconnected = false;
+    // True once the connection uses binary framing. Used only by the thread which handles the input
+    private boolean framing = false;
+    // The tick of the next check by the IdleReaper, used only by the reaper thread
+    private long reapTick;
+    // Used to tell the handlers apart in the log
+    private static final AtomicLong idCounter = new AtomicLong(1);
 
     /**
      * ClientHandler constructor
      *
-     * @param clientSocket Socket for this particular client
-     * @param server       The main server class which manages all the connections
+     * @param connection The connection to this particular client
+     * @param server     The main server class which manages all the connections
      */
-    public ClientHandler(Socket clientSocket, Server server) {
-        this.socket = clientSocket;
+    public ClientHandler(ClientConnection connection, Server server) {
+        this.connection = connection;
         this.server = server;
-        this.inFromClient = this.createInputStreamReader();
-        this.outToClient = this.createOutputStreamWriter();
-        this.username = this.generateUniqueUsername();
+        this.metrics = server.getMetrics();
+        this.id = idCounter.getAndIncrement();
+        this.username = this.server.claimGeneratedUsername(this);
+        this.publicMessagePrefix = encodePrefix(CMD_PUBLIC_MESSAGE + " " + this.username);
     }
 
     /**
-     * Generate a unique username
+     * Handle one line received from the client, according to the protocol. The line is decoded straight
+     * from the connection's buffer, the text is turned into Strings only where it is really needed.
      *
-     * @return a unique username
+     * @param bytes  The buffer holding the line, only valid during this call
+     * @param offset Offset of the line in the buffer
+     * @param length Length of the line, without the line terminator
      */
-    private String generateUniqueUsername() {
-        String username = "user" + (userCounter++);
-        // Make sure the generated username does not collide with any of the other users
-        while (!this.server.isUsernameAvailable(username)) {
-            username = "user" + (userCounter++);
+    public void handleLine(byte[] bytes, int offset, int length) {
+        if (Server.isTraceSampled()) {
+            Server.log(LogLevel.TRACE, this.getId() + ": " + new String(bytes, offset, length, StandardCharsets.UTF_8));
+        }
+        long start = System.nanoTime();
+        this.lastReceivedNanos = start;
+        Command command = this.decoder.decode(bytes, offset, length);
+        switch (command) {
+            case MSG:
+                this.handlePublicMessage();
+                break;
+            case PRIVMSG:
+                this.forwardPrivateMessage();
+                break;
+            case HELP:
+                this.sendEncoded(SUPPORTED);
+                break;
+            case LOGIN:
+                this.handleLogin();
+                break;
+            case USERS:
+                this.sendEncoded(this.server.getEncodedUserList());
+                break;
+            case PRESENCE:
+                this.server.getPresence().subscribe(this);
+                break;
+            case JOIN:
+                this.handleJoin();
+                break;
+            case LEAVE:
+                this.handleLeave();
+                break;
+            case ROOMMSG:
+                this.forwardRoomMessage();
+                break;
+            case ROOMUSERS:
+                this.handleRoomUsers();
+                break;
+            case JOKE:
+                this.send(CMD_JOKE + " " + Jokes.getRandomJoke());
+                break;
+            case SYNC:
+                this.syncMode = true;
+                this.sendEncoded(MODE_OK);
+                break;
+            case ASYNC:
+                this.syncMode = false;
+                this.sendEncoded(MODE_OK);
+                break;
+            case INBOX:
+                this.sendInbox();
+                break;
+            case HISTORY:
+                this.handleHistory();
+                break;
+            case BINARY:
+                this.sendEncoded(BINARY_OK);
+                if (!this.framing) {
+                    this.framing = true;
+                    this.connection.startFraming();
+                }
+                break;
+            case COMPRESS:
+                if (this.framing) {
+                    this.sendEncoded(COMPRESS_OK);
+                    this.connection.startCompression();
+                } else {
+                    this.sendEncoded(ERR_COMPRESSION_NEEDS_FRAMING);
+                }
+                break;
+            case PING:
+                this.heartbeats = true;
+                this.sendEncoded(PONG);
+                break;
+            case PONG:
+                this.heartbeats = true;
+                break;
+            case STATS:
+                this.handleStats();
+                break;
+            default:
+                this.sendEncoded(ERR_NOT_SUPPORTED);
         }
-        return username;
+        this.metrics.recordRequest(command, System.nanoTime() - start);
     }
 
     /**
-     * Create buffered input stream reader for the socket
-     *
-     * @return The input stream reader or null on error
+     * Send the server metrics, if the decoded line carries the admin token
      */
-    private BufferedReader createInputStreamReader() {
-        BufferedReader reader = null;
-        try {
-            reader = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
-        } catch (IOException e) {
-            Server.log("Could not setup the input stream: " + e.getMessage());
+    private void handleStats() {
+        if (this.decoder.hasArguments() && this.server.isAdminToken(this.decoder.getArgumentsString())) {
+            this.send(CMD_STATS + " " + this.metrics.getReport());
+        } else {
+            this.sendEncoded(ERR_CMD_UNAUTHORIZED);
         }
-        return reader;
     }
 
     /**
-     * Create writer which can be used to send data to the client (to the socket)
+     * Called by the connection once the client is gone, the socket is already closed at this point
+     */
+    public void onDisconnected() {
+        Server.log(LogLevel.DEBUG, "Done processing client");
+        this.disconnected = true;
+        for (String room : this.rooms) {
+            this.server.leaveRoom(room, this);
+        }
+        this.rooms.clear();
+        this.server.removeClientHandler(this);
+    }
+
+    /**
+     * Try to log in with the username given in the arguments of the decoded line. Send response to the client.
+     */
+    private void handleLogin() {
+        byte[] bytes = this.decoder.getBytes();
+        int offset = this.decoder.getArgumentsOffset();
+        int length = this.decoder.getArgumentsLength();
+        if (this.decoder.hasArguments() && isAlphaNumeric(bytes, offset, length)) {
+            // Alphanumeric, so every byte is one character
+            String username = new String(bytes, offset, length, StandardCharsets.US_ASCII);
+            String oldUsername = this.username;
+            if (this.server.claimUsername(this, username)) {
+                this.username = username;
+                this.publicMessagePrefix = encodePrefix(CMD_PUBLIC_MESSAGE + " " + username);
+                if (!this.loggedIn) {
+                    this.server.getAdmission().onLoggedIn();
+                }
+                this.loggedIn = true;
+                this.server.onUsernameChanged(this, oldUsername);
+                this.sendEncoded(LOGIN_OK);
+                this.server.onLoggedIn(this);
+            } else {
+                this.sendEncoded(ERR_USERNAME_TAKEN);
+            }
+        } else {
+            this.sendEncoded(ERR_INCORRECT_USERNAME);
+        }
+    }
+
+    /**
+     * Return the room name given as the whole arguments of the decoded line
      *
-     * @return The output-stream writer or null on error
+     * @return The room name, null if the arguments are not a correct room name
      */
-    private PrintWriter createOutputStreamWriter() {
-        PrintWriter writer = null;
-        try {
-            writer = new PrintWriter(this.socket.getOutputStream(), true);
-        } catch (IOException e) {
-            Server.log("Could not setup the output stream: " + e.getMessage());
+    private String decodeRoomName() {
+        byte[] bytes = this.decoder.getBytes();
+        int offset = this.decoder.getArgumentsOffset();
+        int length = this.decoder.getArgumentsLength();
+        if (!this.decoder.hasArguments() || length == 0 || !isAlphaNumeric(bytes, offset, length)) {
+            return null;
         }
-        return writer;
+        // Alphanumeric, so every byte is one character
+        return new String(bytes, offset, length, StandardCharsets.US_ASCII);
     }
 
     /**
-     * Handle the conversation according to the protocol
+     * Join the room given in the arguments of the decoded line. Send response to the client.
      */
-    public void run() {
-        while (this.needToRun) {
-            Message message = this.readClientMessage();
-            if (message != null) {
-                Server.log(this.getId() + ": " + message);
-                switch (message.getCommand()) {
-                    case CMD_PUBLIC_MESSAGE:
-                        this.handlePublicMessage(message.getArguments());
-                        break;
-                    case CMD_PRIVATE_MESSAGE:
-                        this.forwardPrivateMessage(message);
+    private void handleJoin() {
+        String room = this.decodeRoomName();
+        if (room == null) {
+            this.sendEncoded(ERR_INCORRECT_ROOM);
+        } else if (!this.rooms.contains(room) && this.rooms.size() >= MAX_ROOMS_PER_CLIENT) {
+            this.sendEncoded(ERR_TOO_MANY_ROOMS);
+        } else {
+            if (this.rooms.add(room)) {
+                this.server.joinRoom(room, this);
+            }
+            this.send(CMD_JOIN_OK + " " + room);
+        }
+    }
+
+    /**
+     * Leave the room given in the arguments of the decoded line. Send response to the client.
+     */
+    private void handleLeave() {
+        String room = this.decodeRoomName();
+        if (room == null) {
+            this.sendEncoded(ERR_INCORRECT_ROOM);
+        } else {
+            if (this.rooms.remove(room)) {
+                this.server.leaveRoom(room, this);
+            }
+            this.send(CMD_LEAVE_OK + " " + room);
+        }
+    }
+
+    /**
+     * Send the members of the room given in the arguments of the decoded line
+     */
+    private void handleRoomUsers() {
+        String room = this.decodeRoomName();
+        if (room == null) {
+            this.sendEncoded(ERR_INCORRECT_ROOM);
+        } else {
+            this.send(CMD_ROOM_USERS + " " + room + " " + this.server.getRoomUsernames(room));
+        }
+    }
+
+    /**
+     * Forward a room message from the decoded line to the other members of the room. The arguments are
+     * the room and the message text, separated by a space. Only members of the room may send to it.
+     */
+    private void forwardRoomMessage() {
+        byte[] bytes = this.decoder.getBytes();
+        int offset = this.decoder.getArgumentsOffset();
+        int end = offset + this.decoder.getArgumentsLength();
+        int space = this.decoder.hasArguments() ? CommandDecoder.indexOfSpace(bytes, offset, end) : -1;
+        if (space < 0) {
+            this.sendEncoded(ERR_NOT_SUPPORTED);
+            return;
+        }
+        String room = new String(bytes, offset, space - offset, StandardCharsets.UTF_8);
+        if (!this.rooms.contains(room)) {
+            this.sendEncoded(ERR_NOT_ROOM_MEMBER);
+            return;
+        }
+        byte[] prefix = encodePrefix(CMD_ROOM_MESSAGE + " " + room + " " + this.username);
+        byte[] line = Message.encodeRelayedLine(prefix, bytes, space + 1, end - space - 1);
+        int recipientCount = this.server.forwardToRoomExcept(room, line, this);
+        this.send(CMD_MSG_OK + " " + recipientCount);
+    }
+
+    /**
+     * Ask the history for the page given in the arguments of the decoded line. The page is read and sent on the
+     * history's reader thread
+     */
+    private void handleHistory() {
+        MessageHistory history = this.server.getHistory();
+        MessageHistory.Query query = history != null ? this.decodeHistoryQuery() : null;
+        if (history == null) {
+            this.sendEncoded(ERR_NOT_SUPPORTED);
+        } else if (query == null) {
+            this.sendEncoded(ERR_INCORRECT_HISTORY);
+        } else if (query.kind() == MessageHistory.KIND_ROOM && !this.rooms.contains(query.target())) {
+            this.sendEncoded(ERR_HISTORY_NOT_ROOM_MEMBER);
+        } else if (query.kind() == MessageHistory.KIND_PRIVATE && !this.isLoggedIn()) {
+            this.sendEncoded(ERR_CMD_UNAUTHORIZED);
+        } else {
+            history.readPage(query, this::sendHistoryPage);
+        }
+    }
+
+    /**
+     * Decode the arguments of a history command: pairs of a keyword and a value, all of them optional.
+     * "room &lt;room&gt;" or "peer &lt;user&gt;" choose the room messages or the private messages with the peer
+     * instead of the public messages, "before &lt;id&gt;" continues from an earlier page, "since &lt;time&gt;"
+     * skips the messages before the time (milliseconds since the epoch), "limit &lt;count&gt;" sets the page size
+     *
+     * @return The query, null when the arguments are not correct
+     */
+    private MessageHistory.Query decodeHistoryQuery() {
+        String arguments = this.decoder.hasArguments() ? this.decoder.getArgumentsString().trim() : "";
+        String[] words = arguments.isEmpty() ? new String[0] : arguments.split(" ");
+        if (words.length % 2 != 0) {
+            return null;
+        }
+        byte kind = MessageHistory.KIND_PUBLIC;
+        String target = "";
+        long before = Long.MAX_VALUE;
+        long since = 0;
+        int limit = MessageHistory.DEFAULT_PAGE_SIZE;
+        try {
+            for (int i = 0; i < words.length; i += 2) {
+                String value = words[i + 1];
+                switch (words[i]) {
+                    case "room":
+                        kind = MessageHistory.KIND_ROOM;
+                        target = value;
                         break;
-                    case CMD_HELP:
-                        this.send("supported msg privmsg login users joke help");
+                    case "peer":
+                        kind = MessageHistory.KIND_PRIVATE;
+                        target = value;
                         break;
-                    case CMD_LOGIN:
-                        this.handleLogin(message.getArguments());
+                    case "before":
+                        before = Long.parseLong(value);
                         break;
-                    case CMD_USERS:
-                        this.send(CMD_USERS + " " + this.server.getActiveUsernames());
+                    case "since":
+                        since = Long.parseLong(value);
                         break;
-                    case CMD_JOKE:
-                        this.send(CMD_JOKE + " " + Jokes.getRandomJoke());
+                    case "limit":
+                        limit = Integer.parseInt(value);
                         break;
                     default:
-                        this.send(ERR_NOT_SUPPORTED);
+                        return null;
                 }
-            } else {
-                Server.log("Error while reading client input, probably socket is closed, exiting...");
-                this.needToRun = false;
             }
+        } catch (NumberFormatException e) {
+            return null;
         }
-        Server.log("Done processing client");
-        this.closeSocket();
-        this.server.removeClientHandler(this);
+        if (limit <= 0) {
+            return null;
+        }
+        return new MessageHistory.Query(kind, target, this.username, before, since,
+                Math.min(limit, MessageHistory.MAX_PAGE_SIZE));
     }
 
     /**
-     * Try to log in with the given username. Send response to the client.
+     * Send a page of the history: "history &lt;count&gt; &lt;next&gt;", followed by the messages as they were
+     * sent, oldest first. Next is the value for "before" to get the older messages, 0 when there are none
      *
-     * @param username The username to use for this client
+     * @param page The page
      */
-    private void handleLogin(String username) {
-        if (isAlphaNumeric(username)) {
-            if (this.server.isUsernameAvailable(username)) {
-                this.username = username;
-                this.loggedIn = true;
-                this.send(CMD_LOGIN_OK);
-            } else {
-                this.send(ERR_USERNAME_TAKEN);
-            }
-        } else {
-            this.send(ERR_INCORRECT_USERNAME);
-        }
+    private void sendHistoryPage(MessageHistory.Page page) {
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        reply.writeBytes(Message.encodeLine(CMD_HISTORY + " " + page.lines().size() + " " + page.next()));
+        page.lines().forEach(reply::writeBytes);
+        this.sendEncoded(reply.toByteArray());
     }
 
     /**
-     * Check if the given string contains only alphanumeric characters
-     * Function taken from: https://www.techiedelight.com/check-string-contains-alphanumeric-characters-java/
+     * Check if the given string contains only alphanumeric characters (a-z, A-Z, 0-9)
      *
      * @param s The string to check
      * @return True if the string contains alphanumerics only, false if it contains any other characters
      */
     public static boolean isAlphaNumeric(String s) {
-        return s != null && s.matches("^[a-zA-Z0-9]*$");
+        if (s == null) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (!isAlphaNumeric(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
-     * Forward the message to all other clients, except this one who sent it.
-     * Send also a response to the sender, according to the protocol.
+     * Check if a part of a buffer contains only alphanumeric ASCII characters (a-z, A-Z, 0-9)
      *
-     * @param message The message to forward
+     * @param bytes  The buffer to check
+     * @param offset Where to start in the buffer
+     * @param length How many bytes to check
+     * @return True if the bytes are alphanumerics only, false if there are any other bytes
+     */
+    public static boolean isAlphaNumeric(byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (!isAlphaNumeric((char) bytes[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if a character is alphanumeric (a-z, A-Z, 0-9)
+     *
+     * @param c The character to check
+     * @return True if the character is alphanumeric
+     */
+    private static boolean isAlphaNumeric(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    /**
+     * Forward the message in the arguments of the decoded line to all other clients, except this one who sent it.
+     * Send also a response to the sender, according to the protocol. The text is relayed as received, it is
+     * never decoded.
      */
-    private void handlePublicMessage(String message) {
-        String forwardedMessage = CMD_PUBLIC_MESSAGE + " " + this.username + " " + message;
-        int recipientCount = this.server.forwardToAllClientsExcept(forwardedMessage, this);
+    private void handlePublicMessage() {
+        byte[] line;
+        if (this.decoder.hasArguments()) {
+            line = Message.encodeRelayedLine(this.publicMessagePrefix, this.decoder.getBytes(),
+                    this.decoder.getArgumentsOffset(), this.decoder.getArgumentsLength());
+        } else {
+            // "msg" alone is forwarded as "msg <username> null", as it always has been
+            line = Message.encodeLine(CMD_PUBLIC_MESSAGE + " " + this.username + " " + null);
+        }
+        int recipientCount = this.server.forwardToAllClientsExcept(line, this);
         this.send(CMD_MSG_OK + " " + recipientCount);
     }
 
     /**
-     * Forward a private message to necessary recipient
+     * Encode the prefix of a relayed line: the given words followed by a space
      *
-     * @param m The received message
+     * @param words The command word and the arguments before the message text
+     * @return The encoded prefix
+     */
+    private static byte[] encodePrefix(String words) {
+        return (words + " ").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Forward a private message from the decoded line to necessary recipient. The arguments are
+     * the recipient and the message text, separated by a space.
      */
-    private void forwardPrivateMessage(Message m) {
+    private void forwardPrivateMessage() {
         if (!this.isLoggedIn()) {
-            this.send(ERR_UNAUTHORIZED);
+            this.sendEncoded(ERR_UNAUTHORIZED);
             return;
         }
 
         // Split the arguments into recipient and message
-        String arguments = m.getArguments();
-        if (arguments != null) {
-            String[] parts = arguments.split(" ", 2);
-            if (parts.length == 2) {
-                String recipient = parts[0];
-                String message = CMD_PRIVATE_MESSAGE + " " + recipient + " " + parts[1];
-                if (this.server.forwardPrivateMessage(recipient, message)) {
-                    this.send(CMD_MSG_OK + " 1");
-                } else {
-                    this.send(ERR_INCORRECT_RECIPIENT);
-                }
+        byte[] bytes = this.decoder.getBytes();
+        int offset = this.decoder.getArgumentsOffset();
+        int end = offset + this.decoder.getArgumentsLength();
+        int space = this.decoder.hasArguments() ? CommandDecoder.indexOfSpace(bytes, offset, end) : -1;
+        if (space >= 0) {
+            String recipient = new String(bytes, offset, space - offset, StandardCharsets.UTF_8);
+            byte[] line = Message.encodeRelayedLine(encodePrefix(CMD_PRIVATE_MESSAGE + " " + recipient),
+                    bytes, space + 1, end - space - 1);
+            Server.ForwardResult result = this.server.forwardPrivateMessage(this.username, recipient, line);
+            if (result == Server.ForwardResult.FORWARDED) {
+                this.sendEncoded(MSG_OK_PRIVATE);
+            } else if (result == Server.ForwardResult.INBOX_FULL) {
+                this.sendEncoded(ERR_INBOX_FULL);
             } else {
-                this.send(ERR_NOT_SUPPORTED);
+                this.sendEncoded(ERR_INCORRECT_RECIPIENT);
             }
         } else {
-            this.send(ERR_NOT_SUPPORTED);
+            this.sendEncoded(ERR_NOT_SUPPORTED);
         }
     }
 
@@ -217,40 +542,185 @@ public class ClientHandler extends Thread {
     }
 
     /**
-     * Read one message from the client (from the socket)
+     * Send a message to the client. Newline appended automatically
      *
-     * @return The message or null on error
+     * @param message The message to send
      */
-    private Message readClientMessage() {
-        String receivedInputLine = null;
-        try {
-            receivedInputLine = this.inFromClient.readLine();
-        } catch (IOException e) {
-            Server.log("Error while reading the socket input: " + e.getMessage());
+    public void send(String message) {
+        this.sendEncoded(Message.encodeLine(message));
+    }
+
+    /**
+     * Send an already encoded reply to the client
+     *
+     * @param line The encoded line, see Message.encodeLine()
+     */
+    private void sendEncoded(byte[] line) {
+        this.connection.send(line, false);
+    }
+
+    /**
+     * Send an already encoded broadcast line to the client. The line is only queued, this method does not wait
+     * for the client to receive it. It may be dropped if the client does not keep up with the traffic
+     *
+     * @param line The encoded line, see Message.encodeLine(). Must not be modified afterwards
+     */
+    public void sendBroadcast(byte[] line) {
+        if (this.syncMode) {
+            this.keepInInbox(line, true);
+        } else {
+            this.connection.send(line, true);
         }
-        return Message.createFromInput(receivedInputLine);
     }
 
     /**
-     * Send a message to the client. Newline appended automatically
+     * Send an already encoded private message to the client, or keep it in the inbox in sync mode. Unlike
+     * broadcasts, private messages are never dropped from the outbound queue
      *
-     * @param message The message to send
+     * @param line The encoded line, see Message.encodeLine(). Must not be modified afterwards
      */
-    public void send(String message) {
-        this.outToClient.println(message);
+    public void sendPrivateMessage(byte[] line) {
+        if (this.syncMode) {
+            this.keepInInbox(line, false);
+        } else {
+            this.connection.send(line, false);
+        }
     }
 
     /**
-     * Close socket connection for this client
+     * Keep a message until the client asks for it with the inbox command. Drops a message when the inbox is full,
+     * see dropFromInbox()
+     *
+     * @param line      The encoded line
+     * @param droppable True for a broadcast, false for a private message
      */
-    private void closeSocket() {
-        Server.log("Closing client socket...");
-        try {
-            this.socket.close();
-        } catch (IOException e) {
-            Server.log("Error while closing a client socket: " + e.getMessage());
+    private void keepInInbox(byte[] line, boolean droppable) {
+        this.inbox.add(new InboxEntry(line, droppable));
+        if (this.inboxSize.incrementAndGet() > MAX_INBOX_MESSAGES && this.dropFromInbox()) {
+            this.inboxSize.decrementAndGet();
+            this.server.getBackpressure().countDroppedMessages(1);
+        }
+    }
+
+    /**
+     * Drop the oldest broadcast from the inbox. When the inbox holds only private messages, the oldest of them
+     * is dropped and logged
+     *
+     * @return True when a message was dropped, false when the inbox has been emptied meanwhile
+     */
+    private boolean dropFromInbox() {
+        for (InboxEntry entry : this.inbox) {
+            // remove() fails when the inbox command has taken the entry meanwhile
+            if (entry.droppable() && this.inbox.remove(entry)) {
+                return true;
+            }
+        }
+        if (this.inbox.poll() == null) {
+            return false;
+        }
+        Server.log(LogLevel.WARN, "Inbox of " + this.username + " is full, dropped a private message");
+        return true;
+    }
+
+    /**
+     * Send the messages waiting in the inbox: "inbox &lt;count&gt;", followed by the messages as they would have
+     * been sent in async mode. The inbox is emptied
+     */
+    private void sendInbox() {
+        ByteArrayOutputStream messages = new ByteArrayOutputStream();
+        int count = 0;
+        InboxEntry entry;
+        while ((entry = this.inbox.poll()) != null) {
+            this.inboxSize.decrementAndGet();
+            messages.writeBytes(entry.line());
+            count++;
         }
-        Server.log("Client socket closed");
+        byte[] header = Message.encodeLine(CMD_INBOX + " " + count);
+        ByteArrayOutputStream reply = new ByteArrayOutputStream(header.length + messages.size());
+        reply.writeBytes(header);
+        reply.writeBytes(messages.toByteArray());
+        this.sendEncoded(reply.toByteArray());
+    }
+
+    /**
+     * Send an already encoded presence update to the client. Unlike broadcasts, presence updates are never
+     * dropped, the client's user list would be wrong from then on
+     *
+     * @param lines The encoded lines, see Message.encodeLine(). Must not be modified afterwards
+     */
+    public void sendPresence(byte[] lines) {
+        this.connection.send(lines, false);
+    }
+
+    /**
+     * @return The number of bytes queued for the client and not written yet
+     */
+    public long getQueuedBytes() {
+        return this.connection.getQueuedBytes();
+    }
+
+    /**
+     * Send a heartbeat ping to the client, which answers with pong
+     */
+    public void sendPing() {
+        this.connection.send(PING, false);
+    }
+
+    /**
+     * Close the connection to the client, for example because it has been silent for too long
+     */
+    public void closeConnection() {
+        this.connection.close();
+    }
+
+    /**
+     * Return when the last line was received from the client
+     *
+     * @return The time of the last line, from System.nanoTime()
+     */
+    public long getLastReceivedNanos() {
+        return this.lastReceivedNanos;
+    }
+
+    /**
+     * Check if the client has opted in to heartbeats, by sending ping or pong
+     *
+     * @return True when the client answers pings
+     */
+    public boolean usesHeartbeats() {
+        return this.heartbeats;
+    }
+
+    /**
+     * Check if the client is gone
+     *
+     * @return True once the connection is closed
+     */
+    public boolean isDisconnected() {
+        return this.disconnected;
+    }
+
+    /**
+     * @return The tick of the next check by the IdleReaper
+     */
+    long getReapTick() {
+        return this.reapTick;
+    }
+
+    /**
+     * @param reapTick The tick of the next check by the IdleReaper
+     */
+    void setReapTick(long reapTick) {
+        this.reapTick = reapTick;
+    }
+
+    /**
+     * Return the identifier of this client, used in the log
+     *
+     * @return The identifier of this client
+     */
+    public long getId() {
+        return this.id;
     }
 
     /**
@@ -0,0 +1,138 @@
+package no.ntnu;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe register of all connected clients. Every client, logged in or not, holds exactly one username
+ * in the username index, so a lookup by username never scans the clients. A username is claimed atomically:
+ * two clients can never end up with the same name, even when they ask for it at the same time. The register
+ * has a version which changes whenever the list of usernames changes, so a cached user list is rebuilt only then.
+ */
+public class ClientRegistry {
+    private final Set<ClientHandler> handlers = ConcurrentHashMap.newKeySet();
+    private final Map<String, ClientHandler> handlersByUsername = new ConcurrentHashMap<>();
+    // Incremented by 1 for each generated username
+    private final AtomicInteger userCounter = new AtomicInteger(1);
+    // Generated usernames are this prefix followed by a number
+    private final String generatedPrefix;
+    // Incremented after every change of the user list: a client added or removed, or a username changed
+    private final AtomicLong version = new AtomicLong(0);
+
+    /**
+     * ClientRegistry constructor
+     *
+     * @param generatedPrefix Generated usernames are this prefix followed by a number, for example "user"
+     */
+    public ClientRegistry(String generatedPrefix) {
+        this.generatedPrefix = generatedPrefix;
+    }
+
+    /**
+     * Add a client to the register. Its username must already be claimed
+     *
+     * @param handler The client handler
+     */
+    public void add(ClientHandler handler) {
+        this.handlers.add(handler);
+        this.version.incrementAndGet();
+    }
+
+    /**
+     * Remove a client from the register and release its username
+     *
+     * @param handler The client handler
+     */
+    public void remove(ClientHandler handler) {
+        this.handlers.remove(handler);
+        String username = handler.getUsername();
+        if (username != null) {
+            this.handlersByUsername.remove(username, handler);
+        }
+        this.version.incrementAndGet();
+    }
+
+    /**
+     * Claim a new generated username of the form prefixN for the given client
+     *
+     * @param handler The client handler which will own the username
+     * @return The claimed username
+     */
+    public String claimGeneratedUsername(ClientHandler handler) {
+        String username = this.generatedPrefix + this.userCounter.getAndIncrement();
+        // Skip the names which are already taken by the other users
+        while (this.handlersByUsername.putIfAbsent(username, handler) != null) {
+            username = this.generatedPrefix + this.userCounter.getAndIncrement();
+        }
+        return username;
+    }
+
+    /**
+     * Claim a username for the given client and release the username it had before. The claim is atomic
+     *
+     * @param handler     The client handler which will own the username
+     * @param oldUsername The username the client had until now, null if none
+     * @param newUsername The desired username
+     * @return True when the username was claimed, false when someone else already uses it
+     */
+    public boolean claimUsername(ClientHandler handler, String oldUsername, String newUsername) {
+        if (this.handlersByUsername.putIfAbsent(newUsername, handler) != null) {
+            return false;
+        }
+        if (oldUsername != null) {
+            this.handlersByUsername.remove(oldUsername, handler);
+        }
+        return true;
+    }
+
+    /**
+     * Tell the register that the user list has changed outside of it: a client has taken its new username,
+     * or the users of other cluster nodes changed. Call it after the change is visible, so a user list built
+     * after the version change sees it
+     */
+    public void userListChanged() {
+        this.version.incrementAndGet();
+    }
+
+    /**
+     * Return the version of the user list. Any change of the user list changes the version, a user list built
+     * after reading the version is at least as new as that version.
+     *
+     * @return The current version
+     */
+    public long getVersion() {
+        return this.version.get();
+    }
+
+    /**
+     * Find a client with the given username
+     *
+     * @param username The username of desired client
+     * @return The desired client handler or null if none found with that username
+     */
+    public ClientHandler getByUsername(String username) {
+        return this.handlersByUsername.get(username);
+    }
+
+    /**
+     * Return all the registered clients. The collection is safe to iterate while clients come and go: it
+     * never throws ConcurrentModificationException, a client added or removed during the iteration may or
+     * may not be included.
+     *
+     * @return All registered clients
+     */
+    public Collection<ClientHandler> getHandlers() {
+        return this.handlers;
+    }
+
+    /**
+     * @return The number of registered clients
+     */
+    public int size() {
+        return this.handlers.size();
+    }
+}
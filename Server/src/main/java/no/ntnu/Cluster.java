@@ -0,0 +1,354 @@
+package no.ntnu;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Connects this server to the other nodes of a cluster. Every node owns the clients connected to it; the nodes
+ * tell each other which users they own, relay public messages to each other and relay a private message to the
+ * node which owns the recipient. Together they look like one big chat server to the clients.
+ * <p>
+ * Each node has an outgoing PeerLink to every other node, for the lines it sends, and accepts the other nodes'
+ * links on its cluster port, for the lines it receives. The lines on the links are:
+ * <ul>
+ *     <li>node &lt;id&gt; [&lt;secret&gt;] - the first line, names the sending node. A node which is not in
+ *     the peers, or which does not send the cluster secret, is disconnected</li>
+ *     <li>joined &lt;user&gt;, left &lt;user&gt; - the users owned by the sending node</li>
+ *     <li>msg &lt;sender&gt; &lt;text&gt; - a public message, to be delivered to all the local clients</li>
+ *     <li>to &lt;recipient&gt; &lt;sender&gt; &lt;line&gt; - a private message for one local client</li>
+ * </ul>
+ */
+public class Cluster {
+    private final Server server;
+    private final ServerConfig config;
+    private final List<PeerLink> links = new ArrayList<>();
+    private final Map<Integer, PeerLink> linksByNodeId = new ConcurrentHashMap<>();
+    // The users owned by the other nodes, with the incoming link they were announced on
+    private final Map<String, PeerReader> remoteUsers = new ConcurrentHashMap<>();
+
+    /**
+     * The incoming link from another node
+     */
+    private class PeerReader implements Runnable {
+        private final Socket socket;
+        private volatile int nodeId = 0;
+
+        PeerReader(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try (Socket s = this.socket;
+                 BufferedReader in = new BufferedReader(
+                         new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8))) {
+                if (!this.introduce(in.readLine())) {
+                    Server.log(LogLevel.WARN, "Refused a cluster link from " + s.getInetAddress().getHostAddress()
+                            + ": not a known node");
+                    return;
+                }
+                Server.log("Cluster node " + this.nodeId + " connected");
+                String line = in.readLine();
+                while (line != null) {
+                    this.handleLine(line);
+                    line = in.readLine();
+                }
+            } catch (IOException e) {
+                Server.log(LogLevel.WARN, "Link from cluster node " + this.nodeId + " failed: " + e.getMessage());
+            }
+            Cluster.this.forgetUsersOf(this);
+        }
+
+        /**
+         * Check the first line of the link: "node &lt;id&gt; [&lt;secret&gt;]", with the id of one of the peers
+         * and the cluster secret when this node has one
+         *
+         * @param line The first line, null when the link was closed before it
+         * @return True when the other node is one of the peers
+         */
+        private boolean introduce(String line) {
+            String[] words = line != null ? line.split(" ") : new String[0];
+            if (words.length < 2 || words.length > 3 || !words[0].equals("node")) {
+                return false;
+            }
+            int id;
+            try {
+                id = Integer.parseInt(words[1]);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            String secret = Cluster.this.config.getClusterSecret();
+            String given = words.length == 3 ? words[2] : "";
+            if (secret != null && !MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8),
+                    given.getBytes(StandardCharsets.UTF_8))) {
+                return false;
+            }
+            if (!Cluster.this.linksByNodeId.containsKey(id)) {
+                return false;
+            }
+            this.nodeId = id;
+            return true;
+        }
+
+        /**
+         * Handle one line received from the other node
+         *
+         * @param line The line
+         */
+        private void handleLine(String line) {
+            int space = line.indexOf(' ');
+            String command = space >= 0 ? line.substring(0, space) : line;
+            String arguments = space >= 0 ? line.substring(space + 1) : "";
+            switch (command) {
+                case "joined":
+                    Cluster.this.addRemoteUser(arguments, this);
+                    break;
+                case "left":
+                    Cluster.this.removeRemoteUser(arguments, this);
+                    break;
+                case "msg":
+                    Cluster.this.server.deliverToLocalClients(Message.encodeLine(line));
+                    break;
+                case "to":
+                    int recipientEnd = arguments.indexOf(' ');
+                    int senderEnd = recipientEnd > 0 ? arguments.indexOf(' ', recipientEnd + 1) : -1;
+                    if (senderEnd > 0) {
+                        Cluster.this.server.deliverToLocalClient(arguments.substring(recipientEnd + 1, senderEnd),
+                                arguments.substring(0, recipientEnd), arguments.substring(senderEnd + 1));
+                    }
+                    break;
+                default:
+                    Server.log(LogLevel.WARN, "Unknown line from cluster node " + this.nodeId + ": " + command);
+            }
+        }
+    }
+
+    /**
+     * Cluster constructor
+     *
+     * @param server The server of this node
+     * @param config The startup options, with the cluster options
+     */
+    public Cluster(Server server, ServerConfig config) {
+        this.server = server;
+        this.config = config;
+        for (ServerConfig.Peer peer : config.getPeers()) {
+            PeerLink link = new PeerLink(peer, this);
+            this.links.add(link);
+            this.linksByNodeId.put(peer.nodeId(), link);
+        }
+    }
+
+    /**
+     * Start accepting the other nodes and connecting to them, each on its own thread
+     *
+     * @return False when the cluster port could not be opened
+     */
+    public boolean start() {
+        ServerSocket welcomeSocket;
+        try {
+            welcomeSocket = new ServerSocket(this.config.getClusterPort(), 0,
+                    InetAddress.getByName(this.config.getClusterBind()));
+        } catch (IOException e) {
+            Server.log(LogLevel.ERROR, "Could not open the cluster port: " + e.getMessage());
+            return false;
+        }
+        Server.log("Cluster node " + this.getNodeId() + " listening for peers on "
+                + this.config.getClusterBind() + ":" + this.config.getClusterPort());
+        Thread acceptor = new Thread(() -> this.acceptPeers(welcomeSocket), "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink link : this.links) {
+            Thread writer = new Thread(link, "cluster-link-" + link.getNodeId());
+            writer.setDaemon(true);
+            writer.start();
+        }
+        return true;
+    }
+
+    /**
+     * Accept the links of the other nodes in a loop, read each of them on its own thread
+     *
+     * @param welcomeSocket The cluster port
+     */
+    private void acceptPeers(ServerSocket welcomeSocket) {
+        while (true) {
+            try {
+                Socket socket = welcomeSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread reader = new Thread(new PeerReader(socket), "cluster-reader");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                Server.log(LogLevel.WARN, "Failed to accept a cluster node: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return The node id of this node
+     */
+    public int getNodeId() {
+        return this.config.getNodeId();
+    }
+
+    /**
+     * @return " &lt;secret&gt;" to follow the node id on a link, empty when the cluster has no secret
+     */
+    String getSecretSuffix() {
+        String secret = this.config.getClusterSecret();
+        return secret != null ? " " + secret : "";
+    }
+
+    /**
+     * @return The usernames of the clients connected to this node
+     */
+    List<String> getLocalUsernames() {
+        return this.server.getLocalUsernames();
+    }
+
+    /**
+     * Send a line to all the other nodes. The line is encoded once for all of them
+     *
+     * @param line The line, without the newline
+     */
+    private void sendToAll(String line) {
+        byte[] encoded = Message.encodeLine(line);
+        for (PeerLink link : this.links) {
+            link.send(encoded);
+        }
+    }
+
+    /**
+     * Tell the other nodes about a user who joined this node
+     *
+     * @param username The username
+     */
+    public void userJoined(String username) {
+        this.sendToAll("joined " + username);
+    }
+
+    /**
+     * Tell the other nodes about a user who left this node
+     *
+     * @param username The username
+     */
+    public void userLeft(String username) {
+        this.sendToAll("left " + username);
+    }
+
+    /**
+     * Relay a public message to the other nodes, which deliver it to all their clients
+     *
+     * @param line The encoded msg line, as the clients get it
+     */
+    public void relayBroadcast(byte[] line) {
+        for (PeerLink link : this.links) {
+            link.send(line);
+        }
+    }
+
+    /**
+     * Relay a private message to the node which owns the recipient
+     *
+     * @param sender    The username of the sender, for the history of the recipient's node
+     * @param recipient The username of the recipient
+     * @param line      The encoded line for the recipient, see Message.encodeLine()
+     * @return True when the recipient is a user of another node, false when nobody in the cluster has this name
+     */
+    public boolean relayTo(String sender, String recipient, byte[] line) {
+        PeerReader owner = this.remoteUsers.get(recipient);
+        PeerLink link = owner != null ? this.linksByNodeId.get(owner.nodeId) : null;
+        if (link == null) {
+            return false;
+        }
+        // The line is already encoded, only the prefix is added in front of it
+        byte[] prefix = ("to " + recipient + " " + sender + " ").getBytes(StandardCharsets.UTF_8);
+        link.send(Message.encodeRelayedLine(prefix, line, 0, line.length - 1));
+        return true;
+    }
+
+    /**
+     * @param username A username
+     * @return True when a user of another node has this username
+     */
+    public boolean isRemoteUser(String username) {
+        return this.remoteUsers.containsKey(username);
+    }
+
+    /**
+     * @return The usernames of the users of the other nodes
+     */
+    public Collection<String> getRemoteUsernames() {
+        return this.remoteUsers.keySet();
+    }
+
+    /**
+     * @return The number of users of the other nodes
+     */
+    public int getRemoteUserCount() {
+        return this.remoteUsers.size();
+    }
+
+    /**
+     * Remember a user announced by another node
+     *
+     * @param username The username
+     * @param owner    The link of the node which owns the user
+     */
+    private void addRemoteUser(String username, PeerReader owner) {
+        if (this.remoteUsers.put(username, owner) == null) {
+            this.server.onRemoteUsersChanged();
+            this.server.getPresence().userJoined(username);
+        }
+    }
+
+    /**
+     * Forget a user who left another node
+     *
+     * @param username The username
+     * @param owner    The link of the node which owned the user
+     */
+    private void removeRemoteUser(String username, PeerReader owner) {
+        if (this.remoteUsers.remove(username, owner)) {
+            this.server.onRemoteUsersChanged();
+            this.server.getPresence().userLeft(username);
+        }
+    }
+
+    /**
+     * Forget all the users announced on a link which is gone: their node can not be reached any more,
+     * or it has connected again and announces its users once more
+     *
+     * @param owner The link which is gone
+     */
+    private void forgetUsersOf(PeerReader owner) {
+        for (Map.Entry<String, PeerReader> entry : this.remoteUsers.entrySet()) {
+            if (entry.getValue() == owner) {
+                this.removeRemoteUser(entry.getKey(), owner);
+            }
+        }
+    }
+
+    /**
+     * @return The number of lines dropped on the links to the other nodes
+     */
+    public long getDroppedLines() {
+        long dropped = 0;
+        for (PeerLink link : this.links) {
+            dropped += link.getDroppedLines();
+        }
+        return dropped;
+    }
+}
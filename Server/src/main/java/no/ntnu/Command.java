@@ -0,0 +1,115 @@
+package no.ntnu;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The command words a client can send to the server
+ */
+public enum Command {
+    MSG("msg"),
+    PRIVMSG("privmsg"),
+    HELP("help"),
+    LOGIN("login"),
+    USERS("users"),
+    JOKE("joke"),
+    // Subscribe to the changes of the user list
+    PRESENCE("presence"),
+    // Chat rooms
+    JOIN("join"),
+    LEAVE("leave"),
+    ROOMMSG("roommsg"),
+    ROOMUSERS("roomusers"),
+    // Delivery modes: messages pushed at once, or kept until the client asks with inbox
+    SYNC("sync"),
+    ASYNC("async"),
+    INBOX("inbox"),
+    // Switch to binary framing
+    BINARY("binary"),
+    // Compress the frames, needs binary framing
+    COMPRESS("compress"),
+    // Heartbeats, in both directions
+    PING("ping"),
+    PONG("pong"),
+    // Pages of past messages
+    HISTORY("history"),
+    // Admin only: the server metrics
+    STATS("stats"),
+    // Anything the server does not support
+    UNKNOWN("");
+
+    // Longest command word, used to size the lookup table
+    private static final int MAX_WORD_LENGTH = 9;
+    // Commands indexed by the length of their command word, so a lookup compares only a few candidates
+    private static final Command[][] BY_LENGTH = createLookupTable();
+
+    private final String word;
+    private final byte[] wordBytes;
+
+    Command(String word) {
+        this.word = word;
+        this.wordBytes = word.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Return the command word, as sent over the socket
+     *
+     * @return The command word
+     */
+    public String getWord() {
+        return this.word;
+    }
+
+    /**
+     * Find the command with the given command word, without creating any objects
+     *
+     * @param bytes  The buffer holding the command word
+     * @param offset Offset of the command word in the buffer
+     * @param length Length of the command word
+     * @return The command, UNKNOWN if no command has such a word
+     */
+    public static Command lookup(byte[] bytes, int offset, int length) {
+        if (length > 0 && length <= MAX_WORD_LENGTH) {
+            for (Command command : BY_LENGTH[length]) {
+                if (command.matches(bytes, offset)) {
+                    return command;
+                }
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Check whether the bytes at the given offset are this command's word
+     *
+     * @param bytes  The buffer to check
+     * @param offset Offset of the word in the buffer, the buffer must hold at least the word length from there
+     * @return True if the bytes are this command's word
+     */
+    private boolean matches(byte[] bytes, int offset) {
+        for (int i = 0; i < this.wordBytes.length; i++) {
+            if (bytes[offset + i] != this.wordBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Group the known commands by the length of their command word
+     *
+     * @return The lookup table
+     */
+    private static Command[][] createLookupTable() {
+        Command[][] table = new Command[MAX_WORD_LENGTH + 1][0];
+        for (Command command : values()) {
+            int length = command.wordBytes.length;
+            if (command != UNKNOWN) {
+                Command[] candidates = Arrays.copyOf(table[length], table[length].length + 1);
+                candidates[candidates.length - 1] = command;
+                table[length] = candidates;
+            }
+        }
+        return table;
+    }
+}
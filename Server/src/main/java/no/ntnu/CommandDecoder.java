@@ -0,0 +1,105 @@
+package no.ntnu;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes one received line straight from the read buffer: finds the command and where the arguments are,
+ * without creating any Strings or arrays. One decoder is reused for all the lines of a connection. The
+ * decoded positions refer to the buffer given to decode() and are only valid until the buffer is reused.
+ */
+public class CommandDecoder {
+    private byte[] bytes;
+    private Command command = Command.UNKNOWN;
+    private int argumentsOffset;
+    private int argumentsLength;
+
+    /**
+     * Decode one line: the command word is everything up to the first space, the arguments are everything
+     * after it. A line without a space has no arguments, a line ending with a space has empty arguments -
+     * exactly like Message.createFromInput()
+     *
+     * @param bytes  The buffer holding the line
+     * @param offset Offset of the line in the buffer
+     * @param length Length of the line, without the line terminator
+     * @return The decoded command
+     */
+    public Command decode(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        int end = offset + length;
+        int space = indexOfSpace(bytes, offset, end);
+        if (space >= 0) {
+            this.command = Command.lookup(bytes, offset, space - offset);
+            this.argumentsOffset = space + 1;
+            this.argumentsLength = end - space - 1;
+        } else {
+            this.command = Command.lookup(bytes, offset, length);
+            this.argumentsOffset = -1;
+            this.argumentsLength = 0;
+        }
+        return this.command;
+    }
+
+    /**
+     * Find the first space in a part of the buffer
+     *
+     * @param bytes The buffer to search
+     * @param from  Where to start, inclusive
+     * @param to    Where to stop, exclusive
+     * @return The index of the first space, -1 if there is none
+     */
+    public static int indexOfSpace(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == ' ') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The last decoded command
+     */
+    public Command getCommand() {
+        return this.command;
+    }
+
+    /**
+     * @return The buffer holding the last decoded line
+     */
+    public byte[] getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * @return True if the last decoded line has arguments (possibly empty)
+     */
+    public boolean hasArguments() {
+        return this.argumentsOffset >= 0;
+    }
+
+    /**
+     * @return Offset of the arguments in the buffer, -1 if there are no arguments
+     */
+    public int getArgumentsOffset() {
+        return this.argumentsOffset;
+    }
+
+    /**
+     * @return Length of the arguments, 0 if there are no arguments
+     */
+    public int getArgumentsLength() {
+        return this.argumentsLength;
+    }
+
+    /**
+     * Decode the arguments to a String. Creates a new String, so use only when the text is really needed
+     *
+     * @return The arguments, or null if there are none
+     */
+    public String getArgumentsString() {
+        if (!this.hasArguments()) {
+            return null;
+        }
+        return new String(this.bytes, this.argumentsOffset, this.argumentsLength, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,184 @@
+package no.ntnu;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compression a client which uses binary framing can switch on with the compress command. Each line is
+ * compressed on its own as a raw deflate stream, starting from a preset dictionary which both sides know, and sent
+ * in a frame of its own (Frame.OP_DEFLATED_LINES to the client, Frame.OP_DEFLATED_LINE to the server). So every
+ * frame can be inflated by itself, a connection keeps no compression state between messages, and a line sent to
+ * many clients is compressed once: the compressed bytes are kept with the line in a cache shared by all the writer
+ * threads, whichever thread writes to which recipient.
+ * Lines shorter than MIN_LENGTH, or which do not get shorter, are sent as they are.
+ */
+public class Compression {
+    // Shorter lines are sent as they are, the gain does not pay for the work
+    public static final int MIN_LENGTH = 128;
+    // Preset dictionary of both sides: the protocol words and common text of chat, code and log lines. Deflate
+    // finds the matches nearest to the end cheapest, so the most frequent strings are last. Never change it
+    // without changing the clients: they must use exactly the same bytes
+    static final byte[] DICTIONARY = ("function return public private static final class void null true false "
+            + "import package String int long if else for while try catch throw new this Exception error Error "
+            + "at java. org. com. https:// http:// .com .html .json \"} {\" \": [] </div> <div "
+            + "DEBUG INFO WARN ERROR TRACE 2024- 2025- 2026- 00:00:00 request response user server client "
+            + "the and that with have this from they will would there their what about which when make can like "
+            + "time just know take people into year your good some could them see other than then now look only "
+            + "come its over think also back after use two how our work first well way even want because any "
+            + "these give day most us is are was were be been has had do does did not no yes ok thanks please "
+            + "roommsg privmsg msgok msg users joined left inbox history ").getBytes(StandardCharsets.UTF_8);
+    private static final int LEVEL = Deflater.BEST_SPEED;
+    // Recently compressed lines, found by identity: the lines of a broadcast are the same array for all the
+    // recipients. Direct-mapped, a power of two
+    private static final int CACHE_SIZE = 256;
+    // Longer lines are not cached, so the cache stays small
+    private static final int MAX_CACHED_LENGTH = 16 * 1024;
+    // Cached for lines which do not get shorter
+    private static final byte[] NOT_COMPRESSIBLE = new byte[0];
+    // At most this many idle deflaters and inflaters are kept, the others are ended when given back
+    private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * A line and its compressed bytes
+     *
+     * @param line       The encoded line
+     * @param compressed The compressed line, NOT_COMPRESSIBLE when it does not get shorter
+     */
+    private record CachedLine(byte[] line, byte[] compressed) {
+    }
+
+    private static final AtomicReferenceArray<CachedLine> CACHE = new AtomicReferenceArray<>(CACHE_SIZE);
+    // The zlib state lives outside the heap, so it is reused and freed with end(), not left to the GC. Not per
+    // thread: the blocking engine has a virtual thread per client
+    private static final ArrayBlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final ArrayBlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private Compression() {
+    }
+
+    /**
+     * Compress a queued line for a client, reusing the result when the same line was compressed a moment ago for
+     * another client
+     *
+     * @param line The encoded line, must not be modified
+     * @return The compressed line, null when the line is sent as it is
+     */
+    public static byte[] compressShared(byte[] line) {
+        if (line.length < MIN_LENGTH) {
+            return null;
+        }
+        if (line.length > MAX_CACHED_LENGTH) {
+            return compress(line, 0, line.length);
+        }
+        int slot = System.identityHashCode(line) & (CACHE_SIZE - 1);
+        CachedLine cached = CACHE.get(slot);
+        if (cached == null || cached.line() != line) {
+            // Two writers may both compress a new line, one of them is kept
+            byte[] compressed = compress(line, 0, line.length);
+            cached = new CachedLine(line, compressed != null ? compressed : NOT_COMPRESSIBLE);
+            CACHE.set(slot, cached);
+        }
+        return cached.compressed() == NOT_COMPRESSIBLE ? null : cached.compressed();
+    }
+
+    /**
+     * Compress a line on its own, starting from the preset dictionary
+     *
+     * @param bytes  The buffer holding the line
+     * @param offset Offset of the line in the buffer
+     * @param length Length of the line
+     * @return The compressed line, null when it does not get shorter
+     */
+    public static byte[] compress(byte[] bytes, int offset, int length) {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(LEVEL, true);
+        }
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(bytes, offset, length);
+            deflater.finish();
+            // Only worth it when shorter than the line
+            byte[] compressed = new byte[length - 1];
+            int compressedLength = 0;
+            while (!deflater.finished() && compressedLength < compressed.length) {
+                compressedLength += deflater.deflate(compressed, compressedLength,
+                        compressed.length - compressedLength);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            return Arrays.copyOf(compressed, compressedLength);
+        } finally {
+            deflater.reset();
+            if (!DEFLATERS.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Inflate a line compressed by compress()
+     *
+     * @param bytes     The buffer holding the compressed line
+     * @param offset    Offset of the compressed line in the buffer
+     * @param length    Length of the compressed line
+     * @param maxLength The longest line accepted
+     * @return The line, null when the data is broken or the line is longer than maxLength
+     */
+    public static byte[] inflate(byte[] bytes, int offset, int length, int maxLength) {
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            return inflate(inflater, bytes, offset, length, maxLength);
+        } finally {
+            inflater.reset();
+            if (!INFLATERS.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Inflate a line with an inflater taken from the pool
+     *
+     * @param inflater  A reset inflater
+     * @param bytes     The buffer holding the compressed line
+     * @param offset    Offset of the compressed line in the buffer
+     * @param length    Length of the compressed line
+     * @param maxLength The longest line accepted
+     * @return The line, null when the data is broken or the line is longer than maxLength
+     */
+    private static byte[] inflate(Inflater inflater, byte[] bytes, int offset, int length, int maxLength) {
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(bytes, offset, length);
+        byte[] line = new byte[Math.min(maxLength + 1, Math.max(MIN_LENGTH, length * 4))];
+        int lineLength = 0;
+        try {
+            while (!inflater.finished()) {
+                if (lineLength == line.length) {
+                    if (line.length > maxLength) {
+                        return null;
+                    }
+                    line = Arrays.copyOf(line, Math.min(maxLength + 1, line.length * 2));
+                }
+                int inflated = inflater.inflate(line, lineLength, line.length - lineLength);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    // Truncated
+                    return null;
+                }
+                lineLength += inflated;
+            }
+        } catch (DataFormatException e) {
+            return null;
+        }
+        return lineLength <= maxLength ? Arrays.copyOf(line, lineLength) : null;
+    }
+}
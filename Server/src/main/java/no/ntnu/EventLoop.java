@@ -0,0 +1,252 @@
+package no.ntnu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One event-loop thread of the NIO engine. Waits on a selector for ready sockets and handles accept, read and
+ * write readiness for all the channels registered with it. Other threads hand work over to the loop
+ * with execute(), the loop itself never blocks on a socket.
+ * Writes are coalesced: lines sent during one round of the loop are written at the end of the round, so
+ * the replies to all the commands which arrived in one read go out in one write.
+ * The loop serves one connection at a time, so all its connections share one read buffer and one write batch,
+ * an idle connection holds no buffers.
+ */
+public class EventLoop implements Runnable {
+    // Pending writes are done before the end of the round when the round takes longer than this
+    private static final long FLUSH_DEADLINE_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+    // Lines taken out of an outbound queue at once
+    private static final int WRITE_BATCH_LINES = 64;
+
+    private final NioEngine engine;
+    private final BufferPool bufferPool;
+    private final Selector selector;
+    // The direct buffer the sockets are read into, and the array the received bytes are decoded from. Used by
+    // all the connections of the loop, only on the loop thread
+    private final BufferPool.PooledBuffer readBuffer;
+    private final byte[] readBytes = new byte[BufferPool.MAX_BUFFER_SIZE];
+    // The lines being copied into the write buffer of a connection, only on the loop thread
+    private final byte[][] writeBatch = new byte[WRITE_BATCH_LINES][];
+    // The write buffer and the long line of a connection, written with one gathering write, only on the loop thread
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[2];
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    // Connections with lines waiting to be written at the end of this round. Used only by the loop thread
+    private final List<NioConnection> pendingFlushes = new ArrayList<>();
+    private long roundStart;
+    // When the current round started, for the lag seen by other threads. 0 while waiting in select()
+    private volatile long busySince = 0;
+    private volatile boolean needToRun = true;
+
+    /**
+     * EventLoop constructor
+     *
+     * @param engine     The engine this loop belongs to
+     * @param name       Name of the loop thread
+     * @param bufferPool The pool of the socket buffers
+     * @throws IOException When the selector could not be opened
+     */
+    public EventLoop(NioEngine engine, String name, BufferPool bufferPool) throws IOException {
+        this.engine = engine;
+        this.bufferPool = bufferPool;
+        this.selector = Selector.open();
+        this.readBuffer = bufferPool.lease(BufferPool.MAX_BUFFER_SIZE, null);
+        this.thread = new Thread(this, name);
+    }
+
+    /**
+     * Start the loop thread
+     */
+    public void start() {
+        this.thread.start();
+    }
+
+    /**
+     * Stop the loop thread. Channels registered with the loop are not closed
+     */
+    public void stop() {
+        this.needToRun = false;
+        this.selector.wakeup();
+    }
+
+    /**
+     * Run a task on the loop thread. Safe to call from any thread
+     *
+     * @param task The task to run
+     */
+    public void execute(Runnable task) {
+        this.tasks.add(task);
+        if (!this.inEventLoop()) {
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * Write the queued lines of the connection at the end of this round of the loop. Must be called on the
+     * loop thread
+     *
+     * @param connection The connection which has lines to write
+     */
+    public void scheduleFlush(NioConnection connection) {
+        this.pendingFlushes.add(connection);
+    }
+
+    /**
+     * Check whether the calling thread is the loop thread
+     *
+     * @return True when called from the loop thread, false otherwise
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    /**
+     * Return how long the loop has been busy with the current round: ready channels and tasks wait at least
+     * this long before the loop gets to them. Safe to call from any thread
+     *
+     * @return The lag in nanoseconds, 0 while the loop is waiting for work
+     */
+    public long getLagNanos() {
+        long since = this.busySince;
+        return since == 0 ? 0 : System.nanoTime() - since;
+    }
+
+    /**
+     * @return The direct buffer to read a socket into. Only for the loop thread
+     */
+    public ByteBuffer getReadBuffer() {
+        return this.readBuffer.buffer();
+    }
+
+    /**
+     * @return The array to copy the bytes read into, as large as the read buffer. Only for the loop thread
+     */
+    public byte[] getReadBytes() {
+        return this.readBytes;
+    }
+
+    /**
+     * @return The array to take lines out of an outbound queue into. Only for the loop thread
+     */
+    public byte[][] getWriteBatch() {
+        return this.writeBatch;
+    }
+
+    /**
+     * @return The array to hand a write buffer and a long line to a gathering write. Only for the loop thread
+     */
+    public ByteBuffer[] getGatherBuffers() {
+        return this.gatherBuffers;
+    }
+
+    /**
+     * @return The pool of the socket buffers
+     */
+    public BufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+
+    /**
+     * Return the selector of this loop. Channels may only be registered with it from the loop thread
+     *
+     * @return The selector
+     */
+    public Selector getSelector() {
+        return this.selector;
+    }
+
+    /**
+     * Wait for ready channels and handle them until the loop is stopped
+     */
+    @Override
+    public void run() {
+        while (this.needToRun) {
+            try {
+                this.selector.select();
+            } catch (IOException e) {
+                Server.log(LogLevel.WARN, "Event loop could not select: " + e.getMessage());
+                break;
+            }
+            this.roundStart = System.nanoTime();
+            this.busySince = this.roundStart;
+            this.processSelectedKeys();
+            this.runTasks();
+            this.flushPending();
+            this.busySince = 0;
+        }
+        try {
+            this.selector.close();
+        } catch (IOException e) {
+            Server.log(LogLevel.WARN, "Error while closing a selector: " + e.getMessage());
+        }
+        this.bufferPool.release(this.readBuffer);
+    }
+
+    /**
+     * Handle all the channels which are ready for I/O
+     */
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.isAcceptable()) {
+                this.engine.acceptConnections();
+            } else {
+                NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                } catch (RuntimeException e) {
+                    // Never let one broken connection take down all the others served by this loop
+                    Server.log(LogLevel.WARN, "Unexpected error while serving a client: " + e);
+                    connection.close();
+                }
+            }
+            if (System.nanoTime() - this.roundStart > FLUSH_DEADLINE_NANOS) {
+                this.flushPending();
+                this.roundStart = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Write the lines of all the connections which got something to send during this round
+     */
+    private void flushPending() {
+        for (int i = 0; i < this.pendingFlushes.size(); i++) {
+            this.pendingFlushes.get(i).flushPending();
+        }
+        this.pendingFlushes.clear();
+    }
+
+    /**
+     * Run the tasks handed over by other threads
+     */
+    private void runTasks() {
+        Runnable task = this.tasks.poll();
+        while (task != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Server.log(LogLevel.WARN, "Unexpected error in an event-loop task: " + e);
+            }
+            task = this.tasks.poll();
+        }
+    }
+}
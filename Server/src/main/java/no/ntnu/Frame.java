@@ -0,0 +1,60 @@
+package no.ntnu;
+
+/**
+ * The binary framing a client can switch to with the binary command, instead of newline-terminated lines.
+ * After the server's binaryok line, both directions carry frames: a 4-byte big-endian payload length, a 1-byte
+ * opcode and the UTF-8 payload. Nothing has to be scanned for line ends, and a message may contain line breaks.
+ * <ul>
+ *     <li>OP_LINE, client to server: one protocol line (command word and arguments), without a terminator.
+ *     The message text may contain line breaks</li>
+ *     <li>OP_LINES, server to client: one or more encoded lines, each ending with \n, exactly as a text
+ *     client gets them (see Message.encodeLine()). So the shared encoded lines are framed without a copy</li>
+ *     <li>OP_DEFLATED_LINE, client to server: an OP_LINE payload compressed with Compression.compress()</li>
+ *     <li>OP_DEFLATED_LINES, server to client: an OP_LINES payload compressed with Compression.compress(). Sent
+ *     once the client has asked for it with the compress command</li>
+ * </ul>
+ * Frames with an unknown opcode are skipped.
+ */
+public class Frame {
+    public static final int HEADER_LENGTH = 5;
+    public static final byte OP_LINE = 1;
+    public static final byte OP_LINES = 2;
+    public static final byte OP_DEFLATED_LINE = 3;
+    public static final byte OP_DEFLATED_LINES = 4;
+    // Longer frames are a protocol error, the client is disconnected
+    public static final int MAX_PAYLOAD_LENGTH = 1024 * 1024;
+    // Queued to the outbound queue of a connection right after binaryok: the writer frames the lines after it.
+    // Compared by identity, never written
+    static final byte[] START_MARKER = new byte[0];
+
+    private Frame() {
+    }
+
+    /**
+     * Write a frame header
+     *
+     * @param buffer        Where to write the header, HEADER_LENGTH bytes
+     * @param offset        Offset of the header in the buffer
+     * @param payloadLength Length of the payload which follows the header
+     * @param opcode        The opcode of the frame
+     */
+    public static void writeHeader(byte[] buffer, int offset, int payloadLength, byte opcode) {
+        buffer[offset] = (byte) (payloadLength >>> 24);
+        buffer[offset + 1] = (byte) (payloadLength >>> 16);
+        buffer[offset + 2] = (byte) (payloadLength >>> 8);
+        buffer[offset + 3] = (byte) payloadLength;
+        buffer[offset + 4] = opcode;
+    }
+
+    /**
+     * Read the payload length from a frame header
+     *
+     * @param buffer The buffer holding the header
+     * @param offset Offset of the header in the buffer
+     * @return The payload length, negative for a broken header
+     */
+    public static int readPayloadLength(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) << 24 | (buffer[offset + 1] & 0xff) << 16
+                | (buffer[offset + 2] & 0xff) << 8 | (buffer[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,142 @@
+package no.ntnu;
+
+/**
+ * Splits a stream of received bytes into binary frames, see Frame. The payload of each OP_LINE frame is
+ * handed over to the line handler, exactly like a line from the LineDecoder, OP_DEFLATED_LINE frames are
+ * inflated first. A frame which arrived in one piece
+ * is handed over straight from the read buffer, only a frame split over several reads is copied. The copy
+ * buffer is allocated only while such a frame is collected.
+ */
+public class FrameDecoder {
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    private final LineDecoder.LineHandler lineHandler;
+    private final Runnable onProtocolError;
+    // The header of the current frame while it is incomplete
+    private final byte[] header = new byte[Frame.HEADER_LENGTH];
+    private int headerLength = 0;
+    // The payload of the current frame while it is incomplete
+    private byte[] payload = NO_PAYLOAD;
+    private int payloadLength;
+    private int received;
+    private byte opcode;
+    // Set after a protocol error: the rest of the input is ignored
+    private boolean broken = false;
+
+    /**
+     * FrameDecoder constructor
+     *
+     * @param lineHandler     Called with the payload of each OP_LINE frame
+     * @param onProtocolError Called once when a frame has an invalid length or can not be inflated, nothing is
+     *                        decoded after that
+     */
+    public FrameDecoder(LineDecoder.LineHandler lineHandler, Runnable onProtocolError) {
+        this.lineHandler = lineHandler;
+        this.onProtocolError = onProtocolError;
+    }
+
+    /**
+     * Decode received bytes. Frames that are not complete yet are kept until the rest arrives
+     *
+     * @param bytes  The buffer holding the received bytes
+     * @param offset Offset of the first received byte in the buffer
+     * @param length Number of received bytes
+     */
+    public void decode(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        while (i < end && !this.broken) {
+            if (this.headerLength == 0 && end - i >= Frame.HEADER_LENGTH) {
+                int frameLength = Frame.readPayloadLength(bytes, i);
+                if (frameLength >= 0 && frameLength <= end - i - Frame.HEADER_LENGTH) {
+                    // The whole frame is in the buffer
+                    if (this.isValidLength(frameLength)) {
+                        this.deliver(bytes[i + 4], bytes, i + Frame.HEADER_LENGTH, frameLength);
+                    }
+                    i += Frame.HEADER_LENGTH + frameLength;
+                    continue;
+                }
+            }
+            if (this.headerLength < Frame.HEADER_LENGTH) {
+                this.header[this.headerLength++] = bytes[i++];
+                if (this.headerLength == Frame.HEADER_LENGTH) {
+                    this.startFrame();
+                }
+            } else {
+                int part = Math.min(end - i, this.payloadLength - this.received);
+                System.arraycopy(bytes, i, this.payload, this.received, part);
+                this.received += part;
+                i += part;
+                if (this.received == this.payloadLength) {
+                    this.completeFrame();
+                }
+            }
+        }
+    }
+
+    /**
+     * Start collecting the payload of a frame which did not arrive in one piece, once its header is complete
+     */
+    private void startFrame() {
+        this.payloadLength = Frame.readPayloadLength(this.header, 0);
+        this.opcode = this.header[4];
+        this.received = 0;
+        if (!this.isValidLength(this.payloadLength)) {
+            return;
+        }
+        this.payload = new byte[this.payloadLength];
+        if (this.payloadLength == 0) {
+            this.completeFrame();
+        }
+    }
+
+    /**
+     * Hand over the collected frame and get ready for the next header
+     */
+    private void completeFrame() {
+        this.headerLength = 0;
+        this.deliver(this.opcode, this.payload, 0, this.payloadLength);
+        this.payload = NO_PAYLOAD;
+    }
+
+    /**
+     * Check the payload length of a frame. An invalid length is a protocol error: there is no way to find the
+     * start of the next frame
+     *
+     * @param payloadLength The payload length from the header
+     * @return True when the length is valid
+     */
+    private boolean isValidLength(int payloadLength) {
+        if (payloadLength < 0 || payloadLength > Frame.MAX_PAYLOAD_LENGTH) {
+            this.broken = true;
+            this.onProtocolError.run();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Hand over the payload of a frame to the line handler, inflated when compressed. Skip frames of an unknown
+     * kind
+     *
+     * @param opcode The opcode of the frame
+     * @param bytes  The buffer holding the payload
+     * @param offset Offset of the payload in the buffer
+     * @param length Length of the payload
+     */
+    private void deliver(byte opcode, byte[] bytes, int offset, int length) {
+        if (opcode == Frame.OP_LINE) {
+            this.lineHandler.onLine(bytes, offset, length);
+        } else if (opcode == Frame.OP_DEFLATED_LINE) {
+            byte[] line = Compression.inflate(bytes, offset, length, Frame.MAX_PAYLOAD_LENGTH);
+            if (line != null) {
+                this.lineHandler.onLine(line, 0, line.length);
+            } else {
+                this.broken = true;
+                this.onProtocolError.run();
+            }
+        } else {
+            Server.log(LogLevel.DEBUG, "Skipping a frame with unknown opcode " + opcode);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package no.ntnu;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Finds the connections which have gone quiet: pings the clients which use heartbeats, and disconnects clients
+ * which have sent nothing for too long. Replaces a socket read timeout per connection, works the same for all
+ * the engines, and needs no timer object per connection.
+ * <p>
+ * The connections sit in a hashed timer wheel: an array of slots, one per tick, each holding the clients due
+ * for a check at that tick. Receiving a line only stores the time in the client handler, it does not touch the
+ * wheel. When a slot comes up, each of its clients is checked against the time of its last line and moved to
+ * the slot of its next deadline, so every client costs about one check per heartbeat interval, whatever its
+ * traffic.
+ * The wheel is used only by the reaper thread; new clients are handed over through a queue.
+ * <p>
+ * A client opts in to heartbeats by sending ping (or pong). After heartbeatInterval of silence it gets a ping,
+ * and it is disconnected after heartbeatTimeout of silence. Clients which never opted in are disconnected after
+ * idleTimeout of silence.
+ */
+public class IdleReaper implements Runnable {
+    static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    // Ticks in one turn of the wheel, a power of two. Deadlines further away wait for more turns
+    private static final int WHEEL_SIZE = 4096;
+
+    private final long heartbeatIntervalNanos;
+    private final long heartbeatTimeoutNanos;
+    private final long idleTimeoutNanos;
+    private final ServerMetrics metrics;
+    private final ConcurrentLinkedQueue<ClientHandler> added = new ConcurrentLinkedQueue<>();
+    // Used only by the reaper thread
+    private final List<List<ClientHandler>> slots = new ArrayList<>(WHEEL_SIZE);
+    private final long startNanos = System.nanoTime();
+    private long currentTick = 0;
+
+    /**
+     * IdleReaper constructor
+     *
+     * @param heartbeatIntervalNanos Silence after which a client which uses heartbeats is pinged
+     * @param heartbeatTimeoutNanos  Silence after which a client which uses heartbeats is disconnected
+     * @param idleTimeoutNanos       Silence after which any other client is disconnected
+     * @param metrics                Counts the disconnected clients
+     */
+    public IdleReaper(long heartbeatIntervalNanos, long heartbeatTimeoutNanos, long idleTimeoutNanos,
+                      ServerMetrics metrics) {
+        this.heartbeatIntervalNanos = heartbeatIntervalNanos;
+        this.heartbeatTimeoutNanos = heartbeatTimeoutNanos;
+        this.idleTimeoutNanos = idleTimeoutNanos;
+        this.metrics = metrics;
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            this.slots.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Start watching a new client. Returns at once, the client is put into the wheel by the reaper thread
+     *
+     * @param handler The client
+     */
+    public void add(ClientHandler handler) {
+        this.added.add(handler);
+    }
+
+    /**
+     * The reaper thread: once per tick, check the clients whose slot has come up
+     */
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            long now = System.nanoTime();
+            ClientHandler handler;
+            while ((handler = this.added.poll()) != null) {
+                this.schedule(handler, now + this.heartbeatIntervalNanos);
+            }
+            long nowTick = (now - this.startNanos) / TICK_NANOS;
+            while (this.currentTick <= nowTick) {
+                this.expire(now);
+                this.currentTick++;
+            }
+            LockSupport.parkNanos(TICK_NANOS);
+        }
+    }
+
+    /**
+     * Check the clients in the slot of the current tick. Clients which are due on a later turn of the wheel
+     * stay in the slot
+     *
+     * @param now The current time, from System.nanoTime()
+     */
+    private void expire(long now) {
+        int index = (int) (this.currentTick & (WHEEL_SIZE - 1));
+        List<ClientHandler> due = this.slots.get(index);
+        if (due.isEmpty()) {
+            return;
+        }
+        // Rescheduled clients may land in this same slot again
+        this.slots.set(index, new ArrayList<>());
+        for (ClientHandler handler : due) {
+            if (handler.getReapTick() > this.currentTick) {
+                this.slots.get(index).add(handler);
+            } else {
+                this.check(handler, now);
+            }
+        }
+    }
+
+    /**
+     * Check one client: disconnect it when it has been silent too long, ping it when it uses heartbeats and has
+     * been silent for an interval, otherwise schedule the next check. Clients which have disconnected are
+     * dropped from the wheel here
+     *
+     * @param handler The client
+     * @param now     The current time, from System.nanoTime()
+     */
+    private void check(ClientHandler handler, long now) {
+        if (handler.isDisconnected()) {
+            return;
+        }
+        long lastReceived = handler.getLastReceivedNanos();
+        long silence = now - lastReceived;
+        if (!handler.usesHeartbeats()) {
+            if (silence >= this.idleTimeoutNanos) {
+                this.disconnect(handler, silence);
+            } else {
+                // Checked at least once per interval anyway, so disconnected clients leave the wheel soon
+                this.schedule(handler, Math.min(lastReceived + this.idleTimeoutNanos,
+                        now + this.heartbeatIntervalNanos));
+            }
+        } else if (silence >= this.heartbeatTimeoutNanos) {
+            this.disconnect(handler, silence);
+        } else if (silence >= this.heartbeatIntervalNanos) {
+            handler.sendPing();
+            this.schedule(handler, Math.min(now + this.heartbeatIntervalNanos,
+                    lastReceived + this.heartbeatTimeoutNanos));
+        } else {
+            this.schedule(handler, lastReceived + this.heartbeatIntervalNanos);
+        }
+    }
+
+    /**
+     * Disconnect a silent client
+     *
+     * @param handler The client
+     * @param silence How long the client has been silent, in nanoseconds
+     */
+    private void disconnect(ClientHandler handler, long silence) {
+        Server.log("Disconnecting idle client " + handler.getUsername() + ": nothing received for "
+                + TimeUnit.NANOSECONDS.toSeconds(silence) + " s");
+        this.metrics.countIdleDisconnect();
+        handler.closeConnection();
+    }
+
+    /**
+     * Put a client into the slot of its next check
+     *
+     * @param handler  The client
+     * @param deadline When to check it, from System.nanoTime()
+     */
+    private void schedule(ClientHandler handler, long deadline) {
+        long tick = Math.max(this.currentTick + 1, (deadline - this.startNanos + TICK_NANOS - 1) / TICK_NANOS);
+        handler.setReapTick(tick);
+        this.slots.get((int) (tick & (WHEEL_SIZE - 1))).add(handler);
+    }
+}
@@ -0,0 +1,577 @@
+package no.ntnu;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the private messages sent to users who are offline, on disk, until the user logs in again. The messages
+ * of all the users go into one append-only log, split into segment files. A small in-memory index remembers, for
+ * every user, where the first undelivered message is and how many there are, so the delivery on login is one
+ * sequential read from that position. The index is rebuilt from the log when the server starts.
+ * <p>
+ * The client threads only queue their writes. A writer thread takes everything queued, appends it to the log
+ * in one write and forces it to disk once per batch, so the message hot path never waits for the disk.
+ * A segment is deleted once none of its messages is waiting any more.
+ * <p>
+ * A message which reaches the writer after its recipient has logged in is handed to the recipient at once
+ * instead of being stored, so it does not wait for the next login.
+ */
+public class InboxStore {
+    // A new segment is started when the current one would grow above this size
+    static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+    // At most this many writes wait for the writer, more are refused
+    private static final int QUEUE_CAPACITY = 100_000;
+    private static final int WRITE_BATCH = 1024;
+    // Messages to a user who already has this many waiting are refused
+    static final int MAX_MESSAGES_PER_USER = 1000;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // Positions are the segment number in the high bits and the offset in the segment in the low bits
+    private static final int OFFSET_BITS = 40;
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    // Record types: a user who may get offline messages, a message for a user, a user's messages delivered
+    private static final byte RECORD_USER = 'U';
+    private static final byte RECORD_MESSAGE = 'M';
+    private static final byte RECORD_DELIVERED = 'D';
+
+    /**
+     * The outcome of storing a message
+     */
+    public enum StoreResult {
+        // The message will be delivered on the recipient's next login
+        STORED,
+        // The recipient has never logged in
+        UNKNOWN_USER,
+        // The recipient already has MAX_MESSAGES_PER_USER messages waiting, or the writer does not keep up
+        FULL
+    }
+
+    /**
+     * Something for the writer thread to do
+     */
+    private interface Task {
+    }
+
+    /**
+     * Store one message for an offline user
+     *
+     * @param recipient The username of the recipient
+     * @param line      The encoded line the recipient gets, see Message.encodeLine()
+     */
+    private record Append(String recipient, byte[] line) implements Task {
+    }
+
+    /**
+     * A user has logged in: remember the user, take out the messages waiting for the user
+     *
+     * @param username The username
+     * @param receiver Gets the waiting messages, and the messages which arrive while the user is online, on the
+     *                 writer thread
+     * @param online   True as long as the receiver still belongs to the user
+     */
+    private record Login(String username, Consumer<List<byte[]>> receiver, BooleanSupplier online) implements Task {
+    }
+
+    /**
+     * A user has logged out or changed username: messages to the user are stored again
+     *
+     * @param username The username
+     */
+    private record Logout(String username) implements Task {
+    }
+
+    /**
+     * The undelivered messages of one user. Used only by the writer thread
+     */
+    private static class Pending {
+        // Position of the first undelivered message, valid when count > 0
+        long first;
+        int count;
+    }
+
+    private final Path directory;
+    private final LinkedBlockingQueue<Task> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    // The number of messages waiting per user who has logged in at least once, queued or stored: only these
+    // users get offline messages. Counted up by store() before a message is queued, down once it is delivered
+    private final Map<String, AtomicInteger> waiting = new ConcurrentHashMap<>();
+    // The undelivered messages per known user, only used by the writer thread
+    private final Map<String, Pending> index = new HashMap<>();
+    // The logins of the users who are online, only used by the writer thread
+    private final Map<String, Login> online = new HashMap<>();
+    // Records encoded by the writer thread but not written to the segment yet
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final LongAdder storedMessages = new LongAdder();
+    private final LongAdder droppedMessages = new LongAdder();
+    private final Thread writer;
+    private volatile boolean needToRun = true;
+    // The current segment, appended to, and the oldest segment which still exists
+    private int segment;
+    private int oldestSegment;
+    private FileChannel channel;
+    // Bytes written to the current segment, not counting the buffer
+    private long segmentSize;
+
+    /**
+     * Open the store in a directory, rebuild the index from the segments found there and start the writer thread
+     *
+     * @param directory The directory of the segment files, created when missing
+     * @throws IOException When the directory or the segments can not be read
+     */
+    public InboxStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        TreeMap<Integer, Path> segments = this.listSegments();
+        for (Map.Entry<Integer, Path> entry : segments.entrySet()) {
+            this.recover(entry.getKey(), entry.getValue(), entry.getKey().equals(segments.lastKey()));
+        }
+        this.index.forEach((username, pending) -> this.waiting.put(username, new AtomicInteger(pending.count)));
+        this.segment = segments.isEmpty() ? 0 : segments.lastKey();
+        this.oldestSegment = segments.isEmpty() ? 0 : segments.firstKey();
+        this.channel = FileChannel.open(this.segmentPath(this.segment), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.READ);
+        this.segmentSize = this.channel.size();
+        this.channel.position(this.segmentSize);
+        this.deleteRetiredSegments();
+        this.writer = new Thread(this::runWriter, "inbox-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        Server.log("Inbox store in " + directory + ": " + this.waiting.size() + " users");
+    }
+
+    /**
+     * Store a private message for an offline user. Returns at once, the message is written later by the writer
+     * thread
+     *
+     * @param recipient The username of the recipient
+     * @param line      The encoded line the recipient gets on login, see Message.encodeLine()
+     * @return STORED, or why the message is refused
+     */
+    public StoreResult store(String recipient, byte[] line) {
+        AtomicInteger count = this.waiting.get(recipient);
+        if (count == null) {
+            return StoreResult.UNKNOWN_USER;
+        }
+        if (count.incrementAndGet() > MAX_MESSAGES_PER_USER || !this.queue.offer(new Append(recipient, line))) {
+            count.decrementAndGet();
+            this.droppedMessages.increment();
+            return StoreResult.FULL;
+        }
+        return StoreResult.STORED;
+    }
+
+    /**
+     * A user has logged in: from now on the user gets offline messages. The messages stored for the user so far
+     * are read by the writer thread, after all the writes queued before this call, and handed to the receiver
+     *
+     * @param username The username
+     * @param receiver Gets the waiting messages, in the order they were sent, and later the messages stored
+     *                 while the user is online. Not called when there are none
+     * @param online   True as long as the user is logged in with this receiver. Called by the writer thread
+     */
+    public void userLoggedIn(String username, Consumer<List<byte[]>> receiver, BooleanSupplier online) {
+        this.waiting.putIfAbsent(username, new AtomicInteger());
+        if (!this.queue.offer(new Login(username, receiver, online))) {
+            // The messages stay in the log, the user gets them on the next login
+            Server.log(LogLevel.WARN, "Inbox store does not keep up, offline messages for " + username
+                    + " are not delivered now");
+        }
+    }
+
+    /**
+     * A user has logged out or changed username: the messages to the user are stored again
+     *
+     * @param username The username the user had
+     */
+    public void userLoggedOut(String username) {
+        // When it can not be queued, the writer finds out from the login's online check
+        this.queue.offer(new Logout(username));
+    }
+
+    /**
+     * @return The number of messages stored for offline users since the server started
+     */
+    public long getStoredMessages() {
+        return this.storedMessages.sum();
+    }
+
+    /**
+     * @return The number of messages refused because the writer did not keep up or the inbox was full
+     */
+    public long getDroppedMessages() {
+        return this.droppedMessages.sum();
+    }
+
+    /**
+     * Stop the writer thread, after it has written everything queued so far
+     */
+    public void close() {
+        this.needToRun = false;
+        try {
+            this.writer.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The writer thread: take all the queued tasks, append their records in one write and force them to disk
+     * once, then hand out the messages of the users who logged in
+     */
+    private void runWriter() {
+        List<Task> batch = new ArrayList<>(WRITE_BATCH);
+        List<Runnable> deliveries = new ArrayList<>();
+        while (this.needToRun || !this.queue.isEmpty()) {
+            try {
+                Task task = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                if (task == null) {
+                    continue;
+                }
+                batch.add(task);
+                this.queue.drainTo(batch, WRITE_BATCH - 1);
+                for (Task t : batch) {
+                    if (t instanceof Append append) {
+                        this.append(append, deliveries);
+                    } else if (t instanceof Login login) {
+                        this.login(login, deliveries);
+                    } else if (t instanceof Logout logout) {
+                        this.logout(logout);
+                    }
+                }
+                this.flushBuffer();
+                this.channel.force(false);
+                this.deleteRetiredSegments();
+            } catch (IOException e) {
+                Server.log(LogLevel.ERROR, "Could not write the inbox store: " + e.getMessage());
+                this.buffer.reset();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            // Deliver only once the delivered records are on disk
+            deliveries.forEach(Runnable::run);
+            deliveries.clear();
+            batch.clear();
+        }
+    }
+
+    /**
+     * Append a message record for an offline user, or hand the message to the recipient when the recipient has
+     * logged in since the message was queued
+     *
+     * @param append     The message
+     * @param deliveries Where to put the delivery of the message to an online recipient
+     * @throws IOException On write errors
+     */
+    private void append(Append append, List<Runnable> deliveries) throws IOException {
+        Login login = this.online.get(append.recipient());
+        if (login != null && login.online().getAsBoolean()) {
+            this.waiting.get(append.recipient()).decrementAndGet();
+            deliveries.add(() -> login.receiver().accept(List.of(append.line())));
+            return;
+        } else if (login != null) {
+            this.online.remove(append.recipient());
+        }
+        Pending pending = this.index.get(append.recipient());
+        if (pending == null) {
+            // The user's login could not be queued, remember the user now
+            pending = new Pending();
+            this.index.put(append.recipient(), pending);
+            this.writeRecord(RECORD_USER, append.recipient(), null);
+        }
+        long position = this.writeRecord(RECORD_MESSAGE, append.recipient(), append.line());
+        if (pending.count == 0) {
+            pending.first = position;
+        }
+        pending.count++;
+        this.storedMessages.increment();
+    }
+
+    /**
+     * Handle a login: remember a new user, take out the messages waiting for the user
+     *
+     * @param login      The login
+     * @param deliveries Where to put the delivery of the messages, run once the batch is on disk
+     * @throws IOException On read or write errors
+     */
+    private void login(Login login, List<Runnable> deliveries) throws IOException {
+        this.online.put(login.username(), login);
+        Pending pending = this.index.get(login.username());
+        if (pending == null) {
+            this.index.put(login.username(), new Pending());
+            this.writeRecord(RECORD_USER, login.username(), null);
+            return;
+        }
+        if (pending.count == 0) {
+            return;
+        }
+        // The messages may still be in the buffer
+        this.flushBuffer();
+        List<byte[]> messages = this.readMessages(login.username(), pending);
+        this.waiting.get(login.username()).addAndGet(-pending.count);
+        pending.count = 0;
+        this.writeRecord(RECORD_DELIVERED, login.username(), null);
+        deliveries.add(() -> login.receiver().accept(messages));
+    }
+
+    /**
+     * Handle a logout: forget the login, unless the user has logged in again since
+     *
+     * @param logout The logout
+     */
+    private void logout(Logout logout) {
+        Login login = this.online.get(logout.username());
+        if (login != null && !login.online().getAsBoolean()) {
+            this.online.remove(logout.username());
+        }
+    }
+
+    /**
+     * Encode a record into the buffer, starting a new segment first when the current one is full
+     *
+     * @param type     The record type
+     * @param username The user the record is about
+     * @param line     The message of a message record, null for the other records
+     * @return The position of the record
+     * @throws IOException On write errors
+     */
+    private long writeRecord(byte type, String username, byte[] line) throws IOException {
+        byte[] record = encodeRecord(type, username, line);
+        long offset = this.segmentSize + this.buffer.size();
+        if (offset > 0 && offset + record.length > SEGMENT_SIZE) {
+            this.startNewSegment();
+            offset = this.segmentSize + this.buffer.size();
+        }
+        this.buffer.writeBytes(record);
+        return ((long) this.segment << OFFSET_BITS) | offset;
+    }
+
+    /**
+     * Encode one record: the type, the username, and for a message record the length and the bytes of the line
+     *
+     * @param type     The record type
+     * @param username The user the record is about
+     * @param line     The message of a message record, null for the other records
+     * @return The encoded record
+     */
+    private static byte[] encodeRecord(byte type, String username, byte[] line) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(record)) {
+            out.writeByte(type);
+            out.writeUTF(username);
+            if (line != null) {
+                out.writeInt(line.length);
+                out.write(line);
+            }
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return record.toByteArray();
+    }
+
+    /**
+     * Write the buffered records to the current segment
+     *
+     * @throws IOException On write errors
+     */
+    private void flushBuffer() throws IOException {
+        if (this.buffer.size() == 0) {
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(this.buffer.toByteArray());
+        while (bytes.hasRemaining()) {
+            this.segmentSize += this.channel.write(bytes);
+        }
+        this.buffer.reset();
+    }
+
+    /**
+     * Close the current segment and start the next one. The new segment starts with all the known users, so the
+     * old segments are needed only for their undelivered messages
+     *
+     * @throws IOException On write errors
+     */
+    private void startNewSegment() throws IOException {
+        this.flushBuffer();
+        this.channel.force(false);
+        this.channel.close();
+        this.segment++;
+        this.channel = FileChannel.open(this.segmentPath(this.segment), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        this.segmentSize = 0;
+        for (String username : this.index.keySet()) {
+            this.buffer.writeBytes(encodeRecord(RECORD_USER, username, null));
+        }
+    }
+
+    /**
+     * Delete the segments before the oldest undelivered message
+     *
+     * @throws IOException When a segment can not be deleted
+     */
+    private void deleteRetiredSegments() throws IOException {
+        if (this.oldestSegment == this.segment) {
+            return;
+        }
+        int oldestNeeded = this.segment;
+        for (Pending pending : this.index.values()) {
+            if (pending.count > 0) {
+                oldestNeeded = Math.min(oldestNeeded, (int) (pending.first >>> OFFSET_BITS));
+            }
+        }
+        while (this.oldestSegment < oldestNeeded) {
+            Files.deleteIfExists(this.segmentPath(this.oldestSegment));
+            Server.log(LogLevel.DEBUG, "Deleted inbox segment " + this.oldestSegment);
+            this.oldestSegment++;
+        }
+    }
+
+    /**
+     * Read the undelivered messages of a user: one sequential read from the first of them, across the segments,
+     * until all of them are found
+     *
+     * @param username The user
+     * @param pending  Where the messages are and how many there are
+     * @return The encoded message lines, in the order they were stored
+     * @throws IOException On read errors
+     */
+    private List<byte[]> readMessages(String username, Pending pending) throws IOException {
+        List<byte[]> messages = new ArrayList<>(pending.count);
+        int readSegment = (int) (pending.first >>> OFFSET_BITS);
+        long offset = pending.first & ((1L << OFFSET_BITS) - 1);
+        while (messages.size() < pending.count && readSegment <= this.segment) {
+            try (FileChannel in = FileChannel.open(this.segmentPath(readSegment), StandardOpenOption.READ)) {
+                in.position(offset);
+                DataInputStream records = new DataInputStream(
+                        new BufferedInputStream(Channels.newInputStream(in), READ_BUFFER_SIZE));
+                try {
+                    while (messages.size() < pending.count) {
+                        byte type = records.readByte();
+                        String recordUser = records.readUTF();
+                        if (type == RECORD_MESSAGE) {
+                            byte[] line = new byte[records.readInt()];
+                            records.readFully(line);
+                            if (recordUser.equals(username)) {
+                                messages.add(line);
+                            }
+                        }
+                    }
+                } catch (EOFException e) {
+                    // End of this segment, continue in the next one
+                }
+            }
+            readSegment++;
+            offset = 0;
+        }
+        return messages;
+    }
+
+    /**
+     * Replay one segment into the index. A record cut short at the end of the last segment, by a crash while it
+     * was written, is cut off
+     *
+     * @param number The segment number
+     * @param path   The segment file
+     * @param last   True for the last segment, which is appended to
+     * @throws IOException On read errors
+     */
+    private void recover(int number, Path path, boolean last) throws IOException {
+        long offset = 0;
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            DataInputStream records = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(in), READ_BUFFER_SIZE));
+            try {
+                while (true) {
+                    byte type = records.readByte();
+                    String username = records.readUTF();
+                    int length = 0;
+                    if (type == RECORD_MESSAGE) {
+                        length = records.readInt();
+                        records.skipNBytes(length);
+                    }
+                    long position = ((long) number << OFFSET_BITS) | offset;
+                    this.replay(type, username);
+                    Pending pending = this.index.get(username);
+                    if (type == RECORD_MESSAGE && pending.count == 1) {
+                        pending.first = position;
+                    }
+                    offset += 1 + 2 + username.getBytes(StandardCharsets.UTF_8).length
+                            + (type == RECORD_MESSAGE ? 4 + length : 0);
+                }
+            } catch (EOFException e) {
+                if (last && offset < in.size()) {
+                    Server.log(LogLevel.WARN, "Cutting off an incomplete record at the end of " + path);
+                    in.truncate(offset);
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply one record read from the log to the index
+     *
+     * @param type     The record type
+     * @param username The user the record is about
+     */
+    private void replay(byte type, String username) {
+        Pending pending = this.index.computeIfAbsent(username, u -> new Pending());
+        if (type == RECORD_MESSAGE) {
+            pending.count++;
+        } else if (type == RECORD_DELIVERED) {
+            pending.count = 0;
+        }
+    }
+
+    /**
+     * List the segment files in the directory
+     *
+     * @return The segment files by segment number
+     * @throws IOException When the directory can not be listed
+     */
+    private TreeMap<Integer, Path> listSegments() throws IOException {
+        TreeMap<Integer, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.put(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    // Not one of our files
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * @param number A segment number
+     * @return The file of the segment
+     */
+    private Path segmentPath(int number) {
+        return this.directory.resolve(String.format("%08d%s", number, SEGMENT_SUFFIX));
+    }
+}
@@ -0,0 +1,153 @@
+package no.ntnu;
+
+import java.util.Arrays;
+
+/**
+ * Splits a stream of received bytes into lines, exactly like BufferedReader.readLine() does: a line ends
+ * with \n, \r or \r\n. Each complete line is handed over to the line handler as raw bytes, without the
+ * terminator. A line which arrived in one piece is handed over straight from the read buffer, only a line
+ * split over several reads is copied. The copy buffer grows only as large as the longest such line, so an
+ * idle client costs almost nothing.
+ * When the client switches to binary framing, the input from the end of the current line on is handed over
+ * to a FrameDecoder.
+ */
+public class LineDecoder {
+    /**
+     * Receives the complete lines
+     */
+    public interface LineHandler {
+        /**
+         * Handle one complete line. The bytes are only valid during the call, they must not be kept
+         *
+         * @param bytes  The buffer holding the line
+         * @param offset Offset of the line in the buffer
+         * @param length Length of the line, without the line terminator
+         */
+        void onLine(byte[] bytes, int offset, int length);
+    }
+
+    private static final int INITIAL_LINE_CAPACITY = 64;
+    private static final byte[] NO_LINE = new byte[0];
+
+    private final LineHandler lineHandler;
+    // Start of a line which did not fit in one read, until the line terminator arrives. Allocated only when
+    // a line is split, and dropped again once it is complete, so an idle connection holds nothing here
+    private byte[] lineBytes = NO_LINE;
+    private int lineLength = 0;
+    // When true, the previous line ended with \r and a \n right after it must be skipped
+    private boolean skipLineFeed = false;
+    // Set once the client has switched to binary framing, decodes all the input from then on
+    private FrameDecoder frameDecoder = null;
+
+    /**
+     * LineDecoder constructor
+     *
+     * @param lineHandler Called for each complete line
+     */
+    public LineDecoder(LineHandler lineHandler) {
+        this.lineHandler = lineHandler;
+    }
+
+    /**
+     * Decode received bytes. Lines that are not complete yet are kept until the rest arrives
+     *
+     * @param bytes  The buffer holding the received bytes
+     * @param offset Offset of the first received byte in the buffer
+     * @param length Number of received bytes
+     */
+    public void decode(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        if (this.frameDecoder != null) {
+            this.handOver(bytes, offset, end);
+            return;
+        }
+        int lineStart = offset;
+        for (int i = offset; i < end; i++) {
+            byte b = bytes[i];
+            if (this.skipLineFeed) {
+                this.skipLineFeed = false;
+                if (b == '\n') {
+                    lineStart = i + 1;
+                    continue;
+                }
+            }
+            if (b == '\n' || b == '\r') {
+                this.skipLineFeed = b == '\r';
+                this.completeLine(bytes, lineStart, i);
+                lineStart = i + 1;
+                if (this.frameDecoder != null) {
+                    this.handOver(bytes, lineStart, end);
+                    return;
+                }
+            }
+        }
+        if (lineStart < end) {
+            this.appendToLine(bytes, lineStart, end);
+        }
+    }
+
+    /**
+     * Switch to binary framing: the input after the line being handled now goes to the frame decoder. Must be
+     * called by the line handler, on the thread which decodes the input
+     *
+     * @param frameDecoder Decodes the input from now on
+     */
+    public void switchToFrames(FrameDecoder frameDecoder) {
+        this.frameDecoder = frameDecoder;
+    }
+
+    /**
+     * Hand received bytes over to the frame decoder. The \n of a \r\n which ended the last line is skipped
+     *
+     * @param bytes The buffer holding the received bytes
+     * @param from  Start of the bytes, inclusive
+     * @param to    End of the bytes, exclusive
+     */
+    private void handOver(byte[] bytes, int from, int to) {
+        if (this.skipLineFeed && from < to) {
+            this.skipLineFeed = false;
+            if (bytes[from] == '\n') {
+                from++;
+            }
+        }
+        if (from < to) {
+            this.frameDecoder.decode(bytes, from, to - from);
+        }
+    }
+
+    /**
+     * Hand over a complete line, together with its start received earlier (if any)
+     *
+     * @param bytes The buffer holding the end of the line
+     * @param from  Where the line (or its end) starts in the buffer, inclusive
+     * @param to    Where the line ends in the buffer, exclusive
+     */
+    private void completeLine(byte[] bytes, int from, int to) {
+        if (this.lineLength == 0) {
+            this.lineHandler.onLine(bytes, from, to - from);
+        } else {
+            this.appendToLine(bytes, from, to);
+            int length = this.lineLength;
+            this.lineLength = 0;
+            this.lineHandler.onLine(this.lineBytes, 0, length);
+            this.lineBytes = NO_LINE;
+        }
+    }
+
+    /**
+     * Keep a part of a line until the rest of it arrives
+     *
+     * @param bytes The buffer holding the part
+     * @param from  Start of the part, inclusive
+     * @param to    End of the part, exclusive
+     */
+    private void appendToLine(byte[] bytes, int from, int to) {
+        int needed = this.lineLength + to - from;
+        if (needed > this.lineBytes.length) {
+            this.lineBytes = Arrays.copyOf(this.lineBytes,
+                    Math.max(needed, Math.max(INITIAL_LINE_CAPACITY, this.lineBytes.length * 2)));
+        }
+        System.arraycopy(bytes, from, this.lineBytes, this.lineLength, to - from);
+        this.lineLength = needed;
+    }
+}
@@ -0,0 +1,16 @@
+package no.ntnu;
+
+/**
+ * Severity of a log message. A logger set to some level writes the messages of that level and above
+ */
+public enum LogLevel {
+    // Every single message received from the clients (sampled)
+    TRACE,
+    // Connection details: sockets opened and closed
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR,
+    // Nothing is logged
+    OFF
+}
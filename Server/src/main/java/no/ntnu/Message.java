@@ -1,9 +1,16 @@
 package no.ntnu;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 /**
  * A message sent and received over the socket
  */
 public class Message {
+    // Line breaks inside an encoded line are sent as this character, so the line stays one line for the text
+    // clients and on the cluster links. Binary-framing clients turn it back into \n
+    public static final char LINE_BREAK = '\u2028';
+
     private final String command;
     private final String arguments;
 
@@ -21,19 +28,75 @@ public class Message {
     public static Message createFromInput(String input) {
         Message message = null;
         if (input != null) {
-            String[] parts = input.split(" ", 2);
-            if (parts.length >= 1) {
-                String command = parts[0];
-                String arguments = null;
-                if (parts.length == 2) {
-                    arguments = parts[1];
-                }
-                message = new Message(command, arguments);
+            int space = input.indexOf(' ');
+            if (space >= 0) {
+                message = new Message(input.substring(0, space), input.substring(space + 1));
+            } else {
+                message = new Message(input, null);
             }
         }
         return message;
     }
 
+    /**
+     * Encode one line of text the way it is sent over the socket: UTF-8, followed by a newline. Line breaks
+     * inside the line (from messages sent with binary framing) are encoded as LINE_BREAK
+     *
+     * @param line The line to encode, without the newline
+     * @return The encoded line
+     */
+    public static byte[] encodeLine(String line) {
+        if (line.indexOf('\n') >= 0 || line.indexOf('\r') >= 0) {
+            line = line.replace("\r\n", "\n").replace('\r', '\n').replace('\n', LINE_BREAK);
+        }
+        return (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encode a relayed line straight from the received bytes: the prefix (for example "msg alice "), followed by
+     * the message text exactly as the client sent it, and a newline. The text is copied once and never decoded.
+     * Line breaks inside the text are encoded as LINE_BREAK, like encodeLine() does
+     *
+     * @param prefix The encoded prefix
+     * @param bytes  The buffer holding the text, for example the read buffer of the connection
+     * @param offset Offset of the text in the buffer
+     * @param length Length of the text
+     * @return The encoded line
+     */
+    public static byte[] encodeRelayedLine(byte[] prefix, byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        int lineBreaks = 0;
+        for (int i = offset; i < end; i++) {
+            if (bytes[i] == '\n' || bytes[i] == '\r') {
+                lineBreaks++;
+            }
+        }
+        // LINE_BREAK takes 3 bytes in UTF-8, one line break 1 or 2
+        byte[] line = new byte[prefix.length + length + 2 * lineBreaks + 1];
+        System.arraycopy(prefix, 0, line, 0, prefix.length);
+        int position = prefix.length;
+        if (lineBreaks == 0) {
+            System.arraycopy(bytes, offset, line, position, length);
+            position += length;
+        } else {
+            for (int i = offset; i < end; i++) {
+                byte b = bytes[i];
+                if (b == '\r' || b == '\n') {
+                    if (b == '\r' && i + 1 < end && bytes[i + 1] == '\n') {
+                        i++;
+                    }
+                    line[position++] = (byte) 0xe2;
+                    line[position++] = (byte) 0x80;
+                    line[position++] = (byte) 0xa8;
+                } else {
+                    line[position++] = b;
+                }
+            }
+        }
+        line[position++] = '\n';
+        return position == line.length ? line : Arrays.copyOf(line, position);
+    }
+
     /**
      * Convert the message to a string - the form that can be sent over the socket
      *
@@ -0,0 +1,550 @@
+package no.ntnu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the public, room and private messages in memory-mapped segment files, so clients can page through the
+ * past messages with the history command, also after a restart. The client threads only queue the messages;
+ * a writer thread copies them into the mapped current segment and publishes the new end of the segment, so
+ * readers never take a lock. Every segment has a sparse index: the offset and time of the first record in
+ * every 64 KB, used to page backwards through a segment without scanning it from the start.
+ * <p>
+ * Pages are read on a separate reader thread, straight from the mapped segments: only the returned lines are
+ * copied onto the heap, and a slow history request never holds up a connection's thread. The oldest segments
+ * are retired when the history grows above its size limit, or when their newest message is older than the
+ * age limit.
+ * <p>
+ * A record is: int length of the rest, long time, byte kind, the sender and the target (room or recipient) as
+ * a short length and the bytes, then the encoded line as the clients got it. A length of 0 ends the segment.
+ * The id of a record is its segment number in the high and its offset in the low 32 bits.
+ */
+public class MessageHistory {
+    // Kinds of messages
+    static final byte KIND_PUBLIC = 'P';
+    static final byte KIND_ROOM = 'R';
+    static final byte KIND_PRIVATE = 'M';
+
+    static final int DEFAULT_PAGE_SIZE = 50;
+    static final int MAX_PAGE_SIZE = 200;
+    // The history is split into about this many segments
+    private static final int SEGMENTS_PER_HISTORY = 8;
+    private static final int MIN_SEGMENT_SIZE = 1024 * 1024;
+    // One index entry per this many bytes of a segment
+    private static final int INDEX_INTERVAL = 64 * 1024;
+    // A page request scans at most this many bytes, then returns what it found so far
+    private static final long MAX_SCAN_BYTES = 16 * 1024 * 1024;
+    private static final int QUEUE_CAPACITY = 100_000;
+    private static final int WRITE_BATCH = 1024;
+    private static final long RETIRE_CHECK_INTERVAL_MS = 1000;
+    // Bytes of a record before the sender: length, time and kind
+    private static final int RECORD_HEADER = 4 + 8 + 1;
+    private static final String SEGMENT_SUFFIX = ".hist";
+
+    /**
+     * A message waiting for the writer thread
+     *
+     * @param time   When the message was sent
+     * @param kind   The kind of message
+     * @param sender The username of the sender
+     * @param target The room of a room message, the recipient of a private message, empty otherwise
+     * @param line   The encoded line as the clients got it
+     */
+    private record Entry(long time, byte kind, byte[] sender, byte[] target, byte[] line) {
+    }
+
+    /**
+     * A request for one page of the history
+     *
+     * @param kind      The kind of messages: public, the messages of a room, or the private messages between the
+     *                  requester and a peer
+     * @param target    The room or the peer, empty for public messages
+     * @param requester The username of the client which asks
+     * @param before    Only messages with a smaller id are returned
+     * @param since     Only messages sent at this time (in milliseconds since the epoch) or later are returned
+     * @param limit     At most this many messages are returned
+     */
+    public record Query(byte kind, String target, String requester, long before, long since, int limit) {
+    }
+
+    /**
+     * One page of the history
+     *
+     * @param lines The encoded lines, oldest first
+     * @param next  The id to pass as before for the page of older messages, 0 when there are no older messages
+     */
+    public record Page(List<byte[]> lines, long next) {
+    }
+
+    /**
+     * One mapped segment file. Written only by the writer thread, read by the reader thread
+     */
+    private static class Segment {
+        final int number;
+        final Path path;
+        final MappedByteBuffer buffer;
+        // Offsets and times of the first record in every index interval, entries below indexSize are published
+        final int[] indexOffsets;
+        final long[] indexTimes;
+        volatile int indexSize = 0;
+        // The records below this offset are complete and may be read
+        volatile int end = 0;
+        // Time of the newest record, 0 for an empty segment
+        volatile long lastTime = 0;
+
+        Segment(int number, Path path, MappedByteBuffer buffer) {
+            this.number = number;
+            this.path = path;
+            this.buffer = buffer;
+            int entries = buffer.capacity() / INDEX_INTERVAL + 2;
+            this.indexOffsets = new int[entries];
+            this.indexTimes = new long[entries];
+        }
+
+        /**
+         * Add a record to the index, when it is the first one in its index interval. Must be called before the
+         * end is moved past the record
+         *
+         * @param offset The offset of the record
+         * @param time   The time of the record
+         */
+        void indexRecord(int offset, long time) {
+            int size = this.indexSize;
+            if (size == 0 || offset / INDEX_INTERVAL > this.indexOffsets[size - 1] / INDEX_INTERVAL) {
+                this.indexOffsets[size] = offset;
+                this.indexTimes[size] = time;
+                this.indexSize = size + 1;
+            }
+        }
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long maxAgeMs;
+    private final int segmentSize;
+    private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    // Oldest first, the last one is written to
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final ExecutorService reader = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "history-reader");
+        t.setDaemon(true);
+        return t;
+    });
+    private final LongAdder droppedMessages = new LongAdder();
+    private final Thread writer;
+    private volatile boolean needToRun = true;
+    private long lastRetireCheck = 0;
+
+    /**
+     * Open the history in a directory, find the end of the segments found there and start the writer thread
+     *
+     * @param directory The directory of the segment files, created when missing
+     * @param maxBytes  The oldest segments are deleted when all the segments together are larger
+     * @param maxAgeMs  The oldest segments are deleted when their newest message is older
+     * @throws IOException When the directory or the segments can not be read
+     */
+    public MessageHistory(Path directory, long maxBytes, long maxAgeMs) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxAgeMs = maxAgeMs;
+        this.segmentSize = (int) Math.min(Integer.MAX_VALUE,
+                Math.max(MIN_SEGMENT_SIZE, maxBytes / SEGMENTS_PER_HISTORY));
+        Files.createDirectories(directory);
+        for (Path path : this.listSegments().values()) {
+            this.segments.add(this.recover(path));
+        }
+        if (this.segments.isEmpty()) {
+            this.segments.add(this.createSegment(0));
+        }
+        this.retireOldSegments();
+        this.writer = new Thread(this::runWriter, "history-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        Server.log("Message history in " + directory + ": " + this.segments.size() + " segment(s)");
+    }
+
+    /**
+     * Add a message to the history. Returns at once, the message is written later by the writer thread. When the
+     * writer does not keep up, the message is left out of the history
+     *
+     * @param kind   The kind of message
+     * @param sender The username of the sender, empty when not known
+     * @param target The room of a room message, the recipient of a private message, empty otherwise
+     * @param line   The encoded line as the clients got it, see Message.encodeLine(). Must not be modified
+     */
+    public void record(byte kind, String sender, String target, byte[] line) {
+        Entry entry = new Entry(System.currentTimeMillis(), kind, sender.getBytes(StandardCharsets.UTF_8),
+                target.getBytes(StandardCharsets.UTF_8), line);
+        if (!this.queue.offer(entry)) {
+            this.droppedMessages.increment();
+        }
+    }
+
+    /**
+     * Read one page of the history on the reader thread and hand it to the receiver there
+     *
+     * @param query    What to read
+     * @param receiver Gets the page, on the reader thread
+     */
+    public void readPage(Query query, Consumer<Page> receiver) {
+        this.reader.execute(() -> receiver.accept(this.read(query)));
+    }
+
+    /**
+     * @return The number of messages left out of the history because the writer did not keep up
+     */
+    public long getDroppedMessages() {
+        return this.droppedMessages.sum();
+    }
+
+    /**
+     * Stop the writer thread, after it has written everything queued so far
+     */
+    public void close() {
+        this.needToRun = false;
+        this.reader.shutdown();
+        try {
+            this.writer.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The writer thread: copy the queued messages into the current segment, publish the new end once per batch
+     */
+    private void runWriter() {
+        List<Entry> batch = new ArrayList<>(WRITE_BATCH);
+        while (this.needToRun || !this.queue.isEmpty()) {
+            try {
+                Entry entry = this.queue.poll(RETIRE_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (entry != null) {
+                    batch.add(entry);
+                    this.queue.drainTo(batch, WRITE_BATCH - 1);
+                    this.write(batch);
+                    batch.clear();
+                }
+                long now = System.currentTimeMillis();
+                if (now - this.lastRetireCheck >= RETIRE_CHECK_INTERVAL_MS) {
+                    this.lastRetireCheck = now;
+                    this.retireOldSegments();
+                }
+            } catch (IOException e) {
+                Server.log(LogLevel.ERROR, "Could not write the message history: " + e.getMessage());
+                batch.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write a batch of messages, starting new segments as needed
+     *
+     * @param batch The messages
+     * @throws IOException When a new segment can not be created
+     */
+    private void write(List<Entry> batch) throws IOException {
+        Segment segment = this.currentSegment();
+        int position = segment.end;
+        long lastTime = segment.lastTime;
+        for (Entry entry : batch) {
+            int length = RECORD_HEADER + 2 + entry.sender().length + 2 + entry.target().length + entry.line().length;
+            // Keep room for the end marker
+            if (position + length + 4 > segment.buffer.capacity()) {
+                if (length + 4 > this.segmentSize) {
+                    Server.log(LogLevel.WARN, "Message too long for the history, " + length + " bytes");
+                    continue;
+                }
+                segment.end = position;
+                segment.lastTime = lastTime;
+                segment.buffer.force();
+                segment = this.createSegment(segment.number + 1);
+                this.segments.add(segment);
+                position = 0;
+            }
+            ByteBuffer buffer = segment.buffer;
+            int p = position;
+            buffer.putInt(p, length - 4);
+            buffer.putLong(p + 4, entry.time());
+            buffer.put(p + 12, entry.kind());
+            p += RECORD_HEADER;
+            p = putBytes(buffer, p, entry.sender());
+            p = putBytes(buffer, p, entry.target());
+            buffer.put(p, entry.line());
+            segment.indexRecord(position, entry.time());
+            position += length;
+            lastTime = entry.time();
+        }
+        // The lines become visible to readers here
+        segment.lastTime = lastTime;
+        segment.end = position;
+    }
+
+    /**
+     * Put a short length and the bytes into a buffer
+     *
+     * @param buffer   The buffer
+     * @param position Where to put them
+     * @param bytes    The bytes
+     * @return The position after them
+     */
+    private static int putBytes(ByteBuffer buffer, int position, byte[] bytes) {
+        buffer.putShort(position, (short) bytes.length);
+        buffer.put(position + 2, bytes);
+        return position + 2 + bytes.length;
+    }
+
+    /**
+     * Read one page: walk backwards through the segments from the before id, one index interval at a time,
+     * and collect the matching records of every interval until the page is full. The walk stops at the first
+     * interval which starts before the since time
+     *
+     * @param query What to read
+     * @return The page
+     */
+    Page read(Query query) {
+        byte[] target = query.target().getBytes(StandardCharsets.UTF_8);
+        byte[] requester = query.requester().getBytes(StandardCharsets.UTF_8);
+        int beforeSegment = (int) (query.before() >>> 32);
+        ArrayDeque<byte[]> lines = new ArrayDeque<>();
+        long oldestId = 0;
+        long scanned = 0;
+        List<Segment> snapshot = new ArrayList<>(this.segments);
+        for (int s = snapshot.size() - 1; s >= 0; s--) {
+            Segment segment = snapshot.get(s);
+            if (segment.number > beforeSegment) {
+                continue;
+            }
+            int end = segment.end;
+            if (segment.number == beforeSegment) {
+                end = (int) Math.min(end, query.before() & 0xFFFFFFFFL);
+            }
+            for (int k = segment.indexSize - 1; k >= 0; k--) {
+                int windowStart = segment.indexOffsets[k];
+                if (windowStart >= end) {
+                    continue;
+                }
+                List<Integer> matches = new ArrayList<>();
+                for (int p = windowStart; p < end; p += 4 + segment.buffer.getInt(p)) {
+                    if (segment.buffer.getLong(p + 4) >= query.since()
+                            && matches(segment.buffer, p, query.kind(), target, requester)) {
+                        matches.add(p);
+                    }
+                }
+                scanned += end - windowStart;
+                for (int i = matches.size() - 1; i >= 0; i--) {
+                    if (lines.size() == query.limit()) {
+                        return new Page(new ArrayList<>(lines), oldestId);
+                    }
+                    lines.addFirst(readLine(segment.buffer, matches.get(i)));
+                    oldestId = id(segment, matches.get(i));
+                }
+                if (segment.indexTimes[k] < query.since()) {
+                    return new Page(new ArrayList<>(lines), 0);
+                }
+                end = windowStart;
+                if (scanned >= MAX_SCAN_BYTES) {
+                    // Enough work for one request, the client may continue from here
+                    return new Page(new ArrayList<>(lines), id(segment, end));
+                }
+            }
+        }
+        return new Page(new ArrayList<>(lines), 0);
+    }
+
+    /**
+     * @param segment A segment
+     * @param offset  The offset of a record in the segment
+     * @return The id of the record
+     */
+    private static long id(Segment segment, int offset) {
+        return ((long) segment.number << 32) | offset;
+    }
+
+    /**
+     * Check whether a record matches a query, without copying it
+     *
+     * @param buffer    The segment
+     * @param position  The position of the record
+     * @param kind      The kind of messages asked for
+     * @param target    The room or peer asked for
+     * @param requester The client which asks
+     * @return True when the record is one of the messages asked for
+     */
+    private static boolean matches(ByteBuffer buffer, int position, byte kind, byte[] target, byte[] requester) {
+        if (buffer.get(position + 12) != kind) {
+            return false;
+        }
+        int senderAt = position + RECORD_HEADER;
+        int targetAt = senderAt + 2 + buffer.getShort(senderAt);
+        if (kind == KIND_PUBLIC) {
+            return true;
+        } else if (kind == KIND_ROOM) {
+            return equalsAt(buffer, targetAt, target);
+        } else {
+            // Private messages between the requester and the peer, in both directions
+            return (equalsAt(buffer, senderAt, requester) && equalsAt(buffer, targetAt, target))
+                    || (equalsAt(buffer, senderAt, target) && equalsAt(buffer, targetAt, requester));
+        }
+    }
+
+    /**
+     * Compare a short length and the bytes in a buffer with a value
+     *
+     * @param buffer   The buffer
+     * @param position Where the length is
+     * @param value    The value
+     * @return True when the bytes are the value
+     */
+    private static boolean equalsAt(ByteBuffer buffer, int position, byte[] value) {
+        if (buffer.getShort(position) != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (buffer.get(position + 2 + i) != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy the line of a record onto the heap
+     *
+     * @param buffer   The segment
+     * @param position The position of the record
+     * @return The encoded line
+     */
+    private static byte[] readLine(ByteBuffer buffer, int position) {
+        int end = position + 4 + buffer.getInt(position);
+        int senderAt = position + RECORD_HEADER;
+        int targetAt = senderAt + 2 + buffer.getShort(senderAt);
+        int lineAt = targetAt + 2 + buffer.getShort(targetAt);
+        byte[] line = new byte[end - lineAt];
+        buffer.get(lineAt, line);
+        return line;
+    }
+
+    /**
+     * @return The segment which is written to
+     */
+    private Segment currentSegment() {
+        return this.segments.get(this.segments.size() - 1);
+    }
+
+    /**
+     * Delete the oldest segments while the history is too large or their messages too old. The current
+     * segment is always kept
+     *
+     * @throws IOException When a segment can not be deleted
+     */
+    private void retireOldSegments() throws IOException {
+        long oldestAllowed = System.currentTimeMillis() - this.maxAgeMs;
+        while (this.segments.size() > 1) {
+            Segment oldest = this.segments.get(0);
+            long totalBytes = 0;
+            for (Segment segment : this.segments) {
+                totalBytes += segment.buffer.capacity();
+            }
+            if (totalBytes <= this.maxBytes && oldest.lastTime >= oldestAllowed) {
+                return;
+            }
+            // Readers which still hold the segment keep reading its mapping, the disk space is freed once the
+            // mapping is gone
+            this.segments.remove(0);
+            Files.deleteIfExists(oldest.path);
+            Server.log(LogLevel.DEBUG, "Retired history segment " + oldest.number);
+        }
+    }
+
+    /**
+     * Create and map a new segment
+     *
+     * @param number The segment number
+     * @return The segment
+     * @throws IOException When the file can not be created
+     */
+    private Segment createSegment(int number) throws IOException {
+        Path path = this.directory.resolve(String.format("%08d%s", number, SEGMENT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(number, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize));
+        }
+    }
+
+    /**
+     * Map a segment found on startup, find its end and rebuild its index. A record cut short by a crash ends
+     * the segment
+     *
+     * @param path The segment file
+     * @return The segment
+     * @throws IOException When the file can not be mapped
+     */
+    private Segment recover(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        int number = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        Segment segment;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = new Segment(number, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        }
+        ByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + RECORD_HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + 4 + length > buffer.capacity() - 4) {
+                break;
+            }
+            long time = buffer.getLong(position + 4);
+            segment.indexRecord(position, time);
+            segment.lastTime = time;
+            position += 4 + length;
+        }
+        // Clear whatever follows the last complete record, it becomes the end marker
+        if (position + 4 <= buffer.capacity()) {
+            buffer.putInt(position, 0);
+        }
+        segment.end = position;
+        return segment;
+    }
+
+    /**
+     * List the segment files in the directory
+     *
+     * @return The segment files by segment number
+     * @throws IOException When the directory can not be listed
+     */
+    private TreeMap<Integer, Path> listSegments() throws IOException {
+        TreeMap<Integer, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.put(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    // Not one of our files
+                }
+            }
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,350 @@
+package no.ntnu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A client connection served by an event loop of the NIO engine. Incoming bytes are read into the loop's
+ * shared read buffer and split into lines by a LineDecoder, outgoing lines are queued and written by the loop
+ * whenever the socket can take more data. The loop writes the queued lines at the end of its round: as many
+ * lines as fit are copied into a direct buffer leased from the buffer pool and written at once. A long line is
+ * not copied: it is written from the bytes shared by all its recipients, after the buffer, with one gathering
+ * write. The buffer is given back as soon as everything is written, so an idle connection holds no buffer.
+ * With binary framing, each line is preceded by a frame header, and compressed when the client asked for it.
+ */
+public class NioConnection implements ClientConnection {
+    // Lines longer than this are written from the shared line bytes instead of being copied into the write buffer
+    private static final int MAX_COPIED_LINE_LENGTH = 4096;
+
+    private final SocketChannel channel;
+    private final EventLoop eventLoop;
+    private final ClientHandler handler;
+    private final LineDecoder lineDecoder;
+    private final OutboundQueue outbound;
+    private final Backpressure backpressure;
+    private final ServerMetrics metrics;
+    private final BufferPool bufferPool;
+    // The bytes being written, null when there is nothing to write. Used only by the loop thread
+    private BufferPool.PooledBuffer writeBuffer = null;
+    // A long line written after the write buffer, a view of the shared bytes with this connection's own
+    // position. Null when there is none. Used only by the loop thread
+    private ByteBuffer sharedLine = null;
+    // True once the frame start marker has been taken out of the queue. Used only by the loop thread
+    private boolean framing = false;
+    // Set by the handler once the client asked for compression, read by the loop thread
+    private volatile boolean compressing = false;
+    // True while a flush is pending at the end of the loop round, or handed over to the loop
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private SelectionKey key;
+    private volatile boolean closed = false;
+
+    /**
+     * NioConnection constructor
+     *
+     * @param channel   The client channel, already in non-blocking mode
+     * @param eventLoop The event loop which will serve this connection
+     * @param server    The main server class which manages all the connections
+     */
+    public NioConnection(SocketChannel channel, EventLoop eventLoop, Server server) {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.backpressure = server.getBackpressure();
+        this.metrics = server.getMetrics();
+        this.bufferPool = eventLoop.getBufferPool();
+        this.outbound = new OutboundQueue(this.backpressure);
+        this.handler = new ClientHandler(this, server);
+        this.lineDecoder = new LineDecoder(this::handleLine);
+    }
+
+    /**
+     * Register the channel with the selector of the event loop. Must be called on the loop thread
+     */
+    public void register() {
+        try {
+            this.key = this.channel.register(this.eventLoop.getSelector(), SelectionKey.OP_READ, this);
+            // Something may have been sent to the client before the registration
+            this.flush();
+        } catch (ClosedChannelException e) {
+            Server.log(LogLevel.DEBUG, "Client channel closed before registration");
+            this.close();
+        }
+    }
+
+    /**
+     * Called by the event loop when the socket has data to read
+     */
+    public void onReadable() {
+        ByteBuffer readBuffer = this.eventLoop.getReadBuffer();
+        readBuffer.clear();
+        int bytesRead;
+        try {
+            bytesRead = this.channel.read(readBuffer);
+        } catch (IOException e) {
+            Server.log(LogLevel.WARN, "Error while reading the socket input: " + e.getMessage());
+            bytesRead = -1;
+        }
+        if (bytesRead < 0) {
+            Server.log(LogLevel.DEBUG, "Error while reading client input, probably socket is closed, exiting...");
+            this.close();
+            return;
+        }
+        this.metrics.countBytesIn(bytesRead);
+        // The lines are handed over as slices of a byte array, and the read buffer is shared with the other
+        // connections of the loop: the handlers copy what they keep
+        byte[] readBytes = this.eventLoop.getReadBytes();
+        readBuffer.get(0, readBytes, 0, bytesRead);
+        this.lineDecoder.decode(readBytes, 0, bytesRead);
+    }
+
+    /**
+     * Handle one complete line received from the client. Lines which follow in the same read after the
+     * connection was closed are ignored, the handler is already unregistered by then
+     *
+     * @param bytes  The buffer holding the line
+     * @param offset Offset of the line in the buffer
+     * @param length Length of the line, without the line terminator
+     */
+    private void handleLine(byte[] bytes, int offset, int length) {
+        if (!this.closed) {
+            this.handler.handleLine(bytes, offset, length);
+        }
+    }
+
+    @Override
+    public void startFraming() {
+        this.lineDecoder.switchToFrames(new FrameDecoder(this::handleLine, this::onProtocolError));
+        this.send(Frame.START_MARKER, false);
+    }
+
+    @Override
+    public void startCompression() {
+        this.compressing = true;
+    }
+
+    /**
+     * Disconnect the client because it sent a broken frame
+     */
+    private void onProtocolError() {
+        Server.log(LogLevel.WARN, "Disconnecting client " + this.handler.getUsername() + ": invalid frame");
+        this.close();
+    }
+
+    /**
+     * Called by the event loop when the socket can take more outgoing data
+     */
+    public void onWritable() {
+        this.flush();
+    }
+
+    @Override
+    public void send(byte[] line, boolean droppable) {
+        if (this.closed) {
+            return;
+        }
+        // No event loop ever waits: a loop serves many clients, and the recipient's loop may be waiting for it
+        if (!this.outbound.offer(line, droppable, OutboundQueue.mayBlock())) {
+            this.disconnectSlowClient();
+            return;
+        }
+        if (this.flushScheduled.compareAndSet(false, true)) {
+            if (this.eventLoop.inEventLoop()) {
+                this.eventLoop.scheduleFlush(this);
+            } else {
+                this.eventLoop.execute(() -> this.eventLoop.scheduleFlush(this));
+            }
+        }
+    }
+
+    /**
+     * Called by the event loop at the end of the round in which lines were sent to this client
+     */
+    public void flushPending() {
+        this.flushScheduled.set(false);
+        this.flush();
+    }
+
+    /**
+     * Write as much of the outgoing queue as the socket accepts. When the socket is full, wait for it to become
+     * writable again. Must be called on the loop thread
+     */
+    private void flush() {
+        if (this.key == null || this.closed) {
+            // Not registered yet, register() will flush
+            return;
+        }
+        try {
+            while (this.fillWriteBuffer()) {
+                ByteBuffer buffer = this.writeBuffer.buffer();
+                if (this.sharedLine == null) {
+                    this.metrics.countBytesOut(this.channel.write(buffer));
+                } else {
+                    ByteBuffer[] gather = this.eventLoop.getGatherBuffers();
+                    gather[0] = buffer;
+                    gather[1] = this.sharedLine;
+                    this.metrics.countBytesOut(this.channel.write(gather));
+                    gather[0] = null;
+                    gather[1] = null;
+                }
+                if (this.hasUnwrittenBytes()) {
+                    // The socket is full, continue when it becomes writable
+                    this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            this.key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            Server.log(LogLevel.WARN, "Error while writing to a client socket: " + e.getMessage());
+            this.close();
+        }
+    }
+
+    /**
+     * Make sure there are bytes to write: keep the bytes which are not written yet, otherwise copy the next lines
+     * out of the outbound queue into the write buffer. A long line ends the batch and is written after the
+     * buffer. The buffer is leased when there is something to write and given back when there is nothing left
+     *
+     * @return True when there is something to write
+     */
+    private boolean fillWriteBuffer() {
+        if (this.hasUnwrittenBytes()) {
+            return true;
+        }
+        this.sharedLine = null;
+        long queued = this.outbound.getQueuedBytes();
+        if (queued == 0) {
+            this.releaseWriteBuffer();
+            return false;
+        }
+        if (this.writeBuffer == null) {
+            this.writeBuffer = this.bufferPool.lease((int) Math.min(queued, BufferPool.MAX_BUFFER_SIZE), this.handler);
+        }
+        ByteBuffer buffer = this.writeBuffer.buffer();
+        buffer.clear();
+        byte[][] batch = this.eventLoop.getWriteBatch();
+        while (buffer.position() == 0 && this.sharedLine == null) {
+            // Room for a frame header is kept for every line, framing may start in the middle of the batch
+            int lineCount = this.outbound.poll(batch, buffer.remaining(), Frame.HEADER_LENGTH,
+                    MAX_COPIED_LINE_LENGTH);
+            if (lineCount == 0) {
+                break;
+            }
+            for (int i = 0; i < lineCount; i++) {
+                this.copyLine(buffer, batch[i]);
+                batch[i] = null;
+            }
+        }
+        buffer.flip();
+        if (!this.hasUnwrittenBytes()) {
+            this.releaseWriteBuffer();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return True when the write buffer or the long line after it still hold bytes to write
+     */
+    private boolean hasUnwrittenBytes() {
+        return this.writeBuffer != null && this.writeBuffer.buffer().hasRemaining()
+                || this.sharedLine != null && this.sharedLine.hasRemaining();
+    }
+
+    /**
+     * Copy a line from the outbound queue into the write buffer, with its frame header when the client uses
+     * binary framing, compressed when the client asked for it. A long line, or one which does not fit, is kept
+     * to be written after the buffer: only its header is copied. The lines from one poll() of the queue always
+     * fit, except for the first one and a long last one
+     *
+     * @param buffer The write buffer
+     * @param line   The line, or the frame start marker
+     */
+    private void copyLine(ByteBuffer buffer, byte[] line) {
+        if (line == Frame.START_MARKER) {
+            this.framing = true;
+            return;
+        }
+        if (this.framing) {
+            byte[] compressed = this.compressing ? Compression.compressShared(line) : null;
+            if (compressed != null) {
+                line = compressed;
+                buffer.putInt(line.length);
+                buffer.put(Frame.OP_DEFLATED_LINES);
+            } else {
+                buffer.putInt(line.length);
+                buffer.put(Frame.OP_LINES);
+            }
+        }
+        if (line.length <= MAX_COPIED_LINE_LENGTH && line.length <= buffer.remaining()) {
+            buffer.put(line);
+        } else {
+            this.sharedLine = ByteBuffer.wrap(line);
+        }
+    }
+
+    /**
+     * Give the write buffer back to the pool
+     */
+    private void releaseWriteBuffer() {
+        if (this.writeBuffer != null) {
+            this.bufferPool.release(this.writeBuffer);
+            this.writeBuffer = null;
+        }
+    }
+
+    /**
+     * Disconnect the client because it does not read its messages fast enough
+     */
+    private void disconnectSlowClient() {
+        Server.log(LogLevel.WARN, "Disconnecting slow client " + this.handler.getUsername() + ": more than "
+                + this.backpressure.getHighWatermark() + " bytes waiting to be sent");
+        this.backpressure.countDisconnectedClient();
+        this.close();
+    }
+
+    /**
+     * Close socket connection for this client
+     */
+    @Override
+    public void close() {
+        if (!this.eventLoop.inEventLoop()) {
+            this.eventLoop.execute(this::close);
+            return;
+        }
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        Server.log(LogLevel.DEBUG, "Closing client socket...");
+        if (this.key != null) {
+            this.key.cancel();
+        }
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            Server.log(LogLevel.WARN, "Error while closing a client socket: " + e.getMessage());
+        }
+        Server.log(LogLevel.DEBUG, "Client socket closed");
+        this.outbound.close();
+        this.releaseWriteBuffer();
+        this.sharedLine = null;
+        this.handler.onDisconnected();
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return this.outbound.getQueuedBytes();
+    }
+
+    /**
+     * Return the protocol handler of this connection
+     *
+     * @return The client handler
+     */
+    public ClientHandler getHandler() {
+        return this.handler;
+    }
+}
@@ -0,0 +1,131 @@
+package no.ntnu;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking server engine. A small fixed set of event loops serves all the client connections: the first
+ * loop also accepts new clients, each new client is then handed over to the next loop in round-robin order.
+ */
+public class NioEngine {
+    private final Server server;
+    private final int port;
+    private final EventLoop[] eventLoops;
+    private ServerSocketChannel serverChannel;
+    private int nextLoop = 0;
+
+    /**
+     * NioEngine constructor
+     *
+     * @param server         The main server class which manages all the connections
+     * @param port           The TCP port to listen on
+     * @param eventLoopCount The number of event-loop threads
+     */
+    public NioEngine(Server server, int port, int eventLoopCount) {
+        this.server = server;
+        this.port = port;
+        this.eventLoops = new EventLoop[eventLoopCount];
+    }
+
+    /**
+     * Open the listening socket and start the event loops
+     *
+     * @return True on success, false on error
+     */
+    public boolean start() {
+        try {
+            for (int i = 0; i < this.eventLoops.length; i++) {
+                this.eventLoops[i] = new EventLoop(this, "event-loop-" + i, this.server.getBufferPool());
+            }
+            this.serverChannel = ServerSocketChannel.open();
+            this.serverChannel.bind(new InetSocketAddress(this.port));
+            this.serverChannel.configureBlocking(false);
+            this.serverChannel.register(this.eventLoops[0].getSelector(), SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            Server.log(LogLevel.WARN, "Could not open a listening socket: " + e.getMessage());
+            return false;
+        }
+        for (EventLoop loop : this.eventLoops) {
+            loop.start();
+        }
+        Server.log("Server listening on port " + this.port + " with " + this.eventLoops.length + " event loops");
+        return true;
+    }
+
+    /**
+     * Accept all the pending client connections. Called by the first event loop when the listening socket
+     * is ready
+     */
+    public void acceptConnections() {
+        SocketChannel channel = this.acceptNextClient();
+        while (channel != null) {
+            byte[] rejection = this.server.admitClient();
+            if (rejection != null) {
+                this.reject(channel, rejection);
+                channel = this.acceptNextClient();
+                continue;
+            }
+            EventLoop loop = this.eventLoops[this.nextLoop];
+            this.nextLoop = (this.nextLoop + 1) % this.eventLoops.length;
+            NioConnection connection = new NioConnection(channel, loop, this.server);
+            this.server.storeClientHandler(connection.getHandler());
+            loop.execute(connection::register);
+            channel = this.acceptNextClient();
+        }
+    }
+
+    /**
+     * Send the rejection line to a client which is not admitted and close the connection soon after. The
+     * socket send buffer of a new connection is empty, so the short line is written at once
+     *
+     * @param channel   The rejected client
+     * @param rejection The encoded connerr line
+     */
+    private void reject(SocketChannel channel, byte[] rejection) {
+        try {
+            channel.write(ByteBuffer.wrap(rejection));
+            channel.shutdownOutput();
+        } catch (IOException e) {
+            Server.log(LogLevel.DEBUG, "Could not send the rejection to a client: " + e.getMessage());
+        }
+        this.server.getAdmission().closeLater(channel);
+    }
+
+    /**
+     * Return the longest lag of the event loops, see EventLoop.getLagNanos()
+     *
+     * @return The lag in nanoseconds
+     */
+    public long getMaxLagNanos() {
+        long lag = 0;
+        for (EventLoop loop : this.eventLoops) {
+            lag = Math.max(lag, loop.getLagNanos());
+        }
+        return lag;
+    }
+
+    /**
+     * Accept the next pending client connection, without blocking
+     *
+     * @return Channel for the newly connected client, null when no more clients are waiting or on error
+     */
+    private SocketChannel acceptNextClient() {
+        SocketChannel channel = null;
+        try {
+            channel = this.serverChannel.accept();
+            if (channel != null) {
+                channel.configureBlocking(false);
+                // Writes are coalesced by the connection itself, Nagle's algorithm would only delay them
+                channel.socket().setTcpNoDelay(true);
+                Server.log(LogLevel.DEBUG, "New client connected from " + channel.getRemoteAddress());
+            }
+        } catch (IOException e) {
+            Server.log(LogLevel.WARN, "Failed to accept a client connection: " + e.getMessage());
+        }
+        return channel;
+    }
+}
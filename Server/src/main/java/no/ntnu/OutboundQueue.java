@@ -0,0 +1,301 @@
+package no.ntnu;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The bounded queue of encoded lines waiting to be written to one client. Any thread may add lines, one writer
+ * takes them out. When the queued bytes grow above the high watermark, the overflow policy decides what
+ * happens: the sender waits, the oldest broadcast messages are dropped, or the client is disconnected.
+ * Whatever the policy, a client whose queue would grow above the hard limit is disconnected.
+ * Only ReentrantLock is used, never synchronized, so a waiting virtual thread does not pin its carrier.
+ */
+public class OutboundQueue {
+    // Set on the threads which read the input of one client of the blocking engine. Only these may wait for
+    // a slow recipient, which holds back just the client they read for. The event loops and the shared threads
+    // (heartbeats, presence, history, cluster) serve everyone, so they never wait
+    private static final ThreadLocal<Boolean> MAY_BLOCK = ThreadLocal.withInitial(() -> false);
+
+    /**
+     * One queued line
+     *
+     * @param line      The encoded line
+     * @param droppable True for broadcast traffic which may be dropped when the client is too slow
+     */
+    private record Entry(byte[] line, boolean droppable) {
+    }
+
+    private final Backpressure backpressure;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when the queue is drained below the low watermark
+    private final Condition drained = this.lock.newCondition();
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private long queuedBytes = 0;
+    // Set when the connection is closed or found too slow: new lines are discarded from then on
+    private boolean closed = false;
+
+    /**
+     * OutboundQueue constructor
+     *
+     * @param backpressure The limits for the queue
+     */
+    public OutboundQueue(Backpressure backpressure) {
+        this.backpressure = backpressure;
+    }
+
+    /**
+     * Mark the calling thread as the reading thread of one client, or unmark it when it is done
+     *
+     * @param mayBlock True while the thread reads the input of one client
+     */
+    static void setMayBlock(boolean mayBlock) {
+        MAY_BLOCK.set(mayBlock);
+    }
+
+    /**
+     * @return True when the calling thread may wait for a slow client, see setMayBlock()
+     */
+    static boolean mayBlock() {
+        return MAY_BLOCK.get();
+    }
+
+    /**
+     * Add a line to the queue, applying the overflow policy when the queue is above the high watermark
+     *
+     * @param line      The encoded line
+     * @param droppable True for broadcast traffic which may be dropped when the client is too slow
+     * @param mayBlock  False when the calling thread must not wait (see mayBlock()). The BLOCK policy then
+     *                  disconnects the client instead
+     * @return True when the line was queued or dropped according to the policy, false when the client is too
+     * slow and must be disconnected. False is returned only once, the queue is closed after that
+     */
+    public boolean offer(byte[] line, boolean droppable, boolean mayBlock) {
+        this.lock.lock();
+        try {
+            if (this.closed) {
+                return true;
+            }
+            if (this.isAboveHardLimit(line)) {
+                // Also replies and private messages: a client which never reads must not grow its queue forever
+                return this.closeOverflowed();
+            }
+            if (this.isAboveHighWatermark(line)) {
+                switch (this.backpressure.getPolicy()) {
+                    case BLOCK:
+                        if (!mayBlock || !this.awaitDrained()) {
+                            return this.closeOverflowed();
+                        }
+                        if (this.closed) {
+                            // The connection was closed while we waited
+                            return true;
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        this.dropOldestBroadcasts();
+                        // Replies and private messages are always queued, they are small and few
+                        if (droppable && this.isAboveHighWatermark(line)) {
+                            this.backpressure.countDroppedMessages(1);
+                            return true;
+                        }
+                        break;
+                    default:
+                        return this.closeOverflowed();
+                }
+            }
+            this.entries.add(new Entry(line, droppable));
+            this.queuedBytes += line.length;
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Check whether queueing the given line would take the queue above the high watermark. A line always fits
+     * into an empty queue, even when it is longer than the high watermark. Must be called with the lock held
+     *
+     * @param line The line about to be queued
+     * @return True when the line does not fit below the high watermark
+     */
+    private boolean isAboveHighWatermark(byte[] line) {
+        return !this.entries.isEmpty() && this.queuedBytes + line.length > this.backpressure.getHighWatermark();
+    }
+
+    /**
+     * Check whether queueing the given line would take the queue above the hard limit. Like the high watermark,
+     * a line always fits into an empty queue. Must be called with the lock held
+     *
+     * @param line The line about to be queued
+     * @return True when the client must be disconnected
+     */
+    private boolean isAboveHardLimit(byte[] line) {
+        return !this.entries.isEmpty() && this.queuedBytes + line.length > this.backpressure.getHardLimit();
+    }
+
+    /**
+     * Close the queue because the client is too slow. Must be called with the lock held
+     *
+     * @return Always false, the client must be disconnected
+     */
+    private boolean closeOverflowed() {
+        this.close();
+        return false;
+    }
+
+    /**
+     * Wait until the writer drains the queue below the low watermark. Must be called with the lock held
+     *
+     * @return True when the queue was drained, false on timeout or interrupt
+     */
+    private boolean awaitDrained() {
+        this.backpressure.countBlockedSend();
+        long nanosLeft = TimeUnit.MILLISECONDS.toNanos(this.backpressure.getBlockTimeoutMs());
+        try {
+            while (this.queuedBytes > this.backpressure.getLowWatermark() && !this.closed) {
+                if (nanosLeft <= 0) {
+                    return false;
+                }
+                nanosLeft = this.drained.awaitNanos(nanosLeft);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Drop the oldest broadcast messages until the queue is below the low watermark. Must be called with
+     * the lock held
+     */
+    private void dropOldestBroadcasts() {
+        int dropped = 0;
+        Iterator<Entry> it = this.entries.iterator();
+        while (it.hasNext() && this.queuedBytes > this.backpressure.getLowWatermark()) {
+            Entry entry = it.next();
+            if (entry.droppable()) {
+                it.remove();
+                this.queuedBytes -= entry.line().length;
+                dropped++;
+            }
+        }
+        this.backpressure.countDroppedMessages(dropped);
+    }
+
+    /**
+     * Take up to lines.length of the oldest lines out of the queue, so the writer can send them all with a
+     * single write
+     *
+     * @param lines Where to put the lines
+     * @return The number of lines taken, 0 when the queue is empty
+     */
+    public int poll(byte[][] lines) {
+        return this.poll(lines, Long.MAX_VALUE, 0);
+    }
+
+    /**
+     * Take up to lines.length of the oldest lines out of the queue, as many as fit into a write buffer. The first
+     * line is always taken, even when it does not fit
+     *
+     * @param lines        Where to put the lines
+     * @param maxBytes     The size of the write buffer
+     * @param lineOverhead Bytes the writer adds to each line, for example a frame header
+     * @return The number of lines taken, 0 when the queue is empty
+     */
+    public int poll(byte[][] lines, long maxBytes, int lineOverhead) {
+        return this.poll(lines, maxBytes, lineOverhead, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Take up to lines.length of the oldest lines out of the queue, as many as fit into a write buffer. The first
+     * line is always taken, even when it does not fit. A line longer than maxCopiedLength is not copied into the
+     * write buffer but written after it, so it takes no room in the buffer and ends the batch
+     *
+     * @param lines           Where to put the lines
+     * @param maxBytes        The size of the write buffer
+     * @param lineOverhead    Bytes the writer adds to each line, for example a frame header
+     * @param maxCopiedLength The longest line the writer copies into the write buffer
+     * @return The number of lines taken, 0 when the queue is empty
+     */
+    public int poll(byte[][] lines, long maxBytes, int lineOverhead, int maxCopiedLength) {
+        this.lock.lock();
+        try {
+            int count = 0;
+            long bytes = 0;
+            while (count < lines.length && !this.entries.isEmpty()) {
+                byte[] line = this.entries.peek().line();
+                boolean copied = line.length <= maxCopiedLength;
+                bytes += (copied ? line.length : 0) + lineOverhead;
+                if (count > 0 && bytes > maxBytes) {
+                    break;
+                }
+                this.entries.poll();
+                this.queuedBytes -= line.length;
+                lines[count++] = line;
+                if (!copied) {
+                    break;
+                }
+            }
+            if (count > 0 && this.queuedBytes <= this.backpressure.getLowWatermark()) {
+                this.drained.signalAll();
+            }
+            return count;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return True when more than the low watermark of bytes is waiting to be written
+     */
+    public boolean isAboveLowWatermark() {
+        this.lock.lock();
+        try {
+            return this.queuedBytes > this.backpressure.getLowWatermark();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of bytes waiting to be written
+     */
+    public long getQueuedBytes() {
+        this.lock.lock();
+        try {
+            return this.queuedBytes;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return True when there is nothing to write
+     */
+    public boolean isEmpty() {
+        this.lock.lock();
+        try {
+            return this.entries.isEmpty();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Remove all the queued lines, discard any lines offered from now on and wake up any waiting sender
+     */
+    public void close() {
+        this.lock.lock();
+        try {
+            this.closed = true;
+            this.entries.clear();
+            this.queuedBytes = 0;
+            this.drained.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package no.ntnu;
+
+/**
+ * What to do when a client does not read fast enough and its outbound queue grows above the high watermark
+ */
+public enum OverflowPolicy {
+    // Make the sender wait until the queue is drained below the low watermark
+    BLOCK,
+    // Drop the oldest queued broadcast messages until the queue is below the low watermark
+    DROP_OLDEST,
+    // Disconnect the slow client
+    DISCONNECT
+}
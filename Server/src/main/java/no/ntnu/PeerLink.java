@@ -0,0 +1,161 @@
+package no.ntnu;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The outgoing link from this node to one other node of the cluster. Any thread may send lines, a writer
+ * thread of the link writes them out in batches. The link connects on its own and reconnects when the
+ * connection is lost; after every (re)connect it starts with the hello line and the users of this node.
+ * Lines sent while the other node can not be reached are dropped: the other node does not know our users
+ * then either, and learns them again on reconnect.
+ */
+public class PeerLink implements Runnable {
+    // At most this many lines wait for the other node, more are dropped
+    private static final int QUEUE_CAPACITY = 100_000;
+    private static final int WRITE_BATCH_LINES = 256;
+    private static final long RECONNECT_DELAY_MS = 1000;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private final ServerConfig.Peer peer;
+    private final Cluster cluster;
+    private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final LongAdder droppedLines = new LongAdder();
+    // True while the link is connected: only then lines are queued
+    private volatile boolean connected = false;
+    private volatile boolean needToRun = true;
+    private Socket socket;
+
+    /**
+     * PeerLink constructor
+     *
+     * @param peer    The other node
+     * @param cluster The cluster of this node
+     */
+    public PeerLink(ServerConfig.Peer peer, Cluster cluster) {
+        this.peer = peer;
+        this.cluster = cluster;
+    }
+
+    /**
+     * @return The node id of the other node
+     */
+    public int getNodeId() {
+        return this.peer.nodeId();
+    }
+
+    /**
+     * Queue one encoded line for the other node and return at once. The line is dropped when the other node
+     * can not be reached or does not keep up
+     *
+     * @param line The encoded line, see Message.encodeLine(). Must not be modified afterwards
+     */
+    public void send(byte[] line) {
+        if (!this.connected || !this.queue.offer(line)) {
+            this.droppedLines.increment();
+        }
+    }
+
+    /**
+     * Connect to the other node and write the queued lines, reconnecting until the link is closed
+     */
+    @Override
+    public void run() {
+        while (this.needToRun) {
+            try (Socket s = new Socket()) {
+                s.connect(new InetSocketAddress(this.peer.host(), this.peer.port()), CONNECT_TIMEOUT_MS);
+                s.setTcpNoDelay(true);
+                this.socket = s;
+                Server.log("Connected to cluster node " + this.peer.nodeId());
+                this.writeLines(new BufferedOutputStream(s.getOutputStream()));
+            } catch (IOException e) {
+                if (this.connected) {
+                    Server.log(LogLevel.WARN, "Lost the link to cluster node " + this.peer.nodeId() + ": "
+                            + e.getMessage());
+                } else {
+                    Server.log(LogLevel.DEBUG, "Could not reach cluster node " + this.peer.nodeId() + ": "
+                            + e.getMessage());
+                }
+            }
+            this.connected = false;
+            this.queue.clear();
+            if (this.needToRun) {
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Introduce this node, then write the queued lines as long as the link is up
+     *
+     * @param out The stream to the other node
+     * @throws IOException When the link is lost
+     */
+    private void writeLines(OutputStream out) throws IOException {
+        this.queue.clear();
+        // Lines sent from now on are queued behind the user list, which is built after this
+        this.connected = true;
+        out.write(Message.encodeLine("node " + this.cluster.getNodeId() + this.cluster.getSecretSuffix()));
+        for (String username : this.cluster.getLocalUsernames()) {
+            out.write(Message.encodeLine("joined " + username));
+        }
+        out.flush();
+        List<byte[]> batch = new ArrayList<>(WRITE_BATCH_LINES);
+        while (this.needToRun) {
+            byte[] line;
+            try {
+                line = this.queue.poll(RECONNECT_DELAY_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (line != null) {
+                batch.add(line);
+                this.queue.drainTo(batch, WRITE_BATCH_LINES - 1);
+                for (byte[] l : batch) {
+                    out.write(l);
+                }
+                batch.clear();
+                // Flush only when nothing else is waiting, so a burst goes out in as few segments as possible
+                if (this.queue.isEmpty()) {
+                    out.flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of lines dropped because the other node could not be reached or did not keep up
+     */
+    public long getDroppedLines() {
+        return this.droppedLines.sum();
+    }
+
+    /**
+     * Stop the link and close its connection
+     */
+    public void close() {
+        this.needToRun = false;
+        Socket s = this.socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package no.ntnu;
+
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pushes changes of the user list to the clients which subscribed with the presence command, so they don't
+ * have to poll with users. A subscriber gets the full user list once, then only "joined user" and "left user"
+ * lines. The changes are collected for a short window and sent together: every subscriber gets the same
+ * encoded bytes, and a user who comes and goes within the window is announced only once, with the last change.
+ */
+public class Presence {
+    private static final byte[] PRESENCE_OK = Message.encodeLine("presenceok");
+    // Changes are collected for this long before they are sent
+    static final long COALESCE_WINDOW_MS = 100;
+    // Sends the collected changes after the window, shared by all the servers in the JVM
+    private static final ScheduledExecutorService FLUSH_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "presence-flusher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * One change of the user list
+     *
+     * @param username The user
+     * @param joined   True when the user joined, false when the user left
+     */
+    private record Change(String username, boolean joined) {
+    }
+
+    private final Server server;
+    private final Set<ClientHandler> subscribers = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<Change> changes = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    // Held while subscribing and while sending changes, so a new subscriber gets its user list before
+    // any change which is not in the list
+    private final ReentrantLock sendLock = new ReentrantLock();
+
+    /**
+     * Presence constructor
+     *
+     * @param server The server, for the user list sent to new subscribers
+     */
+    public Presence(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Subscribe a client to the changes of the user list. Sends presenceok and the current user list first.
+     * A change which is already in that list may still be announced once more afterwards
+     *
+     * @param handler The subscribing client
+     */
+    public void subscribe(ClientHandler handler) {
+        this.sendLock.lock();
+        try {
+            // Subscribe before building the list: every change after the list is built then reaches the client
+            this.subscribers.add(handler);
+            handler.sendPresence(PRESENCE_OK);
+            handler.sendPresence(this.server.getEncodedUserList());
+        } finally {
+            this.sendLock.unlock();
+        }
+    }
+
+    /**
+     * Stop sending changes to a client, for example because it disconnected
+     *
+     * @param handler The client
+     */
+    public void unsubscribe(ClientHandler handler) {
+        this.subscribers.remove(handler);
+    }
+
+    /**
+     * Announce a user who joined: connected, or logged in with a new username
+     *
+     * @param username The username
+     */
+    public void userJoined(String username) {
+        this.addChange(new Change(username, true));
+    }
+
+    /**
+     * Announce a user who left: disconnected, or logged in with another username
+     *
+     * @param username The username the user had
+     */
+    public void userLeft(String username) {
+        this.addChange(new Change(username, false));
+    }
+
+    /**
+     * Collect a change, schedule sending it when the window is not open yet
+     *
+     * @param change The change
+     */
+    private void addChange(Change change) {
+        this.changes.add(change);
+        if (this.flushScheduled.compareAndSet(false, true)) {
+            FLUSH_TIMER.schedule(this::flush, COALESCE_WINDOW_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Send the collected changes to all the subscribers, encoded once
+     */
+    void flush() {
+        // Changes added from now on schedule the next flush
+        this.flushScheduled.set(false);
+        // Keep only the last change of every user, in the order the users first changed
+        Map<String, Boolean> lastChanges = new LinkedHashMap<>();
+        Change change;
+        while ((change = this.changes.poll()) != null) {
+            lastChanges.put(change.username(), change.joined());
+        }
+        if (lastChanges.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        lastChanges.forEach((username, joined) ->
+                lines.writeBytes(Message.encodeLine((joined ? "joined " : "left ") + username)));
+        byte[] encoded = lines.toByteArray();
+        this.sendLock.lock();
+        try {
+            for (ClientHandler subscriber : this.subscribers) {
+                subscriber.sendPresence(encoded);
+            }
+        } finally {
+            this.sendLock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of subscribed clients
+     */
+    public int getSubscriberCount() {
+        return this.subscribers.size();
+    }
+}
@@ -0,0 +1,71 @@
+package no.ntnu;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A chat room: the clients which joined it. Messages to the room are delivered only to its members, so a busy
+ * room costs nothing to the clients outside it. The member set is safe to use from all the client threads.
+ */
+public class Room {
+    private final String name;
+    private final Set<ClientHandler> members = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Room constructor
+     *
+     * @param name The name of the room
+     */
+    public Room(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Add a member to the room
+     *
+     * @param handler The client which joined
+     */
+    void add(ClientHandler handler) {
+        this.members.add(handler);
+    }
+
+    /**
+     * Remove a member from the room
+     *
+     * @param handler The client which left
+     * @return True if the client was a member
+     */
+    boolean remove(ClientHandler handler) {
+        return this.members.remove(handler);
+    }
+
+    /**
+     * @param handler A client
+     * @return True if the client is a member of the room
+     */
+    public boolean isMember(ClientHandler handler) {
+        return this.members.contains(handler);
+    }
+
+    /**
+     * @return True when nobody is in the room
+     */
+    public boolean isEmpty() {
+        return this.members.isEmpty();
+    }
+
+    /**
+     * Return the members of the room. Safe to iterate while clients join and leave, a client which joins or
+     * leaves during the iteration may or may not be included
+     *
+     * @return The members
+     */
+    public Collection<ClientHandler> getMembers() {
+        return this.members;
+    }
+}
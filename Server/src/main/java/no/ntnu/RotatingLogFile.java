@@ -0,0 +1,92 @@
+package no.ntnu;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A log file which is rotated when it grows too large: server.log is renamed to server.log.1, server.log.1 to
+ * server.log.2 and so on, the oldest file is deleted. Only used by the flusher thread of the AsyncLogger.
+ */
+public class RotatingLogFile {
+    private final Path path;
+    private final long maxSize;
+    private final int maxFiles;
+    private OutputStream out;
+    private long size;
+
+    /**
+     * RotatingLogFile constructor. Opens the file for appending
+     *
+     * @param path     Path of the current log file
+     * @param maxSize  The file is rotated when it grows above this many bytes
+     * @param maxFiles How many files to keep, including the current one
+     * @throws IOException When the file can not be opened
+     */
+    public RotatingLogFile(Path path, long maxSize, int maxFiles) throws IOException {
+        this.path = path;
+        this.maxSize = maxSize;
+        this.maxFiles = maxFiles;
+        this.open();
+    }
+
+    /**
+     * Open the current log file for appending
+     *
+     * @throws IOException When the file can not be opened
+     */
+    private void open() throws IOException {
+        this.out = new FileOutputStream(this.path.toFile(), true);
+        this.size = Files.size(this.path);
+    }
+
+    /**
+     * Append a batch of log lines to the file, rotate the file first if it is full
+     *
+     * @param batch The log lines, each ending with a newline
+     * @throws IOException On write errors
+     */
+    public void write(String batch) throws IOException {
+        if (this.size >= this.maxSize) {
+            this.rotate();
+        }
+        byte[] bytes = batch.getBytes(StandardCharsets.UTF_8);
+        this.out.write(bytes);
+        this.out.flush();
+        this.size += bytes.length;
+    }
+
+    /**
+     * Shift the old files by one, start a new current file
+     *
+     * @throws IOException When the files can not be renamed or the new file opened
+     */
+    private void rotate() throws IOException {
+        this.out.close();
+        Files.deleteIfExists(this.numbered(this.maxFiles - 1));
+        for (int i = this.maxFiles - 2; i >= 1; i--) {
+            Path older = this.numbered(i);
+            if (Files.exists(older)) {
+                Files.move(older, this.numbered(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (this.maxFiles > 1) {
+            Files.move(this.path, this.numbered(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(this.path);
+        }
+        this.open();
+    }
+
+    /**
+     * @param number Number of the old file
+     * @return Path of the old log file with the given number
+     */
+    private Path numbered(int number) {
+        return this.path.resolveSibling(this.path.getFileName() + "." + number);
+    }
+}
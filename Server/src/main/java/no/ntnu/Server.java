@@ -1,67 +1,295 @@
 package no.ntnu;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * Main class for the TCP chat server. Accepts new client connections, hands each new client over to a
- * separate ClientHandler. Maintains list of active connections.
+ * separate ClientHandler. Maintains list of active connections. The socket I/O is done either by one blocking
+ * thread per client or by the NIO engine, chosen with the --engine option.
  */
 public class Server {
-    private static final int TCP_PORT = 1300; // TCP port to listen to
-    private static final int SECONDS_IN_ONE_HOUR = 60 * 60;
-    // The socket will be close when inactive for this many milliseconds
-    private static final int SOCKET_TIMEOUT_MS = SECONDS_IN_ONE_HOUR * 1000;
+    /**
+     * The outcome of forwarding a private message
+     */
+    public enum ForwardResult {
+        // Sent to the recipient, relayed to the recipient's node or stored for the recipient's next login
+        FORWARDED,
+        // No user with that name is logged in, and none has been before
+        UNKNOWN_RECIPIENT,
+        // The recipient is offline and its stored messages have reached the limit
+        INBOX_FULL
+    }
+
+    // Used from all the client threads. Logs INFO to standard output until the startup options are parsed
+    private static volatile AsyncLogger logger = new AsyncLogger(LogLevel.INFO, 1, null);
+
+    static {
+        // Write out the queued messages when the server stops
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> logger.close()));
+    }
+
+    private final ClientRegistry clients;
+    private final ServerConfig config;
+    private final Backpressure backpressure;
+    private final ServerMetrics metrics;
+    // Decides which new connections are taken on
+    private final AdmissionControl admission;
+    // The direct buffers of the socket reads and writes of the NIO engine
+    private final BufferPool bufferPool;
+    private final Presence presence = new Presence(this);
+    // Pings silent clients and disconnects the ones which stay silent
+    private final IdleReaper idleReaper;
+    // The rooms which have members, by name. A room is removed when its last member leaves
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    // The other nodes of the cluster, null when this server runs alone
+    private final Cluster cluster;
+    // The last built users reply, replaced when the register's version has moved on
+    private volatile UserListSnapshot userList = new UserListSnapshot(-1, null);
+    // Private messages to offline users, opened in run(). Null when they are refused
+    private InboxStore inbox;
+    // The past messages, opened in run(). Null when there is no history
+    private MessageHistory history;
+    // The NIO engine, started in run(). Null with the other engines
+    private volatile NioEngine nioEngine;
 
-    private final List<ClientHandler> clientHandlers = new LinkedList<>();
+    /**
+     * Server constructor
+     *
+     * @param config The startup options
+     */
+    public Server(ServerConfig config) {
+        this.config = config;
+        // Generated usernames must not clash with the ones generated by the other nodes
+        this.clients = new ClientRegistry(config.isClustered() ? "node" + config.getNodeId() + "user" : "user");
+        this.cluster = config.isClustered() ? new Cluster(this, config) : null;
+        this.backpressure = new Backpressure(config.getOutboundHighWatermark(), config.getOutboundLowWatermark(),
+                config.getOverflowPolicy(), config.getBlockTimeoutMs());
+        this.admission = new AdmissionControl(config.getMaxConnections(), config.getMaxPendingLogins(),
+                config.getMaxAcceptRate(), TimeUnit.MILLISECONDS.toNanos(config.getShedLagMs()),
+                config.getShedQueueBytes(), this::getEventLoopLagNanos, this::getQueuedBytes);
+        this.bufferPool = new BufferPool(config.getBufferPoolSize());
+        this.metrics = new ServerMetrics(this.clients, this.backpressure, this.admission, this.bufferPool);
+        this.idleReaper = new IdleReaper(TimeUnit.SECONDS.toNanos(config.getHeartbeatInterval()),
+                TimeUnit.SECONDS.toNanos(config.getHeartbeatTimeout()),
+                TimeUnit.SECONDS.toNanos(config.getIdleTimeout()), this.metrics);
+    }
 
     /**
      * Entrypoint for the application
-     * @param args Command-line arguments
+     * @param args Command-line arguments, see ServerConfig for the supported options
      */
     public static void main(String[] args) {
-        Server server = new Server();
+        ServerConfig config;
+        try {
+            config = ServerConfig.fromArgs(args);
+        } catch (IllegalArgumentException e) {
+            log(LogLevel.ERROR, e.getMessage());
+            log(ServerConfig.getUsage());
+            return;
+        }
+        try {
+            configureLogging(config);
+        } catch (IOException e) {
+            log(LogLevel.ERROR, "Could not open the log file: " + e.getMessage());
+            return;
+        }
+        Server server = new Server(config);
         server.run();
-        log("Server exiting...");
     }
 
     /**
-     * Start the TCP chat server
+     * Start the TCP chat server with the configured engine
      */
     private void run() {
+        this.registerMetrics();
+        if (this.config.getInboxDir() != null) {
+            try {
+                this.inbox = new InboxStore(Paths.get(this.config.getInboxDir()));
+            } catch (IOException e) {
+                log(LogLevel.ERROR, "Could not open the inbox store: " + e.getMessage());
+                log("Server exiting...");
+                return;
+            }
+        }
+        if (this.config.getHistoryDir() != null) {
+            try {
+                this.history = new MessageHistory(Paths.get(this.config.getHistoryDir()),
+                        this.config.getHistoryMaxSize(), TimeUnit.HOURS.toMillis(this.config.getHistoryMaxAgeHours()));
+            } catch (IOException e) {
+                log(LogLevel.ERROR, "Could not open the message history: " + e.getMessage());
+                log("Server exiting...");
+                return;
+            }
+        }
+        Thread reaper = new Thread(this.idleReaper, "idle-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+        if (this.cluster != null && !this.cluster.start()) {
+            log("Server exiting...");
+            return;
+        }
+        if (this.config.getEngine() == ServerConfig.Engine.NIO) {
+            NioEngine engine = new NioEngine(this, this.config.getPort(), this.config.getEventLoopCount());
+            this.nioEngine = engine;
+            this.bufferPool.startLeakDetection();
+            if (!engine.start()) {
+                log("Server exiting...");
+            }
+        } else {
+            this.runBlocking(this.createConnectionExecutor());
+            log("Server exiting...");
+        }
+    }
+
+    /**
+     * Make the metrics available over JMX
+     */
+    private void registerMetrics() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this.metrics,
+                    new ObjectName("no.ntnu:type=ServerMetrics"));
+        } catch (JMException e) {
+            log(LogLevel.WARN, "Could not register the metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Accept clients in a loop, serve each of them on a separate thread
+     *
+     * @param executor Runs each connection on its own thread, and the writers of the connections
+     */
+    private void runBlocking(ExecutorService executor) {
         ServerSocket welcomeSocket = this.openWelcomingSocket();
         if (welcomeSocket != null) {
             while (true) {
                 Socket clientSocket = this.acceptNextClient(welcomeSocket);
-                if (clientSocket != null) {
-                    ClientHandler clientHandler = new ClientHandler(clientSocket, this);
-                    clientHandler.start();
-                    this.storeClientHandler(clientHandler);
+                if (clientSocket != null && this.admitBlockingClient(clientSocket)) {
+                    BlockingConnection connection = new BlockingConnection(clientSocket, this, executor);
+                    this.storeClientHandler(connection.getHandler());
+                    executor.execute(connection);
                 }
             }
         }
     }
 
+    /**
+     * Decide whether to serve a newly accepted client of the blocking engines. A rejected client gets the
+     * rejection line, and the socket is closed soon after, without a thread being started for it
+     *
+     * @param clientSocket The socket of the new client
+     * @return True when the client is admitted
+     */
+    private boolean admitBlockingClient(Socket clientSocket) {
+        byte[] rejection = this.admitClient();
+        if (rejection == null) {
+            return true;
+        }
+        try {
+            clientSocket.getOutputStream().write(rejection);
+            clientSocket.shutdownOutput();
+        } catch (IOException e) {
+            log(LogLevel.DEBUG, "Could not send the rejection to a client: " + e.getMessage());
+        }
+        this.admission.closeLater(clientSocket);
+        return false;
+    }
+
+    /**
+     * Decide whether to take on a new connection, see AdmissionControl. Called only by the accepting thread
+     *
+     * @return Null when the connection is admitted, otherwise the encoded connerr line for the client
+     */
+    byte[] admitClient() {
+        return this.admission.admit(this.clients.size());
+    }
+
+    /**
+     * @return The longest lag of the event loops in nanoseconds, 0 with the engines which have none
+     */
+    private long getEventLoopLagNanos() {
+        NioEngine engine = this.nioEngine;
+        return engine != null ? engine.getMaxLagNanos() : 0;
+    }
+
+    /**
+     * @return The number of bytes in the outbound queues of all the clients
+     */
+    private long getQueuedBytes() {
+        long queuedBytes = 0;
+        for (ClientHandler handler : this.clients.getHandlers()) {
+            queuedBytes += handler.getQueuedBytes();
+        }
+        return queuedBytes;
+    }
+
+    /**
+     * Create the executor which runs the blocking connections: a new virtual thread per connection for the
+     * virtual engine, pooled platform threads otherwise. Virtual threads are looked up at runtime, so the
+     * server still builds and runs on Java 17 - there it falls back to platform threads.
+     *
+     * @return The executor for the client connections
+     */
+    private ExecutorService createConnectionExecutor() {
+        if (this.config.getEngine() == ServerConfig.Engine.VIRTUAL) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                log("Serving clients on virtual threads");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+                log("Virtual threads not available on Java " + Runtime.version().feature()
+                        + ", using platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
     /**
      * Store client handler in the register
      *
-     * @param clientHandler The client handler thread
+     * @param clientHandler The client handler
      */
-    private void storeClientHandler(ClientHandler clientHandler) {
-        this.clientHandlers.add(clientHandler);
+    void storeClientHandler(ClientHandler clientHandler) {
+        this.clients.add(clientHandler);
+        this.admission.onConnected();
+        this.idleReaper.add(clientHandler);
+        this.presence.userJoined(clientHandler.getUsername());
+        if (this.cluster != null) {
+            this.cluster.userJoined(clientHandler.getUsername());
+        }
     }
 
     /**
      * Remove client handler from the register
      *
-     * @param clientHandler The client handler thread
+     * @param clientHandler The client handler
      */
     public void removeClientHandler(ClientHandler clientHandler) {
-        this.clientHandlers.remove(clientHandler);
+        this.presence.unsubscribe(clientHandler);
+        this.clients.remove(clientHandler);
+        this.admission.onDisconnected(clientHandler.isLoggedIn());
+        this.presence.userLeft(clientHandler.getUsername());
+        if (this.cluster != null) {
+            this.cluster.userLeft(clientHandler.getUsername());
+        }
+        if (this.inbox != null && clientHandler.isLoggedIn()) {
+            this.inbox.userLoggedOut(clientHandler.getUsername());
+        }
     }
 
     /**
@@ -72,10 +300,10 @@ public class Server {
     private ServerSocket openWelcomingSocket() {
         ServerSocket welcomeSocket = null;
         try {
-            welcomeSocket = new ServerSocket(TCP_PORT);
-            log("Server listening on port " + TCP_PORT);
+            welcomeSocket = new ServerSocket(this.config.getPort());
+            log("Server listening on port " + this.config.getPort());
         } catch (IOException e) {
-            log("Could not open a listening socket: " + e.getMessage());
+            log(LogLevel.WARN, "Could not open a listening socket: " + e.getMessage());
         }
         return welcomeSocket;
     }
@@ -90,39 +318,279 @@ public class Server {
         Socket clientSocket = null;
         try {
             clientSocket = welcomeSocket.accept();
-            clientSocket.setSoTimeout(SOCKET_TIMEOUT_MS);
-            log("New client connected from " + clientSocket.getRemoteSocketAddress());
+            // Writes are coalesced by the connection itself, Nagle's algorithm would only delay them
+            clientSocket.setTcpNoDelay(true);
+            log(LogLevel.DEBUG, "New client connected from " + clientSocket.getRemoteSocketAddress());
         } catch (IOException e) {
-            log("Failed to accept a client connection: " + e.getMessage());
+            log(LogLevel.WARN, "Failed to accept a client connection: " + e.getMessage());
         }
         return clientSocket;
     }
 
     /**
-     * Log a message to standard output
+     * Return the limits of the outbound queues, shared by all the client connections
+     *
+     * @return The backpressure limits and counters
+     */
+    public Backpressure getBackpressure() {
+        return this.backpressure;
+    }
+
+    /**
+     * Return the admission control, which decides which new connections are taken on
+     *
+     * @return The admission limits and counters
+     */
+    public AdmissionControl getAdmission() {
+        return this.admission;
+    }
+
+    /**
+     * Return the pool of the socket buffers, shared by all the event loops and their connections
+     *
+     * @return The buffer pool
+     */
+    public BufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+
+    /**
+     * Return the presence subscriptions, which push the changes of the user list to the subscribed clients
+     *
+     * @return The presence subscriptions
+     */
+    public Presence getPresence() {
+        return this.presence;
+    }
+
+    /**
+     * Return the message history
+     *
+     * @return The message history, null when the server keeps no history
+     */
+    public MessageHistory getHistory() {
+        return this.history;
+    }
+
+    /**
+     * Return the metrics of the server, shared by all the client connections
+     *
+     * @return The metrics
+     */
+    public ServerMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Check the token a client sent with an admin command. Takes the same time whatever the token is, so the
+     * token can not be guessed one character at a time
+     *
+     * @param token The token sent by the client
+     * @return True when admin commands are enabled and the token is correct
+     */
+    public boolean isAdminToken(String token) {
+        String adminToken = this.config.getAdminToken();
+        return adminToken != null && MessageDigest.isEqual(adminToken.getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Log an INFO message
+     *
+     * @param message The message
      */
     public static void log(String message) {
-        System.out.println(message);
+        logger.log(LogLevel.INFO, message);
+    }
+
+    /**
+     * Log a message. The message is only queued, it is written later by the logger's flusher thread
+     *
+     * @param level   Severity of the message
+     * @param message The message
+     */
+    public static void log(LogLevel level, String message) {
+        logger.log(level, message);
+    }
+
+    /**
+     * Check whether a per-message trace line should be logged now. Call it before building the trace message,
+     * so the message costs nothing when trace logging is off or this message is not sampled
+     *
+     * @return True if the trace message should be logged
+     */
+    public static boolean isTraceSampled() {
+        return logger.isTraceSampled();
+    }
+
+    /**
+     * Replace the default logger with the one described by the startup options
+     *
+     * @param config The startup options
+     * @throws IOException When the log file can not be opened
+     */
+    private static void configureLogging(ServerConfig config) throws IOException {
+        RotatingLogFile file = null;
+        if (config.getLogFile() != null) {
+            file = new RotatingLogFile(Paths.get(config.getLogFile()), config.getLogMaxSize(), config.getLogFileCount());
+        }
+        AsyncLogger previous = logger;
+        logger = new AsyncLogger(config.getLogLevel(), config.getTraceSampleRate(), file);
+        previous.close();
+    }
+
+    /**
+     * Forward a message to all client sockets, except the socket belonging to the original sender.
+     * The message is encoded once, all recipients share the same bytes. The message is only queued
+     * for each recipient, so a slow recipient does not hold up the sender. In a cluster, the message is
+     * also relayed once to every other node, which delivers it to its own clients.
+     *
+     * @param line   The encoded message to forward, see Message.encodeRelayedLine(). Must not be modified
+     *               afterwards
+     * @param sender The original sender who will not receive this message
+     * @return The number of clients who received the message, including the clients of the other nodes
+     */
+    public int forwardToAllClientsExcept(byte[] line, ClientHandler sender) {
+        int recipientCount = 0;
+        for (ClientHandler c : this.clients.getHandlers()) {
+            if (c != sender) {
+                c.sendBroadcast(line);
+                recipientCount++;
+            }
+        }
+        this.metrics.recordFanOut(recipientCount);
+        if (this.history != null) {
+            this.history.record(MessageHistory.KIND_PUBLIC, sender.getUsername(), "", line);
+        }
+        if (this.cluster != null) {
+            this.cluster.relayBroadcast(line);
+            recipientCount += this.cluster.getRemoteUserCount();
+        }
+        return recipientCount;
+    }
+
+    /**
+     * Deliver a public message relayed by another cluster node to all the clients of this node
+     *
+     * @param line The encoded msg line
+     */
+    void deliverToLocalClients(byte[] line) {
+        int recipientCount = 0;
+        for (ClientHandler c : this.clients.getHandlers()) {
+            c.sendBroadcast(line);
+            recipientCount++;
+        }
+        this.metrics.recordFanOut(recipientCount);
+        if (this.history != null) {
+            this.history.record(MessageHistory.KIND_PUBLIC, "", "", line);
+        }
     }
 
     /**
-     * Forward a message to all client sockets, except the socket belonging to the original sender
+     * Deliver a private message relayed by another cluster node to one logged-in client of this node, and record
+     * it in the history of this node too, so the recipient finds it here
      *
-     * @param message The message to forward
-     * @param sender  The original sender who will not receive this message
+     * @param sender    The username of the sender, on the other node
+     * @param recipient The username of the recipient
+     * @param line      The privmsg line, without the newline
+     */
+    void deliverToLocalClient(String sender, String recipient, String line) {
+        ClientHandler clientHandler = this.clients.getByUsername(recipient);
+        byte[] encoded = Message.encodeLine(line);
+        boolean delivered = false;
+        if (clientHandler != null && clientHandler.isLoggedIn()) {
+            clientHandler.sendPrivateMessage(encoded);
+            delivered = true;
+        } else if (this.inbox != null) {
+            // The recipient has left since the other node looked it up
+            delivered = this.inbox.store(recipient, encoded) == InboxStore.StoreResult.STORED;
+            if (!delivered) {
+                log(LogLevel.WARN, "Dropped a relayed private message to " + recipient + ", the inbox is full");
+            }
+        }
+        if (delivered && this.history != null) {
+            this.history.record(MessageHistory.KIND_PRIVATE, sender, recipient, encoded);
+        }
+    }
+
+    /**
+     * Add a client to a room, creating the room when it does not exist yet
+     *
+     * @param roomName The name of the room
+     * @param handler  The client which joins
+     */
+    public void joinRoom(String roomName, ClientHandler handler) {
+        // compute() is atomic per room, so a join never lands in a room which is being removed
+        this.rooms.compute(roomName, (name, room) -> {
+            Room joined = room != null ? room : new Room(name);
+            joined.add(handler);
+            return joined;
+        });
+    }
+
+    /**
+     * Remove a client from a room, removing the room when it has no members left
+     *
+     * @param roomName The name of the room
+     * @param handler  The client which leaves
+     */
+    public void leaveRoom(String roomName, ClientHandler handler) {
+        this.rooms.computeIfPresent(roomName, (name, room) -> {
+            room.remove(handler);
+            return room.isEmpty() ? null : room;
+        });
+    }
+
+    /**
+     * Forward a message to the members of a room, except the sender. Like forwardToAllClientsExcept(), the
+     * message is encoded once and only queued for each recipient
+     *
+     * @param roomName The name of the room
+     * @param line     The encoded message to forward, see Message.encodeRelayedLine(). Must not be modified
+     *                 afterwards
+     * @param sender   The original sender who will not receive this message
      * @return The number of clients who received the message
      */
-    public int forwardToAllClientsExcept(String message, ClientHandler sender) {
+    public int forwardToRoomExcept(String roomName, byte[] line, ClientHandler sender) {
+        Room room = this.rooms.get(roomName);
+        if (room == null) {
+            return 0;
+        }
         int recipientCount = 0;
-        for (ClientHandler c : this.clientHandlers) {
+        for (ClientHandler c : room.getMembers()) {
             if (c != sender) {
-                c.send(message);
+                c.sendBroadcast(line);
                 recipientCount++;
             }
         }
+        this.metrics.recordFanOut(recipientCount);
+        if (this.history != null) {
+            this.history.record(MessageHistory.KIND_ROOM, sender.getUsername(), roomName, line);
+        }
         return recipientCount;
     }
 
+    /**
+     * Return the usernames of the members of a room, separated by spaces
+     *
+     * @param roomName The name of the room
+     * @return The usernames, an empty string when the room has no members
+     */
+    public String getRoomUsernames(String roomName) {
+        Room room = this.rooms.get(roomName);
+        if (room == null) {
+            return "";
+        }
+        StringBuilder usernames = new StringBuilder();
+        for (ClientHandler c : room.getMembers()) {
+            if (usernames.length() > 0) {
+                usernames.append(' ');
+            }
+            usernames.append(c.getUsername());
+        }
+        return usernames.toString();
+    }
+
     /**
      * Check if a given username is already available or a logged-in users has already taken it
      *
@@ -130,53 +598,166 @@ public class Server {
      * @return True if username available, false if someone already uses it
      */
     public boolean isUsernameAvailable(String username) {
-        ClientHandler clientHandler = this.getHandlerByUsername(username);
-        return clientHandler == null;
+        return this.clients.getByUsername(username) == null
+                && (this.cluster == null || !this.cluster.isRemoteUser(username));
     }
 
     /**
-     * Find a client handler with the given username
+     * Claim a new generated username for the given client
      *
-     * @param username The username of desired client handler
-     * @return The desired client handler or null if none found with that username
+     * @param clientHandler The client handler which will own the username
+     * @return The claimed username
      */
-    private ClientHandler getHandlerByUsername(String username) {
-        ClientHandler clientHandler = null;
-        Iterator<ClientHandler> it = this.clientHandlers.iterator();
-        while (clientHandler == null && it.hasNext()) {
-            ClientHandler c = it.next();
-            if (c.hasUsername(username)) {
-                clientHandler = c;
-            }
+    public String claimGeneratedUsername(ClientHandler clientHandler) {
+        return this.clients.claimGeneratedUsername(clientHandler);
+    }
+
+    /**
+     * Atomically claim a username for the given client, releasing its current username
+     *
+     * @param clientHandler The client handler which will own the username
+     * @param username      The desired username
+     * @return True when the username was claimed, false when someone else already uses it
+     */
+    public boolean claimUsername(ClientHandler clientHandler, String username) {
+        // The other nodes' users are only checked, not locked: two nodes may still give the same name to two
+        // users who log in at the same moment
+        if (this.cluster != null && this.cluster.isRemoteUser(username)) {
+            return false;
+        }
+        return this.clients.claimUsername(clientHandler, clientHandler.getUsername(), username);
+    }
+
+    /**
+     * Called by a client handler once it has taken the username it claimed
+     *
+     * @param clientHandler The client handler which changed its username
+     * @param oldUsername   The username the client had before
+     */
+    public void onUsernameChanged(ClientHandler clientHandler, String oldUsername) {
+        this.clients.userListChanged();
+        this.presence.userLeft(oldUsername);
+        this.presence.userJoined(clientHandler.getUsername());
+        if (this.cluster != null) {
+            this.cluster.userLeft(oldUsername);
+            this.cluster.userJoined(clientHandler.getUsername());
+        }
+        if (this.inbox != null && oldUsername != null) {
+            this.inbox.userLoggedOut(oldUsername);
+        }
+    }
+
+    /**
+     * Called by a client handler once it has logged in: the private messages stored while the user was offline
+     * are sent to it, after the loginok
+     *
+     * @param clientHandler The client handler which logged in
+     */
+    public void onLoggedIn(ClientHandler clientHandler) {
+        if (this.inbox != null) {
+            String username = clientHandler.getUsername();
+            this.inbox.userLoggedIn(username, messages -> messages.forEach(clientHandler::sendPrivateMessage),
+                    () -> !clientHandler.isDisconnected() && username.equals(clientHandler.getUsername()));
         }
-        return clientHandler;
     }
 
     /**
-     * Return all usernames currently in use (all logged-in users), separated by spaces
+     * Called by the cluster when the users of the other nodes have changed
+     */
+    void onRemoteUsersChanged() {
+        this.clients.userListChanged();
+    }
+
+    /**
+     * Return all usernames currently in use (all logged-in users), separated by spaces. In a cluster, the
+     * users of all the nodes
      *
      * @return All active usernames, separated by spaces
      */
     public String getActiveUsernames() {
-        List<String> usernames = new LinkedList<>();
-        this.clientHandlers.forEach(c -> usernames.add(c.getUsername()));
-        return String.join(" ", usernames);
+        StringBuilder usernames = new StringBuilder();
+        for (ClientHandler c : this.clients.getHandlers()) {
+            if (usernames.length() > 0) {
+                usernames.append(' ');
+            }
+            usernames.append(c.getUsername());
+        }
+        if (this.cluster != null) {
+            for (String username : this.cluster.getRemoteUsernames()) {
+                if (usernames.length() > 0) {
+                    usernames.append(' ');
+                }
+                usernames.append(username);
+            }
+        }
+        return usernames.toString();
     }
 
     /**
-     * Forward a private message to a specific recipient
+     * Return the usernames of the clients connected to this server, without the other cluster nodes' users
      *
-     * @param recipient    The username of the recipient
-     * @param wholeMessage The whole message to forward, including the privmsg, recipient, etc
-     * @return true on success, false on error (user not found)
+     * @return The usernames
      */
-    public boolean forwardPrivateMessage(String recipient, String wholeMessage) {
-        ClientHandler clientHandler = this.getHandlerByUsername(recipient);
+    List<String> getLocalUsernames() {
+        List<String> usernames = new ArrayList<>();
+        for (ClientHandler c : this.clients.getHandlers()) {
+            usernames.add(c.getUsername());
+        }
+        return usernames;
+    }
+
+    /**
+     * Return the encoded reply to the users command. The reply is built only when the user list has changed
+     * since it was last built, otherwise all the clients get the same shared bytes.
+     *
+     * @return The encoded users reply, must not be modified
+     */
+    public byte[] getEncodedUserList() {
+        UserListSnapshot snapshot = this.userList;
+        // Read the version before building: if the list changes while it is built, the next call rebuilds it
+        long version = this.clients.getVersion();
+        if (snapshot.getVersion() != version) {
+            snapshot = new UserListSnapshot(version, Message.encodeLine("users " + this.getActiveUsernames()));
+            this.userList = snapshot;
+        }
+        return snapshot.getLine();
+    }
+
+    /**
+     * Forward a private message to a specific recipient. When the recipient is offline but has logged in
+     * before, the message is stored and delivered on the recipient's next login
+     *
+     * @param sender    The username of the sender
+     * @param recipient The username of the recipient
+     * @param line      The whole encoded message to forward, including the privmsg, recipient, etc. Must not be
+     *                  modified afterwards
+     * @return FORWARDED on success, or the error
+     */
+    public ForwardResult forwardPrivateMessage(String sender, String recipient, byte[] line) {
+        ClientHandler clientHandler = this.clients.getByUsername(recipient);
+        ForwardResult result;
         if (clientHandler != null && clientHandler.isLoggedIn()) {
-            clientHandler.send(wholeMessage);
-            return true;
+            clientHandler.sendPrivateMessage(line);
+            result = ForwardResult.FORWARDED;
+        } else if (clientHandler != null) {
+            result = ForwardResult.UNKNOWN_RECIPIENT;
+        } else if (this.cluster != null && this.cluster.relayTo(sender, recipient, line)) {
+            // The owning node checks that the recipient is logged in
+            result = ForwardResult.FORWARDED;
         } else {
-            return false;
+            InboxStore.StoreResult stored = this.inbox != null
+                    ? this.inbox.store(recipient, line) : InboxStore.StoreResult.UNKNOWN_USER;
+            if (stored == InboxStore.StoreResult.STORED) {
+                result = ForwardResult.FORWARDED;
+            } else if (stored == InboxStore.StoreResult.FULL) {
+                result = ForwardResult.INBOX_FULL;
+            } else {
+                result = ForwardResult.UNKNOWN_RECIPIENT;
+            }
+        }
+        if (result == ForwardResult.FORWARDED && this.history != null) {
+            this.history.record(MessageHistory.KIND_PRIVATE, sender, recipient, line);
         }
+        return result;
     }
 }
@@ -0,0 +1,550 @@
+package no.ntnu;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Startup options for the chat server, parsed from the command line. Every option has the form
+ * --name=value, options that are not given keep their default value.
+ */
+public class ServerConfig {
+    /**
+     * The engine which does the socket I/O for the client connections
+     */
+    public enum Engine {
+        // One platform thread per client, blocking on the socket
+        BLOCKING,
+        // One virtual thread per client, blocking on the socket (needs Java 21 at runtime)
+        VIRTUAL,
+        // A few event-loop threads serving all the clients with non-blocking sockets
+        NIO
+    }
+
+    /**
+     * Another node of the cluster
+     *
+     * @param nodeId The node id of the other node
+     * @param host   Host of the other node
+     * @param port   The cluster port of the other node
+     */
+    public record Peer(int nodeId, String host, int port) {
+    }
+
+    private static final int DEFAULT_TCP_PORT = 1300;
+    private static final int DEFAULT_HIGH_WATERMARK = 1024 * 1024;
+    private static final int DEFAULT_LOW_WATERMARK = 256 * 1024;
+    private static final int DEFAULT_BLOCK_TIMEOUT_MS = 5000;
+    private static final int DEFAULT_LOG_MAX_SIZE = 10 * 1024 * 1024;
+    private static final int DEFAULT_LOG_FILE_COUNT = 5;
+    private static final int DEFAULT_TRACE_SAMPLE_RATE = 100;
+    private static final int DEFAULT_HEARTBEAT_INTERVAL = 10;
+    private static final int DEFAULT_HEARTBEAT_TIMEOUT = 30;
+    private static final int DEFAULT_IDLE_TIMEOUT = 60 * 60;
+    private static final int DEFAULT_SHED_LAG_MS = 500;
+    private static final int DEFAULT_SHED_QUEUE_BYTES = 256 * 1024 * 1024;
+    private static final int DEFAULT_BUFFER_POOL_SIZE = 64 * 1024 * 1024;
+    private static final int DEFAULT_HISTORY_MAX_SIZE = 256 * 1024 * 1024;
+    private static final int DEFAULT_HISTORY_MAX_AGE_HOURS = 7 * 24;
+    private static final String DEFAULT_CLUSTER_BIND = "127.0.0.1";
+
+    private int port = DEFAULT_TCP_PORT;
+    private Engine engine = Engine.BLOCKING;
+    private int eventLoopCount = Runtime.getRuntime().availableProcessors();
+    private int outboundHighWatermark = DEFAULT_HIGH_WATERMARK;
+    private int outboundLowWatermark = DEFAULT_LOW_WATERMARK;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private int blockTimeoutMs = DEFAULT_BLOCK_TIMEOUT_MS;
+    private LogLevel logLevel = LogLevel.INFO;
+    private String logFile = null;
+    private int logMaxSize = DEFAULT_LOG_MAX_SIZE;
+    private int logFileCount = DEFAULT_LOG_FILE_COUNT;
+    private int traceSampleRate = DEFAULT_TRACE_SAMPLE_RATE;
+    private String adminToken = null;
+    // Admission of new connections, 0 for no limit
+    private int maxConnections = 0;
+    private int maxPendingLogins = 0;
+    private int maxAcceptRate = 0;
+    private int shedLagMs = DEFAULT_SHED_LAG_MS;
+    private int shedQueueBytes = DEFAULT_SHED_QUEUE_BYTES;
+    // Direct memory of the buffer pool, 0 for no limit
+    private int bufferPoolSize = DEFAULT_BUFFER_POOL_SIZE;
+    // Idle clients, in seconds
+    private int heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+    private int heartbeatTimeout = DEFAULT_HEARTBEAT_TIMEOUT;
+    private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    // Cluster mode: 0 when this server runs alone
+    private int nodeId = 0;
+    private int clusterPort = 0;
+    private final List<Peer> peers = new ArrayList<>();
+    // The cluster port accepts only on this address, and only nodes which know the secret when there is one
+    private String clusterBind = DEFAULT_CLUSTER_BIND;
+    private String clusterSecret = null;
+    // Where private messages to offline users are kept, null when they are refused
+    private String inboxDir = null;
+    // Where the message history is kept, null when there is no history
+    private String historyDir = null;
+    private int historyMaxSize = DEFAULT_HISTORY_MAX_SIZE;
+    private int historyMaxAgeHours = DEFAULT_HISTORY_MAX_AGE_HOURS;
+
+    /**
+     * Create the configuration from the command-line arguments
+     *
+     * @param args Command-line arguments
+     * @return The configuration
+     * @throws IllegalArgumentException When an option is unknown or has an invalid value
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            String[] parts = arg.substring(2).split("=", 2);
+            config.setOption(parts[0], parts[1]);
+        }
+        if (config.outboundLowWatermark > config.outboundHighWatermark) {
+            throw new IllegalArgumentException("Option --low-watermark must not be above --high-watermark");
+        }
+        if (config.heartbeatInterval >= config.heartbeatTimeout) {
+            throw new IllegalArgumentException("Option --heartbeat-interval must be below --heartbeat-timeout");
+        }
+        config.checkClusterOptions();
+        return config;
+    }
+
+    /**
+     * Set one option
+     *
+     * @param name  The name of the option, without the leading dashes
+     * @param value The value of the option
+     * @throws IllegalArgumentException When the option is unknown or the value is invalid
+     */
+    private void setOption(String name, String value) {
+        switch (name) {
+            case "port":
+                this.port = parsePositiveInt(name, value);
+                break;
+            case "engine":
+                this.engine = parseEngine(value);
+                break;
+            case "event-loops":
+                this.eventLoopCount = parsePositiveInt(name, value);
+                break;
+            case "high-watermark":
+                this.outboundHighWatermark = parsePositiveInt(name, value);
+                break;
+            case "low-watermark":
+                this.outboundLowWatermark = parsePositiveInt(name, value);
+                break;
+            case "overflow-policy":
+                this.overflowPolicy = parseOverflowPolicy(value);
+                break;
+            case "block-timeout-ms":
+                this.blockTimeoutMs = parsePositiveInt(name, value);
+                break;
+            case "log-level":
+                this.logLevel = parseLogLevel(value);
+                break;
+            case "log-file":
+                this.logFile = value;
+                break;
+            case "log-max-size":
+                this.logMaxSize = parsePositiveInt(name, value);
+                break;
+            case "log-files":
+                this.logFileCount = parsePositiveInt(name, value);
+                break;
+            case "trace-sample":
+                this.traceSampleRate = parsePositiveInt(name, value);
+                break;
+            case "admin-token":
+                if (value.isEmpty() || value.contains(" ")) {
+                    throw new IllegalArgumentException("Option --admin-token must be one word");
+                }
+                this.adminToken = value;
+                break;
+            case "max-connections":
+                this.maxConnections = parseLimit(name, value);
+                break;
+            case "max-pending-logins":
+                this.maxPendingLogins = parseLimit(name, value);
+                break;
+            case "max-accept-rate":
+                this.maxAcceptRate = parseLimit(name, value);
+                break;
+            case "shed-lag-ms":
+                this.shedLagMs = parseLimit(name, value);
+                break;
+            case "shed-queue-bytes":
+                this.shedQueueBytes = parseLimit(name, value);
+                break;
+            case "buffer-pool-size":
+                this.bufferPoolSize = parseLimit(name, value);
+                break;
+            case "heartbeat-interval":
+                this.heartbeatInterval = parsePositiveInt(name, value);
+                break;
+            case "heartbeat-timeout":
+                this.heartbeatTimeout = parsePositiveInt(name, value);
+                break;
+            case "idle-timeout":
+                this.idleTimeout = parsePositiveInt(name, value);
+                break;
+            case "node-id":
+                this.nodeId = parsePositiveInt(name, value);
+                break;
+            case "cluster-port":
+                this.clusterPort = parsePositiveInt(name, value);
+                break;
+            case "peers":
+                this.peers.clear();
+                for (String peer : value.split(",")) {
+                    this.peers.add(parsePeer(peer));
+                }
+                break;
+            case "cluster-bind":
+                this.clusterBind = value;
+                break;
+            case "cluster-secret":
+                if (value.isEmpty() || value.contains(" ")) {
+                    throw new IllegalArgumentException("Option --cluster-secret must be one word");
+                }
+                this.clusterSecret = value;
+                break;
+            case "inbox-dir":
+                this.inboxDir = value;
+                break;
+            case "history-dir":
+                this.historyDir = value;
+                break;
+            case "history-max-size":
+                this.historyMaxSize = parsePositiveInt(name, value);
+                break;
+            case "history-max-age":
+                this.historyMaxAgeHours = parsePositiveInt(name, value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: --" + name);
+        }
+    }
+
+    /**
+     * Check that the cluster options fit together: a node of a cluster needs a node id and a cluster port,
+     * and its peers must have other node ids
+     *
+     * @throws IllegalArgumentException When the options do not fit together
+     */
+    private void checkClusterOptions() {
+        boolean clustered = this.nodeId != 0 || this.clusterPort != 0 || !this.peers.isEmpty();
+        if (clustered && (this.nodeId == 0 || this.clusterPort == 0)) {
+            throw new IllegalArgumentException("A cluster node needs both --node-id and --cluster-port");
+        }
+        for (Peer peer : this.peers) {
+            if (peer.nodeId() == this.nodeId) {
+                throw new IllegalArgumentException("Option --peers must not contain this node: " + peer.nodeId());
+            }
+        }
+    }
+
+    /**
+     * Parse the address of a peer node, of the form id@host:port
+     *
+     * @param value The address
+     * @return The peer
+     * @throws IllegalArgumentException When the address is invalid
+     */
+    private static Peer parsePeer(String value) {
+        int at = value.indexOf('@');
+        int colon = value.lastIndexOf(':');
+        if (at <= 0 || colon <= at + 1) {
+            throw new IllegalArgumentException("Peers must have the form id@host:port: " + value);
+        }
+        return new Peer(parsePositiveInt("peers", value.substring(0, at)), value.substring(at + 1, colon),
+                parsePositiveInt("peers", value.substring(colon + 1)));
+    }
+
+    /**
+     * Parse the name of a server engine
+     *
+     * @param value The engine name, case-insensitive
+     * @return The engine
+     * @throws IllegalArgumentException When there is no engine with such name
+     */
+    private static Engine parseEngine(String value) {
+        try {
+            return Engine.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown engine: " + value);
+        }
+    }
+
+    /**
+     * Parse the name of an overflow policy
+     *
+     * @param value The policy name, case-insensitive, with dashes instead of underscores (drop-oldest)
+     * @return The policy
+     * @throws IllegalArgumentException When there is no policy with such name
+     */
+    private static OverflowPolicy parseOverflowPolicy(String value) {
+        try {
+            return OverflowPolicy.valueOf(value.toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown overflow policy: " + value);
+        }
+    }
+
+    /**
+     * Parse the name of a log level
+     *
+     * @param value The level name, case-insensitive
+     * @return The log level
+     * @throws IllegalArgumentException When there is no level with such name
+     */
+    private static LogLevel parseLogLevel(String value) {
+        try {
+            return LogLevel.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown log level: " + value);
+        }
+    }
+
+    /**
+     * Parse a limit option value: a positive integer, or 0 for no limit
+     *
+     * @param name  The name of the option, used in the error message
+     * @param value The value to parse
+     * @return The parsed value
+     * @throws IllegalArgumentException When the value is not a number or is negative
+     */
+    private static int parseLimit(String name, String value) {
+        return "0".equals(value) ? 0 : parsePositiveInt(name, value);
+    }
+
+    /**
+     * Parse a positive integer option value
+     *
+     * @param name  The name of the option, used in the error message
+     * @param value The value to parse
+     * @return The parsed value
+     * @throws IllegalArgumentException When the value is not a positive integer
+     */
+    private static int parsePositiveInt(String name, String value) {
+        int result;
+        try {
+            result = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option --" + name + " must be a number: " + value);
+        }
+        if (result <= 0) {
+            throw new IllegalArgumentException("Option --" + name + " must be positive: " + value);
+        }
+        return result;
+    }
+
+    /**
+     * Return a short description of all the options, to be shown to the user
+     *
+     * @return The usage text
+     */
+    public static String getUsage() {
+        return "Options:\n"
+                + "  --port=<port>          TCP port to listen on (default " + DEFAULT_TCP_PORT + ")\n"
+                + "  --engine=blocking|virtual|nio\n"
+                + "                         Platform thread per client, virtual thread per client or\n"
+                + "                         selector-based event loops (default blocking)\n"
+                + "  --event-loops=<count>  Number of event-loop threads for the nio engine (default: CPU count)\n"
+                + "  --high-watermark=<bytes>\n"
+                + "                         Queued outgoing bytes per client above which the overflow policy\n"
+                + "                         kicks in (default " + DEFAULT_HIGH_WATERMARK + ")\n"
+                + "  --low-watermark=<bytes>\n"
+                + "                         Queued bytes below which a slow client is considered caught up\n"
+                + "                         (default " + DEFAULT_LOW_WATERMARK + ")\n"
+                + "  --overflow-policy=block|drop-oldest|disconnect\n"
+                + "                         What to do with a client above the high watermark: make the sender\n"
+                + "                         wait, drop the oldest broadcasts, or disconnect it (default drop-oldest)\n"
+                + "  --block-timeout-ms=<ms>\n"
+                + "                         How long the block policy waits before disconnecting the client\n"
+                + "                         (default " + DEFAULT_BLOCK_TIMEOUT_MS + ")\n"
+                + "  --log-level=trace|debug|info|warn|error|off\n"
+                + "                         Lowest severity of the logged messages (default info)\n"
+                + "  --log-file=<path>      Write the log to this file instead of standard output\n"
+                + "  --log-max-size=<bytes> Size at which the log file is rotated (default " + DEFAULT_LOG_MAX_SIZE + ")\n"
+                + "  --log-files=<count>    Number of log files to keep, including the current one\n"
+                + "                         (default " + DEFAULT_LOG_FILE_COUNT + ")\n"
+                + "  --trace-sample=<n>     With trace level, log one received message out of n\n"
+                + "                         (default " + DEFAULT_TRACE_SAMPLE_RATE + ")\n"
+                + "  --admin-token=<token>  Enables the stats command for clients which send this token\n"
+                + "                         (default: stats disabled)\n"
+                + "  --max-connections=<count>\n"
+                + "                         Clients above which new connections are rejected\n"
+                + "                         (default 0, no limit)\n"
+                + "  --max-pending-logins=<count>\n"
+                + "                         Clients which have not logged in yet above which new connections\n"
+                + "                         are rejected (default 0, no limit)\n"
+                + "  --max-accept-rate=<count>\n"
+                + "                         New connections accepted per second (default 0, no limit)\n"
+                + "  --shed-lag-ms=<ms>     Event-loop lag above which new connections are rejected\n"
+                + "                         (default " + DEFAULT_SHED_LAG_MS + ")\n"
+                + "  --shed-queue-bytes=<bytes>\n"
+                + "                         Bytes in all the outbound queues above which new connections are\n"
+                + "                         rejected (default " + DEFAULT_SHED_QUEUE_BYTES + ")\n"
+                + "  --buffer-pool-size=<bytes>\n"
+                + "                         Direct memory the nio engine pools for socket buffers, 0 for no limit\n"
+                + "                         (default " + DEFAULT_BUFFER_POOL_SIZE + ")\n"
+                + "  --heartbeat-interval=<seconds>\n"
+                + "                         Silence after which clients which use heartbeats are pinged\n"
+                + "                         (default " + DEFAULT_HEARTBEAT_INTERVAL + ")\n"
+                + "  --heartbeat-timeout=<seconds>\n"
+                + "                         Silence after which they are disconnected (default " + DEFAULT_HEARTBEAT_TIMEOUT + ")\n"
+                + "  --idle-timeout=<seconds>\n"
+                + "                         Silence after which other clients are disconnected (default " + DEFAULT_IDLE_TIMEOUT + ")\n"
+                + "  --node-id=<id>         Run as node <id> (a positive number) of a cluster\n"
+                + "  --cluster-port=<port>  TCP port on which this node accepts the other nodes\n"
+                + "  --peers=<id>@<host>:<port>,...\n"
+                + "                         The other nodes of the cluster, with their cluster ports\n"
+                + "  --cluster-bind=<address>\n"
+                + "                         Address on which the cluster port accepts the other nodes\n"
+                + "                         (default " + DEFAULT_CLUSTER_BIND + ", use 0.0.0.0 for all)\n"
+                + "  --cluster-secret=<secret>\n"
+                + "                         Shared secret the other nodes must send (default: none)\n"
+                + "  --inbox-dir=<path>     Keep private messages to offline users in this directory until they\n"
+                + "                         log in (default: such messages are refused)\n"
+                + "  --history-dir=<path>   Keep the message history in this directory (default: no history)\n"
+                + "  --history-max-size=<bytes>\n"
+                + "                         Size above which the oldest history is deleted\n"
+                + "                         (default " + DEFAULT_HISTORY_MAX_SIZE + ")\n"
+                + "  --history-max-age=<hours>\n"
+                + "                         Age above which history is deleted (default " + DEFAULT_HISTORY_MAX_AGE_HOURS + ")";
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    public Engine getEngine() {
+        return this.engine;
+    }
+
+    public int getEventLoopCount() {
+        return this.eventLoopCount;
+    }
+
+    public int getOutboundHighWatermark() {
+        return this.outboundHighWatermark;
+    }
+
+    public int getOutboundLowWatermark() {
+        return this.outboundLowWatermark;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return this.overflowPolicy;
+    }
+
+    public int getBlockTimeoutMs() {
+        return this.blockTimeoutMs;
+    }
+
+    public LogLevel getLogLevel() {
+        return this.logLevel;
+    }
+
+    public String getLogFile() {
+        return this.logFile;
+    }
+
+    public int getLogMaxSize() {
+        return this.logMaxSize;
+    }
+
+    public int getLogFileCount() {
+        return this.logFileCount;
+    }
+
+    public int getTraceSampleRate() {
+        return this.traceSampleRate;
+    }
+
+    public String getAdminToken() {
+        return this.adminToken;
+    }
+
+    public int getMaxConnections() {
+        return this.maxConnections;
+    }
+
+    public int getMaxPendingLogins() {
+        return this.maxPendingLogins;
+    }
+
+    public int getMaxAcceptRate() {
+        return this.maxAcceptRate;
+    }
+
+    public int getShedLagMs() {
+        return this.shedLagMs;
+    }
+
+    public int getShedQueueBytes() {
+        return this.shedQueueBytes;
+    }
+
+    public int getBufferPoolSize() {
+        return this.bufferPoolSize;
+    }
+
+    public int getHeartbeatInterval() {
+        return this.heartbeatInterval;
+    }
+
+    public int getHeartbeatTimeout() {
+        return this.heartbeatTimeout;
+    }
+
+    public int getIdleTimeout() {
+        return this.idleTimeout;
+    }
+
+    public int getNodeId() {
+        return this.nodeId;
+    }
+
+    /**
+     * @return True when this server is a node of a cluster
+     */
+    public boolean isClustered() {
+        return this.nodeId != 0;
+    }
+
+    public int getClusterPort() {
+        return this.clusterPort;
+    }
+
+    public List<Peer> getPeers() {
+        return this.peers;
+    }
+
+    public String getClusterBind() {
+        return this.clusterBind;
+    }
+
+    public String getClusterSecret() {
+        return this.clusterSecret;
+    }
+
+    public String getInboxDir() {
+        return this.inboxDir;
+    }
+
+    public String getHistoryDir() {
+        return this.historyDir;
+    }
+
+    public int getHistoryMaxSize() {
+        return this.historyMaxSize;
+    }
+
+    public int getHistoryMaxAgeHours() {
+        return this.historyMaxAgeHours;
+    }
+}
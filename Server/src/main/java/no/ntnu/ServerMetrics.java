@@ -0,0 +1,288 @@
+package no.ntnu;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Live numbers about the server: requests and processing latency per command, bytes in and out, connected and
+ * logged-in clients, fan-out of the public messages, the backpressure counters, the idle disconnects, the rejected
+ * connections and the use of the buffer pool. Recording is lock-free
+ * (LongAdders and striped histograms), so the client threads never wait for each other. The numbers are read
+ * over JMX or with the admin-only stats command.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    private static final Command[] COMMANDS = Command.values();
+
+    private final ClientRegistry clients;
+    private final Backpressure backpressure;
+    private final AdmissionControl admission;
+    private final BufferPool bufferPool;
+    // Indexed by the ordinal of the command
+    private final LongAdder[] requests = new LongAdder[COMMANDS.length];
+    private final StripedHistogram[] latencies = new StripedHistogram[COMMANDS.length];
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final StripedHistogram fanOut = new StripedHistogram();
+    private final LongAdder idleDisconnects = new LongAdder();
+
+    /**
+     * ServerMetrics constructor
+     *
+     * @param clients      The registry of the clients, for the client gauges
+     * @param backpressure The limits of the outbound queues, with their counters
+     * @param admission    The limits of new connections, with their counters
+     * @param bufferPool   The pool of the socket buffers, with its counters
+     */
+    public ServerMetrics(ClientRegistry clients, Backpressure backpressure, AdmissionControl admission,
+                         BufferPool bufferPool) {
+        this.clients = clients;
+        this.backpressure = backpressure;
+        this.admission = admission;
+        this.bufferPool = bufferPool;
+        for (int i = 0; i < COMMANDS.length; i++) {
+            this.requests[i] = new LongAdder();
+            this.latencies[i] = new StripedHistogram();
+        }
+    }
+
+    /**
+     * Count one handled request
+     *
+     * @param command      The command of the request
+     * @param latencyNanos How long it took to handle the request
+     */
+    public void recordRequest(Command command, long latencyNanos) {
+        this.requests[command.ordinal()].increment();
+        this.latencies[command.ordinal()].record(latencyNanos);
+    }
+
+    /**
+     * Count bytes received from a client
+     *
+     * @param bytes The number of bytes
+     */
+    public void countBytesIn(long bytes) {
+        this.bytesIn.add(bytes);
+    }
+
+    /**
+     * Count bytes written to a client
+     *
+     * @param bytes The number of bytes
+     */
+    public void countBytesOut(long bytes) {
+        this.bytesOut.add(bytes);
+    }
+
+    /**
+     * Record the number of recipients of one public message
+     *
+     * @param recipients The number of clients the message was forwarded to
+     */
+    public void recordFanOut(int recipients) {
+        this.fanOut.record(recipients);
+    }
+
+    /**
+     * Count one client disconnected because it was silent for too long
+     */
+    public void countIdleDisconnect() {
+        this.idleDisconnects.increment();
+    }
+
+    @Override
+    public long getConnectedClients() {
+        return this.clients.size();
+    }
+
+    @Override
+    public long getLoggedInClients() {
+        return this.clients.getHandlers().stream().filter(ClientHandler::isLoggedIn).count();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return this.bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return this.bytesOut.sum();
+    }
+
+    @Override
+    public Map<String, Long> getRequestCounts() {
+        return this.perCommand(command -> this.requests[command.ordinal()].sum());
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP50Micros() {
+        return this.perCommand(command -> this.latencies[command.ordinal()].getPercentile(50) / 1000);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP99Micros() {
+        return this.perCommand(command -> this.latencies[command.ordinal()].getPercentile(99) / 1000);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyMaxMicros() {
+        return this.perCommand(command -> this.latencies[command.ordinal()].getMax() / 1000);
+    }
+
+    /**
+     * Collect one number for every command
+     *
+     * @param metric Gives the number for a command
+     * @return The numbers keyed by the command word, "unknown" for unsupported commands
+     */
+    private Map<String, Long> perCommand(ToLongFunction<Command> metric) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Command command : COMMANDS) {
+            result.put(wordOf(command), metric.applyAsLong(command));
+        }
+        return result;
+    }
+
+    /**
+     * @param command A command
+     * @return The name of the command in the metrics
+     */
+    private static String wordOf(Command command) {
+        return command == Command.UNKNOWN ? "unknown" : command.getWord();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return this.fanOut.getCount();
+    }
+
+    @Override
+    public long getFanOutP50() {
+        return this.fanOut.getPercentile(50);
+    }
+
+    @Override
+    public long getFanOutP99() {
+        return this.fanOut.getPercentile(99);
+    }
+
+    @Override
+    public long getFanOutMax() {
+        return this.fanOut.getMax();
+    }
+
+    @Override
+    public long getBlockedSends() {
+        return this.backpressure.getBlockedSends();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return this.backpressure.getDroppedMessages();
+    }
+
+    @Override
+    public long getDisconnectedSlowClients() {
+        return this.backpressure.getDisconnectedClients();
+    }
+
+    @Override
+    public long getIdleDisconnects() {
+        return this.idleDisconnects.sum();
+    }
+
+    @Override
+    public long getPendingLogins() {
+        return this.admission.getPendingLogins();
+    }
+
+    @Override
+    public long getRejectedFull() {
+        return this.admission.getRejectedFull();
+    }
+
+    @Override
+    public long getRejectedPendingLogins() {
+        return this.admission.getRejectedPendingLogins();
+    }
+
+    @Override
+    public long getRejectedAcceptRate() {
+        return this.admission.getRejectedAcceptRate();
+    }
+
+    @Override
+    public long getRejectedOverloaded() {
+        return this.admission.getRejectedOverloaded();
+    }
+
+    @Override
+    public long getLeasedBuffers() {
+        return this.bufferPool.getLeasedBuffers();
+    }
+
+    @Override
+    public long getBufferPoolBytes() {
+        return this.bufferPool.getAllocatedBytes();
+    }
+
+    @Override
+    public long getBufferLeases() {
+        return this.bufferPool.getLeases();
+    }
+
+    @Override
+    public long getUnpooledBufferLeases() {
+        return this.bufferPool.getUnpooledLeases();
+    }
+
+    @Override
+    public long getBufferLeaks() {
+        return this.bufferPool.getLeaks();
+    }
+
+    @Override
+    public long getBufferDoubleReleases() {
+        return this.bufferPool.getDoubleReleases();
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append("connected=").append(this.getConnectedClients())
+                .append(" loggedin=").append(this.getLoggedInClients())
+                .append(" bytesin=").append(this.getBytesIn())
+                .append(" bytesout=").append(this.getBytesOut());
+        for (Command command : COMMANDS) {
+            StripedHistogram latency = this.latencies[command.ordinal()];
+            String word = wordOf(command);
+            report.append(' ').append(word).append(".count=").append(this.requests[command.ordinal()].sum())
+                    .append(' ').append(word).append(".p50us=").append(latency.getPercentile(50) / 1000)
+                    .append(' ').append(word).append(".p99us=").append(latency.getPercentile(99) / 1000)
+                    .append(' ').append(word).append(".maxus=").append(latency.getMax() / 1000);
+        }
+        report.append(" broadcasts=").append(this.getBroadcasts())
+                .append(" fanout.p50=").append(this.getFanOutP50())
+                .append(" fanout.p99=").append(this.getFanOutP99())
+                .append(" fanout.max=").append(this.getFanOutMax())
+                .append(" blockedsends=").append(this.getBlockedSends())
+                .append(" dropped=").append(this.getDroppedMessages())
+                .append(" slowdisconnects=").append(this.getDisconnectedSlowClients())
+                .append(" idledisconnects=").append(this.getIdleDisconnects())
+                .append(" pendinglogins=").append(this.getPendingLogins())
+                .append(" rejected.full=").append(this.getRejectedFull())
+                .append(" rejected.logins=").append(this.getRejectedPendingLogins())
+                .append(" rejected.rate=").append(this.getRejectedAcceptRate())
+                .append(" rejected.overloaded=").append(this.getRejectedOverloaded())
+                .append(" buffers.leased=").append(this.getLeasedBuffers())
+                .append(" buffers.poolbytes=").append(this.getBufferPoolBytes())
+                .append(" buffers.leases=").append(this.getBufferLeases())
+                .append(" buffers.unpooled=").append(this.getUnpooledBufferLeases())
+                .append(" buffers.leaks=").append(this.getBufferLeaks())
+                .append(" buffers.doublereleases=").append(this.getBufferDoubleReleases());
+        return report.toString();
+    }
+}
@@ -0,0 +1,68 @@
+package no.ntnu;
+
+import java.util.Map;
+
+/**
+ * The server metrics as seen over JMX (for example in JConsole or VisualVM), under the name
+ * no.ntnu:type=ServerMetrics. The per-command maps are keyed by the command word.
+ */
+public interface ServerMetricsMXBean {
+    long getConnectedClients();
+
+    long getLoggedInClients();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    Map<String, Long> getRequestCounts();
+
+    Map<String, Long> getLatencyP50Micros();
+
+    Map<String, Long> getLatencyP99Micros();
+
+    Map<String, Long> getLatencyMaxMicros();
+
+    long getBroadcasts();
+
+    long getFanOutP50();
+
+    long getFanOutP99();
+
+    long getFanOutMax();
+
+    long getBlockedSends();
+
+    long getDroppedMessages();
+
+    long getDisconnectedSlowClients();
+
+    long getIdleDisconnects();
+
+    long getPendingLogins();
+
+    long getRejectedFull();
+
+    long getRejectedPendingLogins();
+
+    long getRejectedAcceptRate();
+
+    long getRejectedOverloaded();
+
+    long getLeasedBuffers();
+
+    long getBufferPoolBytes();
+
+    long getBufferLeases();
+
+    long getUnpooledBufferLeases();
+
+    long getBufferLeaks();
+
+    long getBufferDoubleReleases();
+
+    /**
+     * @return All the metrics on one line, the same text the stats command returns
+     */
+    String getReport();
+}
@@ -0,0 +1,141 @@
+package no.ntnu;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * A histogram which many threads can record into at the same time without locks. Every power-of-two range of
+ * values is split into 16 buckets, so a value is known within about 6%. The bucket counts are striped: each
+ * thread counts in one of several copies of the buckets, picked by its thread id, so threads rarely contend on
+ * the same counter. The copies are summed up only when the histogram is read.
+ */
+public class StripedHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Enough ranges for any positive long
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private static final int STRIPE_COUNT = stripeCount();
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPE_COUNT];
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * StripedHistogram constructor
+     */
+    public StripedHistogram() {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            this.stripes[i] = new AtomicLongArray(BUCKET_COUNT);
+        }
+    }
+
+    /**
+     * @return The number of stripes: the next power of two above the number of CPUs
+     */
+    private static int stripeCount() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return Integer.highestOneBit(Math.max(1, cpus - 1)) << 1;
+    }
+
+    /**
+     * Record one value
+     *
+     * @param value The value, negative values are recorded as zero
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        this.stripeOfCurrentThread().incrementAndGet(bucketOf(v));
+        this.max.accumulate(v);
+    }
+
+    /**
+     * @return The stripe the calling thread counts in
+     */
+    private AtomicLongArray stripeOfCurrentThread() {
+        long id = Thread.currentThread().getId();
+        // Spread the ids, virtual threads get ids far apart
+        int hash = (int) ((id * 0x9E3779B97F4A7C15L) >>> 32);
+        return this.stripes[hash & (STRIPE_COUNT - 1)];
+    }
+
+    /**
+     * @return The bucket counts summed over all the stripes
+     */
+    private long[] sumBuckets() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (AtomicLongArray stripe : this.stripes) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @return The number of recorded values
+     */
+    public long getCount() {
+        long count = 0;
+        for (long bucketCount : this.sumBuckets()) {
+            count += bucketCount;
+        }
+        return count;
+    }
+
+    /**
+     * @return The largest recorded value
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * Return the value below which the given percentage of the recorded values fall. Values recorded while
+     * this method runs may or may not be included
+     *
+     * @param percentile The percentile, for example 99.9
+     * @return The value (the upper edge of its bucket), 0 when nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = this.sumBuckets();
+        long count = 0;
+        for (long bucketCount : counts) {
+            count += bucketCount;
+        }
+        long target = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= target && seen > 0) {
+                return Math.min(upperEdgeOf(i), this.getMax());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param value A value, not negative
+     * @return The bucket the value falls into
+     */
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @param bucket A bucket
+     * @return The largest value which falls into the bucket
+     */
+    private static long upperEdgeOf(int bucket) {
+        int range = bucket / SUB_BUCKETS;
+        long subBucket = bucket % SUB_BUCKETS;
+        if (range == 0) {
+            return subBucket;
+        }
+        int shift = range - 1;
+        return ((subBucket + SUB_BUCKETS) << shift) + (1L << shift) - 1;
+    }
+}
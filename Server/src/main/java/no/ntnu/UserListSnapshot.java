@@ -0,0 +1,29 @@
+package no.ntnu;
+
+/**
+ * The reply to the users command, encoded once and shared by all the clients which ask for the user list
+ * until the list changes. Immutable.
+ */
+public class UserListSnapshot {
+    private final long version;
+    private final byte[] line;
+
+    /**
+     * UserListSnapshot constructor
+     *
+     * @param version The version of the client register the list was built from, see ClientRegistry
+     * @param line    The encoded users reply, see Message.encodeLine(). Must not be modified afterwards
+     */
+    public UserListSnapshot(long version, byte[] line) {
+        this.version = version;
+        this.line = line;
+    }
+
+    public long getVersion() {
+        return this.version;
+    }
+
+    public byte[] getLine() {
+        return this.line;
+    }
+}
@@ -0,0 +1,118 @@
+package no.ntnu;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BufferPoolTest {
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    private final Server server = new Server(ServerConfig.fromArgs(new String[0]));
+
+    /**
+     * Test that a lease gets the smallest size class which holds it, and a released buffer is leased again
+     */
+    @Test
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool(0);
+        BufferPool.PooledBuffer small = pool.lease(100, null);
+        BufferPool.PooledBuffer large = pool.lease(BufferPool.MAX_BUFFER_SIZE * 2, null);
+        assertEquals(BufferPool.SIZE_CLASSES[0], small.buffer().capacity());
+        assertEquals(BufferPool.MAX_BUFFER_SIZE, large.buffer().capacity());
+        assertTrue(small.buffer().isDirect());
+        assertEquals(2, pool.getLeasedBuffers());
+        assertEquals(2L * SLAB_SIZE, pool.getAllocatedBytes());
+
+        pool.release(small);
+        pool.release(large);
+        assertEquals(0, pool.getLeasedBuffers());
+        assertEquals(BufferPool.SIZE_CLASSES[0], pool.lease(1, null).buffer().capacity());
+        assertEquals(2L * SLAB_SIZE, pool.getAllocatedBytes());
+    }
+
+    /**
+     * Test that a full pool hands out heap buffers instead of allocating more direct memory
+     */
+    @Test
+    public void testFullPool() {
+        BufferPool pool = new BufferPool(SLAB_SIZE);
+        int buffersPerSlab = SLAB_SIZE / BufferPool.MAX_BUFFER_SIZE;
+        for (int i = 0; i < buffersPerSlab; i++) {
+            assertTrue(pool.lease(BufferPool.MAX_BUFFER_SIZE, null).buffer().isDirect());
+        }
+        BufferPool.PooledBuffer unpooled = pool.lease(BufferPool.MAX_BUFFER_SIZE, null);
+        assertFalse(unpooled.buffer().isDirect());
+        assertEquals(1, pool.getUnpooledLeases());
+        assertFalse(pool.lease(1, null).buffer().isDirect());
+        assertEquals(SLAB_SIZE, pool.getAllocatedBytes());
+    }
+
+    /**
+     * Test that releasing a buffer twice is counted and does not put it into the pool twice
+     */
+    @Test
+    public void testDoubleRelease() {
+        BufferPool pool = new BufferPool(0);
+        BufferPool.PooledBuffer buffer = pool.lease(100, null);
+        pool.release(buffer);
+        pool.release(buffer);
+        assertEquals(1, pool.getDoubleReleases());
+        assertEquals(0, pool.getLeasedBuffers());
+        BufferPool.PooledBuffer first = pool.lease(100, null);
+        BufferPool.PooledBuffer second = pool.lease(100, null);
+        assertNotSame(first, second);
+    }
+
+    /**
+     * Test that the leak check takes back only the buffers still held by disconnected clients
+     */
+    @Test
+    public void testLeakCheck() {
+        BufferPool pool = new BufferPool(0);
+        ClientHandler gone = this.newClient();
+        ClientHandler connected = this.newClient();
+        BufferPool.PooledBuffer leaked = pool.lease(100, gone);
+        BufferPool.PooledBuffer returned = pool.lease(100, gone);
+        pool.lease(100, connected);
+        pool.lease(100, null);
+        pool.release(returned);
+        gone.onDisconnected();
+
+        pool.checkLeaks();
+        assertEquals(1, pool.getLeaks());
+        assertEquals(2, pool.getLeasedBuffers());
+        // The late release of the leaked buffer is a double release, the buffer is in the pool once
+        pool.release(leaked);
+        assertEquals(1, pool.getDoubleReleases());
+        assertEquals(2, pool.getLeasedBuffers());
+    }
+
+    private ClientHandler newClient() {
+        ClientConnection connection = new ClientConnection() {
+            @Override
+            public void send(byte[] line, boolean droppable) {
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public void startFraming() {
+            }
+
+            @Override
+            public void startCompression() {
+            }
+
+            @Override
+            public long getQueuedBytes() {
+                return 0;
+            }
+        };
+        return new ClientHandler(connection, this.server);
+    }
+}
@@ -0,0 +1,144 @@
+package no.ntnu;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertIterableEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+public class FrameDecoderTest {
+    // The payloads handed over by the decoder under test
+    private final List<String> lines = new ArrayList<>();
+    private int protocolErrors = 0;
+    private final FrameDecoder decoder = new FrameDecoder(this::onLine, () -> this.protocolErrors++);
+
+    /**
+     * Test that several frames which arrive in one read are all handed over, in order
+     */
+    @Test
+    public void testWholeFrames() {
+        byte[] input = concat(frame(Frame.OP_LINE, "login alice"), frame(Frame.OP_LINE, ""),
+                frame(Frame.OP_LINE, "msg hi"));
+        this.decoder.decode(input, 0, input.length);
+        assertIterableEquals(List.of("login alice", "", "msg hi"), this.lines);
+        assertEquals(0, this.protocolErrors);
+    }
+
+    /**
+     * Test that frames split anywhere, also inside the header, are put together again
+     */
+    @Test
+    public void testFramesSplitOverReads() {
+        byte[] input = concat(frame(Frame.OP_LINE, "msg hello everyone"), frame(Frame.OP_LINE, "users"));
+        for (int i = 0; i < input.length; i++) {
+            this.decoder.decode(input, i, 1);
+        }
+        assertIterableEquals(List.of("msg hello everyone", "users"), this.lines);
+
+        this.lines.clear();
+        // A whole frame and the start of the next one, then the rest
+        this.decoder.decode(input, 0, 30);
+        assertIterableEquals(List.of("msg hello everyone"), this.lines);
+        this.decoder.decode(input, 30, input.length - 30);
+        assertIterableEquals(List.of("msg hello everyone", "users"), this.lines);
+        assertEquals(0, this.protocolErrors);
+    }
+
+    /**
+     * Test that a negative payload length is a protocol error, reported once, and nothing after it is decoded
+     */
+    @Test
+    public void testNegativeLength() {
+        byte[] broken = new byte[Frame.HEADER_LENGTH];
+        Frame.writeHeader(broken, 0, -1, Frame.OP_LINE);
+        byte[] input = concat(frame(Frame.OP_LINE, "users"), concat(broken, frame(Frame.OP_LINE, "help")));
+        this.decoder.decode(input, 0, input.length);
+        this.decoder.decode(input, 0, input.length);
+        assertIterableEquals(List.of("users"), this.lines);
+        assertEquals(1, this.protocolErrors);
+    }
+
+    /**
+     * Test that a payload length above the maximum is a protocol error also when the header arrives in parts,
+     * and that no buffer of that size is allocated
+     */
+    @Test
+    public void testTooLongFrame() {
+        byte[] header = new byte[Frame.HEADER_LENGTH];
+        Frame.writeHeader(header, 0, Frame.MAX_PAYLOAD_LENGTH + 1, Frame.OP_LINE);
+        this.decoder.decode(header, 0, 2);
+        this.decoder.decode(header, 2, header.length - 2);
+        this.decoder.decode(new byte[100], 0, 100);
+        assertEquals(0, this.lines.size());
+        assertEquals(1, this.protocolErrors);
+    }
+
+    /**
+     * Test that frames with an unknown opcode are skipped, and the next frame is found
+     */
+    @Test
+    public void testUnknownOpcode() {
+        byte[] input = concat(frame((byte) 9, "something new"), frame(Frame.OP_LINE, "users"));
+        this.decoder.decode(input, 0, input.length);
+        assertIterableEquals(List.of("users"), this.lines);
+        assertEquals(0, this.protocolErrors);
+    }
+
+    /**
+     * Test that compressed lines are inflated, and that a frame which can not be inflated is a protocol error
+     */
+    @Test
+    public void testDeflatedLines() {
+        String text = "msg " + "the server and the client ".repeat(20);
+        byte[] line = text.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = Compression.compress(line, 0, line.length);
+        assertNotNull(compressed);
+        byte[] input = frame(Frame.OP_DEFLATED_LINE, compressed);
+        // Split, so the payload is collected first
+        this.decoder.decode(input, 0, 7);
+        this.decoder.decode(input, 7, input.length - 7);
+        assertIterableEquals(List.of(text), this.lines);
+
+        byte[] garbage = frame(Frame.OP_DEFLATED_LINE, new byte[] {1, 2, 3, 4, 5});
+        this.decoder.decode(garbage, 0, garbage.length);
+        assertEquals(1, this.lines.size());
+        assertEquals(1, this.protocolErrors);
+    }
+
+    /**
+     * Encode a frame
+     *
+     * @param opcode The opcode
+     * @param text   The payload, encoded as UTF-8
+     * @return The header followed by the payload
+     */
+    static byte[] frame(byte opcode, String text) {
+        return frame(opcode, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] frame(byte opcode, byte[] payload) {
+        byte[] frame = new byte[Frame.HEADER_LENGTH + payload.length];
+        Frame.writeHeader(frame, 0, payload.length, opcode);
+        System.arraycopy(payload, 0, frame, Frame.HEADER_LENGTH, payload.length);
+        return frame;
+    }
+
+    private void onLine(byte[] bytes, int offset, int length) {
+        this.lines.add(new String(bytes, offset, length, StandardCharsets.UTF_8));
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] all = new byte[a.length + b.length];
+        System.arraycopy(a, 0, all, 0, a.length);
+        System.arraycopy(b, 0, all, a.length, b.length);
+        return all;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b, byte[] c) {
+        return concat(concat(a, b), c);
+    }
+}
@@ -0,0 +1,140 @@
+package no.ntnu;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IdleReaperTest {
+    private static final long HEARTBEAT_INTERVAL_MS = 300;
+    private static final long HEARTBEAT_TIMEOUT_MS = 900;
+    private static final long IDLE_TIMEOUT_MS = 600;
+    // Longer than any timeout plus a few ticks of the wheel
+    private static final long WAIT_MS = 3000;
+
+    private final Server server = new Server(ServerConfig.fromArgs(new String[0]));
+    private final IdleReaper reaper = new IdleReaper(TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_INTERVAL_MS),
+            TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_TIMEOUT_MS), TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS),
+            this.server.getMetrics());
+    private final Thread reaperThread = new Thread(this.reaper, "idle-reaper");
+
+    /**
+     * A connection which remembers what was sent and whether it was closed
+     */
+    private static class FakeConnection implements ClientConnection {
+        final List<String> sent = new CopyOnWriteArrayList<>();
+        ClientHandler handler;
+        volatile boolean closed = false;
+
+        @Override
+        public void send(byte[] line, boolean droppable) {
+            this.sent.add(new String(line, StandardCharsets.UTF_8).trim());
+        }
+
+        @Override
+        public void close() {
+            if (!this.closed) {
+                this.closed = true;
+                this.handler.onDisconnected();
+            }
+        }
+
+        @Override
+        public void startFraming() {
+        }
+
+        @Override
+        public void startCompression() {
+        }
+
+        @Override
+        public long getQueuedBytes() {
+            return 0;
+        }
+    }
+
+    @AfterEach
+    public void stopReaper() {
+        this.reaperThread.interrupt();
+    }
+
+    /**
+     * Test that a client which sends nothing is disconnected after the idle timeout, not before
+     *
+     * @throws InterruptedException When interrupted while waiting
+     */
+    @Test
+    public void testIdleClientIsDisconnected() throws InterruptedException {
+        FakeConnection quiet = this.connect();
+        this.reaperThread.start();
+        long start = System.nanoTime();
+        awaitClosed(quiet);
+        assertTrue(quiet.closed);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS));
+        assertEquals(1, this.server.getMetrics().getIdleDisconnects());
+    }
+
+    /**
+     * Test that a client which uses heartbeats is pinged when silent, and disconnected after the heartbeat
+     * timeout
+     *
+     * @throws InterruptedException When interrupted while waiting
+     */
+    @Test
+    public void testHeartbeats() throws InterruptedException {
+        FakeConnection heartbeats = this.connect();
+        this.receive(heartbeats, "ping");
+        this.reaperThread.start();
+        awaitClosed(heartbeats);
+        assertTrue(heartbeats.closed);
+        assertTrue(heartbeats.sent.contains("ping"));
+    }
+
+    /**
+     * Test that a client which keeps sending is never disconnected
+     *
+     * @throws InterruptedException When interrupted while waiting
+     */
+    @Test
+    public void testActiveClientStays() throws InterruptedException {
+        FakeConnection active = this.connect();
+        this.reaperThread.start();
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS * 3);
+        while (System.nanoTime() < end) {
+            this.receive(active, "help");
+            Thread.sleep(IDLE_TIMEOUT_MS / 6);
+        }
+        assertFalse(active.closed);
+    }
+
+    /**
+     * Connect a client and hand it to the reaper
+     *
+     * @return The connection of the client
+     */
+    private FakeConnection connect() {
+        FakeConnection connection = new FakeConnection();
+        connection.handler = new ClientHandler(connection, this.server);
+        this.reaper.add(connection.handler);
+        return connection;
+    }
+
+    private void receive(FakeConnection connection, String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        connection.handler.handleLine(bytes, 0, bytes.length);
+    }
+
+    private static void awaitClosed(FakeConnection connection) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MS);
+        while (!connection.closed && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
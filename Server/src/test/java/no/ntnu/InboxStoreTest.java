@@ -0,0 +1,173 @@
+package no.ntnu;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertIterableEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class InboxStoreTest {
+    // How long to wait for the writer thread to hand out messages
+    private static final long DELIVERY_TIMEOUT_MS = 2000;
+
+    @TempDir
+    Path directory;
+
+    // The messages handed to the receivers, in the order they arrived
+    private final LinkedBlockingQueue<String> delivered = new LinkedBlockingQueue<>();
+
+    /**
+     * Test that messages are stored only for users who have logged in before, and are delivered on the next
+     * login
+     *
+     * @throws Exception On errors of the store
+     */
+    @Test
+    public void testStoreAndDeliverOnLogin() throws Exception {
+        InboxStore store = new InboxStore(this.directory);
+        assertEquals(InboxStore.StoreResult.UNKNOWN_USER, store.store("bob", line("privmsg bob hi")));
+        store.userLoggedIn("bob", this::receive, () -> false);
+        assertEquals(InboxStore.StoreResult.STORED, store.store("bob", line("privmsg bob one")));
+        assertEquals(InboxStore.StoreResult.STORED, store.store("bob", line("privmsg bob two")));
+        store.userLoggedIn("bob", this::receive, () -> true);
+        assertIterableEquals(List.of("privmsg bob one", "privmsg bob two"), this.take(2));
+        store.close();
+    }
+
+    /**
+     * Test that the index is rebuilt from the log: the messages stored before a restart are delivered after it,
+     * and the delivered ones are not delivered again
+     *
+     * @throws Exception On errors of the store
+     */
+    @Test
+    public void testRecoveryAfterRestart() throws Exception {
+        InboxStore store = new InboxStore(this.directory);
+        store.userLoggedIn("alice", this::receive, () -> false);
+        store.userLoggedIn("bob", this::receive, () -> false);
+        store.store("alice", line("privmsg alice delivered"));
+        store.userLoggedIn("alice", this::receive, () -> false);
+        assertIterableEquals(List.of("privmsg alice delivered"), this.take(1));
+        store.store("bob", line("privmsg bob waiting"));
+        store.close();
+
+        store = new InboxStore(this.directory);
+        assertEquals(InboxStore.StoreResult.STORED, store.store("alice", line("privmsg alice new")));
+        store.userLoggedIn("alice", this::receive, () -> false);
+        store.userLoggedIn("bob", this::receive, () -> false);
+        assertIterableEquals(List.of("privmsg alice new", "privmsg bob waiting"), this.take(2));
+        store.close();
+    }
+
+    /**
+     * Test that a record cut short at the end of the last segment, as by a crash while it was written, is cut
+     * off on startup and the complete records before it are kept
+     *
+     * @throws Exception On errors of the store
+     */
+    @Test
+    public void testRecoveryOfTruncatedSegment() throws Exception {
+        InboxStore store = new InboxStore(this.directory);
+        store.userLoggedIn("bob", this::receive, () -> false);
+        store.store("bob", line("privmsg bob complete"));
+        store.close();
+
+        Path segment = this.lastSegment();
+        long completeSize = Files.size(segment);
+        // A message record whose line is missing
+        byte[] partial = {'M', 0, 3, 'b', 'o', 'b', 0, 0, 1, 0, 'p', 'r'};
+        Files.write(segment, partial, StandardOpenOption.APPEND);
+
+        store = new InboxStore(this.directory);
+        assertEquals(completeSize, Files.size(segment));
+        store.store("bob", line("privmsg bob after"));
+        store.userLoggedIn("bob", this::receive, () -> false);
+        assertIterableEquals(List.of("privmsg bob complete", "privmsg bob after"), this.take(2));
+        store.close();
+    }
+
+    /**
+     * Test that a message over the per-user limit is refused, and that room is made again by the delivery
+     *
+     * @throws Exception On errors of the store
+     */
+    @Test
+    public void testInboxFull() throws Exception {
+        InboxStore store = new InboxStore(this.directory);
+        store.userLoggedIn("bob", messages -> this.delivered.add(String.valueOf(messages.size())), () -> false);
+        for (int i = 0; i < InboxStore.MAX_MESSAGES_PER_USER; i++) {
+            assertEquals(InboxStore.StoreResult.STORED, store.store("bob", line("privmsg bob " + i)));
+        }
+        assertEquals(InboxStore.StoreResult.FULL, store.store("bob", line("privmsg bob one too many")));
+        assertEquals(1, store.getDroppedMessages());
+        store.userLoggedIn("bob", messages -> this.delivered.add(String.valueOf(messages.size())), () -> false);
+        assertIterableEquals(List.of(String.valueOf(InboxStore.MAX_MESSAGES_PER_USER)), this.take(1));
+        assertEquals(InboxStore.StoreResult.STORED, store.store("bob", line("privmsg bob again")));
+        store.close();
+    }
+
+    /**
+     * Test that a message which reaches the writer after the recipient has logged in is handed to the recipient
+     * at once, and stored again once the recipient is gone
+     *
+     * @throws Exception On errors of the store
+     */
+    @Test
+    public void testDeliveryWhileOnline() throws Exception {
+        InboxStore store = new InboxStore(this.directory);
+        boolean[] online = {true};
+        store.userLoggedIn("bob", this::receive, () -> online[0]);
+        store.store("bob", line("privmsg bob live"));
+        assertIterableEquals(List.of("privmsg bob live"), this.take(1));
+
+        online[0] = false;
+        store.userLoggedOut("bob");
+        store.store("bob", line("privmsg bob stored"));
+        assertNull(this.delivered.poll(200, TimeUnit.MILLISECONDS));
+        store.userLoggedIn("bob", this::receive, () -> true);
+        assertIterableEquals(List.of("privmsg bob stored"), this.take(1));
+        store.close();
+    }
+
+    private void receive(List<byte[]> messages) {
+        for (byte[] message : messages) {
+            // Without the newline
+            this.delivered.add(new String(message, 0, message.length - 1, StandardCharsets.UTF_8));
+        }
+    }
+
+    private List<String> take(int count) throws InterruptedException {
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String message = this.delivered.poll(DELIVERY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (message == null) {
+                break;
+            }
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private Path lastSegment() throws IOException {
+        try (Stream<Path> files = Files.list(this.directory)) {
+            return files.filter(file -> file.toString().endsWith(".seg")).sorted()
+                    .reduce((first, second) -> second).orElseThrow();
+        }
+    }
+
+    private static byte[] line(String text) {
+        return Message.encodeLine(text);
+    }
+}
@@ -0,0 +1,101 @@
+package no.ntnu;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertIterableEquals;
+
+public class LineDecoderTest {
+    // The lines handed over by the decoder under test
+    private final List<String> lines = new ArrayList<>();
+    private final LineDecoder decoder = new LineDecoder(this::onLine);
+
+    /**
+     * Test that all three line terminators end a line, like BufferedReader.readLine()
+     */
+    @Test
+    public void testLineTerminators() {
+        decode("login alice\nusers\r\nhelp\rjoke\n");
+        assertIterableEquals(List.of("login alice", "users", "help", "joke"), this.lines);
+    }
+
+    /**
+     * Test that a line is handed over once its end arrives, when it is split over several reads
+     */
+    @Test
+    public void testLineSplitOverReads() {
+        decode("msg hel");
+        decode("lo every");
+        assertEquals(0, this.lines.size());
+        decode("one\nmsg ");
+        decode("again\n");
+        assertIterableEquals(List.of("msg hello everyone", "msg again"), this.lines);
+    }
+
+    /**
+     * Test that a \r\n split between two reads ends only one line
+     */
+    @Test
+    public void testCarriageReturnLineFeedSplitOverReads() {
+        decode("users\r");
+        decode("\nhelp\n");
+        assertIterableEquals(List.of("users", "help"), this.lines);
+    }
+
+    /**
+     * Test that empty lines are handed over too
+     */
+    @Test
+    public void testEmptyLines() {
+        decode("\n\r\n");
+        assertIterableEquals(List.of("", ""), this.lines);
+    }
+
+    /**
+     * Test that the input after the line which switched to binary framing goes to the frame decoder, and that
+     * the \n of a \r\n ending that line is skipped, also when it comes in the next read
+     */
+    @Test
+    public void testSwitchToFrames() {
+        List<String> frames = new ArrayList<>();
+        FrameDecoder frameDecoder = new FrameDecoder((bytes, offset, length) ->
+                frames.add(new String(bytes, offset, length, StandardCharsets.UTF_8)), () -> { });
+        LineDecoder[] lineDecoder = new LineDecoder[1];
+        lineDecoder[0] = new LineDecoder((bytes, offset, length) -> {
+            this.onLine(bytes, offset, length);
+            if (this.lines.get(this.lines.size() - 1).equals("binary")) {
+                lineDecoder[0].switchToFrames(frameDecoder);
+            }
+        });
+        byte[] line = "binary\r".getBytes(StandardCharsets.UTF_8);
+        lineDecoder[0].decode(line, 0, line.length);
+        byte[] rest = concat("\n".getBytes(StandardCharsets.UTF_8),
+                FrameDecoderTest.frame(Frame.OP_LINE, "users"));
+        lineDecoder[0].decode(rest, 0, rest.length);
+        assertIterableEquals(List.of("binary"), this.lines);
+        assertIterableEquals(List.of("users"), frames);
+    }
+
+    private void decode(String input) {
+        byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+        // Not at the start of the buffer, like a read into the middle of a buffer
+        byte[] buffer = new byte[bytes.length + 6];
+        System.arraycopy(bytes, 0, buffer, 3, bytes.length);
+        this.decoder.decode(buffer, 3, bytes.length);
+    }
+
+    private void onLine(byte[] bytes, int offset, int length) {
+        this.lines.add(new String(bytes, offset, length, StandardCharsets.UTF_8));
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] all = new byte[a.length + b.length];
+        System.arraycopy(a, 0, all, 0, a.length);
+        System.arraycopy(b, 0, all, a.length, b.length);
+        return all;
+    }
+}
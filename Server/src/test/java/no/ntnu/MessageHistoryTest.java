@@ -0,0 +1,187 @@
+package no.ntnu;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertIterableEquals;
+
+public class MessageHistoryTest {
+    private static final long MAX_BYTES = 8 * 1024 * 1024;
+    private static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(1);
+    // How long to wait for the writer thread to write the recorded messages
+    private static final long WRITE_TIMEOUT_MS = 2000;
+
+    @TempDir
+    Path directory;
+
+    private MessageHistory history;
+
+    @AfterEach
+    public void closeHistory() {
+        if (this.history != null) {
+            this.history.close();
+        }
+    }
+
+    /**
+     * Test that pages are returned oldest first, with the id to continue from for the older messages
+     *
+     * @throws Exception On errors of the history
+     */
+    @Test
+    public void testPages() throws Exception {
+        this.history = new MessageHistory(this.directory, MAX_BYTES, MAX_AGE_MS);
+        for (int i = 0; i < 5; i++) {
+            this.history.record(MessageHistory.KIND_PUBLIC, "alice", "", line("msg alice " + i));
+        }
+        this.history.record(MessageHistory.KIND_ROOM, "alice", "lobby", line("roommsg lobby alice hi"));
+        this.history.record(MessageHistory.KIND_PRIVATE, "alice", "bob", line("privmsg bob secret"));
+        // Written in the order recorded
+        this.await(privateQuery("alice", "bob"), 1);
+
+        MessageHistory.Page page = this.history.read(publicQuery(Long.MAX_VALUE, 3));
+        assertIterableEquals(List.of("msg alice 2", "msg alice 3", "msg alice 4"), text(page));
+        MessageHistory.Page older = this.history.read(publicQuery(page.next(), 3));
+        assertIterableEquals(List.of("msg alice 0", "msg alice 1"), text(older));
+        assertEquals(0, older.next());
+
+        MessageHistory.Page room = this.history.read(new MessageHistory.Query(MessageHistory.KIND_ROOM, "lobby",
+                "carol", Long.MAX_VALUE, 0, 10));
+        assertIterableEquals(List.of("roommsg lobby alice hi"), text(room));
+        // Both ends of a private conversation find it, nobody else does
+        assertEquals(1, this.history.read(privateQuery("bob", "alice")).lines().size());
+        assertEquals(1, this.history.read(privateQuery("alice", "bob")).lines().size());
+        assertEquals(0, this.history.read(privateQuery("carol", "alice")).lines().size());
+    }
+
+    /**
+     * Test that the history is found again after a restart, and new messages are added after it
+     *
+     * @throws Exception On errors of the history
+     */
+    @Test
+    public void testRecoveryAfterRestart() throws Exception {
+        this.history = new MessageHistory(this.directory, MAX_BYTES, MAX_AGE_MS);
+        this.history.record(MessageHistory.KIND_PUBLIC, "alice", "", line("msg alice before"));
+        this.history.close();
+
+        this.history = new MessageHistory(this.directory, MAX_BYTES, MAX_AGE_MS);
+        this.history.record(MessageHistory.KIND_PUBLIC, "bob", "", line("msg bob after"));
+        this.await(publicQuery(Long.MAX_VALUE, 2), 2);
+        assertIterableEquals(List.of("msg alice before", "msg bob after"),
+                text(this.history.read(publicQuery(Long.MAX_VALUE, 10))));
+    }
+
+    /**
+     * Test that a record cut short by a crash, here one whose length runs past the end of the segment, ends the
+     * segment on startup: the complete records before it are kept and new records overwrite it
+     *
+     * @throws Exception On errors of the history
+     */
+    @Test
+    public void testRecoveryOfTruncatedSegment() throws Exception {
+        this.history = new MessageHistory(this.directory, MAX_BYTES, MAX_AGE_MS);
+        this.history.record(MessageHistory.KIND_PUBLIC, "alice", "", line("msg alice one"));
+        this.history.record(MessageHistory.KIND_PUBLIC, "alice", "", line("msg alice two"));
+        this.history.close();
+
+        Path segment = this.onlySegment();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            int end = findEnd(channel);
+            ByteBuffer broken = ByteBuffer.allocate(16);
+            broken.putInt((int) channel.size());
+            broken.putLong(System.currentTimeMillis());
+            broken.put(MessageHistory.KIND_PUBLIC);
+            broken.flip();
+            channel.write(broken, end);
+        }
+
+        this.history = new MessageHistory(this.directory, MAX_BYTES, MAX_AGE_MS);
+        assertIterableEquals(List.of("msg alice one", "msg alice two"),
+                text(this.history.read(publicQuery(Long.MAX_VALUE, 10))));
+        this.history.record(MessageHistory.KIND_PUBLIC, "bob", "", line("msg bob three"));
+        this.await(publicQuery(Long.MAX_VALUE, 3), 3);
+        assertIterableEquals(List.of("msg alice one", "msg alice two", "msg bob three"),
+                text(this.history.read(publicQuery(Long.MAX_VALUE, 10))));
+    }
+
+    /**
+     * Wait until the writer thread has written the messages
+     *
+     * @param query A query which finds the messages
+     * @param count The number of messages expected
+     * @throws InterruptedException When interrupted while waiting
+     */
+    private void await(MessageHistory.Query query, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WRITE_TIMEOUT_MS;
+        while (this.history.read(query).lines().size() < count
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Find the end of the complete records of a segment: each record starts with its length, the end marker
+     * is a length of 0
+     *
+     * @param channel The segment file
+     * @return The offset of the end marker
+     * @throws IOException On read errors
+     */
+    private static int findEnd(FileChannel channel) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        int position = 0;
+        while (true) {
+            length.clear();
+            channel.read(length, position);
+            int recordLength = length.getInt(0);
+            if (recordLength <= 0) {
+                return position;
+            }
+            position += 4 + recordLength;
+        }
+    }
+
+    private Path onlySegment() throws IOException {
+        try (Stream<Path> files = Files.list(this.directory)) {
+            List<Path> segments = files.filter(file -> file.toString().endsWith(".hist")).toList();
+            assertEquals(1, segments.size());
+            return segments.get(0);
+        }
+    }
+
+    private static MessageHistory.Query publicQuery(long before, int limit) {
+        return new MessageHistory.Query(MessageHistory.KIND_PUBLIC, "", "alice", before, 0, limit);
+    }
+
+    private static MessageHistory.Query privateQuery(String requester, String peer) {
+        return new MessageHistory.Query(MessageHistory.KIND_PRIVATE, peer, requester, Long.MAX_VALUE, 0, 10);
+    }
+
+    private static List<String> text(MessageHistory.Page page) {
+        List<String> lines = new ArrayList<>();
+        for (byte[] line : page.lines()) {
+            // Without the newline
+            lines.add(new String(line, 0, line.length - 1, StandardCharsets.UTF_8));
+        }
+        return lines;
+    }
+
+    private static byte[] line(String text) {
+        return Message.encodeLine(text);
+    }
+}
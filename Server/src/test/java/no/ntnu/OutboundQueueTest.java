@@ -0,0 +1,189 @@
+package no.ntnu;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OutboundQueueTest {
+    // Watermarks of the queues under test, in bytes
+    private static final int HIGH_WATERMARK = 1000;
+    private static final int LOW_WATERMARK = 400;
+
+    /**
+     * Test that DROP_OLDEST drops the oldest broadcasts down to the low watermark, and keeps the replies and
+     * private messages
+     */
+    @Test
+    public void testDropOldestKeepsPrivateMessages() {
+        Backpressure backpressure = backpressure(OverflowPolicy.DROP_OLDEST);
+        OutboundQueue queue = new OutboundQueue(backpressure);
+        byte[] reply = line(100);
+        assertTrue(queue.offer(reply, false, false));
+        for (int i = 0; i < 9; i++) {
+            assertTrue(queue.offer(line(100), true, false));
+        }
+        assertEquals(1000, queue.getQueuedBytes());
+
+        byte[] newest = line(100);
+        assertTrue(queue.offer(newest, true, false));
+        // The reply and the newest broadcasts are left, at most the low watermark before the new line
+        assertEquals(LOW_WATERMARK + 100, queue.getQueuedBytes());
+        assertEquals(6, backpressure.getDroppedMessages());
+        byte[][] lines = new byte[10][];
+        assertEquals(5, queue.poll(lines));
+        assertSame(reply, lines[0]);
+        assertSame(newest, lines[4]);
+        assertEquals(0, backpressure.getDisconnectedClients());
+    }
+
+    /**
+     * Test that DROP_OLDEST drops a new broadcast which still does not fit when only replies are queued, but
+     * queues a reply
+     */
+    @Test
+    public void testDropOldestWithOnlyReplies() {
+        Backpressure backpressure = backpressure(OverflowPolicy.DROP_OLDEST);
+        OutboundQueue queue = new OutboundQueue(backpressure);
+        assertTrue(queue.offer(line(600), false, false));
+        assertTrue(queue.offer(line(300), false, false));
+        assertTrue(queue.offer(line(200), true, false));
+        assertEquals(900, queue.getQueuedBytes());
+        assertEquals(1, backpressure.getDroppedMessages());
+        assertTrue(queue.offer(line(200), false, false));
+        assertEquals(1100, queue.getQueuedBytes());
+    }
+
+    /**
+     * Test that the hard limit disconnects a client whose queue grows with lines which are never dropped
+     */
+    @Test
+    public void testHardLimit() {
+        Backpressure backpressure = backpressure(OverflowPolicy.DROP_OLDEST);
+        OutboundQueue queue = new OutboundQueue(backpressure);
+        long queued = 0;
+        while (queued + 100 <= backpressure.getHardLimit()) {
+            assertTrue(queue.offer(line(100), false, false));
+            queued += 100;
+        }
+        assertFalse(queue.offer(line(100), false, false));
+        assertTrue(queue.isEmpty());
+        // Closed: the lines offered from now on are discarded
+        assertTrue(queue.offer(line(100), false, false));
+        assertTrue(queue.isEmpty());
+    }
+
+    /**
+     * Test that DISCONNECT refuses the line which goes above the high watermark, only once
+     */
+    @Test
+    public void testDisconnect() {
+        OutboundQueue queue = new OutboundQueue(backpressure(OverflowPolicy.DISCONNECT));
+        assertTrue(queue.offer(line(HIGH_WATERMARK), true, false));
+        assertFalse(queue.offer(line(1), true, false));
+        assertTrue(queue.offer(line(1), true, false));
+        assertEquals(0, queue.getQueuedBytes());
+    }
+
+    /**
+     * Test that a line longer than the high watermark fits into an empty queue
+     */
+    @Test
+    public void testLongLineFitsIntoEmptyQueue() {
+        OutboundQueue queue = new OutboundQueue(backpressure(OverflowPolicy.DISCONNECT));
+        assertTrue(queue.offer(line(HIGH_WATERMARK * 2), true, false));
+        assertEquals(HIGH_WATERMARK * 2, queue.getQueuedBytes());
+    }
+
+    /**
+     * Test that BLOCK disconnects instead of waiting when the calling thread must not block
+     */
+    @Test
+    public void testBlockWhenNotAllowedToBlock() {
+        Backpressure backpressure = backpressure(OverflowPolicy.BLOCK);
+        OutboundQueue queue = new OutboundQueue(backpressure);
+        assertTrue(queue.offer(line(HIGH_WATERMARK), true, false));
+        assertFalse(queue.offer(line(1), true, false));
+        assertEquals(0, backpressure.getBlockedSends());
+    }
+
+    /**
+     * Test that BLOCK makes the sender wait until the writer drains the queue below the low watermark
+     *
+     * @throws Exception When the sender does not finish
+     */
+    @Test
+    public void testBlockWaitsForWriter() throws Exception {
+        Backpressure backpressure = backpressure(OverflowPolicy.BLOCK);
+        OutboundQueue queue = new OutboundQueue(backpressure);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(line(100), true, true));
+        }
+        CompletableFuture<Boolean> sent = CompletableFuture.supplyAsync(() -> queue.offer(line(100), true, true));
+        Thread.sleep(100);
+        assertFalse(sent.isDone());
+        byte[][] lines = new byte[6][];
+        assertEquals(6, queue.poll(lines));
+        assertTrue(sent.get(1, TimeUnit.SECONDS));
+        assertEquals(500, queue.getQueuedBytes());
+        assertEquals(1, backpressure.getBlockedSends());
+    }
+
+    /**
+     * Test that BLOCK disconnects the client when the writer does not drain the queue in time
+     */
+    @Test
+    public void testBlockTimesOut() {
+        Backpressure backpressure = new Backpressure(HIGH_WATERMARK, LOW_WATERMARK, OverflowPolicy.BLOCK, 50);
+        OutboundQueue queue = new OutboundQueue(backpressure);
+        assertTrue(queue.offer(line(HIGH_WATERMARK), true, true));
+        assertFalse(queue.offer(line(1), true, true));
+        assertTrue(queue.isEmpty());
+    }
+
+    /**
+     * Test that poll() takes as many lines as fit into the write buffer, but at least one
+     */
+    @Test
+    public void testPollFitsWriteBuffer() {
+        OutboundQueue queue = new OutboundQueue(backpressure(OverflowPolicy.DROP_OLDEST));
+        queue.offer(line(300), false, false);
+        queue.offer(line(50), false, false);
+        queue.offer(line(50), false, false);
+        byte[][] lines = new byte[10][];
+        assertEquals(1, queue.poll(lines, 100, Frame.HEADER_LENGTH));
+        assertEquals(300, lines[0].length);
+        assertEquals(1, queue.poll(lines, 100, Frame.HEADER_LENGTH));
+        assertEquals(1, queue.poll(lines, 100, Frame.HEADER_LENGTH));
+        assertEquals(0, queue.poll(lines, 100, Frame.HEADER_LENGTH));
+    }
+
+    /**
+     * Test that a line which is not copied into the write buffer takes no room in it, and ends the batch
+     */
+    @Test
+    public void testPollEndsBatchAtLongLine() {
+        OutboundQueue queue = new OutboundQueue(backpressure(OverflowPolicy.DROP_OLDEST));
+        queue.offer(line(50), false, false);
+        byte[] longLine = line(500);
+        queue.offer(longLine, false, false);
+        queue.offer(line(50), false, false);
+        byte[][] lines = new byte[10][];
+        assertEquals(2, queue.poll(lines, 100, Frame.HEADER_LENGTH, 200));
+        assertSame(longLine, lines[1]);
+        assertEquals(1, queue.poll(lines, 100, Frame.HEADER_LENGTH, 200));
+    }
+
+    private static Backpressure backpressure(OverflowPolicy policy) {
+        return new Backpressure(HIGH_WATERMARK, LOW_WATERMARK, policy, 5000);
+    }
+
+    private static byte[] line(int length) {
+        return new byte[length];
+    }
+}
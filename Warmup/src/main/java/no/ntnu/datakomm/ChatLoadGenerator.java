@@ -0,0 +1,203 @@
+package no.ntnu.datakomm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A load generator for the chat server (no.ntnu.Server). Connects thousands of simulated users, logs them in
+ * and sends a mix of public messages, private messages and user list requests at a fixed rate. Every message
+ * text starts with a stamp: the moment the message was due to be sent. The receivers compare it with the
+ * moment the message arrives, so the latencies are end-to-end, from the sender to each recipient.
+ * The results are printed as a table and written to a JSON file, see LoadConfig for the options.
+ */
+public class ChatLoadGenerator {
+    // Time to wait for the messages still on their way when the measurement ends
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long LOGIN_TIMEOUT_SECONDS = 60;
+
+    private final LoadConfig config;
+    private final LoadLoop[] loops;
+    private final SimulatedUser[] users;
+    private final CountDownLatch loggedIn;
+    private final String text;
+
+    /**
+     * ChatLoadGenerator constructor
+     *
+     * @param config The options of the run
+     * @throws IOException When the I/O threads can not be set up
+     */
+    public ChatLoadGenerator(LoadConfig config) throws IOException {
+        this.config = config;
+        this.users = new SimulatedUser[config.getUsers()];
+        this.loggedIn = new CountDownLatch(config.getUsers());
+        this.loops = new LoadLoop[config.getIoThreads()];
+        for (int i = 0; i < this.loops.length; i++) {
+            this.loops[i] = new LoadLoop("load-loop-" + i, this.loggedIn);
+        }
+        this.text = "x".repeat(config.getMessageSize());
+    }
+
+    /**
+     * Run the load generator
+     *
+     * @param args Command-line arguments, see LoadConfig for the supported options
+     */
+    public static void main(String[] args) {
+        LoadConfig config;
+        try {
+            config = LoadConfig.fromArgs(args);
+        } catch (IllegalArgumentException e) {
+            log(e.getMessage());
+            log(LoadConfig.getUsage());
+            return;
+        }
+        try {
+            new ChatLoadGenerator(config).run();
+        } catch (IOException e) {
+            log("Load run failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            log("Load run interrupted");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Connect and log in all the users, send the load, then report the results
+     *
+     * @return The results of the run
+     * @throws IOException          When the users can not connect or the report can not be written
+     * @throws InterruptedException When interrupted while waiting
+     */
+    LoadReport run() throws IOException, InterruptedException {
+        for (LoadLoop loop : this.loops) {
+            loop.start();
+        }
+        try {
+            this.connectUsers();
+            if (!this.loggedIn.await(LOGIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IOException(this.loggedIn.getCount() + " users could not log in");
+            }
+            log("All " + this.users.length + " users logged in, warming up for "
+                    + this.config.getWarmupSeconds() + " s");
+            long measureSeconds = this.drive();
+            LockSupport.parkNanos(DRAIN_NANOS);
+            LoadReport report = new LoadReport(this.config, measureSeconds);
+            for (LoadLoop loop : this.loops) {
+                loop.stop();
+                report.add(loop);
+            }
+            report.print();
+            report.write(Paths.get(this.config.getReportFile()));
+            log("Report written to " + this.config.getReportFile());
+            return report;
+        } finally {
+            for (LoadLoop loop : this.loops) {
+                loop.stop();
+            }
+        }
+    }
+
+    /**
+     * Open the connections of all the users, spread over the I/O threads and the servers. Each user logs in
+     * as soon as it is connected
+     *
+     * @throws IOException When a user can not connect
+     */
+    private void connectUsers() throws IOException {
+        List<InetSocketAddress> servers = this.config.getServers();
+        log("Connecting " + this.users.length + " users to " + servers);
+        for (int i = 0; i < this.users.length; i++) {
+            InetSocketAddress server = servers.get(i % servers.size());
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(server.getHostString(),
+                    server.getPort()));
+            channel.socket().setTcpNoDelay(true);
+            channel.configureBlocking(false);
+            this.users[i] = new SimulatedUser("load" + i, channel);
+            this.loopOf(i).addUser(this.users[i]);
+        }
+    }
+
+    /**
+     * Send commands at the configured rate through the warmup and the measurement. Each command is due at a
+     * fixed moment of the schedule; when the generator falls behind, it catches up by sending the overdue
+     * commands at once, stamped with the moments they were due
+     *
+     * @return Length of the measurement in seconds
+     */
+    private long drive() {
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(this.config.getWarmupSeconds());
+        long end = measureStart + TimeUnit.SECONDS.toNanos(this.config.getDurationSeconds());
+        double nanosPerCommand = (double) TimeUnit.SECONDS.toNanos(1) / this.config.getRate();
+        boolean measuring = false;
+        long sent = 0;
+        long now = start;
+        while (now < end) {
+            if (!measuring && now >= measureStart) {
+                for (LoadLoop loop : this.loops) {
+                    loop.startMeasurement(measureStart);
+                }
+                log("Measuring for " + this.config.getDurationSeconds() + " s");
+                measuring = true;
+            }
+            long due = start + (long) (sent * nanosPerCommand);
+            while (due <= now && due < end) {
+                this.sendRandomCommand(due);
+                sent++;
+                due = start + (long) (sent * nanosPerCommand);
+            }
+            LockSupport.parkNanos(Math.max(0, Math.min(due, end) - now));
+            now = System.nanoTime();
+        }
+        return this.config.getDurationSeconds();
+    }
+
+    /**
+     * Send one command, chosen by the weights of the mix, from a random user
+     *
+     * @param due When the command was due to be sent
+     */
+    private void sendRandomCommand(long due) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int senderIndex = random.nextInt(this.users.length);
+        SimulatedUser sender = this.users[senderIndex];
+        LoadLoop loop = this.loopOf(senderIndex);
+        int totalWeight = this.config.getMsgWeight() + this.config.getPrivmsgWeight()
+                + this.config.getUsersWeight();
+        int choice = random.nextInt(totalWeight);
+        if (choice < this.config.getMsgWeight()) {
+            loop.send(sender, "msg", this.text, due);
+        } else if (choice < this.config.getMsgWeight() + this.config.getPrivmsgWeight()) {
+            // Any other user, never the sender itself
+            int recipientIndex = (senderIndex + 1 + random.nextInt(this.users.length - 1)) % this.users.length;
+            loop.send(sender, "privmsg " + this.users[recipientIndex].getUsername(), this.text, due);
+        } else {
+            loop.send(sender, "users", null, due);
+        }
+    }
+
+    /**
+     * @param userIndex Index of a user
+     * @return The I/O thread which serves the user
+     */
+    private LoadLoop loopOf(int userIndex) {
+        return this.loops[userIndex % this.loops.length];
+    }
+
+    /**
+     * Log a message to the system console.
+     *
+     * @param message The message to be logged (printed).
+     */
+    static void log(String message) {
+        System.out.println(message);
+    }
+}
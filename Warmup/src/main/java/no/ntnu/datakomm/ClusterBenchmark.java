@@ -0,0 +1,221 @@
+package no.ntnu.datakomm;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how the chat server scales with the number of cluster nodes, on one host. For every node count, it
+ * starts that many server processes as a cluster, runs the load generator against all of them with the load
+ * growing in step with the nodes (the same users and commands per node), stops the nodes and prints one row
+ * per node count. With near-linear scaling, the throughput per node stays flat and the latencies do not grow.
+ * <p>
+ * The default mix sends only private messages, most of which cross nodes. Public messages go to every user
+ * of the cluster, so their cost per node grows with the cluster and they can not scale linearly.
+ * <p>
+ * Options, of the form --name=value:
+ * <ul>
+ *     <li>--server-classpath=&lt;path&gt; - classpath of the server (default Server/target/classes)</li>
+ *     <li>--nodes=1,2,4 - the node counts to measure</li>
+ *     <li>--users-per-node=&lt;count&gt; - simulated users per node (default 500)</li>
+ *     <li>--rate-per-node=&lt;commands&gt; - commands per second per node (default 2000)</li>
+ *     <li>--engine=&lt;engine&gt; - the server engine (default nio)</li>
+ *     <li>any other option is passed to the load generator, for example --duration=20 or --mix=...</li>
+ * </ul>
+ * Example: java -cp Warmup/target/classes no.ntnu.datakomm.ClusterBenchmark --nodes=1,2,4
+ */
+public class ClusterBenchmark {
+    private static final int FIRST_CLIENT_PORT = 1401;
+    private static final int FIRST_CLUSTER_PORT = 2401;
+    private static final long NODE_START_TIMEOUT_MS = 20_000;
+    // Time for the nodes to connect to each other after their ports are open
+    private static final long CLUSTER_SETTLE_MS = 2000;
+
+    private String serverClasspath = "Server/target/classes";
+    private int[] nodeCounts = {1, 2, 4};
+    private int usersPerNode = 500;
+    private int ratePerNode = 2000;
+    private String engine = "nio";
+    private final List<String> loadOptions = new ArrayList<>();
+
+    /**
+     * Run the benchmark
+     *
+     * @param args Command-line arguments, see the class description
+     */
+    public static void main(String[] args) {
+        ClusterBenchmark benchmark = new ClusterBenchmark();
+        try {
+            benchmark.parseArgs(args);
+            benchmark.run();
+        } catch (IllegalArgumentException e) {
+            ChatLoadGenerator.log(e.getMessage());
+        } catch (IOException e) {
+            ChatLoadGenerator.log("Cluster benchmark failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            ChatLoadGenerator.log("Cluster benchmark interrupted");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Parse the options, see the class description
+     *
+     * @param args Command-line arguments
+     * @throws IllegalArgumentException When an option is invalid
+     */
+    private void parseArgs(String[] args) {
+        this.loadOptions.add("--mix=privmsg=100");
+        for (String arg : args) {
+            String[] parts = arg.startsWith("--") ? arg.substring(2).split("=", 2) : new String[0];
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            switch (parts[0]) {
+                case "server-classpath" -> this.serverClasspath = parts[1];
+                case "nodes" -> {
+                    String[] counts = parts[1].split(",");
+                    this.nodeCounts = new int[counts.length];
+                    for (int i = 0; i < counts.length; i++) {
+                        this.nodeCounts[i] = Integer.parseInt(counts[i]);
+                    }
+                }
+                case "users-per-node" -> this.usersPerNode = Integer.parseInt(parts[1]);
+                case "rate-per-node" -> this.ratePerNode = Integer.parseInt(parts[1]);
+                case "engine" -> this.engine = parts[1];
+                default -> this.loadOptions.add(arg);
+            }
+        }
+    }
+
+    /**
+     * Measure every node count, then print the summary
+     *
+     * @throws IOException          When the nodes can not be started or the load run fails
+     * @throws InterruptedException When interrupted while waiting
+     */
+    private void run() throws IOException, InterruptedException {
+        List<String> rows = new ArrayList<>();
+        for (int nodes : this.nodeCounts) {
+            List<Process> processes = this.startNodes(nodes);
+            try {
+                LoadReport report = this.runLoad(nodes);
+                LatencyHistogram latency = report.getPrivateLatency();
+                rows.add(String.format(Locale.ROOT, "%5d %12d %12.0f %14.0f %12.0f %10d %10d %8d",
+                        nodes, this.ratePerNode * nodes, report.getCommandsPerSecond(), report.getLinesPerSecond(),
+                        report.getLinesPerSecond() / nodes, latency.getPercentile(50), latency.getPercentile(99),
+                        report.getFailures()));
+            } finally {
+                for (Process process : processes) {
+                    process.destroy();
+                }
+                for (Process process : processes) {
+                    process.waitFor(5, TimeUnit.SECONDS);
+                }
+            }
+        }
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format(Locale.ROOT, "%n%5s %12s %12s %14s %12s %10s %10s %8s%n", "nodes", "target/s",
+                "sent/s", "delivered/s", "per node/s", "p50 us", "p99 us", "errors"));
+        rows.forEach(row -> summary.append(row).append(System.lineSeparator()));
+        System.out.print(summary);
+    }
+
+    /**
+     * Start the nodes of a cluster as separate processes and wait until they accept clients
+     *
+     * @param nodes The number of nodes
+     * @return The processes of the nodes
+     * @throws IOException When a node can not be started
+     */
+    private List<Process> startNodes(int nodes) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Process> processes = new ArrayList<>();
+        for (int node = 1; node <= nodes; node++) {
+            List<String> command = new ArrayList<>(List.of(java, "-cp", this.serverClasspath, "no.ntnu.Server",
+                    "--port=" + clientPort(node), "--engine=" + this.engine, "--log-level=warn"));
+            if (nodes > 1) {
+                command.add("--node-id=" + node);
+                command.add("--cluster-port=" + (FIRST_CLUSTER_PORT + node - 1));
+                command.add("--peers=" + peersOf(node, nodes));
+            }
+            processes.add(new ProcessBuilder(command).inheritIO().start());
+        }
+        for (int node = 1; node <= nodes; node++) {
+            awaitPort(clientPort(node));
+        }
+        if (nodes > 1) {
+            Thread.sleep(CLUSTER_SETTLE_MS);
+        }
+        return processes;
+    }
+
+    /**
+     * Run the load generator against all the nodes
+     *
+     * @param nodes The number of nodes
+     * @return The results of the run
+     */
+    private LoadReport runLoad(int nodes) throws IOException, InterruptedException {
+        StringBuilder servers = new StringBuilder();
+        for (int node = 1; node <= nodes; node++) {
+            servers.append(node > 1 ? "," : "").append("localhost:").append(clientPort(node));
+        }
+        List<String> args = new ArrayList<>(List.of("--servers=" + servers,
+                "--users=" + this.usersPerNode * nodes, "--rate=" + this.ratePerNode * nodes,
+                "--report=cluster-" + nodes + "-nodes.json"));
+        args.addAll(this.loadOptions);
+        ChatLoadGenerator.log("Running " + nodes + " node(s)");
+        return new ChatLoadGenerator(LoadConfig.fromArgs(args.toArray(new String[0]))).run();
+    }
+
+    /**
+     * @param node A node, numbered from 1
+     * @return The port the node accepts clients on
+     */
+    private static int clientPort(int node) {
+        return FIRST_CLIENT_PORT + node - 1;
+    }
+
+    /**
+     * @param node  A node, numbered from 1
+     * @param nodes The number of nodes
+     * @return The --peers value of the node: all the other nodes
+     */
+    private static String peersOf(int node, int nodes) {
+        StringBuilder peers = new StringBuilder();
+        for (int peer = 1; peer <= nodes; peer++) {
+            if (peer != node) {
+                peers.append(peers.length() > 0 ? "," : "").append(peer).append("@localhost:")
+                        .append(FIRST_CLUSTER_PORT + peer - 1);
+            }
+        }
+        return peers.toString();
+    }
+
+    /**
+     * Wait until a port on this host accepts connections
+     *
+     * @param port The port
+     * @throws IOException When the port does not open in time
+     */
+    private static void awaitPort(int port) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + NODE_START_TIMEOUT_MS;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", port), 1000);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Node on port " + port + " did not start");
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+}
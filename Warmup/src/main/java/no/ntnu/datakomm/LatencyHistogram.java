@@ -0,0 +1,101 @@
+package no.ntnu.datakomm;
+
+/**
+ * A histogram of latencies in microseconds. Every power-of-two range of values is split into 32 buckets, so any
+ * recorded value is known within about 3%, whatever its magnitude, with a small fixed amount of memory.
+ * Not thread-safe: every thread records into its own histograms, they are merged for the report.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Enough ranges for any positive long
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long count = 0;
+    private long max = 0;
+
+    /**
+     * Record one latency
+     *
+     * @param nanos The latency in nanoseconds. Negative values are recorded as zero
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        this.counts[bucketOf(micros)]++;
+        this.count++;
+        this.max = Math.max(this.max, micros);
+    }
+
+    /**
+     * Add all the values recorded in another histogram to this one
+     *
+     * @param other The histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            this.counts[i] += other.counts[i];
+        }
+        this.count += other.count;
+        this.max = Math.max(this.max, other.max);
+    }
+
+    /**
+     * @return The number of recorded values
+     */
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * @return The largest recorded value, in microseconds
+     */
+    public long getMax() {
+        return this.max;
+    }
+
+    /**
+     * Return the value below which the given percentage of the recorded values fall
+     *
+     * @param percentile The percentile, for example 99.9
+     * @return The value in microseconds (the upper edge of its bucket), 0 when nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long target = (long) Math.ceil(percentile / 100 * this.count);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += this.counts[i];
+            if (seen >= target && seen > 0) {
+                return Math.min(upperEdgeOf(i), this.max);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param value A value in microseconds, not negative
+     * @return The bucket the value falls into
+     */
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @param bucket A bucket
+     * @return The largest value which falls into the bucket
+     */
+    private static long upperEdgeOf(int bucket) {
+        int range = bucket / SUB_BUCKETS;
+        long subBucket = bucket % SUB_BUCKETS;
+        if (range == 0) {
+            return subBucket;
+        }
+        int shift = range - 1;
+        return ((subBucket + SUB_BUCKETS) << shift) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,266 @@
+package no.ntnu.datakomm;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options of the chat load generator, parsed from the command line. Every option has the form --name=value,
+ * options that are not given keep their default value.
+ */
+public class LoadConfig {
+    private String host = "localhost";
+    private int port = 1300;
+    // Several servers (nodes of a cluster), empty for one server at host:port
+    private final List<InetSocketAddress> servers = new ArrayList<>();
+    private int users = 1000;
+    private int rate = 200;
+    private int warmupSeconds = 5;
+    private int durationSeconds = 30;
+    private int msgWeight = 80;
+    private int privmsgWeight = 15;
+    private int usersWeight = 5;
+    private int messageSize = 64;
+    private int ioThreads = 2;
+    private String reportFile = "load-report.json";
+
+    /**
+     * Create the configuration from the command-line arguments
+     *
+     * @param args Command-line arguments
+     * @return The configuration
+     * @throws IllegalArgumentException When an option is unknown or has an invalid value
+     */
+    public static LoadConfig fromArgs(String[] args) {
+        LoadConfig config = new LoadConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            String[] parts = arg.substring(2).split("=", 2);
+            config.setOption(parts[0], parts[1]);
+        }
+        if (config.users < 2) {
+            throw new IllegalArgumentException("Option --users must be at least 2, private messages need a recipient");
+        }
+        return config;
+    }
+
+    /**
+     * Set one option
+     *
+     * @param name  The name of the option, without the leading dashes
+     * @param value The value of the option
+     * @throws IllegalArgumentException When the option is unknown or the value is invalid
+     */
+    private void setOption(String name, String value) {
+        switch (name) {
+            case "host":
+                this.host = value;
+                break;
+            case "port":
+                this.port = parsePositiveInt(name, value);
+                break;
+            case "servers":
+                this.parseServers(value);
+                break;
+            case "users":
+                this.users = parsePositiveInt(name, value);
+                break;
+            case "rate":
+                this.rate = parsePositiveInt(name, value);
+                break;
+            case "warmup":
+                this.warmupSeconds = parseInt(name, value);
+                break;
+            case "duration":
+                this.durationSeconds = parsePositiveInt(name, value);
+                break;
+            case "mix":
+                this.parseMix(value);
+                break;
+            case "message-size":
+                this.messageSize = parsePositiveInt(name, value);
+                break;
+            case "io-threads":
+                this.ioThreads = parsePositiveInt(name, value);
+                break;
+            case "report":
+                this.reportFile = value;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: --" + name);
+        }
+    }
+
+    /**
+     * Parse the list of servers, for example localhost:1301,localhost:1302
+     *
+     * @param value The servers: host:port pairs, separated by commas
+     * @throws IllegalArgumentException When the list is invalid
+     */
+    private void parseServers(String value) {
+        this.servers.clear();
+        for (String server : value.split(",")) {
+            int colon = server.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Servers must have the form host:port: " + server);
+            }
+            this.servers.add(InetSocketAddress.createUnresolved(server.substring(0, colon),
+                    parsePositiveInt("servers", server.substring(colon + 1))));
+        }
+    }
+
+    /**
+     * Parse the command mix, for example msg=80,privmsg=15,users=5. Commands which are not mentioned are
+     * not sent at all
+     *
+     * @param value The mix: command names with their weights, separated by commas
+     * @throws IllegalArgumentException When the mix is invalid
+     */
+    private void parseMix(String value) {
+        this.msgWeight = 0;
+        this.privmsgWeight = 0;
+        this.usersWeight = 0;
+        for (String part : value.split(",")) {
+            String[] weight = part.split("=", 2);
+            if (weight.length != 2) {
+                throw new IllegalArgumentException("Invalid command mix: " + value);
+            }
+            switch (weight[0]) {
+                case "msg":
+                    this.msgWeight = parseInt("mix", weight[1]);
+                    break;
+                case "privmsg":
+                    this.privmsgWeight = parseInt("mix", weight[1]);
+                    break;
+                case "users":
+                    this.usersWeight = parseInt("mix", weight[1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown command in the mix: " + weight[0]);
+            }
+        }
+        if (this.msgWeight + this.privmsgWeight + this.usersWeight == 0) {
+            throw new IllegalArgumentException("The command mix must contain at least one command");
+        }
+    }
+
+    /**
+     * Parse a non-negative integer option value
+     *
+     * @param name  The name of the option, used in the error message
+     * @param value The value to parse
+     * @return The parsed value
+     * @throws IllegalArgumentException When the value is not a non-negative integer
+     */
+    private static int parseInt(String name, String value) {
+        int result;
+        try {
+            result = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option --" + name + " must be a number: " + value);
+        }
+        if (result < 0) {
+            throw new IllegalArgumentException("Option --" + name + " must not be negative: " + value);
+        }
+        return result;
+    }
+
+    /**
+     * Parse a positive integer option value
+     *
+     * @param name  The name of the option, used in the error message
+     * @param value The value to parse
+     * @return The parsed value
+     * @throws IllegalArgumentException When the value is not a positive integer
+     */
+    private static int parsePositiveInt(String name, String value) {
+        int result = parseInt(name, value);
+        if (result == 0) {
+            throw new IllegalArgumentException("Option --" + name + " must be positive: " + value);
+        }
+        return result;
+    }
+
+    /**
+     * Return a short description of all the options, to be shown to the user
+     *
+     * @return The usage text
+     */
+    public static String getUsage() {
+        return "Options:\n"
+                + "  --host=<host>          Host of the chat server (default localhost)\n"
+                + "  --port=<port>          TCP port of the chat server (default 1300)\n"
+                + "  --servers=<host>:<port>,...\n"
+                + "                         Several servers, for example the nodes of a cluster. The users are\n"
+                + "                         spread evenly over them. Replaces --host and --port\n"
+                + "  --users=<count>        Number of simulated users (default 1000)\n"
+                + "  --rate=<commands>      Commands sent per second, by all the users together (default 200)\n"
+                + "  --warmup=<seconds>     Load before the measurement starts (default 5)\n"
+                + "  --duration=<seconds>   Length of the measurement (default 30)\n"
+                + "  --mix=msg=80,privmsg=15,users=5\n"
+                + "                         Weights of the commands sent (default as shown)\n"
+                + "  --message-size=<bytes> Length of the message text (default 64)\n"
+                + "  --io-threads=<count>   Number of threads serving the user connections (default 2)\n"
+                + "  --report=<path>        Where to write the JSON report (default load-report.json)";
+    }
+
+    public String getHost() {
+        return this.host;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    /**
+     * @return The servers to connect the users to: the --servers list, or host:port
+     */
+    public List<InetSocketAddress> getServers() {
+        if (this.servers.isEmpty()) {
+            return List.of(InetSocketAddress.createUnresolved(this.host, this.port));
+        }
+        return this.servers;
+    }
+
+    public int getUsers() {
+        return this.users;
+    }
+
+    public int getRate() {
+        return this.rate;
+    }
+
+    public int getWarmupSeconds() {
+        return this.warmupSeconds;
+    }
+
+    public int getDurationSeconds() {
+        return this.durationSeconds;
+    }
+
+    public int getMsgWeight() {
+        return this.msgWeight;
+    }
+
+    public int getPrivmsgWeight() {
+        return this.privmsgWeight;
+    }
+
+    public int getUsersWeight() {
+        return this.usersWeight;
+    }
+
+    public int getMessageSize() {
+        return this.messageSize;
+    }
+
+    public int getIoThreads() {
+        return this.ioThreads;
+    }
+
+    public String getReportFile() {
+        return this.reportFile;
+    }
+}
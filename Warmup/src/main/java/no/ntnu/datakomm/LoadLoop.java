@@ -0,0 +1,398 @@
+package no.ntnu.datakomm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * One I/O thread of the load generator. Serves the connections of a share of the simulated users with a
+ * selector: writes the commands the driver hands over, reads everything the server sends, and records the
+ * latencies. Each loop records into its own histograms and counters, they are merged once the loop has stopped.
+ */
+public class LoadLoop implements Runnable {
+    private static final byte[] MSG = "msg ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PRIVMSG = "privmsg ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] USERS = "users".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LOGIN_OK = "loginok".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MSG_ERR = "msgerr".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CMD_ERR = "cmderr".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LOGIN_ERR = "loginerr".getBytes(StandardCharsets.US_ASCII);
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+    private final CountDownLatch loggedIn;
+    private final Thread thread;
+    private volatile boolean needToRun = true;
+    // Messages stamped before this moment belong to the warmup and are not recorded
+    private volatile long measureStartNanos = Long.MAX_VALUE;
+
+    private final LatencyHistogram publicLatency = new LatencyHistogram();
+    private final LatencyHistogram privateLatency = new LatencyHistogram();
+    private final LatencyHistogram usersLatency = new LatencyHistogram();
+    private long commandsSent = 0;
+    private long linesReceived = 0;
+    private long bytesReceived = 0;
+    private long errors = 0;
+    private long disconnects = 0;
+
+    /**
+     * LoadLoop constructor
+     *
+     * @param name     Name of the loop thread
+     * @param loggedIn Counted down for every user who is logged in
+     * @throws IOException When the selector could not be opened
+     */
+    public LoadLoop(String name, CountDownLatch loggedIn) throws IOException {
+        this.selector = Selector.open();
+        this.loggedIn = loggedIn;
+        this.thread = new Thread(this, name);
+    }
+
+    /**
+     * Start the loop thread
+     */
+    public void start() {
+        this.thread.start();
+    }
+
+    /**
+     * Stop the loop thread, close all the connections and wait for the thread to finish
+     *
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public void stop() throws InterruptedException {
+        this.needToRun = false;
+        if (this.selector.isOpen()) {
+            this.selector.wakeup();
+        }
+        this.thread.join();
+    }
+
+    /**
+     * Start measuring: from now on, the latencies of the commands due after the given moment are recorded
+     *
+     * @param nanos The start of the measurement, in System.nanoTime() units
+     */
+    public void startMeasurement(long nanos) {
+        this.measureStartNanos = nanos;
+    }
+
+    /**
+     * Run a task on the loop thread. Safe to call from any thread
+     *
+     * @param task The task to run
+     */
+    public void execute(Runnable task) {
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Register the user's connection with this loop and log the user in
+     *
+     * @param user The user to serve
+     */
+    public void addUser(SimulatedUser user) {
+        this.execute(() -> {
+            try {
+                user.setKey(user.getChannel().register(this.selector, SelectionKey.OP_READ, user));
+                this.write(user, ("login " + user.getUsername() + "\n").getBytes(StandardCharsets.US_ASCII));
+            } catch (IOException e) {
+                this.disconnected(user, e);
+            }
+        });
+    }
+
+    /**
+     * Send one command from the user. The command is stamped with the moment it was due, not the moment
+     * it was actually written, so a stalled server or generator shows up in the latencies
+     * (no coordinated omission)
+     *
+     * @param user      The sender
+     * @param command   The command, without the message text and newline
+     * @param text      The message text, null for commands without a text
+     * @param dueNanos  When the command was due to be sent, in System.nanoTime() units
+     */
+    public void send(SimulatedUser user, String command, String text, long dueNanos) {
+        this.execute(() -> {
+            if (!user.isLoggedIn()) {
+                return;
+            }
+            String line = text != null ? command + " @" + dueNanos + " " + text + "\n" : command + "\n";
+            if (command.equals("users")) {
+                user.getPendingUsersRequests().add(dueNanos);
+            }
+            if (dueNanos >= this.measureStartNanos) {
+                this.commandsSent++;
+            }
+            this.write(user, line.getBytes(StandardCharsets.UTF_8));
+        });
+    }
+
+    /**
+     * Serve the connections until the loop is stopped
+     */
+    @Override
+    public void run() {
+        while (this.needToRun) {
+            try {
+                this.selector.select();
+            } catch (IOException e) {
+                ChatLoadGenerator.log("Load loop could not select: " + e.getMessage());
+                break;
+            }
+            Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                SimulatedUser user = (SimulatedUser) key.attachment();
+                if (key.isValid() && key.isReadable()) {
+                    this.read(user);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    this.flush(user);
+                }
+            }
+            Runnable task = this.tasks.poll();
+            while (task != null) {
+                task.run();
+                task = this.tasks.poll();
+            }
+        }
+        for (SelectionKey key : this.selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+        try {
+            this.selector.close();
+        } catch (IOException e) {
+            ChatLoadGenerator.log("Could not close a selector: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Queue bytes for the user's connection and write as much as the socket takes
+     *
+     * @param user  The user
+     * @param bytes The bytes to write
+     */
+    private void write(SimulatedUser user, byte[] bytes) {
+        user.getOutgoing().add(ByteBuffer.wrap(bytes));
+        this.flush(user);
+    }
+
+    /**
+     * Write the user's queued commands until the queue is empty or the socket is full
+     *
+     * @param user The user
+     */
+    private void flush(SimulatedUser user) {
+        if (!user.getKey().isValid()) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = user.getOutgoing().peek();
+            while (buffer != null) {
+                user.getChannel().write(buffer);
+                if (buffer.hasRemaining()) {
+                    user.getKey().interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                user.getOutgoing().poll();
+                buffer = user.getOutgoing().peek();
+            }
+            user.getKey().interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            this.disconnected(user, e);
+        }
+    }
+
+    /**
+     * Read what the server sent to the user and handle the complete lines
+     *
+     * @param user The user
+     */
+    private void read(SimulatedUser user) {
+        int bytesRead;
+        try {
+            bytesRead = user.getChannel().read(this.readBuffer);
+        } catch (IOException e) {
+            this.disconnected(user, e);
+            return;
+        }
+        if (bytesRead < 0) {
+            this.disconnected(user, null);
+            return;
+        }
+        if (System.nanoTime() >= this.measureStartNanos) {
+            this.bytesReceived += bytesRead;
+        }
+        byte[] bytes = this.readBuffer.array();
+        int lineStart = 0;
+        for (int i = 0; i < bytesRead; i++) {
+            if (bytes[i] == '\n') {
+                if (user.getPartialLength() > 0) {
+                    user.appendPartialLine(bytes, lineStart, i - lineStart);
+                    this.handleLine(user, user.getPartialLine(), user.getPartialLength());
+                    user.clearPartialLine();
+                } else {
+                    this.handleLine(user, bytes, lineStart, i - lineStart);
+                }
+                lineStart = i + 1;
+            }
+        }
+        if (lineStart < bytesRead) {
+            user.appendPartialLine(bytes, lineStart, bytesRead - lineStart);
+        }
+        this.readBuffer.clear();
+    }
+
+    /**
+     * Handle a line kept in the user's partial line buffer
+     */
+    private void handleLine(SimulatedUser user, byte[] bytes, int length) {
+        this.handleLine(user, bytes, 0, length);
+    }
+
+    /**
+     * Handle one line received from the server: record the latency of delivered messages and replies
+     *
+     * @param user   The user who received the line
+     * @param bytes  The buffer holding the line
+     * @param offset Where the line starts
+     * @param length Length of the line, without the newline
+     */
+    private void handleLine(SimulatedUser user, byte[] bytes, int offset, int length) {
+        long now = System.nanoTime();
+        if (now >= this.measureStartNanos) {
+            this.linesReceived++;
+        }
+        if (startsWith(bytes, offset, length, MSG)) {
+            this.recordStamped(this.publicLatency, bytes, offset, length, now);
+        } else if (startsWith(bytes, offset, length, PRIVMSG)) {
+            this.recordStamped(this.privateLatency, bytes, offset, length, now);
+        } else if (startsWith(bytes, offset, length, USERS)) {
+            Long due = user.getPendingUsersRequests().poll();
+            if (due != null && due >= this.measureStartNanos) {
+                this.usersLatency.record(now - due);
+            }
+        } else if (startsWith(bytes, offset, length, LOGIN_OK)) {
+            if (!user.isLoggedIn()) {
+                user.setLoggedIn(true);
+                this.loggedIn.countDown();
+            }
+        } else if (startsWith(bytes, offset, length, LOGIN_ERR)) {
+            ChatLoadGenerator.log("Login failed for " + user.getUsername() + ": "
+                    + new String(bytes, offset, length, StandardCharsets.UTF_8));
+            this.errors++;
+        } else if (startsWith(bytes, offset, length, MSG_ERR) || startsWith(bytes, offset, length, CMD_ERR)) {
+            this.errors++;
+        }
+    }
+
+    /**
+     * Find the stamp (@ followed by the due time) in a delivered message and record its latency
+     *
+     * @param histogram Where to record the latency
+     * @param bytes     The buffer holding the line
+     * @param offset    Where the line starts
+     * @param length    Length of the line
+     * @param now       When the line was received
+     */
+    private void recordStamped(LatencyHistogram histogram, byte[] bytes, int offset, int length, long now) {
+        int end = offset + length;
+        int i = offset;
+        while (i < end - 1 && !(bytes[i] == ' ' && bytes[i + 1] == '@')) {
+            i++;
+        }
+        i += 2;
+        long due = 0;
+        boolean hasDigits = false;
+        while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+            due = due * 10 + (bytes[i] - '0');
+            hasDigits = true;
+            i++;
+        }
+        if (hasDigits && due >= this.measureStartNanos) {
+            histogram.record(now - due);
+        }
+    }
+
+    /**
+     * Check whether a line starts with the given word
+     */
+    private static boolean startsWith(byte[] bytes, int offset, int length, byte[] word) {
+        if (length < word.length) {
+            return false;
+        }
+        for (int i = 0; i < word.length; i++) {
+            if (bytes[offset + i] != word[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The server closed the user's connection
+     *
+     * @param user The user
+     * @param e    The error, null when the connection was closed normally
+     */
+    private void disconnected(SimulatedUser user, IOException e) {
+        this.disconnects++;
+        if (user.getKey() != null) {
+            user.getKey().cancel();
+        }
+        try {
+            user.getChannel().close();
+        } catch (IOException closeError) {
+            // Closing anyway
+        }
+        if (e != null) {
+            ChatLoadGenerator.log("Connection of " + user.getUsername() + " failed: " + e.getMessage());
+        }
+    }
+
+    public LatencyHistogram getPublicLatency() {
+        return this.publicLatency;
+    }
+
+    public LatencyHistogram getPrivateLatency() {
+        return this.privateLatency;
+    }
+
+    public LatencyHistogram getUsersLatency() {
+        return this.usersLatency;
+    }
+
+    public long getCommandsSent() {
+        return this.commandsSent;
+    }
+
+    public long getLinesReceived() {
+        return this.linesReceived;
+    }
+
+    public long getBytesReceived() {
+        return this.bytesReceived;
+    }
+
+    public long getErrors() {
+        return this.errors;
+    }
+
+    public long getDisconnects() {
+        return this.disconnects;
+    }
+}
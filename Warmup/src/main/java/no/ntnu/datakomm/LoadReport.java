@@ -0,0 +1,150 @@
+package no.ntnu.datakomm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * The results of one load run: latency histograms and throughput, merged from all the load loops. Printed as a
+ * table on the console, and written as JSON so that runs against different server builds can be compared.
+ */
+public class LoadReport {
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+
+    private final LoadConfig config;
+    private final double seconds;
+    private final LatencyHistogram publicLatency = new LatencyHistogram();
+    private final LatencyHistogram privateLatency = new LatencyHistogram();
+    private final LatencyHistogram usersLatency = new LatencyHistogram();
+    private long commandsSent = 0;
+    private long linesReceived = 0;
+    private long bytesReceived = 0;
+    private long errors = 0;
+    private long disconnects = 0;
+
+    /**
+     * LoadReport constructor
+     *
+     * @param config  The options of the run
+     * @param seconds Length of the measurement
+     */
+    public LoadReport(LoadConfig config, double seconds) {
+        this.config = config;
+        this.seconds = seconds;
+    }
+
+    /**
+     * Add the results of one load loop, after the loop has stopped
+     *
+     * @param loop The loop
+     */
+    public void add(LoadLoop loop) {
+        this.publicLatency.add(loop.getPublicLatency());
+        this.privateLatency.add(loop.getPrivateLatency());
+        this.usersLatency.add(loop.getUsersLatency());
+        this.commandsSent += loop.getCommandsSent();
+        this.linesReceived += loop.getLinesReceived();
+        this.bytesReceived += loop.getBytesReceived();
+        this.errors += loop.getErrors();
+        this.disconnects += loop.getDisconnects();
+    }
+
+    /**
+     * @return The commands sent per second
+     */
+    public double getCommandsPerSecond() {
+        return this.commandsSent / this.seconds;
+    }
+
+    /**
+     * @return The lines received per second, by all the users together
+     */
+    public double getLinesPerSecond() {
+        return this.linesReceived / this.seconds;
+    }
+
+    /**
+     * @return The delivery latencies of the private messages
+     */
+    public LatencyHistogram getPrivateLatency() {
+        return this.privateLatency;
+    }
+
+    /**
+     * @return The number of errors and disconnects
+     */
+    public long getFailures() {
+        return this.errors + this.disconnects;
+    }
+
+    /**
+     * Print the report to the console
+     */
+    public void print() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "%n%d users, %d commands/s target, %.1f s measured%n",
+                this.config.getUsers(), this.config.getRate(), this.seconds));
+        report.append(String.format(Locale.ROOT, "%-20s %10s %10s %10s %10s %10s%n",
+                "latency (us)", "count", "p50", "p99", "p99.9", "max"));
+        this.appendRow(report, "msg delivery", this.publicLatency);
+        this.appendRow(report, "privmsg delivery", this.privateLatency);
+        this.appendRow(report, "users reply", this.usersLatency);
+        report.append(String.format(Locale.ROOT, "%nsent:     %.0f commands/s%n", this.commandsSent / this.seconds));
+        report.append(String.format(Locale.ROOT, "received: %.0f lines/s, %.2f MB/s%n",
+                this.linesReceived / this.seconds, this.bytesReceived / this.seconds / (1024 * 1024)));
+        report.append(String.format(Locale.ROOT, "errors:   %d, disconnects: %d", this.errors, this.disconnects));
+        System.out.println(report);
+    }
+
+    /**
+     * Append one histogram as a row of the console table
+     */
+    private void appendRow(StringBuilder report, String name, LatencyHistogram histogram) {
+        report.append(String.format(Locale.ROOT, "%-20s %10d", name, histogram.getCount()));
+        for (double percentile : PERCENTILES) {
+            report.append(String.format(Locale.ROOT, " %10d", histogram.getPercentile(percentile)));
+        }
+        report.append(String.format(Locale.ROOT, " %10d%n", histogram.getMax()));
+    }
+
+    /**
+     * Write the report as JSON
+     *
+     * @param path The file to write
+     * @throws IOException When the file can not be written
+     */
+    public void write(Path path) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append(String.format(Locale.ROOT, "  \"users\": %d,%n", this.config.getUsers()));
+        json.append(String.format(Locale.ROOT, "  \"targetRate\": %d,%n", this.config.getRate()));
+        json.append(String.format(Locale.ROOT,
+                "  \"mix\": {\"msg\": %d, \"privmsg\": %d, \"users\": %d},%n",
+                this.config.getMsgWeight(), this.config.getPrivmsgWeight(), this.config.getUsersWeight()));
+        json.append(String.format(Locale.ROOT, "  \"messageSize\": %d,%n", this.config.getMessageSize()));
+        json.append(String.format(Locale.ROOT, "  \"seconds\": %.3f,%n", this.seconds));
+        json.append(String.format(Locale.ROOT, "  \"commandsPerSecond\": %.1f,%n", this.commandsSent / this.seconds));
+        json.append(String.format(Locale.ROOT, "  \"linesPerSecond\": %.1f,%n", this.linesReceived / this.seconds));
+        json.append(String.format(Locale.ROOT, "  \"bytesPerSecond\": %.1f,%n", this.bytesReceived / this.seconds));
+        json.append(String.format(Locale.ROOT, "  \"errors\": %d,%n", this.errors));
+        json.append(String.format(Locale.ROOT, "  \"disconnects\": %d,%n", this.disconnects));
+        json.append("  \"latencyMicros\": {\n");
+        this.appendJson(json, "msg", this.publicLatency, ",");
+        this.appendJson(json, "privmsg", this.privateLatency, ",");
+        this.appendJson(json, "users", this.usersLatency, "");
+        json.append("  }\n}\n");
+        Files.write(path, json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Append one histogram as a JSON object
+     */
+    private void appendJson(StringBuilder json, String name, LatencyHistogram histogram, String separator) {
+        json.append(String.format(Locale.ROOT,
+                "    \"%s\": {\"count\": %d, \"p50\": %d, \"p99\": %d, \"p99.9\": %d, \"max\": %d}%s%n",
+                name, histogram.getCount(), histogram.getPercentile(50), histogram.getPercentile(99),
+                histogram.getPercentile(99.9), histogram.getMax(), separator));
+    }
+}
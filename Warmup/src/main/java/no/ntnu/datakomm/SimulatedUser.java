@@ -0,0 +1,99 @@
+package no.ntnu.datakomm;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+/**
+ * The state of one simulated chat user of the load generator: its connection, the part of a line received so
+ * far, the commands waiting to be written. Used only by the LoadLoop thread which serves the user.
+ */
+public class SimulatedUser {
+    private final String username;
+    private final SocketChannel channel;
+    private SelectionKey key;
+    // The beginning of a line whose end has not arrived yet
+    private byte[] partialLine = new byte[256];
+    private int partialLength = 0;
+    private final Queue<ByteBuffer> outgoing = new ArrayDeque<>();
+    // When each of the users requests still waiting for a reply was due to be sent, the replies come in order
+    private final Queue<Long> pendingUsersRequests = new ArrayDeque<>();
+    private boolean loggedIn = false;
+
+    /**
+     * SimulatedUser constructor
+     *
+     * @param username The username the user logs in with
+     * @param channel  The connection to the server, already connected and in non-blocking mode
+     */
+    public SimulatedUser(String username, SocketChannel channel) {
+        this.username = username;
+        this.channel = channel;
+    }
+
+    public String getUsername() {
+        return this.username;
+    }
+
+    public SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    public SelectionKey getKey() {
+        return this.key;
+    }
+
+    public void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    public Queue<ByteBuffer> getOutgoing() {
+        return this.outgoing;
+    }
+
+    public Queue<Long> getPendingUsersRequests() {
+        return this.pendingUsersRequests;
+    }
+
+    public boolean isLoggedIn() {
+        return this.loggedIn;
+    }
+
+    public void setLoggedIn(boolean loggedIn) {
+        this.loggedIn = loggedIn;
+    }
+
+    /**
+     * Keep the beginning of a line until the rest of it arrives
+     *
+     * @param bytes  The buffer holding the bytes
+     * @param offset Where the bytes start
+     * @param length How many bytes to keep
+     */
+    public void appendPartialLine(byte[] bytes, int offset, int length) {
+        if (this.partialLength + length > this.partialLine.length) {
+            this.partialLine = Arrays.copyOf(this.partialLine,
+                    Math.max(this.partialLine.length * 2, this.partialLength + length));
+        }
+        System.arraycopy(bytes, offset, this.partialLine, this.partialLength, length);
+        this.partialLength += length;
+    }
+
+    public byte[] getPartialLine() {
+        return this.partialLine;
+    }
+
+    public int getPartialLength() {
+        return this.partialLength;
+    }
+
+    /**
+     * Forget the kept line, after it has been handled
+     */
+    public void clearPartialLine() {
+        this.partialLength = 0;
+    }
+}
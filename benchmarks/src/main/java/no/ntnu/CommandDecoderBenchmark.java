@@ -0,0 +1,91 @@
+package no.ntnu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of one received line into a command and its arguments: the old String-based way (decode the line,
+ * split it, switch on the command word, check usernames with a regex) against the byte-level CommandDecoder.
+ * Run with the gc profiler to see the allocations per line:
+ * java -jar benchmarks/target/benchmarks.jar CommandDecoderBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandDecoderBenchmark {
+    @Param({"msg Hello everyone, how is it going today?", "privmsg alice See you at ten", "login alice42", "users"})
+    public String line;
+
+    private byte[] lineBytes;
+    private final CommandDecoder decoder = new CommandDecoder();
+
+    @Setup
+    public void setup() {
+        this.lineBytes = this.line.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The way the server decoded lines before: a String for the line, split() for the arguments,
+     * a switch on the command String, a regex for the username check
+     */
+    @Benchmark
+    public void stringDecoding(Blackhole blackhole) {
+        String input = new String(this.lineBytes, StandardCharsets.UTF_8);
+        String[] parts = input.split(" ", 2);
+        String arguments = parts.length == 2 ? parts[1] : null;
+        switch (parts[0]) {
+            case "login":
+                blackhole.consume(arguments != null && arguments.matches("^[a-zA-Z0-9]*$"));
+                break;
+            case "privmsg":
+                blackhole.consume(arguments.split(" ", 2));
+                break;
+            default:
+                blackhole.consume(parts[0]);
+        }
+    }
+
+    /**
+     * Message.createFromInput(), which the server no longer uses on the hot path
+     */
+    @Benchmark
+    public Message messageCreateFromInput() {
+        return Message.createFromInput(new String(this.lineBytes, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The byte-level decoder the server uses now
+     */
+    @Benchmark
+    public void byteDecoding(Blackhole blackhole) {
+        switch (this.decoder.decode(this.lineBytes, 0, this.lineBytes.length)) {
+            case LOGIN:
+                blackhole.consume(ClientHandler.isAlphaNumeric(this.decoder.getBytes(),
+                        this.decoder.getArgumentsOffset(), this.decoder.getArgumentsLength()));
+                break;
+            case PRIVMSG:
+                blackhole.consume(CommandDecoder.indexOfSpace(this.decoder.getBytes(),
+                        this.decoder.getArgumentsOffset(),
+                        this.decoder.getArgumentsOffset() + this.decoder.getArgumentsLength()));
+                break;
+            default:
+                blackhole.consume(this.decoder.getCommand());
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package no.ntnu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The compression of the binary framing, for received lines of about SIZE bytes: chat text, a pasted stack trace
+ * and log lines. The CPU to compress and to inflate one line, and a public message to RECIPIENTS clients on
+ * compressed connections, compressed once and shared the way the writers do (Compression.compressShared()) against
+ * compressed for every recipient. The setup prints the bytes on the wire with and without compression.
+ * java -jar benchmarks/target/benchmarks.jar CompressionBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+    private static final int RECIPIENTS = 1000;
+    // Repeated until the text has the size, the kind of text people send
+    private static final String[] SAMPLES = {
+            "Hello everyone, how is it going today? I think the new version of the server works well now. ",
+            "java.lang.IllegalStateException: the connection was closed\n"
+                    + "\tat no.ntnu.ClientHandler.handleLine(ClientHandler.java:142)\n"
+                    + "\tat no.ntnu.NioConnection.onReadable(NioConnection.java:88)\n",
+            "2026-03-14 00:00:00 INFO request from user alice took 12 ms, response 200 with 512 bytes\n",
+    };
+
+    @Param({"64", "1024", "16384"})
+    public int size;
+
+    private byte[] line;
+    private byte[] compressed;
+
+    @Setup
+    public void setup() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < this.size; i++) {
+            text.append(SAMPLES[i % SAMPLES.length]).append(i).append(' ');
+        }
+        text.setLength(this.size);
+        this.line = Message.encodeLine("msg alice " + text);
+        this.compressed = Compression.compress(this.line, 0, this.line.length);
+        int wireLength = this.compressed != null && this.line.length >= Compression.MIN_LENGTH
+                ? this.compressed.length : this.line.length;
+        System.out.println();
+        System.out.println("Line of " + this.line.length + " bytes: " + (Frame.HEADER_LENGTH + this.line.length)
+                + " bytes on the wire, " + (Frame.HEADER_LENGTH + wireLength) + " with compression");
+    }
+
+    /**
+     * Compress one line for one client
+     */
+    @Benchmark
+    public byte[] compress() {
+        return Compression.compress(this.line, 0, this.line.length);
+    }
+
+    /**
+     * Inflate one line, the work of the receiving side
+     */
+    @Benchmark
+    public byte[] inflate() {
+        return Compression.inflate(this.compressed, 0, this.compressed.length, Frame.MAX_PAYLOAD_LENGTH);
+    }
+
+    /**
+     * A public message to all the clients, the compressed bytes are shared by the recipients. The score is per
+     * recipient
+     */
+    @Benchmark
+    @OperationsPerInvocation(RECIPIENTS)
+    public void fanOutShared(Blackhole blackhole) {
+        // A new line every time, like a new message
+        byte[] message = this.line.clone();
+        for (int i = 0; i < RECIPIENTS; i++) {
+            blackhole.consume(Compression.compressShared(message));
+        }
+    }
+
+    /**
+     * A public message to all the clients, compressed for every recipient like a compression stream per
+     * connection would need. The score is per recipient
+     */
+    @Benchmark
+    @OperationsPerInvocation(RECIPIENTS)
+    public void fanOutPerRecipient(Blackhole blackhole) {
+        byte[] message = this.line.clone();
+        for (int i = 0; i < RECIPIENTS; i++) {
+            blackhole.consume(Compression.compress(message, 0, message.length));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package no.ntnu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server operations which touch every registered client: broadcasting a public message and listing the
+ * users. The clients are served by fake connections which only count the lines, so the numbers show the cost
+ * of the server's own work, without any socket I/O.
+ * java -jar benchmarks/target/benchmarks.jar FanOutBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+    private static final byte[] PREFIX = "msg user1 ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TEXT = "Hello everyone, how is it going today?".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * A connection which throws the lines away, counting them
+     */
+    private static class CountingConnection implements ClientConnection {
+        private long linesSent = 0;
+
+        @Override
+        public void send(byte[] line, boolean droppable) {
+            this.linesSent++;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void startFraming() {
+        }
+
+        @Override
+        public void startCompression() {
+        }
+
+        @Override
+        public long getQueuedBytes() {
+            return 0;
+        }
+    }
+
+    @Param({"10", "1000", "50000"})
+    public int handlers;
+
+    private Server server;
+    private ClientHandler sender;
+
+    @Setup
+    public void setup() {
+        this.server = new Server(ServerConfig.fromArgs(new String[0]));
+        for (int i = 0; i < this.handlers; i++) {
+            ClientHandler handler = new ClientHandler(new CountingConnection(), this.server);
+            this.server.storeClientHandler(handler);
+            if (this.sender == null) {
+                this.sender = handler;
+            }
+        }
+    }
+
+    @Benchmark
+    public int forwardToAllClientsExcept() {
+        return this.server.forwardToAllClientsExcept(Message.encodeRelayedLine(PREFIX, TEXT, 0, TEXT.length),
+                this.sender);
+    }
+
+    @Benchmark
+    public String getActiveUsernames() {
+        return this.server.getActiveUsernames();
+    }
+}
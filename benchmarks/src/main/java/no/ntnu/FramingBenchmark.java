@@ -0,0 +1,160 @@
+package no.ntnu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU per message of the line protocol against the binary framing, for the same stream of messages received in
+ * reads of READ_SIZE bytes. The server side decodes msg commands with the LineDecoder or the FrameDecoder, the
+ * client side reads msg lines with a BufferedReader or reads OP_LINES frames with a DataInputStream, the way
+ * TCPClient does. The score is per message.
+ * java -jar benchmarks/target/benchmarks.jar FramingBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+    private static final int MESSAGES = 100;
+    // The size of the socket reads the server decodes
+    private static final int READ_SIZE = 4096;
+
+    @Param({"Hello everyone, how is it going today?", "A longer message, the kind someone pastes into the chat "
+            + "when they explain something at length and do not bother to split it into several messages."})
+    public String text;
+
+    private byte[] lines;
+    private byte[] frames;
+    private byte[] receivedLines;
+    private byte[] receivedFrames;
+    private long decodedBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] command = ("msg " + this.text).getBytes(StandardCharsets.UTF_8);
+        byte[] received = Message.encodeLine("msg alice " + this.text);
+        ByteArrayOutputStream lineStream = new ByteArrayOutputStream();
+        ByteArrayOutputStream frameStream = new ByteArrayOutputStream();
+        ByteArrayOutputStream receivedLineStream = new ByteArrayOutputStream();
+        ByteArrayOutputStream receivedFrameStream = new ByteArrayOutputStream();
+        byte[] header = new byte[Frame.HEADER_LENGTH];
+        for (int i = 0; i < MESSAGES; i++) {
+            lineStream.write(command);
+            lineStream.write('\n');
+            Frame.writeHeader(header, 0, command.length, Frame.OP_LINE);
+            frameStream.write(header);
+            frameStream.write(command);
+            receivedLineStream.write(received);
+            Frame.writeHeader(header, 0, received.length, Frame.OP_LINES);
+            receivedFrameStream.write(header);
+            receivedFrameStream.write(received);
+        }
+        this.lines = lineStream.toByteArray();
+        this.frames = frameStream.toByteArray();
+        this.receivedLines = receivedLineStream.toByteArray();
+        this.receivedFrames = receivedFrameStream.toByteArray();
+    }
+
+    /**
+     * The server decoding the commands of a text client
+     */
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public long serverLineDecoding() {
+        this.decodedBytes = 0;
+        LineDecoder decoder = new LineDecoder((bytes, offset, length) -> this.decodedBytes += length);
+        this.decodeInReads(this.lines, decoder::decode);
+        return this.decodedBytes;
+    }
+
+    /**
+     * The server decoding the commands of a client which uses binary framing
+     */
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public long serverFrameDecoding() {
+        this.decodedBytes = 0;
+        FrameDecoder decoder = new FrameDecoder((bytes, offset, length) -> this.decodedBytes += length, () -> {
+        });
+        this.decodeInReads(this.frames, decoder::decode);
+        return this.decodedBytes;
+    }
+
+    /**
+     * The client reading the lines of the text protocol
+     */
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void clientLineReading(Blackhole blackhole) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(this.receivedLines), StandardCharsets.UTF_8));
+        String line = reader.readLine();
+        while (line != null) {
+            blackhole.consume(line);
+            line = reader.readLine();
+        }
+    }
+
+    /**
+     * The client reading the OP_LINES frames of the binary framing, one line per frame
+     */
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void clientFrameReading(Blackhole blackhole) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(this.receivedFrames));
+        while (true) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            in.readByte();
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            blackhole.consume(new String(payload, 0, length - 1, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Hand a stream over to a decoder in reads of READ_SIZE bytes, like a socket would
+     *
+     * @param stream  The bytes received
+     * @param decoder The decoder
+     */
+    private void decodeInReads(byte[] stream, Decoder decoder) {
+        for (int offset = 0; offset < stream.length; offset += READ_SIZE) {
+            decoder.decode(stream, offset, Math.min(READ_SIZE, stream.length - offset));
+        }
+    }
+
+    /**
+     * The decode() method of the LineDecoder and the FrameDecoder
+     */
+    private interface Decoder {
+        void decode(byte[] bytes, int offset, int length);
+    }
+}
@@ -0,0 +1,66 @@
+package no.ntnu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The String-level protocol helpers of the server: splitting a line into a Message, and the username check.
+ * Run with the gc profiler to see the allocations per call:
+ * java -jar benchmarks/target/benchmarks.jar MessageParsingBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageParsingBenchmark {
+    /**
+     * The usernames to check, kept apart from the lines so the two parameters are not multiplied
+     */
+    @State(Scope.Thread)
+    public static class Usernames {
+        @Param({"alice42", "not a valid name"})
+        public String username;
+
+        private byte[] usernameBytes;
+
+        @Setup
+        public void setup() {
+            this.usernameBytes = this.username.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Param({"msg Hello everyone, how is it going today?", "users"})
+    public String line;
+
+    @Benchmark
+    public Message createFromInput() {
+        return Message.createFromInput(this.line);
+    }
+
+    @Benchmark
+    public boolean isAlphaNumericString(Usernames usernames) {
+        return ClientHandler.isAlphaNumeric(usernames.username);
+    }
+
+    /**
+     * The check on the raw bytes, as done by the server when a login arrives
+     */
+    @Benchmark
+    public boolean isAlphaNumericBytes(Usernames usernames) {
+        return ClientHandler.isAlphaNumeric(usernames.usernameBytes, 0, usernames.usernameBytes.length);
+    }
+}
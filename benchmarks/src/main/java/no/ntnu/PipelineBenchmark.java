@@ -0,0 +1,129 @@
+package no.ntnu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips of a pipelined batch of commands against a real server on localhost: the client sends a batch of
+ * "help" commands and waits for all the replies. The client either writes every command separately (like
+ * TCPClient without command batching) or the whole batch at once (with command batching).
+ * Every socket write is one send() system call, every socket read which returns data is (roughly) one segment
+ * arriving from the server, so the write and read counts per round trip, printed at the end of each fork,
+ * show how many system calls and packets a batch costs on each side:
+ * java -jar benchmarks/target/benchmarks.jar PipelineBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+    private static final int PORT = 13013;
+    private static final byte[] COMMAND = "help\n".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"blocking", "nio"})
+    public String engine;
+
+    @Param({"perCommand", "batched"})
+    public String clientWrites;
+
+    @Param({"50"})
+    public int commands;
+
+    private Socket socket;
+    private OutputStream out;
+    private InputStream in;
+    private byte[] batch;
+    private final byte[] readBuffer = new byte[64 * 1024];
+    private long roundTrips = 0;
+    private long writes = 0;
+    private long reads = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        Thread serverThread = new Thread(() -> Server.main(new String[]{
+                "--port=" + PORT, "--engine=" + this.engine, "--event-loops=1", "--log-level=warn"}));
+        serverThread.setDaemon(true);
+        serverThread.start();
+        this.socket = this.connect();
+        this.socket.setTcpNoDelay(true);
+        this.out = this.socket.getOutputStream();
+        this.in = this.socket.getInputStream();
+        this.batch = new byte[COMMAND.length * this.commands];
+        for (int i = 0; i < this.commands; i++) {
+            System.arraycopy(COMMAND, 0, this.batch, i * COMMAND.length, COMMAND.length);
+        }
+    }
+
+    /**
+     * Connect to the server, waiting for it to start listening
+     */
+    private Socket connect() throws InterruptedException, IOException {
+        for (int attempt = 0; attempt < 50; attempt++) {
+            try {
+                return new Socket("127.0.0.1", PORT);
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("The server did not start on port " + PORT);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.socket.close();
+        System.out.printf("%n%s engine, %s client: %.1f writes and %.1f reads per round trip of %d commands%n",
+                this.engine, this.clientWrites, (double) this.writes / this.roundTrips,
+                (double) this.reads / this.roundTrips, this.commands);
+    }
+
+    /**
+     * Send the commands and read until all the replies have arrived
+     */
+    @Benchmark
+    public int roundTrip() throws IOException {
+        if ("batched".equals(this.clientWrites)) {
+            this.out.write(this.batch);
+            this.writes++;
+        } else {
+            for (int i = 0; i < this.commands; i++) {
+                this.out.write(COMMAND);
+                this.writes++;
+            }
+        }
+        int repliesLeft = this.commands;
+        while (repliesLeft > 0) {
+            int bytesRead = this.in.read(this.readBuffer);
+            if (bytesRead < 0) {
+                throw new IOException("The server closed the connection");
+            }
+            this.reads++;
+            for (int i = 0; i < bytesRead; i++) {
+                if (this.readBuffer[i] == '\n') {
+                    repliesLeft--;
+                }
+            }
+        }
+        this.roundTrips++;
+        return repliesLeft;
+    }
+}
@@ -0,0 +1,67 @@
+package no.ntnu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the line a public message is forwarded as, from the received msg line: the old way (decode the text
+ * to a String, concatenate the prefix, encode it again) against Message.encodeRelayedLine(), which copies the
+ * text from the read buffer behind the encoded prefix. The text is non-ASCII, so decoding is not the trivial case.
+ * java -jar benchmarks/target/benchmarks.jar RelayBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RelayBenchmark {
+    private static final byte[] PREFIX = "msg alice ".getBytes(StandardCharsets.UTF_8);
+
+    // Length of the message text, in characters
+    @Param({"40", "4096", "65536"})
+    public int textLength;
+
+    // The received line, "msg " followed by the text
+    private byte[] received;
+
+    @Setup
+    public void setup() {
+        char[] text = new char[this.textLength];
+        Arrays.fill(text, 'a');
+        for (int i = 0; i < text.length; i += 10) {
+            text[i] = '\u00f8';
+        }
+        this.received = ("msg " + new String(text)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The way the server built the line before
+     */
+    @Benchmark
+    public byte[] decodeAndEncode() {
+        String text = new String(this.received, 4, this.received.length - 4, StandardCharsets.UTF_8);
+        return Message.encodeLine("msg alice " + text);
+    }
+
+    /**
+     * The relay path the server uses now, the text is never decoded
+     */
+    @Benchmark
+    public byte[] relay() {
+        return Message.encodeRelayedLine(PREFIX, this.received, 4, this.received.length - 4);
+    }
+}
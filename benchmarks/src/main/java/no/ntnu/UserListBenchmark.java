@@ -0,0 +1,111 @@
+package no.ntnu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One polling cycle of the chat client's user list: every connected client sends users once. Compares building
+ * the reply for every request, the way the server did before, against the shared snapshot which is rebuilt only
+ * when the user list changes. The "oneLogin" variant has one client log in during the cycle, so the snapshot
+ * is rebuilt once per cycle.
+ * java -jar benchmarks/target/benchmarks.jar UserListBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserListBenchmark {
+    private static final byte[] USERS = "users".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * A connection which throws the lines away, counting the bytes
+     */
+    private static class CountingConnection implements ClientConnection {
+        private long bytesSent = 0;
+
+        @Override
+        public void send(byte[] line, boolean droppable) {
+            this.bytesSent += line.length;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void startFraming() {
+        }
+
+        @Override
+        public void startCompression() {
+        }
+
+        @Override
+        public long getQueuedBytes() {
+            return 0;
+        }
+    }
+
+    @Param({"10000"})
+    public int handlers;
+
+    private Server server;
+    private ClientHandler[] clients;
+    private int loginCounter = 0;
+
+    @Setup
+    public void setup() {
+        this.server = new Server(ServerConfig.fromArgs(new String[0]));
+        this.clients = new ClientHandler[this.handlers];
+        for (int i = 0; i < this.handlers; i++) {
+            this.clients[i] = new ClientHandler(new CountingConnection(), this.server);
+            this.server.storeClientHandler(this.clients[i]);
+        }
+    }
+
+    /**
+     * The reply built for every request: walk all the clients, join the names, encode the line
+     */
+    @Benchmark
+    public long rebuildPerRequest() {
+        long bytes = 0;
+        for (int i = 0; i < this.handlers; i++) {
+            bytes += Message.encodeLine("users " + this.server.getActiveUsernames()).length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Every client sends users through the handler, all of them get the shared snapshot
+     */
+    @Benchmark
+    public void snapshot() {
+        for (ClientHandler client : this.clients) {
+            client.handleLine(USERS, 0, USERS.length);
+        }
+    }
+
+    /**
+     * Like snapshot(), but one client logs in first, so the snapshot is rebuilt once in the cycle
+     */
+    @Benchmark
+    public void snapshotWithOneLogin() {
+        byte[] login = ("login bench" + this.loginCounter++).getBytes(StandardCharsets.US_ASCII);
+        this.clients[0].handleLine(login, 0, login.length);
+        this.snapshot();
+    }
+}
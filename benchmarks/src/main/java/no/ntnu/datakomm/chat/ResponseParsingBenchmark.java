@@ -0,0 +1,113 @@
+package no.ntnu.datakomm.chat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How the TCPClient splits a line received from the server into the command, the sender and the text, the work
+ * of the listening thread for every incoming message: the old way (split() the whole line for the command, again
+ * for the rest, again for the sender and the text, and rebuild the text word by word) against the ResponseParser.
+ * The messages have a text of TEXT_LENGTH characters. At 100 000 messages of 1 KB per second, the listening
+ * thread has 10 microseconds per message, the score is in nanoseconds per message. Run with the gc profiler to
+ * see the allocations per message:
+ * java -jar benchmarks/target/benchmarks.jar ResponseParsingBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseParsingBenchmark {
+    private static final String WORDS = "Hello everyone, how is it going today? I think the new version works well. ";
+
+    @Param({"msg alice", "privmsg bob", "roommsg lobby carol"})
+    public String prefix;
+
+    @Param({"40", "1024"})
+    public int textLength;
+
+    private String response;
+    private final ResponseParser parser = new ResponseParser();
+
+    @Setup
+    public void setup() {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < this.textLength) {
+            text.append(WORDS);
+        }
+        text.setLength(this.textLength);
+        this.response = this.prefix + " " + text;
+    }
+
+    /**
+     * The way the listening thread took a message apart before
+     */
+    @Benchmark
+    public void splitParsing(Blackhole blackhole) {
+        String command = extractFirstWord(this.response);
+        String message = excludeFirstWord(this.response);
+        blackhole.consume(command);
+        if (command.equals("roommsg")) {
+            blackhole.consume(extractFirstWord(message));
+            message = excludeFirstWord(message);
+        }
+        blackhole.consume(extractFirstWord(message));
+        blackhole.consume(excludeFirstWord(message));
+    }
+
+    /**
+     * The way the listening thread takes a message apart now
+     */
+    @Benchmark
+    public void singlePassParsing(Blackhole blackhole) {
+        this.parser.parse(this.response);
+        String command = this.parser.getCommand();
+        blackhole.consume(command);
+        if (command.equals("roommsg")) {
+            blackhole.consume(this.parser.getWord(1));
+            blackhole.consume(this.parser.getWord(2));
+            blackhole.consume(this.parser.getRest(3));
+        } else {
+            blackhole.consume(this.parser.getWord(1));
+            blackhole.consume(this.parser.getRest(2));
+        }
+    }
+
+    /**
+     * TCPClient.extractFirstWord() before the ResponseParser
+     *
+     * @param text The String to extract the first words from
+     * @return The first word
+     */
+    private static String extractFirstWord(String text) {
+        return text.split(" ")[0];
+    }
+
+    /**
+     * TCPClient.excludeFirstWord() before the ResponseParser
+     *
+     * @param response response to extract from
+     * @return the message in the response
+     */
+    private static String excludeFirstWord(String response) {
+        String[] splitString = response.split(" ");
+        StringBuilder builder = new StringBuilder();
+        for (int i = 1; i < splitString.length; i++) {
+            builder.append(splitString[i]).append(" ");
+        }
+        return builder.toString();
+    }
+}